@@ -0,0 +1,107 @@
+/*
+ * QuiXProc: efficient evaluation of XProc Pipelines.
+ * Copyright (C) 2011-2018 Innovimax
+ * All rights reserved.
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0*/
+package innovimax.quixproc.datamodel.benchmark;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import innovimax.quixproc.datamodel.event.AQuiXEvent;
+import innovimax.quixproc.datamodel.generator.AGenerator.FileExtension;
+import innovimax.quixproc.datamodel.in.QuiXEventStreamReader;
+
+/**
+ * Read documents where many events are buffered at once by the reader :
+ * elements with {@code width} attributes, or CSV rows of {@code width}
+ * cells. Run with the gc profiler, {@code gc.alloc.rate.norm} divided by the
+ * number of events returned gives the bytes allocated per event.
+ *
+ * @author innovimax
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AllocationBenchmark {
+
+	public enum Kind {
+		ATTRIBUTES_XML, WIDE_CSV
+	}
+
+	@Param({ "ATTRIBUTES_XML", "WIDE_CSV" })
+	public Kind kind;
+
+	// number of attributes by element or of cells by row
+	@Param({ "4", "64" })
+	public int width;
+
+	@Param({ "10000" })
+	public int rows;
+
+	private FileExtension format;
+	private byte[] input;
+
+	@Setup
+	public void setup() {
+		final StringBuilder sb = new StringBuilder();
+		switch (this.kind) {
+		case ATTRIBUTES_XML:
+			this.format = FileExtension.XML;
+			sb.append("<root>");
+			for (int i = 0; i < this.rows; i++) {
+				sb.append("<e");
+				for (int j = 0; j < this.width; j++) {
+					sb.append(" a").append(j).append("='").append(i).append('-').append(j).append('\'');
+				}
+				sb.append("/>");
+			}
+			sb.append("</root>");
+			break;
+		case WIDE_CSV:
+			this.format = FileExtension.CSV;
+			for (int i = 0; i < this.rows; i++) {
+				for (int j = 0; j < this.width; j++) {
+					if (j > 0)
+						sb.append(',');
+					sb.append(i).append('-').append(j);
+				}
+				sb.append('\n');
+			}
+			break;
+		}
+		this.input = sb.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	@Benchmark
+	public long read(final Blackhole bh) {
+		final QuiXEventStreamReader reader = new QuiXEventStreamReader(Corpus.source(this.format, this.input));
+		long count = 0;
+		while (reader.hasNext()) {
+			final AQuiXEvent event = reader.next();
+			bh.consume(event);
+			count++;
+		}
+		reader.close();
+		return count;
+	}
+
+}
@@ -0,0 +1,164 @@
+/*
+ * QuiXProc: efficient evaluation of XProc Pipelines.
+ * Copyright (C) 2011-2018 Innovimax
+ * All rights reserved.
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0*/
+package innovimax.quixproc.datamodel.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import innovimax.quixproc.datamodel.IQuiXStream;
+import innovimax.quixproc.datamodel.IQuiXToken;
+import innovimax.quixproc.datamodel.event.AQuiXEvent;
+import innovimax.quixproc.datamodel.generator.AGenerator.FileExtension;
+import innovimax.quixproc.datamodel.generator.AGenerator.Unit;
+import innovimax.quixproc.datamodel.generator.AGenerator.Variation;
+import innovimax.quixproc.datamodel.generator.ATreeGenerator;
+import innovimax.quixproc.datamodel.generator.ATreeGenerator.SpecialType;
+import innovimax.quixproc.datamodel.generator.ATreeGenerator.TreeType;
+import innovimax.quixproc.datamodel.generator.GeneratedCorpus;
+import innovimax.quixproc.datamodel.generator.csv.ACSVGenerator.SimpleCSVGenerator;
+import innovimax.quixproc.datamodel.generator.rdf.ARDFGenerator.SimpleRDFGenerator;
+import innovimax.quixproc.datamodel.in.AStreamSource;
+import innovimax.quixproc.datamodel.in.QuiXEventStreamReader;
+
+/**
+ * Inputs of the benchmarks : generated once (in the {@code @Setup} of the
+ * benchmarks) so that the generation is not part of the measure, and then
+ * replayed from memory.
+ *
+ * When the system property {@value #PROPERTY} names a directory, the inputs
+ * come from a {@link GeneratedCorpus} kept there, so that successive runs
+ * measure the same bytes.
+ *
+ * @author innovimax
+ */
+public final class Corpus {
+
+	public static final String PROPERTY = "quixdm.corpus";
+
+	private static final Map<String, GeneratedCorpus> CORPORA = new HashMap<String, GeneratedCorpus>();
+
+	private Corpus() {
+	}
+
+	private static synchronized GeneratedCorpus corpus(final String directory, final long size, final Unit unit)
+			throws IOException {
+		final String key = directory + "/" + size + unit;
+		GeneratedCorpus corpus = CORPORA.get(key);
+		if (corpus == null) {
+			corpus = new GeneratedCorpus(Paths.get(directory, size + unit.name()), size, unit);
+			CORPORA.put(key, corpus);
+		}
+		return corpus;
+	}
+
+	/**
+	 * @param format
+	 * @param tree
+	 *            only used by the tree formats (XML, JSON and YAML)
+	 * @param size
+	 * @param unit
+	 * @return the bytes of the generated document
+	 */
+	public static byte[] generate(final FileExtension format, final TreeType tree, final long size, final Unit unit)
+			throws IOException {
+		final String directory = System.getProperty(PROPERTY);
+		if (directory != null) {
+			final GeneratedCorpus corpus = corpus(directory, size, unit);
+			final GeneratedCorpus.Entry entry = format == FileExtension.CSV || format == FileExtension.RDF
+					? corpus.get(format, Variation.NO_VARIATION)
+					: corpus.get(format, tree, SpecialType.STANDARD, Variation.NO_VARIATION);
+			final ByteBuffer buffer = entry.buffer();
+			final byte[] bytes = new byte[buffer.remaining()];
+			buffer.get(bytes);
+			return bytes;
+		}
+		final InputStream is;
+		try {
+			switch (format) {
+			case CSV:
+				is = new SimpleCSVGenerator().getInputStream(size, unit, Variation.NO_VARIATION);
+				break;
+			case RDF:
+				is = new SimpleRDFGenerator().getInputStream(size, unit, Variation.NO_VARIATION);
+				break;
+			default:
+				is = ATreeGenerator.instance(format, tree, SpecialType.STANDARD).getInputStream(size, unit,
+						Variation.NO_VARIATION);
+			}
+		} catch (final ReflectiveOperationException e) {
+			throw new IllegalArgumentException("No generator for " + format + " " + tree, e);
+		}
+		return readAll(is);
+	}
+
+	private static byte[] readAll(final InputStream is) throws IOException {
+		final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		final byte[] buffer = new byte[64 * 1024];
+		int length;
+		while ((length = is.read(buffer)) > 0) {
+			baos.write(buffer, 0, length);
+		}
+		is.close();
+		return baos.toByteArray();
+	}
+
+	/**
+	 * @return a new source reading {@code input}
+	 */
+	public static AStreamSource source(final FileExtension format, final byte[] input) {
+		return GeneratedCorpus.source(format, new ByteArrayInputStream(input));
+	}
+
+	/**
+	 * Parse {@code input} once and keep all its events
+	 */
+	public static AQuiXEvent[] events(final FileExtension format, final byte[] input) {
+		final List<AQuiXEvent> events = new ArrayList<AQuiXEvent>();
+		final QuiXEventStreamReader reader = new QuiXEventStreamReader(source(format, input));
+		while (reader.hasNext()) {
+			final AQuiXEvent event = reader.next();
+			if (event != null)
+				events.add(event);
+		}
+		reader.close();
+		return events.toArray(new AQuiXEvent[events.size()]);
+	}
+
+	/**
+	 * @return a new stream replaying {@code events}
+	 */
+	public static IQuiXStream<IQuiXToken> replay(final AQuiXEvent[] events) {
+		return new IQuiXStream<IQuiXToken>() {
+			private int pos = 0;
+
+			@Override
+			public boolean hasNext() {
+				return this.pos < events.length;
+			}
+
+			@Override
+			public IQuiXToken next() {
+				return events[this.pos++];
+			}
+
+			@Override
+			public void close() {
+				// nothing
+			}
+		};
+	}
+
+}
@@ -0,0 +1,102 @@
+/*
+ * QuiXProc: efficient evaluation of XProc Pipelines.
+ * Copyright (C) 2011-2018 Innovimax
+ * All rights reserved.
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0*/
+package innovimax.quixproc.datamodel.benchmark;
+
+import java.util.EnumSet;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import innovimax.quixproc.datamodel.IQuiXStream;
+import innovimax.quixproc.datamodel.IQuiXToken;
+import innovimax.quixproc.datamodel.ValidQuiXTokenStream;
+import innovimax.quixproc.datamodel.event.AQuiXEvent;
+import innovimax.quixproc.datamodel.filter.AncestorContextFilter;
+import innovimax.quixproc.datamodel.filter.DocumentCountFilter;
+import innovimax.quixproc.datamodel.filter.NamespaceContextFilter;
+import innovimax.quixproc.datamodel.filter.NodeKindFilter;
+import innovimax.quixproc.datamodel.generator.AGenerator.FileExtension;
+import innovimax.quixproc.datamodel.generator.AGenerator.Unit;
+import innovimax.quixproc.datamodel.generator.ATreeGenerator.TreeType;
+
+/**
+ * Each {@link innovimax.quixproc.datamodel.filter.AQuiXEventStreamFilter} on
+ * events parsed beforehand, {@code NONE} being the cost of the replay alone.
+ *
+ * @author innovimax
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FilterBenchmark {
+
+	public enum Filter {
+		NONE, ANCESTOR_CONTEXT, DOCUMENT_COUNT, NAMESPACE_CONTEXT, NODE_KIND, VALID
+	}
+
+	@Param({ "NONE", "ANCESTOR_CONTEXT", "DOCUMENT_COUNT", "NAMESPACE_CONTEXT", "NODE_KIND", "VALID" })
+	public Filter filter;
+
+	@Param({ "XML" })
+	public FileExtension format;
+
+	@Param({ "1" })
+	public int size;
+
+	private AQuiXEvent[] events;
+
+	@Setup
+	public void setup() throws Exception {
+		this.events = Corpus.events(this.format,
+				Corpus.generate(this.format, TreeType.HIGH_NODE_DENSITY, this.size, Unit.MBYTE));
+	}
+
+	private IQuiXStream<IQuiXToken> filter(final IQuiXStream<IQuiXToken> stream) {
+		switch (this.filter) {
+		case ANCESTOR_CONTEXT:
+			return new AncestorContextFilter(stream);
+		case DOCUMENT_COUNT:
+			return new DocumentCountFilter(stream);
+		case NAMESPACE_CONTEXT:
+			return new NamespaceContextFilter(stream);
+		case NODE_KIND:
+			return new NodeKindFilter(stream, EnumSet.of(NodeKindFilter.Kind.TEXT, NodeKindFilter.Kind.COMMENT));
+		case VALID:
+			return new ValidQuiXTokenStream(stream);
+		default:
+			return stream;
+		}
+	}
+
+	@Benchmark
+	public long filter(final Blackhole bh) {
+		final IQuiXStream<IQuiXToken> stream = filter(Corpus.replay(this.events));
+		long count = 0;
+		while (stream.hasNext()) {
+			bh.consume(stream.next());
+			count++;
+		}
+		stream.close();
+		return count;
+	}
+
+}
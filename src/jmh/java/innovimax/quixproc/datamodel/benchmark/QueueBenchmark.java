@@ -0,0 +1,114 @@
+/*
+ * QuiXProc: efficient evaluation of XProc Pipelines.
+ * Copyright (C) 2011-2018 Innovimax
+ * All rights reserved.
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0*/
+package innovimax.quixproc.datamodel.benchmark;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import innovimax.quixproc.datamodel.event.AQuiXEvent;
+import innovimax.quixproc.datamodel.generator.AGenerator.FileExtension;
+import innovimax.quixproc.datamodel.generator.AGenerator.Unit;
+import innovimax.quixproc.datamodel.generator.ATreeGenerator.TreeType;
+import innovimax.quixproc.datamodel.shared.IQuiXQueue;
+import innovimax.quixproc.datamodel.shared.QuiXPipelineRunner;
+import innovimax.quixproc.datamodel.shared.SimpleAppendQuiXQueue;
+import innovimax.quixproc.datamodel.shared.SmartAppendQuiXQueue;
+
+/**
+ * Fan-out of the events of a document from one writer to {@link #readers}
+ * readers, each reader running on its own thread.
+ *
+ * @author innovimax
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueueBenchmark {
+
+	public enum QueueKind {
+		SIMPLE, SMART, SMART_BOUNDED
+	}
+
+	// number of events appended at once
+	private static final int BATCH_SIZE = 256;
+	// maximum lag of SMART_BOUNDED
+	private static final int MAX_LAG = 4096;
+
+	@Param({ "SIMPLE", "SMART", "SMART_BOUNDED" })
+	public QueueKind queue;
+
+	@Param({ "1", "4" })
+	public int readers;
+
+	@Param({ "1" })
+	public int size;
+
+	private AQuiXEvent[] events;
+	private QuiXPipelineRunner runner;
+
+	@Setup
+	public void setup() throws Exception {
+		this.events = Corpus.events(FileExtension.XML,
+				Corpus.generate(FileExtension.XML, TreeType.HIGH_NODE_DENSITY, this.size, Unit.MBYTE));
+		this.runner = new QuiXPipelineRunner();
+	}
+
+	@TearDown
+	public void tearDown() {
+		this.runner.close();
+	}
+
+	private IQuiXQueue<AQuiXEvent> newQueue() {
+		switch (this.queue) {
+		case SMART:
+			return new SmartAppendQuiXQueue<AQuiXEvent>();
+		case SMART_BOUNDED:
+			return new SmartAppendQuiXQueue<AQuiXEvent>(MAX_LAG);
+		default:
+			return new SimpleAppendQuiXQueue<AQuiXEvent>();
+		}
+	}
+
+	@Benchmark
+	public long fanOut() throws InterruptedException, ExecutionException {
+		final IQuiXQueue<AQuiXEvent> q = newQueue();
+		q.setReaderCount(this.readers);
+		final LongAdder read = new LongAdder();
+		final Future<?>[] consumers = new Future<?>[this.readers];
+		for (int i = 0; i < this.readers; i++) {
+			consumers[i] = this.runner.consume(q.registerReader(), event -> read.increment());
+		}
+		for (int off = 0; off < this.events.length; off += BATCH_SIZE) {
+			q.appendAll(this.events, off, Math.min(BATCH_SIZE, this.events.length - off));
+		}
+		q.close();
+		for (final Future<?> consumer : consumers) {
+			consumer.get();
+		}
+		return read.sum();
+	}
+
+}
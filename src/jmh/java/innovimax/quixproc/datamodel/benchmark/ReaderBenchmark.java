@@ -0,0 +1,78 @@
+/*
+ * QuiXProc: efficient evaluation of XProc Pipelines.
+ * Copyright (C) 2011-2018 Innovimax
+ * All rights reserved.
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0*/
+package innovimax.quixproc.datamodel.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import innovimax.quixproc.datamodel.event.AQuiXEvent;
+import innovimax.quixproc.datamodel.generator.AGenerator.FileExtension;
+import innovimax.quixproc.datamodel.generator.AGenerator.Unit;
+import innovimax.quixproc.datamodel.generator.ATreeGenerator.TreeType;
+import innovimax.quixproc.datamodel.in.QuiXEventStreamReader;
+
+/**
+ * {@link QuiXEventStreamReader} per format : throughput and, with
+ * {@link Mode#SampleTime}, the percentiles of the time to read a whole
+ * document.
+ *
+ * The tree type only applies to XML, JSON and YAML, for instance
+ * {@code -p format=XML -p tree=HIGH_TEXT_SIZE}.
+ *
+ * @author innovimax
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReaderBenchmark {
+
+	@Param({ "XML", "JSON", "YAML", "CSV", "RDF" })
+	public FileExtension format;
+
+	@Param({ "HIGH_NODE_DENSITY" })
+	public TreeType tree;
+
+	@Param({ "1" })
+	public int size;
+
+	private byte[] input;
+
+	@Setup
+	public void setup() throws Exception {
+		this.input = Corpus.generate(this.format, this.tree, this.size, Unit.MBYTE);
+	}
+
+	@Benchmark
+	public long read(final Blackhole bh) {
+		final QuiXEventStreamReader reader = new QuiXEventStreamReader(Corpus.source(this.format, this.input));
+		long count = 0;
+		while (reader.hasNext()) {
+			final AQuiXEvent event = reader.next();
+			bh.consume(event);
+			count++;
+		}
+		reader.close();
+		return count;
+	}
+
+}
@@ -0,0 +1,106 @@
+/*
+ * QuiXProc: efficient evaluation of XProc Pipelines.
+ * Copyright (C) 2011-2018 Innovimax
+ * All rights reserved.
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0*/
+package innovimax.quixproc.datamodel.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import innovimax.quixproc.datamodel.event.AQuiXEvent;
+import innovimax.quixproc.datamodel.generator.AGenerator.FileExtension;
+import innovimax.quixproc.datamodel.generator.AGenerator.Unit;
+import innovimax.quixproc.datamodel.generator.ATreeGenerator.TreeType;
+import innovimax.quixproc.datamodel.in.AStreamSource;
+import innovimax.quixproc.datamodel.in.QuiXEventStreamReader;
+import innovimax.quixproc.datamodel.shared.QuiXPipelineRunner;
+
+/**
+ * A sequence of many small documents read one after the other
+ * ({@code ahead = 0}), with {@link QuiXEventStreamReader#setPrefetch(int)}
+ * or, when not {@code ordered}, with
+ * {@link QuiXEventStreamReader#setUnordered(int)}.
+ *
+ * @author innovimax
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SequenceBenchmark {
+
+	// number of events buffered by prefetched document
+	private static final int BUFFER_SIZE = 1024;
+
+	@Param({ "XML", "JSON" })
+	public FileExtension format;
+
+	@Param({ "1000" })
+	public int documents;
+
+	// size of each document in KB
+	@Param({ "4" })
+	public int size;
+
+	@Param({ "0", "4", "16" })
+	public int ahead;
+
+	@Param({ "true", "false" })
+	public boolean ordered;
+
+	private byte[] input;
+	private QuiXPipelineRunner runner;
+
+	@Setup
+	public void setup() throws Exception {
+		this.input = Corpus.generate(this.format, TreeType.HIGH_NODE_DENSITY, this.size, Unit.KBYTE);
+		this.runner = new QuiXPipelineRunner();
+	}
+
+	@TearDown
+	public void tearDown() {
+		this.runner.close();
+	}
+
+	@Benchmark
+	public long read(final Blackhole bh) {
+		final List<AStreamSource> sources = new ArrayList<AStreamSource>(this.documents);
+		for (int i = 0; i < this.documents; i++) {
+			sources.add(Corpus.source(this.format, this.input));
+		}
+		final QuiXEventStreamReader reader = new QuiXEventStreamReader(sources);
+		if (!this.ordered)
+			reader.setUnordered(this.ahead);
+		else if (this.ahead > 0)
+			reader.setPrefetch(this.ahead, BUFFER_SIZE, this.runner);
+		long count = 0;
+		while (reader.hasNext()) {
+			final AQuiXEvent event = reader.next();
+			bh.consume(event);
+			count++;
+		}
+		reader.close();
+		return count;
+	}
+
+}
@@ -0,0 +1,84 @@
+/*
+ * QuiXProc: efficient evaluation of XProc Pipelines.
+ * Copyright (C) 2011-2018 Innovimax
+ * All rights reserved.
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0*/
+package innovimax.quixproc.datamodel.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import innovimax.quixproc.datamodel.IQuiXStream;
+import innovimax.quixproc.datamodel.IQuiXToken;
+import innovimax.quixproc.datamodel.ValidQuiXTokenStream;
+import innovimax.quixproc.datamodel.ValidationPolicy;
+import innovimax.quixproc.datamodel.generator.AGenerator.FileExtension;
+import innovimax.quixproc.datamodel.generator.AGenerator.Unit;
+import innovimax.quixproc.datamodel.generator.ATreeGenerator.TreeType;
+import innovimax.quixproc.datamodel.in.QuiXEventStreamReader;
+
+/**
+ * Cost of {@link ValidQuiXTokenStream} on top of
+ * {@link QuiXEventStreamReader} : compare {@code validate=false} with
+ * {@code validate=true} for each format, and the
+ * {@link ValidationPolicy} of the reader itself with {@link #policy}.
+ *
+ * @author innovimax
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ValidationBenchmark {
+
+	@Param({ "XML", "JSON", "CSV", "RDF" })
+	public FileExtension format;
+
+	@Param({ "false", "true" })
+	public boolean validate;
+
+	@Param({ "OFF" })
+	public ValidationPolicy policy;
+
+	@Param({ "1" })
+	public int size;
+
+	private byte[] input;
+
+	@Setup
+	public void setup() throws Exception {
+		this.input = Corpus.generate(this.format, TreeType.HIGH_NODE_DENSITY, this.size, Unit.MBYTE);
+	}
+
+	@Benchmark
+	public long parse(final Blackhole bh) {
+		final QuiXEventStreamReader reader = new QuiXEventStreamReader(Corpus.source(this.format, this.input));
+		reader.setValidationPolicy(this.policy);
+		final IQuiXStream<IQuiXToken> stream = this.validate ? new ValidQuiXTokenStream(reader)
+				: reader.asIQuiXTokenStream();
+		long count = 0;
+		while (stream.hasNext()) {
+			bh.consume(stream.next());
+			count++;
+		}
+		stream.close();
+		return count;
+	}
+
+}
@@ -0,0 +1,111 @@
+/*
+ * QuiXProc: efficient evaluation of XProc Pipelines.
+ * Copyright (C) 2011-2018 Innovimax
+ * All rights reserved.
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0*/
+package innovimax.quixproc.datamodel.convert.saxon;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.transform.stream.StreamSource;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import innovimax.quixproc.datamodel.benchmark.Corpus;
+import innovimax.quixproc.datamodel.event.AQuiXEvent;
+import innovimax.quixproc.datamodel.generator.AGenerator.FileExtension;
+import innovimax.quixproc.datamodel.generator.AGenerator.Unit;
+import innovimax.quixproc.datamodel.generator.ATreeGenerator.TreeType;
+import innovimax.quixproc.datamodel.in.QuiXEventStreamReader;
+import innovimax.quixproc.datamodel.shared.ISimpleQuiXQueue;
+import net.sf.saxon.s9api.DocumentBuilder;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.XdmNode;
+
+/**
+ * The Saxon converters : from a {@link XdmNode} to events and from events to
+ * a {@link XdmNode}, with the Saxon parser alone as a reference.
+ *
+ * In this package because {@link QuiXEventStream2XdmNodeConverter} is not
+ * public.
+ *
+ * @author innovimax
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConverterBenchmark {
+
+	@Param({ "HIGH_NODE_DENSITY", "HIGH_TEXT_SIZE" })
+	public TreeType tree;
+
+	@Param({ "1" })
+	public int size;
+
+	private byte[] input;
+	private DocumentBuilder builder;
+	private XdmNode node;
+
+	@Setup
+	public void setup() throws Exception {
+		this.input = Corpus.generate(FileExtension.XML, this.tree, this.size, Unit.MBYTE);
+		this.builder = new Processor(false).newDocumentBuilder();
+		this.node = this.builder.build(new StreamSource(new ByteArrayInputStream(this.input)));
+	}
+
+	@Benchmark
+	public XdmNode saxonBuild() throws Exception {
+		return this.builder.build(new StreamSource(new ByteArrayInputStream(this.input)));
+	}
+
+	@Benchmark
+	public void xdmNodeToEvents(final Blackhole bh) {
+		final ISimpleQuiXQueue<AQuiXEvent> sink = new ISimpleQuiXQueue<AQuiXEvent>() {
+			@Override
+			public void append(final AQuiXEvent event) {
+				bh.consume(event);
+			}
+
+			@Override
+			public void close() {
+				// nothing
+			}
+		};
+		new AXdmNode2QuiXEventStreamConverter(sink, this.node) {
+			@Override
+			public void startProcess() {
+				// nothing
+			}
+
+			@Override
+			public void endProcess() {
+				// nothing
+			}
+		}.run();
+	}
+
+	@Benchmark
+	public XdmNode eventsToXdmNode() {
+		final QuiXEventStreamReader reader = new QuiXEventStreamReader(
+				Corpus.source(FileExtension.XML, this.input));
+		return new QuiXEventStream2XdmNodeConverter(this.builder, reader).exec();
+	}
+
+}
@@ -0,0 +1,39 @@
+/*
+ * QuiXProc: efficient evaluation of XProc Pipelines.
+ * Copyright (C) 2011-2018 Innovimax
+ * All rights reserved.
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0*/
+package innovimax.quixproc.datamodel;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Compact binary serialization of the items of a stream, used when items have
+ * to leave the heap (for instance to spill a queue on disk)
+ *
+ * @author innovimax
+ *
+ */
+public interface IQuiXCodec<T> {
+	/**
+	 * Write one item
+	 *
+	 * @param item
+	 * @param out
+	 * @throws IOException
+	 */
+	void write(T item, DataOutput out) throws IOException;
+
+	/**
+	 * Read back one item written by {@link #write(Object, DataOutput)}
+	 *
+	 * @param in
+	 * @return
+	 * @throws IOException
+	 */
+	T read(DataInput in) throws IOException;
+}
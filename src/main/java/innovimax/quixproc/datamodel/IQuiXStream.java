@@ -13,4 +13,25 @@ public interface IQuiXStream<T> {
 	T next();
 
 	void close();
+
+	/**
+	 * Bulk read : move up to {@code max} items into {@code dst}. The default
+	 * implementation loops on {@link #hasNext()} and {@link #next()}, the
+	 * readers of the shared queues override it to wait only for the first item
+	 * and pay the synchronization once per batch instead of once per item.
+	 *
+	 * @param dst
+	 *            the destination array, filled from index 0
+	 * @param max
+	 *            the maximum number of items to read
+	 * @return the number of items read, 0 only at the end of the stream
+	 */
+	default int drainTo(final T[] dst, final int max) {
+		final int limit = Math.min(max, dst.length);
+		int count = 0;
+		while (count < limit && hasNext()) {
+			dst[count++] = next();
+		}
+		return count;
+	}
 }
\ No newline at end of file
@@ -7,6 +7,11 @@
  *        http://www.apache.org/licenses/LICENSE-2.0*/
 package innovimax.quixproc.datamodel;
 
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.ConcurrentModificationException;
 
 import javax.xml.XMLConstants;
@@ -23,15 +28,35 @@ import javax.xml.XMLConstants;
  * having huge content and hence you loose the power of streaming MOST IMPORTANT
  * CASES = TODAY, a simple document
  * 
+ * Appending gives a rope of {@code char[]} blocks : the searches and the
+ * substrings work in place on the blocks, a {@link String} is only built by
+ * {@link #toString()}.
+ * 
+ * Content that only goes through (e.g. read then serialized by
+ * {@link innovimax.quixproc.datamodel.event.QuiXEventCodec}) can stay as UTF-8
+ * bytes : see {@link #fromUtf8(byte[], int, int)} and
+ * {@link #writeUtf8(DataOutput)}.
+ * 
+ * Huge content can also be pulled chunk by chunk through {@link #asReader()}
+ * when the stream was created by {@link #fromReader(Reader)} : see
+ * {@link #isStreaming()}.
+ * 
+ * Equality, hash code and ordering depend on the content only (the hash code
+ * is the one of the equivalent {@link String}) so that any variant can be used
+ * as a key.
+ * 
  * @author innovimax
  *
  */
-public abstract class QuiXCharStream {
+public abstract class QuiXCharStream implements CharSequence, Comparable<QuiXCharStream> {
 
 	public static final QuiXCharStream EMPTY = fromSequence("");
 	public static final QuiXCharStream NULL_NS_URI = fromSequence(XMLConstants.NULL_NS_URI);
 	public static final QuiXCharStream DEFAULT_NS_PREFIX = fromSequence(XMLConstants.DEFAULT_NS_PREFIX);
 
+	// cached hash code, 0 if not computed yet
+	private int hash;
+
 	/**
 	 * @return
 	 * @throws ConcurrentModificationException
@@ -39,101 +64,832 @@ public abstract class QuiXCharStream {
 	@Override
 	public abstract String toString();
 
+	@Override
+	public abstract int length();
+
+	@Override
+	public abstract char charAt(int index);
+
+	/**
+	 * Does not copy the characters when possible
+	 */
+	@Override
+	public abstract QuiXCharStream subSequence(int start, int end);
+
+	/**
+	 * Copy characters into the destination array, as
+	 * {@link String#getChars(int, int, char[], int)}
+	 * 
+	 * @param srcBegin
+	 * @param srcEnd
+	 * @param dst
+	 * @param dstBegin
+	 */
+	public abstract void getChars(int srcBegin, int srcEnd, char[] dst, int dstBegin);
+
+	/**
+	 * Same value as {@link String#hashCode()} for the same content, computed
+	 * once
+	 */
+	@Override
+	public int hashCode() {
+		int h = this.hash;
+		if (h == 0) {
+			h = computeHash();
+			this.hash = h;
+		}
+		return h;
+	}
+
+	int computeHash() {
+		int h = 0;
+		final int n = length();
+		for (int i = 0; i < n; i++) {
+			h = 31 * h + charAt(i);
+		}
+		return h;
+	}
+
+	/**
+	 * Two {@code QuiXCharStream} are equal if they have the same content, a
+	 * {@link #isNull()} one is only equal to another one
+	 */
+	@Override
+	public boolean equals(final Object o) {
+		if (o == this)
+			return true;
+		if (!(o instanceof QuiXCharStream))
+			return false;
+		final QuiXCharStream other = (QuiXCharStream) o;
+		if (isNull() || other.isNull())
+			return isNull() == other.isNull();
+		final int n = length();
+		if (n != other.length())
+			return false;
+		// when both are known
+		if (this.hash != 0 && other.hash != 0 && this.hash != other.hash)
+			return false;
+		return compareContent(other, n) == 0;
+	}
+
+	/**
+	 * Lexicographic order of the content, as {@link String#compareTo(String)},
+	 * the {@link #isNull()} ones first
+	 */
+	@Override
+	public int compareTo(final QuiXCharStream other) {
+		if (other == this)
+			return 0;
+		if (isNull() || other.isNull())
+			return isNull() == other.isNull() ? 0 : isNull() ? -1 : 1;
+		final int n1 = length();
+		final int n2 = other.length();
+		final int c = compareContent(other, Math.min(n1, n2));
+		return c != 0 ? c : n1 - n2;
+	}
+
+	/**
+	 * Compare the first {@code n} characters in place : the implementations
+	 * add the fast paths between two streams of their own kind
+	 */
+	int compareContent(final QuiXCharStream other, final int n) {
+		// the rope walks its blocks rather than looking each char up
+		if (other instanceof RopeQuiXCharStream && !(this instanceof RopeQuiXCharStream))
+			return -other.compareContent(this, n);
+		for (int i = 0; i < n; i++) {
+			final char c1 = charAt(i);
+			final char c2 = other.charAt(i);
+			if (c1 != c2)
+				return c1 - c2;
+		}
+		return 0;
+	}
+
+	/**
+	 * @param sequence
+	 * @param fromIndex
+	 * @return the index of the first occurrence of {@code sequence} starting
+	 *         at {@code fromIndex}, -1 if none
+	 */
+	public abstract int indexOf(CharSequence sequence, int fromIndex);
+
+	public int indexOf(final CharSequence sequence) {
+		return indexOf(sequence, 0);
+	}
+
 	/**
 	 * @param sequence
 	 * @return
 	 * @throws ConcurrentModificationException
 	 */
-	public abstract boolean contains(CharSequence sequence);
+	public boolean contains(final CharSequence sequence) {
+		return indexOf(sequence, 0) != -1;
+	}
 
 	/**
 	 * @param sequence
 	 * @return
 	 * @throws ConcurrentModificationException
 	 */
-	public abstract QuiXCharStream substringBefore(CharSequence sequence);
+	public QuiXCharStream substringBefore(final CharSequence sequence) {
+		final int i = indexOf(sequence, 0);
+		return i == -1 ? EMPTY : subSequence(0, i);
+	}
 
 	/**
 	 * @param sequence
 	 * @return
 	 * @throws ConcurrentModificationException
 	 */
-	public abstract QuiXCharStream substringAfter(CharSequence sequence);
+	public QuiXCharStream substringAfter(final CharSequence sequence) {
+		final int i = indexOf(sequence, 0);
+		return i == -1 ? EMPTY : subSequence(i + sequence.length(), length());
+	}
+
+	public boolean isEmpty() {
+		return length() == 0;
+	}
 
-	public abstract boolean isEmpty();
+	/**
+	 * @return true if this stream wraps a {@code null} sequence (e.g. an
+	 *         unknown system id) : it has no content at all
+	 */
+	public boolean isNull() {
+		return false;
+	}
 
-	public abstract QuiXCharStream append(QuiXCharStream cs);
+	public QuiXCharStream append(final QuiXCharStream cs) {
+		return append((CharSequence) cs);
+	}
 
-	public abstract QuiXCharStream append(CharSequence cs);
+	public QuiXCharStream append(final CharSequence cs) {
+		if (cs.length() == 0)
+			return this;
+		final Rope rope = new Rope();
+		rope.write(this, 0, length());
+		rope.write(cs, 0, cs.length());
+		return rope.view(0, rope.length);
+	}
 
 	public static QuiXCharStream fromSequence(final CharSequence cs) {
 		return new CharSequenceQuiXCharStream(cs);
 	}
 
-	private static final class QuiXCharStreamList extends QuiXCharStream {
-		final QuiXCharStream a;
-		final QuiXCharStream b;
+	/**
+	 * Wrap UTF-8 bytes, they are only decoded if needed : the array must not be
+	 * modified afterwards
+	 *
+	 * @param bytes
+	 * @param offset
+	 * @param length
+	 *            in bytes
+	 * @return
+	 */
+	public static QuiXCharStream fromUtf8(final byte[] bytes, final int offset, final int length) {
+		if (offset < 0 || length < 0 || offset + length > bytes.length)
+			throw new IndexOutOfBoundsException(offset + ", " + length);
+		return new Utf8QuiXCharStream(bytes, offset, length);
+	}
 
-		QuiXCharStreamList(final QuiXCharStream a, final QuiXCharStream b) {
-			this.a = a;
-			this.b = b;
+	/**
+	 * Copy the characters (typically from the buffer of a parser) : they are
+	 * kept as bytes when they are all ASCII, as chars otherwise
+	 *
+	 * @param chars
+	 * @param offset
+	 * @param length
+	 * @return
+	 */
+	public static QuiXCharStream fromChars(final char[] chars, final int offset, final int length) {
+		for (int i = offset; i < offset + length; i++) {
+			if (chars[i] >= 0x80)
+				return new CharArrayQuiXCharStream(Arrays.copyOfRange(chars, offset, offset + length), 0, length);
+		}
+		final byte[] bytes = new byte[length];
+		for (int i = 0; i < length; i++) {
+			bytes[i] = (byte) chars[offset + i];
+		}
+		return new Utf8QuiXCharStream(bytes, 0, length, true);
+	}
+
+	/**
+	 * Content pulled from the reader (typically backed by a parser) : it is
+	 * not kept in memory, so it can be read only once by {@link #asReader()}.
+	 * Any other operation (e.g. {@link #toString()}) first materializes the
+	 * whole content, which defeats the streaming.
+	 *
+	 * @param reader
+	 *            must provide at least one character
+	 * @return
+	 */
+	public static QuiXCharStream fromReader(final Reader reader) {
+		return new StreamingQuiXCharStream(reader);
+	}
+
+	/**
+	 * @return true if the content is pulled on demand and can only be read
+	 *         once through {@link #asReader()}
+	 */
+	public boolean isStreaming() {
+		return false;
+	}
+
+	/**
+	 * @return a reader on the content, for a streaming content it can be
+	 *         called only once
+	 * @throws IllegalStateException
+	 *             if the streaming content has already been consumed
+	 */
+	public Reader asReader() {
+		return new QuiXCharStreamReader(this);
+	}
+
+	private static final class QuiXCharStreamReader extends Reader {
+		private final QuiXCharStream cs;
+		private int pos;
+
+		QuiXCharStreamReader(final QuiXCharStream cs) {
+			this.cs = cs;
+			this.pos = 0;
 		}
 
-		/**
-		 * @return
-		 * @throws ConcurrentModificationException
-		 */
 		@Override
-		public String toString() {
-			return this.a.toString() + this.b.toString();
+		public int read(final char[] cbuf, final int off, final int len) {
+			final int n = Math.min(len, this.cs.length() - this.pos);
+			if (n <= 0)
+				return len == 0 ? 0 : -1;
+			this.cs.getChars(this.pos, this.pos + n, cbuf, off);
+			this.pos += n;
+			return n;
+		}
+
+		@Override
+		public void close() {
+			// nothing to release
+		}
+	}
+
+	/**
+	 * @return the number of bytes of the UTF-8 encoding
+	 */
+	public int utf8Length() {
+		final String s = toString();
+		final int n = s.length();
+		int count = n;
+		for (int i = 0; i < n; i++) {
+			final char c = s.charAt(i);
+			if (Character.isSurrogate(c)) {
+				if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+					// 4 bytes for 2 chars
+					count += 2;
+					i++;
+				}
+				// else replaced by '?' as String.getBytes does
+			} else if (c >= 0x800) {
+				count += 2;
+			} else if (c >= 0x80) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Write the UTF-8 encoding ({@link #utf8Length()} bytes)
+	 *
+	 * @param out
+	 * @throws IOException
+	 */
+	public void writeUtf8(final DataOutput out) throws IOException {
+		out.write(toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Naive search relying on {@link #charAt(int)}
+	 */
+	static int indexOf(final CharSequence src, final CharSequence sequence, final int fromIndex) {
+		final int n = sequence.length();
+		final int max = src.length() - n;
+		if (n == 0)
+			return fromIndex <= src.length() ? Math.max(fromIndex, 0) : -1;
+		final char first = sequence.charAt(0);
+		for (int i = Math.max(fromIndex, 0); i <= max; i++) {
+			if (src.charAt(i) != first)
+				continue;
+			int j = 1;
+			while (j < n && src.charAt(i + j) == sequence.charAt(j)) {
+				j++;
+			}
+			if (j == n)
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Storage shared by the ropes built by successive appends : the characters
+	 * are never modified once written, so that a rope can be extended in place
+	 * by the one ending at its tail while the others still see their own
+	 * prefix.
+	 */
+	private static final class Rope {
+		private static final int MIN_BLOCK = 32;
+		private static final int MAX_SPARE = 8192;
+
+		// starts[i] is the offset of the first character of blocks[i]
+		private char[][] blocks = new char[4][];
+		private int[] starts = new int[4];
+		private int blockCount = 0;
+		private int tailUsed = 0;
+		// guarded by this
+		int length = 0;
+
+		private void newBlock(final int needed) {
+			final int previous = this.blockCount == 0 ? 0 : this.blocks[this.blockCount - 1].length;
+			final int size = Math.max(needed, Math.min(MAX_SPARE, Math.max(MIN_BLOCK, previous * 2)));
+			if (this.blockCount == this.blocks.length) {
+				this.blocks = Arrays.copyOf(this.blocks, this.blockCount * 2);
+				this.starts = Arrays.copyOf(this.starts, this.blockCount * 2);
+			}
+			this.blocks[this.blockCount] = new char[size];
+			this.starts[this.blockCount] = this.length;
+			this.blockCount++;
+			this.tailUsed = 0;
 		}
 
 		/**
-		 * @param sequence
-		 * @return
-		 * @throws ConcurrentModificationException
+		 * Append the characters [from, to[ of {@code cs}
 		 */
-		@Override
-		public boolean contains(final CharSequence sequence) {
-			return this.a.contains(sequence) || this.b.contains(sequence);
+		void write(final CharSequence cs, final int from, final int to) {
+			int pos = from;
+			while (pos < to) {
+				if (this.blockCount == 0 || this.tailUsed == this.blocks[this.blockCount - 1].length)
+					newBlock(to - pos);
+				final char[] tail = this.blocks[this.blockCount - 1];
+				final int n = Math.min(to - pos, tail.length - this.tailUsed);
+				if (cs instanceof String) {
+					((String) cs).getChars(pos, pos + n, tail, this.tailUsed);
+				} else if (cs instanceof QuiXCharStream) {
+					((QuiXCharStream) cs).getChars(pos, pos + n, tail, this.tailUsed);
+				} else {
+					for (int i = 0; i < n; i++) {
+						tail[this.tailUsed + i] = cs.charAt(pos + i);
+					}
+				}
+				this.tailUsed += n;
+				this.length += n;
+				pos += n;
+			}
 		}
 
 		/**
-		 * @param sequence
-		 * @return
-		 * @throws ConcurrentModificationException
+		 * To be called by the writer (or under the lock of the rope)
 		 */
+		RopeQuiXCharStream view(final int start, final int end) {
+			return new RopeQuiXCharStream(this, this.blocks, this.starts, this.blockCount, start, end);
+		}
+	}
+
+	private static final class RopeQuiXCharStream extends QuiXCharStream {
+		private final Rope rope;
+		// the blocks covering [start, end[, captured at creation
+		private final char[][] blocks;
+		private final int[] starts;
+		private final int blockCount;
+		private final int start;
+		private final int end;
+
+		RopeQuiXCharStream(final Rope rope, final char[][] blocks, final int[] starts, final int blockCount,
+				final int start, final int end) {
+			this.rope = rope;
+			this.blocks = blocks;
+			this.starts = starts;
+			this.blockCount = blockCount;
+			this.start = start;
+			this.end = end;
+		}
+
+		private int block(final int offset) {
+			// last block starting at or before offset
+			int lo = 0;
+			int hi = this.blockCount - 1;
+			while (lo < hi) {
+				final int mid = (lo + hi + 1) >>> 1;
+				if (this.starts[mid] <= offset)
+					lo = mid;
+				else
+					hi = mid - 1;
+			}
+			return lo;
+		}
+
+		@Override
+		public int length() {
+			return this.end - this.start;
+		}
+
+		@Override
+		public char charAt(final int index) {
+			if (index < 0 || index >= length())
+				throw new IndexOutOfBoundsException(String.valueOf(index));
+			final int offset = this.start + index;
+			final int b = block(offset);
+			return this.blocks[b][offset - this.starts[b]];
+		}
+
+		@Override
+		public void getChars(final int srcBegin, final int srcEnd, final char[] dst, final int dstBegin) {
+			if (srcBegin < 0 || srcEnd > length() || srcBegin > srcEnd)
+				throw new IndexOutOfBoundsException(srcBegin + ", " + srcEnd);
+			int offset = this.start + srcBegin;
+			final int last = this.start + srcEnd;
+			int d = dstBegin;
+			for (int b = block(offset); offset < last; b++) {
+				final char[] chars = this.blocks[b];
+				final int from = offset - this.starts[b];
+				final int n = Math.min(last - offset, chars.length - from);
+				System.arraycopy(chars, from, dst, d, n);
+				offset += n;
+				d += n;
+			}
+		}
+
+		@Override
+		public QuiXCharStream subSequence(final int s, final int e) {
+			if (s < 0 || e > length() || s > e)
+				throw new IndexOutOfBoundsException(s + ", " + e);
+			return new RopeQuiXCharStream(this.rope, this.blocks, this.starts, this.blockCount, this.start + s,
+					this.start + e);
+		}
+
 		@Override
-		public QuiXCharStream substringBefore(final CharSequence sequence) {
+		public int indexOf(final CharSequence sequence, final int fromIndex) {
+			final int n = sequence.length();
+			if (n == 0)
+				return indexOf(this, sequence, fromIndex);
+			final char first = sequence.charAt(0);
+			final int max = this.end - n;
+			int offset = this.start + Math.max(fromIndex, 0);
+			// scan the blocks for the first character, then check in place
+			for (int b = offset < this.end ? block(offset) : 0; offset <= max; b++) {
+				final char[] chars = this.blocks[b];
+				final int base = this.starts[b];
+				final int limit = Math.min(chars.length, max - base + 1);
+				for (int i = offset - base; i < limit; i++) {
+					if (chars[i] == first && matches(base + i - this.start, sequence))
+						return base + i - this.start;
+				}
+				offset = base + chars.length;
+			}
+			return -1;
+		}
+
+		@Override
+		int computeHash() {
+			int h = 0;
+			int offset = this.start;
+			for (int b = offset < this.end ? block(offset) : 0; offset < this.end; b++) {
+				final char[] chars = this.blocks[b];
+				final int limit = Math.min(chars.length, this.end - this.starts[b]);
+				for (int i = offset - this.starts[b]; i < limit; i++) {
+					h = 31 * h + chars[i];
+				}
+				offset = this.starts[b] + limit;
+			}
+			return h;
+		}
 
-			return null;
+		@Override
+		int compareContent(final QuiXCharStream other, final int n) {
+			final RopeQuiXCharStream rope = other instanceof RopeQuiXCharStream ? (RopeQuiXCharStream) other : null;
+			// the position in the blocks of the other rope
+			int ob = 0;
+			int oi = 0;
+			char[] ochars = null;
+			if (rope != null && n > 0) {
+				ob = rope.block(rope.start);
+				ochars = rope.blocks[ob];
+				oi = rope.start - rope.starts[ob];
+			}
+			int index = 0;
+			int offset = this.start;
+			for (int b = n > 0 ? block(offset) : 0; index < n; b++) {
+				final char[] chars = this.blocks[b];
+				final int limit = Math.min(chars.length, this.start + n - this.starts[b]);
+				for (int i = offset - this.starts[b]; i < limit; i++) {
+					final char c2;
+					if (rope == null) {
+						c2 = other.charAt(index);
+					} else {
+						if (oi == ochars.length) {
+							ochars = rope.blocks[++ob];
+							oi = 0;
+						}
+						c2 = ochars[oi++];
+					}
+					if (chars[i] != c2)
+						return chars[i] - c2;
+					index++;
+				}
+				offset = this.starts[b] + limit;
+			}
+			return 0;
+		}
+
+		private boolean matches(final int index, final CharSequence sequence) {
+			for (int j = 1; j < sequence.length(); j++) {
+				if (charAt(index + j) != sequence.charAt(j))
+					return false;
+			}
+			return true;
 		}
 
 		/**
-		 * @param sequence
 		 * @return
 		 * @throws ConcurrentModificationException
 		 */
 		@Override
-		public QuiXCharStream substringAfter(final CharSequence sequence) {
-			// TODO Auto-generated method stub
-			// not easy to do...
-			return null;
+		public String toString() {
+			final char[] chars = new char[length()];
+			getChars(0, chars.length, chars, 0);
+			return new String(chars);
+		}
+
+		@Override
+		public QuiXCharStream append(final CharSequence cs) {
+			final int n = cs.length();
+			if (n == 0)
+				return this;
+			synchronized (this.rope) {
+				// only the rope ending at the tail can be extended in place
+				if (this.rope.length == this.end) {
+					this.rope.write(cs, 0, n);
+					return this.rope.view(this.start, this.end + n);
+				}
+			}
+			return super.append(cs);
+		}
+
+	}
+
+	private static final class Utf8QuiXCharStream extends QuiXCharStream {
+		private final byte[] bytes;
+		private final int offset;
+		private final int byteLength;
+		// then one char per byte, no need to decode
+		private final boolean ascii;
+		private volatile String decoded;
+
+		Utf8QuiXCharStream(final byte[] bytes, final int offset, final int length) {
+			this(bytes, offset, length, isAscii(bytes, offset, length));
+		}
+
+		Utf8QuiXCharStream(final byte[] bytes, final int offset, final int length, final boolean ascii) {
+			this.bytes = bytes;
+			this.offset = offset;
+			this.byteLength = length;
+			this.ascii = ascii;
+		}
+
+		private static boolean isAscii(final byte[] bytes, final int offset, final int length) {
+			for (int i = offset; i < offset + length; i++) {
+				if (bytes[i] < 0)
+					return false;
+			}
+			return true;
+		}
+
+		private String decode() {
+			String s = this.decoded;
+			if (s == null) {
+				s = new String(this.bytes, this.offset, this.byteLength,
+						this.ascii ? StandardCharsets.ISO_8859_1 : StandardCharsets.UTF_8);
+				this.decoded = s;
+			}
+			return s;
+		}
+
+		@Override
+		public String toString() {
+			return decode();
+		}
+
+		@Override
+		public int length() {
+			return this.ascii ? this.byteLength : decode().length();
 		}
 
 		@Override
 		public boolean isEmpty() {
-			return this.a.isEmpty() && this.b.isEmpty();
+			return this.byteLength == 0;
 		}
 
 		@Override
-		public QuiXCharStream append(final QuiXCharStream cs) {
-			return new QuiXCharStreamList(this, cs);
+		public char charAt(final int index) {
+			if (!this.ascii)
+				return decode().charAt(index);
+			if (index < 0 || index >= this.byteLength)
+				throw new IndexOutOfBoundsException(String.valueOf(index));
+			return (char) this.bytes[this.offset + index];
 		}
 
 		@Override
-		public QuiXCharStream append(final CharSequence cs) {
-			return new QuiXCharStreamList(this, new CharSequenceQuiXCharStream(cs));
+		public QuiXCharStream subSequence(final int start, final int end) {
+			if (!this.ascii)
+				return new CharSequenceQuiXCharStream(decode().substring(start, end));
+			if (start < 0 || end > this.byteLength || start > end)
+				throw new IndexOutOfBoundsException(start + ", " + end);
+			return new Utf8QuiXCharStream(this.bytes, this.offset + start, end - start, true);
+		}
+
+		@Override
+		public void getChars(final int srcBegin, final int srcEnd, final char[] dst, final int dstBegin) {
+			if (!this.ascii) {
+				decode().getChars(srcBegin, srcEnd, dst, dstBegin);
+				return;
+			}
+			if (srcBegin < 0 || srcEnd > this.byteLength || srcBegin > srcEnd)
+				throw new IndexOutOfBoundsException(srcBegin + ", " + srcEnd);
+			for (int i = srcBegin; i < srcEnd; i++) {
+				dst[dstBegin + i - srcBegin] = (char) this.bytes[this.offset + i];
+			}
+		}
+
+		@Override
+		public int indexOf(final CharSequence sequence, final int fromIndex) {
+			return this.ascii ? indexOf(this, sequence, fromIndex) : decode().indexOf(sequence.toString(), fromIndex);
+		}
+
+		@Override
+		int compareContent(final QuiXCharStream other, final int n) {
+			if (this.ascii && other instanceof Utf8QuiXCharStream && ((Utf8QuiXCharStream) other).ascii) {
+				final Utf8QuiXCharStream o = (Utf8QuiXCharStream) other;
+				for (int i = 0; i < n; i++) {
+					final byte b1 = this.bytes[this.offset + i];
+					final byte b2 = o.bytes[o.offset + i];
+					if (b1 != b2)
+						return b1 - b2;
+				}
+				return 0;
+			}
+			return super.compareContent(other, n);
+		}
+
+		@Override
+		public int utf8Length() {
+			return this.byteLength;
+		}
+
+		@Override
+		public void writeUtf8(final DataOutput out) throws IOException {
+			out.write(this.bytes, this.offset, this.byteLength);
+		}
+
+	}
+
+	private static final class StreamingQuiXCharStream extends QuiXCharStream {
+		private final Reader reader;
+		private boolean consumed = false;
+		private QuiXCharStream content = null;
+
+		StreamingQuiXCharStream(final Reader reader) {
+			this.reader = reader;
+		}
+
+		@Override
+		public boolean isStreaming() {
+			return this.content == null;
+		}
+
+		@Override
+		public Reader asReader() {
+			if (this.content != null)
+				return this.content.asReader();
+			if (this.consumed)
+				throw new IllegalStateException("Streaming content already consumed");
+			this.consumed = true;
+			return this.reader;
+		}
+
+		private QuiXCharStream content() {
+			if (this.content == null) {
+				final Reader r = asReader();
+				final StringBuilder sb = new StringBuilder();
+				final char[] chunk = new char[8192];
+				try {
+					int n;
+					while ((n = r.read(chunk, 0, chunk.length)) != -1) {
+						sb.append(chunk, 0, n);
+					}
+				} catch (final IOException e) {
+					throw new QuiXException(e);
+				}
+				this.content = fromSequence(sb.toString());
+			}
+			return this.content;
+		}
+
+		@Override
+		public String toString() {
+			return content().toString();
+		}
+
+		@Override
+		public boolean isEmpty() {
+			// never empty by contract
+			return this.content != null && this.content.isEmpty();
+		}
+
+		@Override
+		public int length() {
+			return content().length();
+		}
+
+		@Override
+		public char charAt(final int index) {
+			return content().charAt(index);
+		}
+
+		@Override
+		public QuiXCharStream subSequence(final int start, final int end) {
+			return content().subSequence(start, end);
+		}
+
+		@Override
+		public void getChars(final int srcBegin, final int srcEnd, final char[] dst, final int dstBegin) {
+			content().getChars(srcBegin, srcEnd, dst, dstBegin);
+		}
+
+		@Override
+		public int indexOf(final CharSequence sequence, final int fromIndex) {
+			return content().indexOf(sequence, fromIndex);
+		}
+
+	}
+
+	private static final class CharArrayQuiXCharStream extends QuiXCharStream {
+		// never modified
+		private final char[] chars;
+		private final int offset;
+		private final int length;
+
+		CharArrayQuiXCharStream(final char[] chars, final int offset, final int length) {
+			this.chars = chars;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		@Override
+		public String toString() {
+			return new String(this.chars, this.offset, this.length);
+		}
+
+		@Override
+		public int length() {
+			return this.length;
+		}
+
+		@Override
+		public char charAt(final int index) {
+			if (index < 0 || index >= this.length)
+				throw new IndexOutOfBoundsException(Integer.toString(index));
+			return this.chars[this.offset + index];
+		}
+
+		@Override
+		public QuiXCharStream subSequence(final int start, final int end) {
+			if (start < 0 || end > this.length || start > end)
+				throw new IndexOutOfBoundsException(start + ", " + end);
+			if (start == 0 && end == this.length)
+				return this;
+			return new CharArrayQuiXCharStream(this.chars, this.offset + start, end - start);
+		}
+
+		@Override
+		public void getChars(final int srcBegin, final int srcEnd, final char[] dst, final int dstBegin) {
+			if (srcBegin < 0 || srcEnd > this.length || srcBegin > srcEnd)
+				throw new IndexOutOfBoundsException(srcBegin + ", " + srcEnd);
+			System.arraycopy(this.chars, this.offset + srcBegin, dst, dstBegin, srcEnd - srcBegin);
+		}
+
+		@Override
+		int compareContent(final QuiXCharStream other, final int n) {
+			if (other instanceof CharArrayQuiXCharStream) {
+				final CharArrayQuiXCharStream o = (CharArrayQuiXCharStream) other;
+				for (int i = 0; i < n; i++) {
+					final char c1 = this.chars[this.offset + i];
+					final char c2 = o.chars[o.offset + i];
+					if (c1 != c2)
+						return c1 - c2;
+				}
+				return 0;
+			}
+			return super.compareContent(other, n);
+		}
+
+		@Override
+		public int indexOf(final CharSequence sequence, final int fromIndex) {
+			return indexOf(this, sequence, fromIndex);
 		}
 
 	}
@@ -145,42 +901,72 @@ public abstract class QuiXCharStream {
 			this.cs = cs;
 		}
 
+		@Override
+		public boolean isNull() {
+			return this.cs == null;
+		}
+
+		/**
+		 * Empty when {@link #isNull()}
+		 */
 		@Override
 		public String toString() {
-			return this.cs.toString();
+			return this.cs == null ? "" : this.cs.toString();
 		}
 
 		@Override
-		public boolean contains(final CharSequence sequence) {
-			return this.cs.toString().contains(sequence);
+		public int length() {
+			return this.cs == null ? 0 : this.cs.length();
 		}
 
 		@Override
-		public QuiXCharStream substringBefore(final CharSequence sequence) {
-			final int i = this.cs.toString().indexOf(sequence.toString());
-			return QuiXCharStream.fromSequence(i == -1 ? "" : this.cs.toString().substring(0, i));
+		public char charAt(final int index) {
+			if (this.cs == null)
+				throw new IndexOutOfBoundsException(String.valueOf(index));
+			return this.cs.charAt(index);
+		}
 
+		@Override
+		public QuiXCharStream subSequence(final int start, final int end) {
+			if (start == 0 && end == length())
+				return this;
+			return new CharSequenceQuiXCharStream(this.cs.subSequence(start, end));
 		}
 
 		@Override
-		public QuiXCharStream substringAfter(final CharSequence sequence) {
-			final int i = this.cs.toString().indexOf(sequence.toString());
-			return QuiXCharStream.fromSequence(i == -1 ? "" : this.cs.toString().substring(i + sequence.length()));
+		public void getChars(final int srcBegin, final int srcEnd, final char[] dst, final int dstBegin) {
+			if (this.cs instanceof String) {
+				((String) this.cs).getChars(srcBegin, srcEnd, dst, dstBegin);
+			} else {
+				for (int i = srcBegin; i < srcEnd; i++) {
+					dst[dstBegin + i - srcBegin] = this.cs.charAt(i);
+				}
+			}
 		}
 
 		@Override
-		public boolean isEmpty() {
-			return this.cs.length() == 0;
+		int computeHash() {
+			// String caches its own
+			return this.cs instanceof String ? this.cs.hashCode() : super.computeHash();
 		}
 
 		@Override
-		public QuiXCharStream append(final QuiXCharStream c) {
-			return new QuiXCharStreamList(this, c);
+		int compareContent(final QuiXCharStream other, final int n) {
+			if (this.cs instanceof String && other instanceof CharSequenceQuiXCharStream
+					&& ((CharSequenceQuiXCharStream) other).cs instanceof String) {
+				final String s1 = (String) this.cs;
+				final String s2 = (String) ((CharSequenceQuiXCharStream) other).cs;
+				if (n == s1.length() && n == s2.length())
+					return s1.compareTo(s2);
+			}
+			return super.compareContent(other, n);
 		}
 
 		@Override
-		public QuiXCharStream append(final CharSequence c) {
-			return QuiXCharStream.fromSequence(this.cs.toString() + c.toString());
+		public int indexOf(final CharSequence sequence, final int fromIndex) {
+			if (this.cs instanceof String && sequence instanceof String)
+				return ((String) this.cs).indexOf((String) sequence, fromIndex);
+			return indexOf(this, sequence, fromIndex);
 		}
 
 	}
@@ -0,0 +1,114 @@
+/*
+ * QuiXProc: efficient evaluation of XProc Pipelines.
+ * Copyright (C) 2011-2018 Innovimax
+ * All rights reserved.
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0*/
+package innovimax.quixproc.datamodel;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.xml.XMLConstants;
+
+/**
+ * Table giving the same {@link QuiXCharStream} for the same small string
+ * (namespace URIs, prefixes, names) so that a reader does not wrap them again
+ * on every event, and equality of the results is mostly an identity check.
+ *
+ * An instance is meant to be used by one reader (it is not thread safe) : it
+ * is direct mapped, a new string replaces the one in its slot so that the
+ * memory is bounded. The parsers usually give the same {@link String}
+ * instance for the same name, which is checked first. On a miss it can fall
+ * back to the {@link #global(String) global table} which is thread safe and
+ * shared by all readers.
+ *
+ * {@code null} and {@code ""} always give {@link QuiXCharStream#EMPTY}.
+ *
+ * @author innovimax
+ */
+public final class QuiXCharStreamInterner {
+
+	private static final int MAX_GLOBAL = 4096;
+	private static final ConcurrentHashMap<String, QuiXCharStream> GLOBAL = new ConcurrentHashMap<String, QuiXCharStream>();
+
+	static {
+		for (final String s : new String[] { XMLConstants.XML_NS_URI, XMLConstants.XMLNS_ATTRIBUTE_NS_URI,
+				XMLConstants.XML_NS_PREFIX, XMLConstants.XMLNS_ATTRIBUTE }) {
+			GLOBAL.put(s, QuiXCharStream.fromSequence(s));
+		}
+	}
+
+	private final String[] keys;
+	private final QuiXCharStream[] values;
+	private final int mask;
+	private final boolean useGlobal;
+
+	/**
+	 * 256 entries, falling back to the global table
+	 */
+	public QuiXCharStreamInterner() {
+		this(256, true);
+	}
+
+	/**
+	 * @param capacity
+	 *            rounded up to a power of two
+	 * @param useGlobal
+	 *            look into the global table on a miss
+	 */
+	public QuiXCharStreamInterner(final int capacity, final boolean useGlobal) {
+		int size = 1;
+		while (size < capacity) {
+			size <<= 1;
+		}
+		this.keys = new String[size];
+		this.values = new QuiXCharStream[size];
+		this.mask = size - 1;
+		this.useGlobal = useGlobal;
+	}
+
+	/**
+	 * @param s
+	 * @return the shared {@link QuiXCharStream} with the content of {@code s}
+	 */
+	public QuiXCharStream intern(final String s) {
+		if (s == null || s.isEmpty())
+			return QuiXCharStream.EMPTY;
+		final int h = s.hashCode();
+		final int slot = (h ^ h >>> 16) & this.mask;
+		final String key = this.keys[slot];
+		// parsers usually hand the same instance back
+		if (key == s || s.equals(key))
+			return this.values[slot];
+		final QuiXCharStream value = this.useGlobal ? lookupGlobal(s) : QuiXCharStream.fromSequence(s);
+		this.keys[slot] = s;
+		this.values[slot] = value;
+		return value;
+	}
+
+	private static QuiXCharStream lookupGlobal(final String s) {
+		final QuiXCharStream value = GLOBAL.get(s);
+		if (value != null)
+			return value;
+		final QuiXCharStream created = QuiXCharStream.fromSequence(s);
+		if (GLOBAL.size() >= MAX_GLOBAL)
+			return created;
+		final QuiXCharStream previous = GLOBAL.putIfAbsent(s, created);
+		return previous == null ? created : previous;
+	}
+
+	/**
+	 * Thread safe global table, it stops growing after a few thousand
+	 * entries
+	 *
+	 * @param s
+	 * @return the shared {@link QuiXCharStream} with the content of {@code s}
+	 */
+	public static QuiXCharStream global(final String s) {
+		if (s == null || s.isEmpty())
+			return QuiXCharStream.EMPTY;
+		return lookupGlobal(s);
+	}
+
+}
@@ -0,0 +1,273 @@
+/*
+ * QuiXProc: efficient evaluation of XProc Pipelines.
+ * Copyright (C) 2011-2018 Innovimax
+ * All rights reserved.
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0*/
+package innovimax.quixproc.datamodel;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Shared pool of names, in the spirit of Saxon's NamePool.
+ *
+ * It gives a stable int code to each namespace URI, each prefix and each
+ * expanded name (namespace URI, local part) it is asked for :
+ * <ul>
+ * <li>a <em>fingerprint</em> identifies the expanded name (the prefix plays
+ * no role, as in {@link QuiXQName#equals(Object)}) and fits in the
+ * {@link #FINGERPRINT_MASK 20} low bits</li>
+ * <li>a <em>name code</em> is a fingerprint with the prefix code in the high
+ * bits</li>
+ * </ul>
+ * Codes are never 0 and never released : the pool is meant for vocabularies,
+ * not for content. The {@link #getDefault() default pool} lives as long as
+ * the JVM, create a pool per pipeline (and drop it with the pipeline) when the
+ * names are not known in advance, and bound it with
+ * {@link #QuiXNamePool(int)}. The XML readers code the names they read with
+ * such a bounded pool, see
+ * {@link innovimax.quixproc.datamodel.in.QuiXEventStreamReader#getNamePool()}.
+ *
+ * Lookups of known names are lock free, the allocation of a new code is
+ * serialized.
+ *
+ * @author innovimax
+ */
+public final class QuiXNamePool {
+
+	public static final int FINGERPRINT_MASK = 0xFFFFF;
+	private static final int PREFIX_SHIFT = 20;
+	private static final int MAX_PREFIX = 0x7FF;
+
+	private static final QuiXNamePool DEFAULT = new QuiXNamePool();
+
+	/**
+	 * @return the pool used by {@link QuiXQName}
+	 */
+	public static QuiXNamePool getDefault() {
+		return DEFAULT;
+	}
+
+	private static final class Name {
+		final String uri;
+		final String localName;
+
+		Name(final String uri, final String localName) {
+			this.uri = uri;
+			this.localName = localName;
+		}
+
+		@Override
+		public boolean equals(final Object o) {
+			if (!(o instanceof Name))
+				return false;
+			final Name n = (Name) o;
+			return this.localName.equals(n.localName) && this.uri.equals(n.uri);
+		}
+
+		@Override
+		public int hashCode() {
+			return this.uri.hashCode() * 31 + this.localName.hashCode();
+		}
+	}
+
+	/**
+	 * One kind of code : lock free lookup, reverse table published by a
+	 * volatile write
+	 */
+	private static final class Table<K> {
+		private final ConcurrentHashMap<K, Integer> codes = new ConcurrentHashMap<K, Integer>();
+		private final int max;
+		private volatile Object[] values = new Object[64];
+		private int count = 1;
+
+		Table(final int max) {
+			this.max = max;
+		}
+
+		/**
+		 * @return the code of {@code key}, 0 when the table is full and
+		 *         {@code fail} is false
+		 */
+		int allocate(final K key, final boolean fail) {
+			final Integer code = this.codes.get(key);
+			if (code != null)
+				return code.intValue();
+			synchronized (this) {
+				final Integer again = this.codes.get(key);
+				if (again != null)
+					return again.intValue();
+				if (this.count > this.max) {
+					if (fail)
+						throw new QuiXException("QuiXNamePool is full");
+					return 0;
+				}
+				final int c = this.count++;
+				Object[] v = this.values;
+				if (c == v.length)
+					v = Arrays.copyOf(v, v.length * 2);
+				v[c] = key;
+				// publish the reverse entry before the code
+				this.values = v;
+				this.codes.put(key, Integer.valueOf(c));
+				return c;
+			}
+		}
+
+		int lookup(final K key) {
+			final Integer code = this.codes.get(key);
+			return code == null ? 0 : code.intValue();
+		}
+
+		@SuppressWarnings("unchecked")
+		K get(final int code) {
+			final Object[] v = this.values;
+			if (code <= 0 || code >= v.length || v[code] == null)
+				throw new IllegalArgumentException("Unknown code " + code);
+			return (K) v[code];
+		}
+	}
+
+	private final Table<Name> names;
+	private final Table<String> uris;
+	private final Table<String> prefixes;
+
+	/**
+	 * A pool with room for as many names as a fingerprint can tell
+	 */
+	public QuiXNamePool() {
+		this(FINGERPRINT_MASK);
+	}
+
+	/**
+	 * @param maxNames
+	 *            the maximum number of expanded names and of namespace URIs,
+	 *            at most {@link #FINGERPRINT_MASK} : beyond, the allocations
+	 *            fail
+	 */
+	public QuiXNamePool(final int maxNames) {
+		if (maxNames < 1 || maxNames > FINGERPRINT_MASK)
+			throw new IllegalArgumentException("maxNames must be in [1, " + FINGERPRINT_MASK + "] : " + maxNames);
+		this.names = new Table<Name>(maxNames);
+		this.uris = new Table<String>(maxNames);
+		this.prefixes = new Table<String>(MAX_PREFIX);
+	}
+
+	private static String str(final Object cs) {
+		return cs == null ? "" : cs.toString();
+	}
+
+	/**
+	 * @param uri
+	 *            null is the same as no namespace
+	 * @param localName
+	 * @return the fingerprint of the expanded name
+	 */
+	public int allocateFingerprint(final CharSequence uri, final CharSequence localName) {
+		return this.names.allocate(new Name(str(uri), str(localName)), true);
+	}
+
+	/**
+	 * @return the fingerprint of the expanded name
+	 */
+	public int allocateFingerprint(final QuiXCharStream uri, final QuiXCharStream localName) {
+		return this.names.allocate(new Name(str(uri), str(localName)), true);
+	}
+
+	/**
+	 * @param uri
+	 * @param localName
+	 * @param prefix
+	 *            null is the same as no prefix
+	 * @return the name code (prefix code and fingerprint)
+	 */
+	public int allocateNameCode(final QuiXCharStream uri, final QuiXCharStream localName,
+			final QuiXCharStream prefix) {
+		return allocatePrefix(str(prefix)) << PREFIX_SHIFT | allocateFingerprint(uri, localName);
+	}
+
+	/**
+	 * Same as {@link #allocateNameCode(QuiXCharStream, QuiXCharStream, QuiXCharStream)}
+	 * but a full pool gives 0 instead of failing : for the readers, which
+	 * then fall back to the content of the names
+	 *
+	 * @return the name code, 0 if the pool is full
+	 */
+	public int tryAllocateNameCode(final QuiXCharStream uri, final QuiXCharStream localName,
+			final QuiXCharStream prefix) {
+		final int prefixCode = this.prefixes.allocate(str(prefix), false);
+		if (prefixCode == 0)
+			return 0;
+		final int fingerprint = this.names.allocate(new Name(str(uri), str(localName)), false);
+		return fingerprint == 0 ? 0 : prefixCode << PREFIX_SHIFT | fingerprint;
+	}
+
+	public int allocateURI(final CharSequence uri) {
+		return this.uris.allocate(str(uri), true);
+	}
+
+	/**
+	 * @return the code of the namespace URI, 0 if the pool is full
+	 */
+	public int tryAllocateURI(final CharSequence uri) {
+		return this.uris.allocate(str(uri), false);
+	}
+
+	public int allocatePrefix(final CharSequence prefix) {
+		return this.prefixes.allocate(str(prefix), true);
+	}
+
+	/**
+	 * @return the code of the prefix, 0 if the pool is full
+	 */
+	public int tryAllocatePrefix(final CharSequence prefix) {
+		return this.prefixes.allocate(str(prefix), false);
+	}
+
+	/**
+	 * @param prefix
+	 * @return the code of the prefix, 0 if the pool does not know it
+	 */
+	public int lookupPrefix(final CharSequence prefix) {
+		return this.prefixes.lookup(str(prefix));
+	}
+
+	/**
+	 * @param uri
+	 * @return the code of the namespace URI, 0 if the pool does not know it
+	 */
+	public int lookupURI(final CharSequence uri) {
+		return this.uris.lookup(str(uri));
+	}
+
+	public static int getFingerprint(final int nameCode) {
+		return nameCode & FINGERPRINT_MASK;
+	}
+
+	public static int getPrefixCode(final int nameCode) {
+		return nameCode >>> PREFIX_SHIFT;
+	}
+
+	public String getURI(final int nameCode) {
+		return this.names.get(getFingerprint(nameCode)).uri;
+	}
+
+	public String getLocalName(final int nameCode) {
+		return this.names.get(getFingerprint(nameCode)).localName;
+	}
+
+	public String getPrefix(final int nameCode) {
+		return this.prefixes.get(getPrefixCode(nameCode));
+	}
+
+	public String getURIForCode(final int uriCode) {
+		return this.uris.get(uriCode);
+	}
+
+	public String getPrefixForCode(final int prefixCode) {
+		return this.prefixes.get(prefixCode);
+	}
+
+}
@@ -83,6 +83,36 @@ public class QuiXQName implements Serializable {
 	 */
 	private final QuiXCharStream prefix;
 
+	/**
+	 * <p>
+	 * pool that gave {@link #poolCode} to this {@code QName} when it was
+	 * created, {@code null} if none.
+	 * </p>
+	 */
+	private final transient QuiXNamePool pool;
+
+	/**
+	 * <p>
+	 * name code of this {@code QName} in {@link #pool} (0 if not known).
+	 * </p>
+	 */
+	private final transient int poolCode;
+
+	/**
+	 * <p>
+	 * name code of this {@code QName} in the {@link QuiXNamePool#getDefault()
+	 * default name pool}, computed on first use (0 if not yet known).
+	 * </p>
+	 */
+	private transient int nameCode;
+
+	/**
+	 * <p>
+	 * hash code of this {@code QName}, computed on first use.
+	 * </p>
+	 */
+	private transient int hash;
+
 	/**
 	 * <p>
 	 * {@code QuiXQName} constructor specifying the Namespace URI and local
@@ -183,6 +213,35 @@ public class QuiXQName implements Serializable {
 	 *             When {@code localPart} or {@code prefix} is {@code null}
 	 */
 	public QuiXQName(final QuiXCharStream namespaceURI, final QuiXCharStream localPart, final QuiXCharStream prefix) {
+		this(namespaceURI, localPart, prefix, null, 0);
+	}
+
+	/**
+	 * <p>
+	 * {@code QuiXQName} constructor specifying the Namespace URI, local part
+	 * and prefix, and the name code already allocated for them in
+	 * {@code pool} : two {@code QName}s coded by the same pool are compared
+	 * by their fingerprints.
+	 * </p>
+	 *
+	 * @param namespaceURI
+	 *            Namespace URI of the {@code QName}
+	 * @param localPart
+	 *            local part of the {@code QName}
+	 * @param prefix
+	 *            prefix of the {@code QName}
+	 * @param pool
+	 *            the pool of {@code nameCode}, {@code null} if none
+	 * @param nameCode
+	 *            name code of the three parts in {@code pool}, 0 if not known
+	 *
+	 * @throws IllegalArgumentException
+	 *             When {@code localPart} or {@code prefix} is {@code null}
+	 * @see QuiXNamePool#tryAllocateNameCode(QuiXCharStream, QuiXCharStream,
+	 *      QuiXCharStream)
+	 */
+	public QuiXQName(final QuiXCharStream namespaceURI, final QuiXCharStream localPart, final QuiXCharStream prefix,
+			final QuiXNamePool pool, final int nameCode) {
 
 		// map null Namespace URI to default
 		// to preserve compatibility with QName 1.0
@@ -200,6 +259,10 @@ public class QuiXQName implements Serializable {
 			throw new IllegalArgumentException("prefix cannot be \"null\" when creating a QName");
 		}
 		this.prefix = prefix;
+
+		this.pool = nameCode == 0 ? null : pool;
+		this.poolCode = this.pool == null ? 0 : nameCode;
+		this.nameCode = this.pool == QuiXNamePool.getDefault() ? nameCode : 0;
 	}
 
 	/**
@@ -306,9 +369,13 @@ public class QuiXQName implements Serializable {
 	 *
 	 * <p>
 	 * Two {@code QName}s are considered equal if and only if both the Namespace
-	 * URI and local part are equal. This method uses {@code String.equals()} to
-	 * check equality of the Namespace URI and local part. The prefix is
-	 * <strong><em>NOT</em></strong> used to determine equality.
+	 * URI and local part are equal. This method compares the fingerprints
+	 * when both names already have a code in the same pool (the
+	 * {@link #getNamePool() pool they were read with} or the
+	 * {@link QuiXNamePool#getDefault() default one}), the content of the
+	 * Namespace URI and local part otherwise : it never allocates a name
+	 * code. The prefix is <strong><em>NOT</em></strong> used
+	 * to determine equality.
 	 * </p>
 	 *
 	 * <p>
@@ -334,6 +401,12 @@ public class QuiXQName implements Serializable {
 
 		final QuiXQName qName = (QuiXQName) objectToTest;
 
+		if (this.pool != null && this.pool == qName.pool)
+			return QuiXNamePool.getFingerprint(this.poolCode) == QuiXNamePool.getFingerprint(qName.poolCode);
+		final int code = this.nameCode;
+		final int otherCode = qName.nameCode;
+		if (code != 0 && otherCode != 0)
+			return QuiXNamePool.getFingerprint(code) == QuiXNamePool.getFingerprint(otherCode);
 		return this.getLocalPart().equals(qName.getLocalPart()) && this.getNamespaceURI().equals(qName.getNamespaceURI());
 	}
 
@@ -357,7 +430,83 @@ public class QuiXQName implements Serializable {
 	 */
 	@Override
 	public final int hashCode() {
-		return this.getNamespaceURI().hashCode() ^ this.getLocalPart().hashCode();
+		int h = this.hash;
+		if (h == 0) {
+			// racy but idempotent
+			h = this.getNamespaceURI().hashCode() ^ this.getLocalPart().hashCode();
+			this.hash = h;
+		}
+		return h;
+	}
+
+	/**
+	 * <p>
+	 * Get the name code of this {@code QName} in the
+	 * {@link QuiXNamePool#getDefault() default name pool} : it identifies the
+	 * Namespace URI, local part and prefix.
+	 * </p>
+	 *
+	 * <p>
+	 * The default pool is never released : prefer
+	 * {@link #getNameCode(QuiXNamePool)} with a pool scoped to the pipeline
+	 * for open vocabularies.
+	 * </p>
+	 *
+	 * @return name code of this {@code QName}
+	 */
+	public int getNameCode() {
+		int code = this.nameCode;
+		if (code == 0) {
+			// racy but idempotent
+			code = QuiXNamePool.getDefault().allocateNameCode(this.namespaceURI, this.localPart, this.prefix);
+			this.nameCode = code;
+		}
+		return code;
+	}
+
+	/**
+	 * <p>
+	 * Get the name code of this {@code QName} in {@code pool}. Only the codes
+	 * of the default pool and of the {@link #getNamePool() pool it was read
+	 * with} are kept by this {@code QName}.
+	 * </p>
+	 *
+	 * @param pool
+	 * @return name code of this {@code QName} in {@code pool}
+	 */
+	public int getNameCode(final QuiXNamePool pool) {
+		if (pool == this.pool)
+			return this.poolCode;
+		if (pool == QuiXNamePool.getDefault())
+			return getNameCode();
+		return pool.allocateNameCode(this.namespaceURI, this.localPart, this.prefix);
+	}
+
+	/**
+	 * <p>
+	 * Get the pool that coded this {@code QName} when it was created, usually
+	 * the one of the reader that read it.
+	 * </p>
+	 *
+	 * @return the pool of {@link #getNameCode(QuiXNamePool)} without
+	 *         allocation, {@code null} if none
+	 */
+	public QuiXNamePool getNamePool() {
+		return this.pool;
+	}
+
+	/**
+	 * <p>
+	 * Get the fingerprint of this {@code QName} in the
+	 * {@link QuiXNamePool#getDefault() default name pool} : it identifies the
+	 * Namespace URI and local part, two {@code QName}s are equal if and only
+	 * if they have the same fingerprint.
+	 * </p>
+	 *
+	 * @return fingerprint of this {@code QName}
+	 */
+	public int getFingerprint() {
+		return QuiXNamePool.getFingerprint(getNameCode());
 	}
 
 	/**
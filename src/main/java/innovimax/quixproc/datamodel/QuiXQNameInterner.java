@@ -0,0 +1,81 @@
+/*
+ * QuiXProc: efficient evaluation of XProc Pipelines.
+ * Copyright (C) 2011-2018 Innovimax
+ * All rights reserved.
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0*/
+package innovimax.quixproc.datamodel;
+
+/**
+ * Table giving the same {@link QuiXQName}, coded by a {@link QuiXNamePool},
+ * for the same parts so that a reader does not look its names up in the pool
+ * on every event.
+ *
+ * An instance is meant to be used by one reader (it is not thread safe) with
+ * the parts given by its {@link QuiXCharStreamInterner} : it is direct
+ * mapped and keyed by the identity of the parts, a new name replaces the one
+ * in its slot so that the memory is bounded. When the pool is full the names
+ * get no code and are compared by content.
+ *
+ * @author innovimax
+ */
+public final class QuiXQNameInterner {
+
+	private final QuiXNamePool pool;
+	private final QuiXQName[] values;
+	private final int mask;
+
+	/**
+	 * 256 entries
+	 *
+	 * @param pool
+	 *            the pool coding the names
+	 */
+	public QuiXQNameInterner(final QuiXNamePool pool) {
+		this(pool, 256);
+	}
+
+	/**
+	 * @param pool
+	 *            the pool coding the names
+	 * @param capacity
+	 *            rounded up to a power of two
+	 */
+	public QuiXQNameInterner(final QuiXNamePool pool, final int capacity) {
+		if (pool == null)
+			throw new IllegalArgumentException("pool cannot be null");
+		int size = 1;
+		while (size < capacity) {
+			size <<= 1;
+		}
+		this.pool = pool;
+		this.values = new QuiXQName[size];
+		this.mask = size - 1;
+	}
+
+	public QuiXNamePool getNamePool() {
+		return this.pool;
+	}
+
+	/**
+	 * @param uri
+	 * @param localName
+	 * @param prefix
+	 * @return the shared {@link QuiXQName} with these parts, coded by the pool
+	 */
+	public QuiXQName intern(final QuiXCharStream uri, final QuiXCharStream localName, final QuiXCharStream prefix) {
+		final int h = (System.identityHashCode(localName) * 31 + System.identityHashCode(uri)) * 31
+				+ System.identityHashCode(prefix);
+		final int slot = (h ^ h >>> 16) & this.mask;
+		final QuiXQName value = this.values[slot];
+		if (value != null && value.getLocalPart() == localName && value.getNamespaceURI() == uri
+				&& value.getPrefix() == prefix)
+			return value;
+		final QuiXQName created = new QuiXQName(uri, localName, prefix, this.pool,
+				this.pool.tryAllocateNameCode(uri, localName, prefix));
+		this.values[slot] = created;
+		return created;
+	}
+
+}
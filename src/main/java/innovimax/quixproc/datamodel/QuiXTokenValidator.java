@@ -0,0 +1,406 @@
+/*
+ * QuiXProc: efficient evaluation of XProc Pipelines.
+ * Copyright (C) 2011-2018 Innovimax
+ * All rights reserved.
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0*/
+package innovimax.quixproc.datamodel;
+
+import java.util.Arrays;
+import java.util.EnumSet;
+
+import innovimax.quixproc.datamodel.metrics.QuiXMetrics;
+
+/**
+ * The state machine checking the grammar described in
+ * {@link ValidQuiXTokenStream}, one token at a time.
+ *
+ * The grammar is compiled once into a transition table indexed by state and
+ * token : each entry holds the next state and the action to apply on the
+ * {@code NodeStack} so checking an event neither allocates nor branches on
+ * the token. Depending on the {@link ValidationPolicy} a document can instead
+ * be checked for the balance of its START_* and END_* tokens only.
+ *
+ * @author innovimax
+ */
+public final class QuiXTokenValidator {
+
+	/**
+	 * Default rate of {@link ValidationPolicy#SAMPLED} : one document out of
+	 * this number is fully checked
+	 */
+	public static final int DEFAULT_SAMPLING = 10;
+
+	private final ValidationPolicy policy;
+	private final boolean off;
+	private final int sampling;
+	private int state;
+	// the current document is only checked for balance
+	private boolean structural;
+	private long documents;
+
+	public QuiXTokenValidator() {
+		this(ValidationPolicy.FULL);
+	}
+
+	public QuiXTokenValidator(final ValidationPolicy policy) {
+		this(policy, DEFAULT_SAMPLING);
+	}
+
+	/**
+	 * @param policy
+	 * @param sampling
+	 *            with {@link ValidationPolicy#SAMPLED} the first document and
+	 *            then one document out of {@code sampling} are fully checked
+	 */
+	public QuiXTokenValidator(final ValidationPolicy policy, final int sampling) {
+		if (sampling < 1)
+			throw new IllegalArgumentException("sampling must be positive : " + sampling);
+		this.policy = policy;
+		this.off = policy == ValidationPolicy.OFF;
+		this.sampling = policy == ValidationPolicy.SAMPLED ? sampling : 1;
+		this.state = State.START.ordinal();
+		this.structural = policy == ValidationPolicy.STRUCTURE_ONLY;
+		this.documents = 0;
+	}
+
+	public ValidationPolicy getPolicy() {
+		return this.policy;
+	}
+
+	private enum State {
+		START, IN_SEQUENCE, IN_DOCUMENT, IN_DOCUMENT_AFTER_ROOT, IN_ELEMENT, IN_CONTENT_TEXT, IN_CONTENT, IN_JSON, IN_JSON_AFTER_ROOT, IN_OBJECT, IN_OBJECT_VALUE, IN_ARRAY, IN_RDF, IN_PREDICATE, IN_PREDICATE_AFTER_SUBJECT, IN_PREDICATE_AFTER_OBJECT, IN_PREDICATE_AFTER_GRAPH, IN_TABLE, IN_TABLE_AFTER_ROOT, IN_ARRAY_OF_ARRAY, IN_ARRAY_OF_ARRAY_AFTER_FIRST, IN_FLAT_ARRAY, END
+	}
+
+	private enum Node {
+		SEQUENCE, DOCUMENT, ELEMENT, JSON, OBJECT, ARRAY, RDF, PREDICATE, TABLE, ARRAY_OF_ARRAY, FLAT_ARRAY
+	}
+
+	private static final State[] STATES = State.values();
+	private static final Node[] NODES = Node.values();
+	private static final QuiXToken[] TOKENS = QuiXToken.values();
+
+	// layout of a transition : next state | action << 8 | node << 16
+	private static final int ERROR = -1;
+	private static final int NONE = 0;
+	private static final int PUSH = 1;
+	private static final int POP = 2;
+	private static final int STATE_MASK = 0xFF;
+	private static final int ACTION_SHIFT = 8;
+	private static final int ACTION_MASK = 0xFF;
+	private static final int NODE_SHIFT = 16;
+
+	private static final int IN_SEQUENCE = State.IN_SEQUENCE.ordinal();
+
+	private static final int[][] TRANSITIONS = new int[STATES.length][TOKENS.length];
+	// state to go to when a node is closed, indexed by the node underneath
+	private static final int[] AFTER_POP = new int[NODES.length];
+	// the tokens accepted in each state, only used to report errors
+	private static final long[] EXPECTED = new long[STATES.length];
+	// the stack action of each token when only the balance is checked
+	private static final int[] STRUCTURE = new int[TOKENS.length];
+
+	private static final QuiXToken[] FLAT_VALUES = { QuiXToken.VALUE_FALSE, QuiXToken.VALUE_TRUE,
+			QuiXToken.VALUE_NULL, QuiXToken.VALUE_NUMBER, QuiXToken.VALUE_STRING };
+
+	static {
+		for (final int[] row : TRANSITIONS) {
+			Arrays.fill(row, ERROR);
+		}
+		// sequence := START_SEQUENCE, (document|json_yaml|table|semantic)*,
+		// END_SEQUENCE
+		on(State.START, QuiXToken.START_SEQUENCE, State.IN_SEQUENCE);
+		push(State.IN_SEQUENCE, QuiXToken.START_DOCUMENT, Node.DOCUMENT, State.IN_DOCUMENT);
+		push(State.IN_SEQUENCE, QuiXToken.START_JSON, Node.JSON, State.IN_JSON);
+		push(State.IN_SEQUENCE, QuiXToken.START_RDF, Node.RDF, State.IN_RDF);
+		push(State.IN_SEQUENCE, QuiXToken.START_TABLE, Node.TABLE, State.IN_TABLE);
+		on(State.IN_SEQUENCE, QuiXToken.END_SEQUENCE, State.END);
+		// document := START_DOCUMENT, (PROCESSING-INSTRUCTION|COMMENT)*,
+		// element, (PROCESSING-INSTRUCTION|COMMENT)*, END_DOCUMENT
+		on(State.IN_DOCUMENT, QuiXToken.PROCESSING_INSTRUCTION, State.IN_DOCUMENT);
+		on(State.IN_DOCUMENT, QuiXToken.COMMENT, State.IN_DOCUMENT);
+		push(State.IN_DOCUMENT, QuiXToken.START_ELEMENT, Node.ELEMENT, State.IN_ELEMENT);
+		on(State.IN_DOCUMENT_AFTER_ROOT, QuiXToken.PROCESSING_INSTRUCTION, State.IN_DOCUMENT_AFTER_ROOT);
+		on(State.IN_DOCUMENT_AFTER_ROOT, QuiXToken.COMMENT, State.IN_DOCUMENT_AFTER_ROOT);
+		pop(State.IN_DOCUMENT_AFTER_ROOT, QuiXToken.END_DOCUMENT, Node.DOCUMENT);
+		// element := START_ELEMENT, (NAMESPACE|ATTRIBUTE)*, TEXT?,
+		// ((element|PROCESSING-INSTRUCTION|COMMENT)+, TEXT)*,
+		// (element|PROCESSING-INSTRUCTION|COMMENT)*, END_ELEMENT
+		on(State.IN_ELEMENT, QuiXToken.NAMESPACE, State.IN_ELEMENT);
+		on(State.IN_ELEMENT, QuiXToken.ATTRIBUTE, State.IN_ELEMENT);
+		on(State.IN_ELEMENT, QuiXToken.TEXT, State.IN_CONTENT_TEXT);
+		for (final State content : new State[] { State.IN_ELEMENT, State.IN_CONTENT, State.IN_CONTENT_TEXT }) {
+			on(content, QuiXToken.PROCESSING_INSTRUCTION, State.IN_CONTENT);
+			on(content, QuiXToken.COMMENT, State.IN_CONTENT);
+			push(content, QuiXToken.START_ELEMENT, Node.ELEMENT, State.IN_ELEMENT);
+			pop(content, QuiXToken.END_ELEMENT, Node.ELEMENT);
+		}
+		on(State.IN_CONTENT, QuiXToken.TEXT, State.IN_CONTENT_TEXT);
+		// json := START_JSON, object, END_JSON
+		push(State.IN_JSON, QuiXToken.START_OBJECT, Node.OBJECT, State.IN_OBJECT);
+		pop(State.IN_JSON_AFTER_ROOT, QuiXToken.END_JSON, Node.JSON);
+		// object := START_OBJECT, (KEY_NAME, value)*, END_OBJECT
+		on(State.IN_OBJECT, QuiXToken.KEY_NAME, State.IN_OBJECT_VALUE);
+		pop(State.IN_OBJECT, QuiXToken.END_OBJECT, Node.OBJECT);
+		// value :=
+		// object|array|VALUE_FALSE|VALUE_TRUE|VALUE_NUMBER|VALUE_NULL|VALUE_STRING
+		for (final QuiXToken value : FLAT_VALUES) {
+			on(State.IN_OBJECT_VALUE, value, State.IN_OBJECT);
+		}
+		push(State.IN_OBJECT_VALUE, QuiXToken.START_OBJECT, Node.OBJECT, State.IN_OBJECT);
+		push(State.IN_OBJECT_VALUE, QuiXToken.START_ARRAY, Node.ARRAY, State.IN_ARRAY);
+		// array := START_ARRAY, value*, END_ARRAY
+		for (final QuiXToken value : FLAT_VALUES) {
+			on(State.IN_ARRAY, value, State.IN_ARRAY);
+		}
+		push(State.IN_ARRAY, QuiXToken.START_ARRAY, Node.ARRAY, State.IN_ARRAY);
+		push(State.IN_ARRAY, QuiXToken.START_OBJECT, Node.OBJECT, State.IN_OBJECT);
+		pop(State.IN_ARRAY, QuiXToken.END_ARRAY, Node.ARRAY);
+		// semantic := START_RDF, statement*, END_RDF
+		push(State.IN_RDF, QuiXToken.START_PREDICATE, Node.PREDICATE, State.IN_PREDICATE);
+		pop(State.IN_RDF, QuiXToken.END_RDF, Node.RDF);
+		// statement := START_PREDICATE, SUBJECT, OBJECT, GRAPH?,
+		// END_PREDICATE
+		on(State.IN_PREDICATE, QuiXToken.SUBJECT, State.IN_PREDICATE_AFTER_SUBJECT);
+		on(State.IN_PREDICATE_AFTER_SUBJECT, QuiXToken.OBJECT, State.IN_PREDICATE_AFTER_OBJECT);
+		on(State.IN_PREDICATE_AFTER_OBJECT, QuiXToken.GRAPH, State.IN_PREDICATE_AFTER_GRAPH);
+		pop(State.IN_PREDICATE_AFTER_OBJECT, QuiXToken.END_PREDICATE, Node.PREDICATE);
+		pop(State.IN_PREDICATE_AFTER_GRAPH, QuiXToken.END_PREDICATE, Node.PREDICATE);
+		// table := START_TABLE, header*, array_of_array, END_TABLE
+		on(State.IN_TABLE, QuiXToken.COLNAME, State.IN_TABLE);
+		push(State.IN_TABLE, QuiXToken.START_ARRAY, Node.ARRAY_OF_ARRAY, State.IN_ARRAY_OF_ARRAY);
+		pop(State.IN_TABLE_AFTER_ROOT, QuiXToken.END_TABLE, Node.TABLE);
+		// array_of_array := START_ARRAY, array+, END_ARRAY
+		push(State.IN_ARRAY_OF_ARRAY, QuiXToken.START_ARRAY, Node.FLAT_ARRAY, State.IN_FLAT_ARRAY);
+		push(State.IN_ARRAY_OF_ARRAY_AFTER_FIRST, QuiXToken.START_ARRAY, Node.FLAT_ARRAY, State.IN_FLAT_ARRAY);
+		pop(State.IN_ARRAY_OF_ARRAY_AFTER_FIRST, QuiXToken.END_ARRAY, Node.ARRAY_OF_ARRAY);
+		// flat_array := START_ARRAY, flat_value*, END_ARRAY
+		// flat_value :=
+		// VALUE_FALSE|VALUE_TRUE|VALUE_NUMBER|VALUE_NULL|VALUE_STRING
+		for (final QuiXToken value : FLAT_VALUES) {
+			on(State.IN_FLAT_ARRAY, value, State.IN_FLAT_ARRAY);
+		}
+		pop(State.IN_FLAT_ARRAY, QuiXToken.END_ARRAY, Node.FLAT_ARRAY);
+
+		Arrays.fill(AFTER_POP, ERROR);
+		afterPop(Node.DOCUMENT, State.IN_DOCUMENT_AFTER_ROOT);
+		afterPop(Node.JSON, State.IN_JSON_AFTER_ROOT);
+		afterPop(Node.ELEMENT, State.IN_CONTENT);
+		afterPop(Node.OBJECT, State.IN_OBJECT);
+		afterPop(Node.ARRAY, State.IN_ARRAY);
+		afterPop(Node.PREDICATE, State.IN_RDF);
+		afterPop(Node.RDF, State.IN_RDF);
+		afterPop(Node.TABLE, State.IN_TABLE_AFTER_ROOT);
+		afterPop(Node.ARRAY_OF_ARRAY, State.IN_ARRAY_OF_ARRAY_AFTER_FIRST);
+		// FLAT_ARRAY : impossible to have flat array here
+
+		// the nodes of the documents must be the same as above
+		structure(QuiXToken.START_SEQUENCE, QuiXToken.END_SEQUENCE, Node.SEQUENCE);
+		structure(QuiXToken.START_DOCUMENT, QuiXToken.END_DOCUMENT, Node.DOCUMENT);
+		structure(QuiXToken.START_ELEMENT, QuiXToken.END_ELEMENT, Node.ELEMENT);
+		structure(QuiXToken.START_JSON, QuiXToken.END_JSON, Node.JSON);
+		structure(QuiXToken.START_OBJECT, QuiXToken.END_OBJECT, Node.OBJECT);
+		structure(QuiXToken.START_ARRAY, QuiXToken.END_ARRAY, Node.ARRAY);
+		structure(QuiXToken.START_RDF, QuiXToken.END_RDF, Node.RDF);
+		structure(QuiXToken.START_PREDICATE, QuiXToken.END_PREDICATE, Node.PREDICATE);
+		structure(QuiXToken.START_TABLE, QuiXToken.END_TABLE, Node.TABLE);
+	}
+
+	private static void on(final State from, final QuiXToken token, final State to) {
+		transition(from, token, to.ordinal());
+	}
+
+	private static void push(final State from, final QuiXToken token, final Node node, final State to) {
+		transition(from, token, to.ordinal() | PUSH << ACTION_SHIFT | node.ordinal() << NODE_SHIFT);
+	}
+
+	private static void pop(final State from, final QuiXToken token, final Node node) {
+		// the next state depends on the stack
+		transition(from, token, POP << ACTION_SHIFT | node.ordinal() << NODE_SHIFT);
+	}
+
+	private static void transition(final State from, final QuiXToken token, final int value) {
+		TRANSITIONS[from.ordinal()][token.ordinal()] = value;
+		EXPECTED[from.ordinal()] |= 1L << token.ordinal();
+	}
+
+	private static void afterPop(final Node node, final State state) {
+		AFTER_POP[node.ordinal()] = state.ordinal();
+	}
+
+	private static void structure(final QuiXToken start, final QuiXToken end, final Node node) {
+		STRUCTURE[start.ordinal()] = PUSH << ACTION_SHIFT | node.ordinal() << NODE_SHIFT;
+		STRUCTURE[end.ordinal()] = POP << ACTION_SHIFT | node.ordinal() << NODE_SHIFT;
+	}
+
+	private static boolean isDocument(final int node) {
+		return node == Node.DOCUMENT.ordinal() || node == Node.JSON.ordinal() || node == Node.RDF.ordinal()
+				|| node == Node.TABLE.ordinal();
+	}
+
+	private static class NodeStack {
+		// this is a compact implementation using the fact that most of
+		// the time the element are of the same type
+		// each entry holds the node in its lower bits and the number of
+		// extra repetitions in its upper bits
+		private static final int START_SIZE = 8;
+		private static final int MASK;
+		private static final int UNIT;
+		private static final int MAX_REPEAT;
+
+		static {
+			int mask = 1;
+			while (mask < NODES.length) {
+				mask <<= 1;
+			}
+			MASK = mask - 1;
+			UNIT = mask;
+			MAX_REPEAT = Integer.MAX_VALUE - UNIT;
+		}
+
+		private int[] data;
+		private int pos;
+
+		NodeStack() {
+			this.data = new int[START_SIZE];
+			this.pos = -1;
+		}
+
+		void push(final int node) {
+			if (this.pos >= 0) {
+				final int top = this.data[this.pos];
+				if (node == (top & MASK) && top <= MAX_REPEAT) {
+					this.data[this.pos] = top + UNIT;
+					return;
+				}
+			}
+			this.pos++;
+			if (this.pos >= this.data.length) {
+				this.data = Arrays.copyOf(this.data, this.data.length * 3 / 2 + 1);
+			}
+			this.data[this.pos] = node;
+		}
+
+		boolean empty() {
+			return this.pos < 0;
+		}
+
+		int pop() {
+			final int top = this.data[this.pos];
+			// simple case first
+			if (top < UNIT) {
+				this.pos--;
+				return top;
+			}
+			// now it means there is at least one
+			this.data[this.pos] = top - UNIT;
+			return top & MASK;
+		}
+
+		int peek() {
+			return this.data[this.pos] & MASK;
+		}
+
+	}
+
+	private final NodeStack stack = new NodeStack();
+
+	/**
+	 * Check the next token of the stream
+	 *
+	 * @param item
+	 * @throws IllegalStateException
+	 *             if the token is not allowed here
+	 */
+	public void check(final IQuiXToken item) {
+		if (this.off)
+			return;
+		final QuiXToken token = item.getType();
+		if (this.structural) {
+			checkStructure(token);
+			return;
+		}
+		final int transition = TRANSITIONS[this.state][token.ordinal()];
+		if (transition == ERROR) {
+			throw new IllegalStateException("Invalid state " + token
+					+ ". One of the following state was expected: " + expected(this.state).toString());
+		}
+		switch (transition >>> ACTION_SHIFT & ACTION_MASK) {
+		case PUSH:
+			this.stack.push(transition >>> NODE_SHIFT);
+			if (this.state == IN_SEQUENCE && !fullyChecked()) {
+				// only the balance of this document will be checked
+				this.structural = true;
+				return;
+			}
+			this.state = transition & STATE_MASK;
+			break;
+		case POP:
+			acceptStackAndSetState(token, transition >>> NODE_SHIFT);
+			break;
+		default:
+			this.state = transition & STATE_MASK;
+		}
+	}
+
+	// called at the start of each document of the sequence
+	private boolean fullyChecked() {
+		final boolean full = this.documents++ % this.sampling == 0;
+		QuiXMetrics.validatedDocument(full);
+		return full;
+	}
+
+	private void checkStructure(final QuiXToken token) {
+		final int structure = STRUCTURE[token.ordinal()];
+		switch (structure >>> ACTION_SHIFT & ACTION_MASK) {
+		case PUSH:
+			final int node = structure >>> NODE_SHIFT;
+			if (this.policy == ValidationPolicy.STRUCTURE_ONLY && isDocument(node))
+				QuiXMetrics.validatedDocument(false);
+			this.stack.push(node);
+			break;
+		case POP:
+			acceptStack(token, structure >>> NODE_SHIFT);
+			if (this.stack.empty() && this.policy == ValidationPolicy.SAMPLED) {
+				// back in the SEQUENCE
+				this.structural = false;
+				this.state = IN_SEQUENCE;
+			}
+			break;
+		default:
+		}
+	}
+
+	private void acceptStack(final QuiXToken token, final int node) {
+		if (this.stack.empty()) {
+			throw new IllegalStateException(
+					"Invalid state " + token + ". Closing a node " + NODES[node] + " that is not opened");
+		}
+		final int last = this.stack.pop();
+		if (last != node) {
+			// this is different
+			throw new IllegalStateException("Invalid state " + token + ". Closing a node " + NODES[node]
+					+ " while last open is a " + NODES[last]);
+		}
+	}
+
+	private void acceptStackAndSetState(final QuiXToken token, final int node) {
+		acceptStack(token, node);
+		// this is what is expected
+		// but need to set the correct state
+		// if the stack is empty we are in the SEQUENCE
+		this.state = this.stack.empty() ? IN_SEQUENCE : AFTER_POP[this.stack.peek()];
+	}
+
+	private static EnumSet<QuiXToken> expected(final int state) {
+		final EnumSet<QuiXToken> expecteds = EnumSet.noneOf(QuiXToken.class);
+		final long mask = EXPECTED[state];
+		for (final QuiXToken token : TOKENS) {
+			if ((mask & 1L << token.ordinal()) != 0) {
+				expecteds.add(token);
+			}
+		}
+		return expecteds;
+	}
+}
@@ -0,0 +1,34 @@
+/*
+ * QuiXProc: efficient evaluation of XProc Pipelines.
+ * Copyright (C) 2011-2018 Innovimax
+ * All rights reserved.
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0*/
+package innovimax.quixproc.datamodel;
+
+/**
+ * How much of the {@link ValidQuiXTokenStream} grammar is checked on a stream
+ * of {@link QuiXToken}, see {@link QuiXTokenValidator}
+ *
+ * @author innovimax
+ */
+public enum ValidationPolicy {
+	/**
+	 * The whole grammar is checked
+	 */
+	FULL,
+	/**
+	 * Only the balance of the START_* and END_* tokens is checked
+	 */
+	STRUCTURE_ONLY,
+	/**
+	 * One document out of N of the sequence is fully checked, the others are
+	 * checked as {@link #STRUCTURE_ONLY}
+	 */
+	SAMPLED,
+	/**
+	 * Nothing is checked (trusted streams)
+	 */
+	OFF
+}
@@ -7,7 +7,10 @@
  *        http://www.apache.org/licenses/LICENSE-2.0*/
 package innovimax.quixproc.datamodel.convert.saxon;
 
+import java.util.Arrays;
+
 import innovimax.quixproc.datamodel.QuiXCharStream;
+import innovimax.quixproc.datamodel.QuiXCharStreamInterner;
 import innovimax.quixproc.datamodel.event.AQuiXEvent;
 import innovimax.quixproc.datamodel.shared.ISimpleQuiXQueue;
 import net.sf.saxon.om.NamespaceBinding;
@@ -17,8 +20,14 @@ import net.sf.saxon.s9api.XdmNode;
 import net.sf.saxon.s9api.XdmSequenceIterator;
 
 public abstract class AXdmNode2QuiXEventStreamConverter implements Runnable {
+	// number of events published at once on the queue
+	private static final int BATCH_SIZE = 256;
 	private final ISimpleQuiXQueue<AQuiXEvent> doc;
 	private final XdmNode node;
+	private final AQuiXEvent[] batch;
+	private int batchCount;
+	// names, prefixes and namespace URIs
+	private final QuiXCharStreamInterner names = new QuiXCharStreamInterner();
 	private boolean running = true;
 	private static int counter = 1;
 //	private final int rank = counter++;
@@ -26,6 +35,8 @@ public abstract class AXdmNode2QuiXEventStreamConverter implements Runnable {
 	protected AXdmNode2QuiXEventStreamConverter(final ISimpleQuiXQueue<AQuiXEvent> doc, final XdmNode node) {
 		this.doc = doc;
 		this.node = node;
+		this.batch = new AQuiXEvent[BATCH_SIZE];
+		this.batchCount = 0;
 	}
 
 	@Override
@@ -34,6 +45,7 @@ public abstract class AXdmNode2QuiXEventStreamConverter implements Runnable {
 		try {
 			startProcess();
 			process();
+			flush();
 			this.doc.close();
 			endProcess();
 			this.running = false;
@@ -53,13 +65,27 @@ public abstract class AXdmNode2QuiXEventStreamConverter implements Runnable {
 	 */
 
 	private void process() {
-		this.doc.append(AQuiXEvent.getStartSequence());
+		emit(AQuiXEvent.getStartSequence());
 		final String uri = String.valueOf(this.node.getDocumentURI());
 		// System.out.println("---------->Document URI"+uri);
-		this.doc.append(AQuiXEvent.getStartDocument(QuiXCharStream.fromSequence(uri)));
+		emit(AQuiXEvent.getStartDocument(QuiXCharStream.fromSequence(uri)));
 		processnode(this.node);
-		this.doc.append(AQuiXEvent.getEndDocument(QuiXCharStream.fromSequence(uri)));
-		this.doc.append(AQuiXEvent.getEndSequence());
+		emit(AQuiXEvent.getEndDocument(QuiXCharStream.fromSequence(uri)));
+		emit(AQuiXEvent.getEndSequence());
+	}
+
+	private void emit(final AQuiXEvent event) {
+		this.batch[this.batchCount++] = event;
+		if (this.batchCount == BATCH_SIZE)
+			flush();
+	}
+
+	private void flush() {
+		if (this.batchCount > 0) {
+			this.doc.appendAll(this.batch, 0, this.batchCount);
+			Arrays.fill(this.batch, 0, this.batchCount, null);
+			this.batchCount = 0;
+		}
 	}
 
 	private void processnode(final XdmNode localnode) {
@@ -72,10 +98,9 @@ public abstract class AXdmNode2QuiXEventStreamConverter implements Runnable {
 			}
 			break;
 		case ELEMENT:
-			this.doc.append(
-					AQuiXEvent.getStartElement(QuiXCharStream.fromSequence(localnode.getNodeName().getLocalName()),
-							QuiXCharStream.fromSequence(localnode.getNodeName().getNamespaceURI()),
-							QuiXCharStream.fromSequence(localnode.getNodeName().getPrefix())));
+			emit(AQuiXEvent.getStartElement(this.names.intern(localnode.getNodeName().getLocalName()),
+					this.names.intern(localnode.getNodeName().getNamespaceURI()),
+					this.names.intern(localnode.getNodeName().getPrefix())));
 			namespaceProcess(localnode);
 			for (final XdmSequenceIterator iter = localnode.axisIterator(Axis.ATTRIBUTE); iter.hasNext();) {
 				final XdmNode item = (XdmNode) iter.next();
@@ -85,25 +110,24 @@ public abstract class AXdmNode2QuiXEventStreamConverter implements Runnable {
 				final XdmNode item = (XdmNode) iter.next();
 				processnode(item);
 			}
-			this.doc.append(
-					AQuiXEvent.getEndElement(QuiXCharStream.fromSequence(localnode.getNodeName().getLocalName()),
-							QuiXCharStream.fromSequence(localnode.getNodeName().getNamespaceURI()),
-							QuiXCharStream.fromSequence(localnode.getNodeName().getPrefix())));
+			emit(AQuiXEvent.getEndElement(this.names.intern(localnode.getNodeName().getLocalName()),
+					this.names.intern(localnode.getNodeName().getNamespaceURI()),
+					this.names.intern(localnode.getNodeName().getPrefix())));
 			break;
 		case ATTRIBUTE:
-			this.doc.append(AQuiXEvent.getAttribute(QuiXCharStream.fromSequence(localnode.getNodeName().getLocalName()),
-					QuiXCharStream.fromSequence(localnode.getNodeName().getNamespaceURI()),
-					QuiXCharStream.fromSequence(localnode.getNodeName().getPrefix()),
+			emit(AQuiXEvent.getAttribute(this.names.intern(localnode.getNodeName().getLocalName()),
+					this.names.intern(localnode.getNodeName().getNamespaceURI()),
+					this.names.intern(localnode.getNodeName().getPrefix()),
 					QuiXCharStream.fromSequence(localnode.getStringValue())));
 			break;
 		case TEXT:
-			this.doc.append(AQuiXEvent.getText(QuiXCharStream.fromSequence(localnode.getStringValue())));
+			emit(AQuiXEvent.getText(QuiXCharStream.fromSequence(localnode.getStringValue())));
 			break;
 		case COMMENT:
-			this.doc.append(AQuiXEvent.getComment(QuiXCharStream.fromSequence(localnode.getStringValue())));
+			emit(AQuiXEvent.getComment(QuiXCharStream.fromSequence(localnode.getStringValue())));
 			break;
 		case PROCESSING_INSTRUCTION:
-			this.doc.append(AQuiXEvent.getPI(QuiXCharStream.fromSequence(localnode.getNodeName().getLocalName()),
+			emit(AQuiXEvent.getPI(this.names.intern(localnode.getNodeName().getLocalName()),
 					QuiXCharStream.fromSequence(localnode.getStringValue())));
 			break;
 		case NAMESPACE:
@@ -122,8 +146,7 @@ public abstract class AXdmNode2QuiXEventStreamConverter implements Runnable {
 			for (final NamespaceBinding ns : inscopeNS) {
 				final String pfx = ns.getPrefix();
 				final String uri = ns.getURI();
-				this.doc.append(
-						AQuiXEvent.getNamespace(QuiXCharStream.fromSequence(pfx), QuiXCharStream.fromSequence(uri)));
+				emit(AQuiXEvent.getNamespace(this.names.intern(pfx), this.names.intern(uri)));
 			}
 		}
 
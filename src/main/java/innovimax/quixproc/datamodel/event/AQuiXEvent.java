@@ -7,13 +7,14 @@
  *        http://www.apache.org/licenses/LICENSE-2.0*/
 package innovimax.quixproc.datamodel.event;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Locale;
 
 import innovimax.quixproc.datamodel.IQuiXToken;
 import innovimax.quixproc.datamodel.QuiXCharStream;
+import innovimax.quixproc.datamodel.QuiXNamePool;
 import innovimax.quixproc.datamodel.QuiXQName;
 import innovimax.quixproc.datamodel.QuiXToken;
+import innovimax.quixproc.datamodel.metrics.QuiXMetrics;
 
 public abstract class AQuiXEvent implements IQuiXEvent, IQuiXToken {
 
@@ -22,21 +23,48 @@ public abstract class AQuiXEvent implements IQuiXEvent, IQuiXToken {
 
 	// to enable CACHING for specific kind of type
 	private static final boolean SEQUENCE_CACHING_ENABLED = false;
-	private static final boolean DOCUMENT_CACHING_ENABLED = false;
-	private static final boolean ELEMENT_CACHING_ENABLED = false;
-	private static final boolean NAME_CACHING_ENABLED = false;
 
-	private static long createCount = 0;
-	private static long createCallCount = 0;
-	private static long createDocCount = 0;
-	private static long createAttrCount = 0;
+	/**
+	 * The flyweight caches that can be configured at runtime with
+	 * {@link AQuiXEvent#setCacheCapacity(CacheKind, int)} or with the system
+	 * property {@code quixdm.cache.<kind>} (e.g. {@code -Dquixdm.cache.name=1024})
+	 */
+	public enum CacheKind {
+		NAME, START_ELEMENT, END_ELEMENT, START_DOCUMENT, END_DOCUMENT;
+
+		int getDefaultCapacity() {
+			return Integer.getInteger("quixdm.cache." + name().toLowerCase(Locale.ROOT), 0).intValue();
+		}
+	}
+
+	private static final QuiXFlyweightCache.Factory<QuiXQName> NEW_QNAME = (uri, localName,
+			prefix) -> new QuiXQName(uri, localName, prefix);
+	private static final QuiXFlyweightCache.Factory<StartElement> NEW_START_ELEMENT = (uri, localName,
+			prefix) -> new StartElement(getQName(localName, uri, prefix));
+	private static final QuiXFlyweightCache.Factory<EndElement> NEW_END_ELEMENT = (uri, localName,
+			prefix) -> new EndElement(getQName(localName, uri, prefix));
+	private static final QuiXFlyweightCache.Factory<StartDocument> NEW_START_DOCUMENT = (uri, unused1,
+			unused2) -> new StartDocument(uri);
+	private static final QuiXFlyweightCache.Factory<EndDocument> NEW_END_DOCUMENT = (uri, unused1,
+			unused2) -> new EndDocument(uri);
+
+	// null when disabled
+	private static volatile QuiXFlyweightCache<QuiXQName> nameCache = newCache(CacheKind.NAME.getDefaultCapacity());
+	private static volatile QuiXFlyweightCache<StartElement> startElementCache = newCache(
+			CacheKind.START_ELEMENT.getDefaultCapacity());
+	private static volatile QuiXFlyweightCache<EndElement> endElementCache = newCache(
+			CacheKind.END_ELEMENT.getDefaultCapacity());
+	private static volatile QuiXFlyweightCache<StartDocument> startDocumentCache = newCache(
+			CacheKind.START_DOCUMENT.getDefaultCapacity());
+	private static volatile QuiXFlyweightCache<EndDocument> endDocumentCache = newCache(
+			CacheKind.END_DOCUMENT.getDefaultCapacity());
 
 	final QuiXToken type;
 
 	/* constructors */
 	AQuiXEvent(final QuiXToken type) {
 		this.type = type;
-		createCount++;
+		QuiXMetrics.created(type);
 	}
 
 	public abstract static class AXMLQuiXEvent extends AQuiXEvent {
@@ -91,7 +119,6 @@ public abstract class AQuiXEvent implements IQuiXEvent, IQuiXToken {
 		StartDocument(final QuiXCharStream uri) {
 			super(QuiXToken.START_DOCUMENT);
 			this.uri = uri;
-			createDocCount++;
 			// System.out.println("START DOCUMENT"+uri);
 		}
 
@@ -101,7 +128,8 @@ public abstract class AQuiXEvent implements IQuiXEvent, IQuiXToken {
 
 		@Override
 		public String toString() {
-			return this.type + " " + this.uri;
+			// an unknown URI may wrap null
+			return this.type + " " + (this.uri == null || this.uri.isNull() ? null : this.uri);
 		}
 	}
 
@@ -111,7 +139,6 @@ public abstract class AQuiXEvent implements IQuiXEvent, IQuiXToken {
 		EndDocument(final QuiXCharStream uri) {
 			super(QuiXToken.END_DOCUMENT);
 			this.uri = uri;
-			createDocCount++;
 			// System.out.println("END DOCUMENT"+uri);
 		}
 
@@ -121,7 +148,8 @@ public abstract class AQuiXEvent implements IQuiXEvent, IQuiXToken {
 
 		@Override
 		public String toString() {
-			return this.type + " " + this.uri;
+			// an unknown URI may wrap null
+			return this.type + " " + (this.uri == null || this.uri.isNull() ? null : this.uri);
 		}
 	}
 
@@ -287,6 +315,10 @@ public abstract class AQuiXEvent implements IQuiXEvent, IQuiXToken {
 			super(QuiXToken.KEY_NAME);
 			this.name = name;
 		}
+
+		QuiXCharStream getName() {
+			return this.name;
+		}
 	}
 
 	public static final class Namespace extends AXMLQuiXEvent {
@@ -341,6 +373,32 @@ public abstract class AQuiXEvent implements IQuiXEvent, IQuiXToken {
 		public QuiXQName getQName() {
 			return this.qname;
 		}
+
+		/**
+		 * @return the name code in the default
+		 *         {@link QuiXNamePool}
+		 */
+		public int getNameCode() {
+			return this.qname.getNameCode();
+		}
+
+		/**
+		 * @return the fingerprint in the default
+		 *         {@link QuiXNamePool}
+		 */
+		public int getFingerprint() {
+			return this.qname.getFingerprint();
+		}
+
+		/**
+		 * @param pool
+		 * @return the name code in {@code pool}, without allocation when it
+		 *         is the pool of the reader
+		 * @see QuiXQName#getNamePool()
+		 */
+		public int getNameCode(final QuiXNamePool pool) {
+			return this.qname.getNameCode(pool);
+		}
 	}
 
 	public static final class StartElement extends NamedEvent {
@@ -373,7 +431,6 @@ public abstract class AQuiXEvent implements IQuiXEvent, IQuiXToken {
 		Attribute(final QuiXQName qname, final QuiXCharStream value) {
 			super(qname, QuiXToken.ATTRIBUTE);
 			this.value = value;
-			createAttrCount++;
 			// System.out.println("ATTRIBUTE");
 		}
 
@@ -507,92 +564,47 @@ public abstract class AQuiXEvent implements IQuiXEvent, IQuiXToken {
 	private static final StartSequence newStartSequence = SEQUENCE_CACHING_ENABLED ? new StartSequence() : null;
 
 	public static AQuiXEvent getStartSequence() {
-		createCallCount++;
+		QuiXMetrics.factoryCall(QuiXToken.START_SEQUENCE);
 		return SEQUENCE_CACHING_ENABLED ? newStartSequence : new StartSequence();
 	}
 
 	private static final EndSequence newEndSequence = SEQUENCE_CACHING_ENABLED ? new EndSequence() : null;
 
 	public static AQuiXEvent getEndSequence() {
-		createCallCount++;
+		QuiXMetrics.factoryCall(QuiXToken.END_SEQUENCE);
 		return SEQUENCE_CACHING_ENABLED ? newEndSequence : new EndSequence();
 	}
 
-	private static final Map<QuiXCharStream, StartDocument> startDocumentMap = DOCUMENT_CACHING_ENABLED
-			? new HashMap<QuiXCharStream, StartDocument>() : null;
-
 	public static AXMLQuiXEvent getStartDocument(final QuiXCharStream uri) {
-		createCallCount++;
-		final StartDocument result;
-		if (DOCUMENT_CACHING_ENABLED) {
-			synchronized (startDocumentMap) {
-				if (startDocumentMap.containsKey(uri)) {
-					result = startDocumentMap.get(uri);
-				} else {
-					result = new StartDocument(uri);
-					startDocumentMap.put(uri, result);
-				}
-			}
-		} else {
-			return new StartDocument(uri);
-		}
-		return result;
-	}
-
-	private static final Map<QuiXCharStream, EndDocument> endDocumentMap = DOCUMENT_CACHING_ENABLED
-			? new HashMap<QuiXCharStream, EndDocument>() : null;
+		QuiXMetrics.factoryCall(QuiXToken.START_DOCUMENT);
+		final QuiXFlyweightCache<StartDocument> cache = startDocumentCache;
+		// an unknown system id is not cached
+		if (cache != null && uri != null && !uri.isNull())
+			return cache.get(uri, QuiXCharStream.EMPTY, QuiXCharStream.EMPTY, NEW_START_DOCUMENT);
+		return new StartDocument(uri);
+	}
 
 	public static AXMLQuiXEvent getEndDocument(final QuiXCharStream uri) {
-		createCallCount++;
-		final EndDocument result;
-		if (DOCUMENT_CACHING_ENABLED) {
-			synchronized (endDocumentMap) {
-				if (endDocumentMap.containsKey(uri)) {
-					result = endDocumentMap.get(uri);
-				} else {
-					result = new EndDocument(uri);
-					endDocumentMap.put(uri, result);
-				}
-			}
-		} else {
-			return new EndDocument(uri);
-		}
-		return result;
+		QuiXMetrics.factoryCall(QuiXToken.END_DOCUMENT);
+		final QuiXFlyweightCache<EndDocument> cache = endDocumentCache;
+		// an unknown system id is not cached
+		if (cache != null && uri != null && !uri.isNull())
+			return cache.get(uri, QuiXCharStream.EMPTY, QuiXCharStream.EMPTY, NEW_END_DOCUMENT);
+		return new EndDocument(uri);
 	}
 
 	public static Namespace getNamespace(final QuiXCharStream prefix, final QuiXCharStream uri) {
 		return new Namespace(prefix == null ? QuiXCharStream.EMPTY : prefix, uri);
 	}
 
-	private static final Map<QuiXCharStream, QuiXQName> qNameMap = NAME_CACHING_ENABLED
-			? new HashMap<QuiXCharStream, QuiXQName>() : null;
-
 	private static QuiXQName getQName(final QuiXCharStream localName, final QuiXCharStream namespace, final QuiXCharStream pref) {
-		final QuiXQName result;
 		final QuiXCharStream uri = namespace == null ? QuiXCharStream.EMPTY : namespace;
 		final QuiXCharStream prefix = pref == null ? QuiXCharStream.EMPTY : pref;
-		if (NAME_CACHING_ENABLED) {
-			QuiXCharStream key = localName;
-			// here the prefix plays no role
-			// if (prefix.length() > 0) key = prefix + ":" + localName;
-			if (!uri.isEmpty())
-				key = QuiXCharStream.fromSequence("{").append(uri).append("}").append(key);
-			synchronized (qNameMap) {
-				if (qNameMap.containsKey(key)) {
-					result = qNameMap.get(key);
-				} else {
-					result = new QuiXQName(uri, localName, prefix);
-					qNameMap.put(key, result);
-				}
-			}
-		} else {
-			return new QuiXQName(uri, localName, prefix);
-		}
-		return result;
-	}
-
-	private static final Map<QuiXQName, StartElement> startElementMap = ELEMENT_CACHING_ENABLED
-			? new HashMap<QuiXQName, StartElement>() : null;
+		final QuiXFlyweightCache<QuiXQName> cache = nameCache;
+		if (cache != null)
+			return cache.get(uri, localName, prefix, NEW_QNAME);
+		return new QuiXQName(uri, localName, prefix);
+	}
 
 	public static AXMLQuiXEvent getStartElement(final QuiXCharStream qName, final QuiXCharStream namespace) {
 		QuiXCharStream localName = qName;
@@ -606,26 +618,23 @@ public abstract class AQuiXEvent implements IQuiXEvent, IQuiXToken {
 
 	public static AXMLQuiXEvent getStartElement(final QuiXCharStream localName, final QuiXCharStream namespace,
                                                 final QuiXCharStream prefix) {
-		createCallCount++;
-		final StartElement result;
-		final QuiXQName qname = getQName(localName, namespace, prefix);
-		if (ELEMENT_CACHING_ENABLED) {
-			synchronized (startElementMap) {
-				if (startElementMap.containsKey(qname)) {
-					result = startElementMap.get(qname);
-				} else {
-					result = new StartElement(qname);
-					startElementMap.put(qname, result);
-				}
-			}
-		} else {
-			return new StartElement(qname);
-		}
-		return result;
-	}
-
-	private static final Map<QuiXQName, EndElement> endElementMap = ELEMENT_CACHING_ENABLED
-			? new HashMap<QuiXQName, EndElement>() : null;
+		QuiXMetrics.factoryCall(QuiXToken.START_ELEMENT);
+		final QuiXFlyweightCache<StartElement> cache = startElementCache;
+		if (cache != null)
+			return cache.get(namespace == null ? QuiXCharStream.EMPTY : namespace, localName,
+					prefix == null ? QuiXCharStream.EMPTY : prefix, NEW_START_ELEMENT);
+		return new StartElement(getQName(localName, namespace, prefix));
+	}
+
+	/**
+	 * @param qname
+	 *            used as is, e.g. coded by the pool of a reader : the
+	 *            {@link CacheKind#START_ELEMENT} cache is not used
+	 */
+	public static AXMLQuiXEvent getStartElement(final QuiXQName qname) {
+		QuiXMetrics.factoryCall(QuiXToken.START_ELEMENT);
+		return new StartElement(qname);
+	}
 
 	public static AXMLQuiXEvent getEndElement(final QuiXCharStream qName, final QuiXCharStream namespace) {
 		QuiXCharStream localName = qName;
@@ -639,22 +648,22 @@ public abstract class AQuiXEvent implements IQuiXEvent, IQuiXToken {
 
 	public static AXMLQuiXEvent getEndElement(final QuiXCharStream localName, final QuiXCharStream namespace,
                                               final QuiXCharStream prefix) {
-		createCallCount++;
-		final EndElement result;
-		final QuiXQName qname = getQName(localName, namespace, prefix);
-		if (ELEMENT_CACHING_ENABLED) {
-			synchronized (endElementMap) {
-				if (endElementMap.containsKey(qname)) {
-					result = endElementMap.get(qname);
-				} else {
-					result = new EndElement(qname);
-					endElementMap.put(qname, result);
-				}
-			}
-		} else {
-			return new EndElement(qname);
-		}
-		return result;
+		QuiXMetrics.factoryCall(QuiXToken.END_ELEMENT);
+		final QuiXFlyweightCache<EndElement> cache = endElementCache;
+		if (cache != null)
+			return cache.get(namespace == null ? QuiXCharStream.EMPTY : namespace, localName,
+					prefix == null ? QuiXCharStream.EMPTY : prefix, NEW_END_ELEMENT);
+		return new EndElement(getQName(localName, namespace, prefix));
+	}
+
+	/**
+	 * @param qname
+	 *            used as is, e.g. coded by the pool of a reader : the
+	 *            {@link CacheKind#END_ELEMENT} cache is not used
+	 */
+	public static AXMLQuiXEvent getEndElement(final QuiXQName qname) {
+		QuiXMetrics.factoryCall(QuiXToken.END_ELEMENT);
+		return new EndElement(qname);
 	}
 
 	public static AXMLQuiXEvent getAttribute(final QuiXCharStream qName, final QuiXCharStream namespace, final QuiXCharStream value) {
@@ -669,22 +678,32 @@ public abstract class AQuiXEvent implements IQuiXEvent, IQuiXToken {
 
 	public static AXMLQuiXEvent getAttribute(final QuiXCharStream localName, final QuiXCharStream namespace, final QuiXCharStream prefix,
                                              final QuiXCharStream value) {
-		createCallCount++;
+		QuiXMetrics.factoryCall(QuiXToken.ATTRIBUTE);
 		return new Attribute(getQName(localName, namespace, prefix), value);
 	}
 
+	/**
+	 * @param qname
+	 *            used as is, e.g. coded by the pool of a reader
+	 * @param value
+	 */
+	public static AXMLQuiXEvent getAttribute(final QuiXQName qname, final QuiXCharStream value) {
+		QuiXMetrics.factoryCall(QuiXToken.ATTRIBUTE);
+		return new Attribute(qname, value);
+	}
+
 	public static AXMLQuiXEvent getText(final QuiXCharStream text) {
-		createCallCount++;
+		QuiXMetrics.factoryCall(QuiXToken.TEXT);
 		return new Text(text);
 	}
 
 	public static AXMLQuiXEvent getPI(final QuiXCharStream target, final QuiXCharStream data) {
-		createCallCount++;
+		QuiXMetrics.factoryCall(QuiXToken.PROCESSING_INSTRUCTION);
 		return new PI(target, data);
 	}
 
 	public static AXMLQuiXEvent getComment(final QuiXCharStream comment) {
-		createCallCount++;
+		QuiXMetrics.factoryCall(QuiXToken.COMMENT);
 		return new Comment(comment);
 	}
 
@@ -829,29 +848,83 @@ public abstract class AQuiXEvent implements IQuiXEvent, IQuiXToken {
 		return this;
 	}
 
+	/* caching */
+
+	private static <V> QuiXFlyweightCache<V> newCache(final int capacity) {
+		return capacity > 0 ? new QuiXFlyweightCache<V>(capacity) : null;
+	}
+
+	/**
+	 * Replace the cache of the given kind by a new empty one
+	 *
+	 * @param kind
+	 * @param capacity
+	 *            maximum number of cached values, 0 to disable the cache
+	 */
+	public static void setCacheCapacity(final CacheKind kind, final int capacity) {
+		switch (kind) {
+		case NAME:
+			nameCache = newCache(capacity);
+			break;
+		case START_ELEMENT:
+			startElementCache = newCache(capacity);
+			break;
+		case END_ELEMENT:
+			endElementCache = newCache(capacity);
+			break;
+		case START_DOCUMENT:
+			startDocumentCache = newCache(capacity);
+			break;
+		case END_DOCUMENT:
+			endDocumentCache = newCache(capacity);
+			break;
+		default:
+			throw new IllegalArgumentException(String.valueOf(kind));
+		}
+	}
+
+	/**
+	 * @param kind
+	 * @return the cache of the given kind (to read its statistics) or null if
+	 *         disabled
+	 */
+	public static QuiXFlyweightCache<?> getCache(final CacheKind kind) {
+		switch (kind) {
+		case NAME:
+			return nameCache;
+		case START_ELEMENT:
+			return startElementCache;
+		case END_ELEMENT:
+			return endElementCache;
+		case START_DOCUMENT:
+			return startDocumentCache;
+		case END_DOCUMENT:
+			return endDocumentCache;
+		default:
+			throw new IllegalArgumentException(String.valueOf(kind));
+		}
+	}
+
 	/* debugging */
 
 	public static long getCreateCount() {
-		return createCount;
+		return QuiXMetrics.getCreatedTotal();
 	}
 
 	public static long getCreateDocCount() {
-		return createDocCount;
+		return QuiXMetrics.getCreated(QuiXToken.START_DOCUMENT) + QuiXMetrics.getCreated(QuiXToken.END_DOCUMENT);
 	}
 
 	public static long getCreateAttrCount() {
-		return createAttrCount;
+		return QuiXMetrics.getCreated(QuiXToken.ATTRIBUTE);
 	}
 
 	public static long getCreateCallCount() {
-		return createCallCount;
+		return QuiXMetrics.getFactoryCallTotal();
 	}
 
 	public static void resetCreateCount() {
-		createCount = 0;
-		createDocCount = 0;
-		createAttrCount = 0;
-		createCallCount = 0;
+		QuiXMetrics.reset();
 	}
 
 }
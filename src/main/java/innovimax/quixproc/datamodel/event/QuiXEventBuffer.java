@@ -0,0 +1,712 @@
+/*
+ * QuiXProc: efficient evaluation of XProc Pipelines.
+ * Copyright (C) 2011-2018 Innovimax
+ * All rights reserved.
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0*/
+package innovimax.quixproc.datamodel.event;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import innovimax.quixproc.datamodel.IQuiXStream;
+import innovimax.quixproc.datamodel.IQuiXToken;
+import innovimax.quixproc.datamodel.QuiXCharStream;
+import innovimax.quixproc.datamodel.QuiXException;
+import innovimax.quixproc.datamodel.QuiXToken;
+
+/**
+ * Compact columnar representation of a sequence of events, without one object
+ * per event.
+ *
+ * Each event is a record of three ints : the {@link QuiXToken} ordinal and two
+ * operands. Names (local name, namespace URI, prefix, PI target) are symbols
+ * shared by the whole buffer and an element or attribute name is a name code
+ * pointing to a (local name, URI, prefix) triple of symbols. Textual
+ * content is copied in a shared {@code char[]} arena and referenced through a
+ * span ({@code offset << 32 | length}), numbers are kept as the bits of the
+ * double. The JSON keys are spans too : unlike the markup names they are data
+ * (identifiers used as keys, ...) and would make the symbols grow without
+ * limit.
+ *
+ * <pre>
+ * START/END_DOCUMENT     span of the URI
+ * START/END_ELEMENT      name code
+ * ATTRIBUTE              name code, span of the value
+ * NAMESPACE              prefix symbol, URI symbol
+ * TEXT, COMMENT          span of the data
+ * PROCESSING_INSTRUCTION target symbol, span of the data
+ * KEY_NAME               span
+ * VALUE_STRING           span
+ * VALUE_NUMBER           index of the number
+ * RDF (predicate, ...)   span of the name
+ * </pre>
+ *
+ * The events are read back through a {@link Cursor} : its {@code next()}
+ * returns the {@link QuiXToken} and the content is read from accessors.
+ * {@link Cursor#toEvent()} builds the equivalent {@link AQuiXEvent} when an
+ * object is needed.
+ *
+ * A buffer is not thread safe : fill it, then hand it over (for instance as
+ * one item of a queue) to the readers.
+ *
+ * @author innovimax
+ */
+public final class QuiXEventBuffer {
+
+	/**
+	 * Operand value for {@code null}
+	 */
+	public static final int NULL = -1;
+
+	private static final int STRIDE = 3;
+	private static final QuiXToken[] TOKENS = QuiXToken.values();
+	private static final int INITIAL_EVENTS = 256;
+	// so that a name code key fits in a long
+	private static final int MAX_SYMBOLS = (1 << 21) - 1;
+
+	// records
+	private int[] records;
+	private int size;
+	// textual content
+	private char[] arena;
+	private int arenaSize;
+	private long[] spans;
+	private int spanCount;
+	// numbers
+	private long[] numbers;
+	private int numberCount;
+	// symbols and names
+	private final Map<String, Integer> symbolCodes;
+	private String[] symbols;
+	private int symbolCount;
+	// open addressing (name key -> name code + 1) to avoid boxing on lookup
+	private long[] nameKeys;
+	private int[] nameSlots;
+	private int[] names;
+	private int nameCount;
+
+	public QuiXEventBuffer() {
+		this.records = new int[INITIAL_EVENTS * STRIDE];
+		this.size = 0;
+		this.arena = new char[INITIAL_EVENTS * 8];
+		this.arenaSize = 0;
+		this.spans = new long[INITIAL_EVENTS];
+		this.spanCount = 0;
+		this.numbers = new long[16];
+		this.numberCount = 0;
+		this.symbolCodes = new HashMap<String, Integer>();
+		this.symbols = new String[64];
+		this.symbolCount = 0;
+		this.nameKeys = new long[128];
+		this.nameSlots = new int[128];
+		this.names = new int[64 * 3];
+		this.nameCount = 0;
+	}
+
+	/**
+	 * @return the number of events
+	 */
+	public int size() {
+		return this.size;
+	}
+
+	/**
+	 * Remove the events but keep the symbols and names, so that a buffer can be
+	 * reused for the next batch of the same document
+	 */
+	public void clear() {
+		this.size = 0;
+		this.arenaSize = 0;
+		this.spanCount = 0;
+		this.numberCount = 0;
+	}
+
+	/**
+	 * Remove the events, the symbols and the names, so that a buffer can be
+	 * reused for another document without keeping its vocabulary
+	 */
+	public void reset() {
+		clear();
+		this.symbolCodes.clear();
+		Arrays.fill(this.symbols, 0, this.symbolCount, null);
+		this.symbolCount = 0;
+		Arrays.fill(this.nameSlots, 0);
+		this.nameCount = 0;
+	}
+
+	/* writing */
+
+	private void record(final QuiXToken token, final int a, final int b) {
+		if (this.size * STRIDE == this.records.length)
+			this.records = Arrays.copyOf(this.records, this.records.length * 2);
+		final int base = this.size * STRIDE;
+		this.records[base] = token.ordinal();
+		this.records[base + 1] = a;
+		this.records[base + 2] = b;
+		this.size++;
+	}
+
+	private int span(final CharSequence cs) {
+		if (cs == null)
+			return NULL;
+		final int length = cs.length();
+		final int offset = reserve(length);
+		for (int i = 0; i < length; i++) {
+			this.arena[offset + i] = cs.charAt(i);
+		}
+		return addSpan(offset, length);
+	}
+
+	private int span(final char[] ch, final int start, final int length) {
+		final int offset = reserve(length);
+		System.arraycopy(ch, start, this.arena, offset, length);
+		return addSpan(offset, length);
+	}
+
+	private int span(final QuiXCharStream qcs) {
+		return qcs == null || qcs.isNull() ? NULL : span(qcs.toString());
+	}
+
+	private int reserve(final int length) {
+		final int offset = this.arenaSize;
+		if (offset + length > this.arena.length)
+			this.arena = Arrays.copyOf(this.arena, Math.max(offset + length, this.arena.length * 2));
+		this.arenaSize = offset + length;
+		return offset;
+	}
+
+	private int addSpan(final int offset, final int length) {
+		if (this.spanCount == this.spans.length)
+			this.spans = Arrays.copyOf(this.spans, this.spans.length * 2);
+		this.spans[this.spanCount] = (long) offset << 32 | length;
+		return this.spanCount++;
+	}
+
+	/**
+	 * @return the code of the symbol, allocating it if needed
+	 */
+	public int symbol(final CharSequence cs) {
+		if (cs == null)
+			return NULL;
+		final String s = cs.toString();
+		final Integer code = this.symbolCodes.get(s);
+		if (code != null)
+			return code.intValue();
+		if (this.symbolCount == MAX_SYMBOLS)
+			throw new QuiXException("Too many symbols in the buffer");
+		if (this.symbolCount == this.symbols.length)
+			this.symbols = Arrays.copyOf(this.symbols, this.symbols.length * 2);
+		this.symbols[this.symbolCount] = s;
+		this.symbolCodes.put(s, this.symbolCount);
+		return this.symbolCount++;
+	}
+
+	private int symbol(final QuiXCharStream qcs) {
+		return qcs == null || qcs.isNull() ? NULL : symbol(qcs.toString());
+	}
+
+	/**
+	 * @return the name code of the (local name, URI, prefix) triple,
+	 *         allocating it if needed
+	 */
+	public int name(final CharSequence localName, final CharSequence uri, final CharSequence prefix) {
+		return name(symbol(localName), symbol(uri), symbol(prefix));
+	}
+
+	private int name(final int local, final int uri, final int prefix) {
+		// symbols are shifted by one so that NULL fits in 21 bits
+		final long key = ((long) (local + 1) << 42) | ((long) (uri + 1) << 21) | (prefix + 1);
+		final int mask = this.nameSlots.length - 1;
+		int slot = Long.hashCode(key * 0x9E3779B97F4A7C15L) & mask;
+		while (this.nameSlots[slot] != 0) {
+			if (this.nameKeys[slot] == key)
+				return this.nameSlots[slot] - 1;
+			slot = (slot + 1) & mask;
+		}
+		if (this.nameCount * 3 == this.names.length)
+			this.names = Arrays.copyOf(this.names, this.names.length * 2);
+		this.names[this.nameCount * 3] = local;
+		this.names[this.nameCount * 3 + 1] = uri;
+		this.names[this.nameCount * 3 + 2] = prefix;
+		this.nameKeys[slot] = key;
+		this.nameSlots[slot] = this.nameCount + 1;
+		this.nameCount++;
+		if (this.nameCount * 2 > this.nameSlots.length)
+			rehashNames();
+		return this.nameCount - 1;
+	}
+
+	private void rehashNames() {
+		final long[] oldKeys = this.nameKeys;
+		final int[] oldSlots = this.nameSlots;
+		this.nameKeys = new long[oldKeys.length * 2];
+		this.nameSlots = new int[oldSlots.length * 2];
+		final int mask = this.nameSlots.length - 1;
+		for (int i = 0; i < oldSlots.length; i++) {
+			if (oldSlots[i] != 0) {
+				int slot = Long.hashCode(oldKeys[i] * 0x9E3779B97F4A7C15L) & mask;
+				while (this.nameSlots[slot] != 0) {
+					slot = (slot + 1) & mask;
+				}
+				this.nameKeys[slot] = oldKeys[i];
+				this.nameSlots[slot] = oldSlots[i];
+			}
+		}
+	}
+
+	/**
+	 * Add an event without content (START_SEQUENCE, START_OBJECT,
+	 * VALUE_TRUE...)
+	 */
+	public void add(final QuiXToken token) {
+		record(token, NULL, NULL);
+	}
+
+	public void startDocument(final CharSequence uri) {
+		record(QuiXToken.START_DOCUMENT, span(uri), NULL);
+	}
+
+	public void endDocument(final CharSequence uri) {
+		record(QuiXToken.END_DOCUMENT, span(uri), NULL);
+	}
+
+	public void startElement(final int nameCode) {
+		record(QuiXToken.START_ELEMENT, nameCode, NULL);
+	}
+
+	public void endElement(final int nameCode) {
+		record(QuiXToken.END_ELEMENT, nameCode, NULL);
+	}
+
+	public void attribute(final int nameCode, final CharSequence value) {
+		record(QuiXToken.ATTRIBUTE, nameCode, span(value));
+	}
+
+	public void namespace(final CharSequence prefix, final CharSequence uri) {
+		record(QuiXToken.NAMESPACE, symbol(prefix), symbol(uri));
+	}
+
+	public void text(final char[] ch, final int start, final int length) {
+		record(QuiXToken.TEXT, span(ch, start, length), NULL);
+	}
+
+	/**
+	 * Add characters to the last event if it is a TEXT (adjacent character
+	 * chunks of a parser form a single TEXT), or add a new TEXT
+	 */
+	public void appendText(final char[] ch, final int start, final int length) {
+		if (this.size > 0) {
+			final int base = (this.size - 1) * STRIDE;
+			final int span = this.records[base + 1];
+			if (this.records[base] == QuiXToken.TEXT.ordinal() && span == this.spanCount - 1
+					&& (int) (this.spans[span] >>> 32) + (int) this.spans[span] == this.arenaSize) {
+				final int offset = reserve(length);
+				System.arraycopy(ch, start, this.arena, offset, length);
+				this.spans[span] += length;
+				return;
+			}
+		}
+		text(ch, start, length);
+	}
+
+	public void text(final CharSequence data) {
+		record(QuiXToken.TEXT, span(data), NULL);
+	}
+
+	public void comment(final CharSequence data) {
+		record(QuiXToken.COMMENT, span(data), NULL);
+	}
+
+	public void processingInstruction(final CharSequence target, final CharSequence data) {
+		record(QuiXToken.PROCESSING_INSTRUCTION, symbol(target), span(data));
+	}
+
+	public void keyName(final CharSequence name) {
+		record(QuiXToken.KEY_NAME, span(name), NULL);
+	}
+
+	public void valueString(final CharSequence value) {
+		record(QuiXToken.VALUE_STRING, span(value), NULL);
+	}
+
+	public void valueString(final char[] ch, final int start, final int length) {
+		record(QuiXToken.VALUE_STRING, span(ch, start, length), NULL);
+	}
+
+	public void valueNumber(final double value) {
+		if (this.numberCount == this.numbers.length)
+			this.numbers = Arrays.copyOf(this.numbers, this.numbers.length * 2);
+		this.numbers[this.numberCount] = Double.doubleToRawLongBits(value);
+		record(QuiXToken.VALUE_NUMBER, this.numberCount++, NULL);
+	}
+
+	/**
+	 * Add one of the RDF events with a name (START_PREDICATE, END_PREDICATE,
+	 * SUBJECT, OBJECT, GRAPH)
+	 */
+	public void rdf(final QuiXToken token, final CharSequence name) {
+		record(token, span(name), NULL);
+	}
+
+	/**
+	 * Add the content of an event
+	 *
+	 * @param event
+	 */
+	public void add(final AQuiXEvent event) {
+		switch (event.getType()) {
+		case START_SEQUENCE:
+		case END_SEQUENCE:
+		case START_JSON:
+		case END_JSON:
+		case START_ARRAY:
+		case END_ARRAY:
+		case START_OBJECT:
+		case END_OBJECT:
+		case VALUE_FALSE:
+		case VALUE_TRUE:
+		case VALUE_NULL:
+		case START_TABLE:
+		case END_TABLE:
+		case START_RDF:
+		case END_RDF:
+			add(event.getType());
+			break;
+		case START_DOCUMENT:
+			record(QuiXToken.START_DOCUMENT, span(event.asStartDocument().getURI()), NULL);
+			break;
+		case END_DOCUMENT:
+			record(QuiXToken.END_DOCUMENT, span(event.asEndDocument().getURI()), NULL);
+			break;
+		case START_ELEMENT:
+		case END_ELEMENT: {
+			final AQuiXEvent.NamedEvent ne = event.asNamedEvent();
+			record(event.getType(),
+					name(symbol(ne.getLocalName()), symbol(ne.getURI()), symbol(ne.getPrefix())), NULL);
+			break;
+		}
+		case ATTRIBUTE: {
+			final AQuiXEvent.Attribute attr = event.asAttribute();
+			record(QuiXToken.ATTRIBUTE,
+					name(symbol(attr.getLocalName()), symbol(attr.getURI()), symbol(attr.getPrefix())),
+					span(attr.getValue()));
+			break;
+		}
+		case NAMESPACE:
+			record(QuiXToken.NAMESPACE, symbol(event.asNamespace().getPrefix()), symbol(event.asNamespace().getURI()));
+			break;
+		case TEXT:
+			record(QuiXToken.TEXT, span(event.asText().getData()), NULL);
+			break;
+		case COMMENT:
+			record(QuiXToken.COMMENT, span(event.asComment().getData()), NULL);
+			break;
+		case PROCESSING_INSTRUCTION:
+			record(QuiXToken.PROCESSING_INSTRUCTION, symbol(event.asPI().getTarget()), span(event.asPI().getData()));
+			break;
+		case KEY_NAME:
+			record(QuiXToken.KEY_NAME, span(((AQuiXEvent.KeyName) event).getName()), NULL);
+			break;
+		case VALUE_STRING:
+			record(QuiXToken.VALUE_STRING, span(((AQuiXEvent.ValueString) event).value), NULL);
+			break;
+		case VALUE_NUMBER:
+			valueNumber(((AQuiXEvent.ValueNumber) event).value);
+			break;
+		case START_PREDICATE:
+			record(QuiXToken.START_PREDICATE, span(((AQuiXEvent.StartPredicate) event).name), NULL);
+			break;
+		case END_PREDICATE:
+			record(QuiXToken.END_PREDICATE, span(((AQuiXEvent.EndPredicate) event).name), NULL);
+			break;
+		case SUBJECT:
+			record(QuiXToken.SUBJECT, span(((AQuiXEvent.Subject) event).name), NULL);
+			break;
+		case OBJECT:
+			record(QuiXToken.OBJECT, span(((AQuiXEvent.Object) event).name), NULL);
+			break;
+		case GRAPH:
+			record(QuiXToken.GRAPH, span(((AQuiXEvent.Graph) event).name), NULL);
+			break;
+		case COLNAME:
+		default:
+			throw new QuiXException("Unsupported event " + event.getType());
+		}
+	}
+
+	/**
+	 * Add all the events of the stream, the stream is not closed
+	 *
+	 * @param stream
+	 */
+	public void addAll(final IQuiXStream<AQuiXEvent> stream) {
+		while (stream.hasNext()) {
+			add(stream.next());
+		}
+	}
+
+	/* reading */
+
+	/**
+	 * @return the symbol or {@code null} for {@link #NULL}
+	 */
+	public String getSymbol(final int code) {
+		return code == NULL ? null : this.symbols[code];
+	}
+
+	/**
+	 * @return a new cursor positioned before the first event
+	 */
+	public Cursor cursor() {
+		return new Cursor();
+	}
+
+	/**
+	 * View of the buffer as a stream of tokens : {@link #next()} does not
+	 * allocate, the content of the current event is read through the accessors
+	 *
+	 * @author innovimax
+	 */
+	public final class Cursor implements IQuiXStream<IQuiXToken> {
+		private int position;
+		private int base;
+		private QuiXToken token;
+
+		Cursor() {
+			this.position = 0;
+			this.base = -STRIDE;
+			this.token = null;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return this.position < QuiXEventBuffer.this.size;
+		}
+
+		@Override
+		public QuiXToken next() {
+			if (!hasNext())
+				return null;
+			this.base = this.position * STRIDE;
+			this.position++;
+			this.token = TOKENS[QuiXEventBuffer.this.records[this.base]];
+			return this.token;
+		}
+
+		@Override
+		public void close() {
+			this.position = QuiXEventBuffer.this.size;
+		}
+
+		/**
+		 * Go back before the first event
+		 */
+		public void rewind() {
+			this.position = 0;
+			this.base = -STRIDE;
+			this.token = null;
+		}
+
+		/**
+		 * @return the token of the current event
+		 */
+		public QuiXToken getType() {
+			return this.token;
+		}
+
+		private int operand(final int i) {
+			return QuiXEventBuffer.this.records[this.base + i];
+		}
+
+		/**
+		 * @return the name code of the current START_ELEMENT, END_ELEMENT or
+		 *         ATTRIBUTE
+		 */
+		public int getNameCode() {
+			return operand(1);
+		}
+
+		private String nameSymbol(final int field) {
+			return getSymbol(QuiXEventBuffer.this.names[getNameCode() * 3 + field]);
+		}
+
+		/**
+		 * @return the local name of an element or an attribute
+		 */
+		public String getLocalName() {
+			return nameSymbol(0);
+		}
+
+		/**
+		 * @return the namespace URI of an element or an attribute, or the URI
+		 *         of a namespace declaration
+		 */
+		public String getURI() {
+			if (this.token == QuiXToken.NAMESPACE)
+				return getSymbol(operand(2));
+			return nameSymbol(1);
+		}
+
+		/**
+		 * @return the prefix of an element, an attribute or a namespace
+		 *         declaration
+		 */
+		public String getPrefix() {
+			if (this.token == QuiXToken.NAMESPACE)
+				return getSymbol(operand(1));
+			return nameSymbol(2);
+		}
+
+		/**
+		 * @return the target of a processing instruction or the name of a key
+		 */
+		public String getName() {
+			if (this.token == QuiXToken.KEY_NAME) {
+				final int length = getTextLength();
+				return length == NULL ? null : new String(QuiXEventBuffer.this.arena, getTextStart(), length);
+			}
+			return getSymbol(operand(1));
+		}
+
+		private int spanIndex() {
+			switch (this.token) {
+			case ATTRIBUTE:
+			case PROCESSING_INSTRUCTION:
+				return operand(2);
+			default:
+				return operand(1);
+			}
+		}
+
+		/**
+		 * @return the arena holding the textual content, to be read with
+		 *         {@link #getTextStart()} and {@link #getTextLength()}
+		 */
+		public char[] getTextCharacters() {
+			return QuiXEventBuffer.this.arena;
+		}
+
+		/**
+		 * @return the offset in {@link #getTextCharacters()} of the textual
+		 *         content of the current event (document URI, attribute value,
+		 *         text, comment, PI data, key name, string value, RDF name)
+		 */
+		public int getTextStart() {
+			final int span = spanIndex();
+			return span == NULL ? 0 : (int) (QuiXEventBuffer.this.spans[span] >>> 32);
+		}
+
+		/**
+		 * @return the length of the textual content or {@link #NULL} if there
+		 *         is none
+		 */
+		public int getTextLength() {
+			final int span = spanIndex();
+			return span == NULL ? NULL : (int) QuiXEventBuffer.this.spans[span];
+		}
+
+		/**
+		 * @return the textual content as a new {@link QuiXCharStream}
+		 */
+		public QuiXCharStream getText() {
+			final int length = getTextLength();
+			if (length == NULL)
+				return null;
+			if (length == 0)
+				return QuiXCharStream.EMPTY;
+			return QuiXCharStream.fromSequence(new String(QuiXEventBuffer.this.arena, getTextStart(), length));
+		}
+
+		/**
+		 * @return the value of a VALUE_NUMBER
+		 */
+		public double getNumber() {
+			return Double.longBitsToDouble(QuiXEventBuffer.this.numbers[operand(1)]);
+		}
+
+		private QuiXCharStream chars(final String s) {
+			return s == null ? null : QuiXCharStream.fromSequence(s);
+		}
+
+		/**
+		 * Build the {@link AQuiXEvent} equivalent to the current event
+		 *
+		 * @return
+		 */
+		public AQuiXEvent toEvent() {
+			switch (this.token) {
+			case START_SEQUENCE:
+				return AQuiXEvent.getStartSequence();
+			case END_SEQUENCE:
+				return AQuiXEvent.getEndSequence();
+			case START_DOCUMENT:
+				return AQuiXEvent.getStartDocument(getText());
+			case END_DOCUMENT:
+				return AQuiXEvent.getEndDocument(getText());
+			case START_ELEMENT:
+				return AQuiXEvent.getStartElement(chars(getLocalName()), chars(getURI()), chars(getPrefix()));
+			case END_ELEMENT:
+				return AQuiXEvent.getEndElement(chars(getLocalName()), chars(getURI()), chars(getPrefix()));
+			case ATTRIBUTE:
+				return AQuiXEvent.getAttribute(chars(getLocalName()), chars(getURI()), chars(getPrefix()), getText());
+			case NAMESPACE:
+				return AQuiXEvent.getNamespace(chars(getPrefix()), chars(getURI()));
+			case TEXT:
+				return AQuiXEvent.getText(getText());
+			case COMMENT:
+				return AQuiXEvent.getComment(getText());
+			case PROCESSING_INSTRUCTION:
+				return AQuiXEvent.getPI(chars(getName()), getText());
+			case START_JSON:
+				return AQuiXEvent.getStartJSON();
+			case END_JSON:
+				return AQuiXEvent.getEndJSON();
+			case START_ARRAY:
+				return AQuiXEvent.getStartArray();
+			case END_ARRAY:
+				return AQuiXEvent.getEndArray();
+			case START_OBJECT:
+				return AQuiXEvent.getStartObject();
+			case END_OBJECT:
+				return AQuiXEvent.getEndObject();
+			case KEY_NAME:
+				return AQuiXEvent.getKeyName(getText());
+			case VALUE_FALSE:
+				return AQuiXEvent.getValueFalse();
+			case VALUE_TRUE:
+				return AQuiXEvent.getValueTrue();
+			case VALUE_NUMBER:
+				return AQuiXEvent.getValueNumber(getNumber());
+			case VALUE_NULL:
+				return AQuiXEvent.getValueNull();
+			case VALUE_STRING:
+				return AQuiXEvent.getValueString(getText());
+			case START_TABLE:
+				return AQuiXEvent.getStartTable();
+			case END_TABLE:
+				return AQuiXEvent.getEndTable();
+			case START_RDF:
+				return AQuiXEvent.getStartRDF();
+			case END_RDF:
+				return AQuiXEvent.getEndRDF();
+			case START_PREDICATE:
+				return AQuiXEvent.getStartPredicate(getText());
+			case END_PREDICATE:
+				return AQuiXEvent.getEndPredicate(getText());
+			case SUBJECT:
+				return AQuiXEvent.getSubject(getText());
+			case OBJECT:
+				return AQuiXEvent.getObject(getText());
+			case GRAPH:
+				return AQuiXEvent.getGraph(getText());
+			case COLNAME:
+			default:
+				throw new QuiXException("Unsupported event " + this.token);
+			}
+		}
+	}
+
+}
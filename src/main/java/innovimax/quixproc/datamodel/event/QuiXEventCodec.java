@@ -0,0 +1,214 @@
+/*
+ * QuiXProc: efficient evaluation of XProc Pipelines.
+ * Copyright (C) 2011-2018 Innovimax
+ * All rights reserved.
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0*/
+package innovimax.quixproc.datamodel.event;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import innovimax.quixproc.datamodel.IQuiXCodec;
+import innovimax.quixproc.datamodel.QuiXCharStream;
+import innovimax.quixproc.datamodel.QuiXToken;
+
+/**
+ * Binary codec for {@link AQuiXEvent} : one byte for the {@link QuiXToken}
+ * followed by the content of the event, strings being written as their UTF-8
+ * length and bytes
+ *
+ * @author innovimax
+ *
+ */
+public final class QuiXEventCodec implements IQuiXCodec<AQuiXEvent> {
+
+	public static final QuiXEventCodec INSTANCE = new QuiXEventCodec();
+
+	private static final QuiXToken[] TOKENS = QuiXToken.values();
+	private static final int NULL_LENGTH = -1;
+
+	private QuiXEventCodec() {
+	}
+
+	@Override
+	public void write(final AQuiXEvent event, final DataOutput out) throws IOException {
+		out.writeByte(event.type.ordinal());
+		switch (event.type) {
+		case START_SEQUENCE:
+		case END_SEQUENCE:
+		case START_JSON:
+		case END_JSON:
+		case START_ARRAY:
+		case END_ARRAY:
+		case START_OBJECT:
+		case END_OBJECT:
+		case VALUE_FALSE:
+		case VALUE_TRUE:
+		case VALUE_NULL:
+		case START_TABLE:
+		case END_TABLE:
+		case START_RDF:
+		case END_RDF:
+			break;
+		case START_DOCUMENT:
+			writeChars(event.asStartDocument().getURI(), out);
+			break;
+		case END_DOCUMENT:
+			writeChars(event.asEndDocument().getURI(), out);
+			break;
+		case START_ELEMENT:
+		case END_ELEMENT:
+			writeChars(event.asNamedEvent().getLocalName(), out);
+			writeChars(event.asNamedEvent().getURI(), out);
+			writeChars(event.asNamedEvent().getPrefix(), out);
+			break;
+		case ATTRIBUTE:
+			writeChars(event.asAttribute().getLocalName(), out);
+			writeChars(event.asAttribute().getURI(), out);
+			writeChars(event.asAttribute().getPrefix(), out);
+			writeChars(event.asAttribute().getValue(), out);
+			break;
+		case NAMESPACE:
+			writeChars(event.asNamespace().getPrefix(), out);
+			writeChars(event.asNamespace().getURI(), out);
+			break;
+		case TEXT:
+			writeChars(event.asText().getData(), out);
+			break;
+		case COMMENT:
+			writeChars(event.asComment().getData(), out);
+			break;
+		case PROCESSING_INSTRUCTION:
+			writeChars(event.asPI().getTarget(), out);
+			writeChars(event.asPI().getData(), out);
+			break;
+		case KEY_NAME:
+			writeChars(((AQuiXEvent.KeyName) event).getName(), out);
+			break;
+		case VALUE_NUMBER:
+			out.writeDouble(((AQuiXEvent.ValueNumber) event).value);
+			break;
+		case VALUE_STRING:
+			writeChars(((AQuiXEvent.ValueString) event).value, out);
+			break;
+		case START_PREDICATE:
+			writeChars(((AQuiXEvent.StartPredicate) event).name, out);
+			break;
+		case END_PREDICATE:
+			writeChars(((AQuiXEvent.EndPredicate) event).name, out);
+			break;
+		case SUBJECT:
+			writeChars(((AQuiXEvent.Subject) event).name, out);
+			break;
+		case OBJECT:
+			writeChars(((AQuiXEvent.Object) event).name, out);
+			break;
+		case GRAPH:
+			writeChars(((AQuiXEvent.Graph) event).name, out);
+			break;
+		case COLNAME:
+		default:
+			throw new IOException("Cannot encode event " + event.type);
+		}
+	}
+
+	@Override
+	public AQuiXEvent read(final DataInput in) throws IOException {
+		final QuiXToken type = TOKENS[in.readUnsignedByte()];
+		switch (type) {
+		case START_SEQUENCE:
+			return AQuiXEvent.getStartSequence();
+		case END_SEQUENCE:
+			return AQuiXEvent.getEndSequence();
+		case START_DOCUMENT:
+			return AQuiXEvent.getStartDocument(readChars(in));
+		case END_DOCUMENT:
+			return AQuiXEvent.getEndDocument(readChars(in));
+		case START_ELEMENT:
+			return AQuiXEvent.getStartElement(readChars(in), readChars(in), readChars(in));
+		case END_ELEMENT:
+			return AQuiXEvent.getEndElement(readChars(in), readChars(in), readChars(in));
+		case ATTRIBUTE:
+			return AQuiXEvent.getAttribute(readChars(in), readChars(in), readChars(in), readChars(in));
+		case NAMESPACE:
+			return AQuiXEvent.getNamespace(readChars(in), readChars(in));
+		case TEXT:
+			return AQuiXEvent.getText(readChars(in));
+		case COMMENT:
+			return AQuiXEvent.getComment(readChars(in));
+		case PROCESSING_INSTRUCTION:
+			return AQuiXEvent.getPI(readChars(in), readChars(in));
+		case START_JSON:
+			return AQuiXEvent.getStartJSON();
+		case END_JSON:
+			return AQuiXEvent.getEndJSON();
+		case START_ARRAY:
+			return AQuiXEvent.getStartArray();
+		case END_ARRAY:
+			return AQuiXEvent.getEndArray();
+		case START_OBJECT:
+			return AQuiXEvent.getStartObject();
+		case END_OBJECT:
+			return AQuiXEvent.getEndObject();
+		case KEY_NAME:
+			return AQuiXEvent.getKeyName(readChars(in));
+		case VALUE_FALSE:
+			return AQuiXEvent.getValueFalse();
+		case VALUE_TRUE:
+			return AQuiXEvent.getValueTrue();
+		case VALUE_NUMBER:
+			return AQuiXEvent.getValueNumber(in.readDouble());
+		case VALUE_NULL:
+			return AQuiXEvent.getValueNull();
+		case VALUE_STRING:
+			return AQuiXEvent.getValueString(readChars(in));
+		case START_TABLE:
+			return AQuiXEvent.getStartTable();
+		case END_TABLE:
+			return AQuiXEvent.getEndTable();
+		case START_RDF:
+			return AQuiXEvent.getStartRDF();
+		case END_RDF:
+			return AQuiXEvent.getEndRDF();
+		case START_PREDICATE:
+			return AQuiXEvent.getStartPredicate(readChars(in));
+		case END_PREDICATE:
+			return AQuiXEvent.getEndPredicate(readChars(in));
+		case SUBJECT:
+			return AQuiXEvent.getSubject(readChars(in));
+		case OBJECT:
+			return AQuiXEvent.getObject(readChars(in));
+		case GRAPH:
+			return AQuiXEvent.getGraph(readChars(in));
+		case COLNAME:
+		default:
+			throw new IOException("Cannot decode event " + type);
+		}
+	}
+
+	private static void writeChars(final QuiXCharStream chars, final DataOutput out) throws IOException {
+		if (chars == null || chars.isNull()) {
+			out.writeInt(NULL_LENGTH);
+			return;
+		}
+		// UTF-8 backed streams are copied as is
+		out.writeInt(chars.utf8Length());
+		chars.writeUtf8(out);
+	}
+
+	private static QuiXCharStream readChars(final DataInput in) throws IOException {
+		final int length = in.readInt();
+		if (length == NULL_LENGTH)
+			return null;
+		if (length == 0)
+			return QuiXCharStream.EMPTY;
+		final byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		// decoded only if needed
+		return QuiXCharStream.fromUtf8(bytes, 0, length);
+	}
+
+}
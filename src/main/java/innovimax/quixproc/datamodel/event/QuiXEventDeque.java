@@ -0,0 +1,129 @@
+/*
+ * QuiXProc: efficient evaluation of XProc Pipelines.
+ * Copyright (C) 2011-2018 Innovimax
+ * All rights reserved.
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0*/
+package innovimax.quixproc.datamodel.event;
+
+/**
+ * First in first out buffer of {@link AQuiXEvent} backed by a ring of
+ * power-of-two length that grows when full : unlike a
+ * {@link java.util.LinkedList} nothing is allocated per event, and the ring
+ * is kept (and reused) when the buffer is emptied.
+ *
+ * Used by the readers to hold the events produced together (the namespaces
+ * and attributes of an element, the cells of a CSV row, ...).
+ *
+ * !!! NOT THREAD SAFE
+ *
+ * @author innovimax
+ */
+public final class QuiXEventDeque {
+
+	private static final int DEFAULT_CAPACITY = 16;
+
+	private AQuiXEvent[] ring;
+	private int mask;
+	// index of the first event
+	private int head;
+	// number of events
+	private int size;
+
+	public QuiXEventDeque() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param capacity
+	 *            the initial capacity, rounded up to the next power of two
+	 */
+	public QuiXEventDeque(final int capacity) {
+		if (capacity < 1)
+			throw new IllegalArgumentException("capacity must be positive : " + capacity);
+		if (capacity > 1 << 30)
+			throw new IllegalArgumentException("capacity is too big : " + capacity);
+		final int length = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+		this.ring = new AQuiXEvent[length];
+		this.mask = length - 1;
+		this.head = 0;
+		this.size = 0;
+	}
+
+	/**
+	 * Append {@code event} at the end
+	 *
+	 * @param event
+	 *            not null
+	 */
+	public void add(final AQuiXEvent event) {
+		if (this.size == this.ring.length)
+			grow();
+		this.ring[(this.head + this.size) & this.mask] = event;
+		this.size++;
+	}
+
+	/**
+	 * @return the first event, removed, or {@code null} if empty
+	 */
+	public AQuiXEvent poll() {
+		if (this.size == 0)
+			return null;
+		final AQuiXEvent event = this.ring[this.head];
+		// do not retain the event
+		this.ring[this.head] = null;
+		this.head = (this.head + 1) & this.mask;
+		this.size--;
+		return event;
+	}
+
+	/**
+	 * @return the first event, kept, or {@code null} if empty
+	 */
+	public AQuiXEvent peek() {
+		return this.size == 0 ? null : this.ring[this.head];
+	}
+
+	public boolean isEmpty() {
+		return this.size == 0;
+	}
+
+	public int size() {
+		return this.size;
+	}
+
+	/**
+	 * @return the number of events that can be held before growing
+	 */
+	public int capacity() {
+		return this.ring.length;
+	}
+
+	/**
+	 * Remove all the events, the capacity is kept
+	 */
+	public void clear() {
+		while (this.size > 0) {
+			this.ring[this.head] = null;
+			this.head = (this.head + 1) & this.mask;
+			this.size--;
+		}
+		this.head = 0;
+	}
+
+	private void grow() {
+		final int length = this.ring.length;
+		if (length == 1 << 30)
+			throw new IllegalStateException("QuiXEventDeque is full");
+		final AQuiXEvent[] larger = new AQuiXEvent[length << 1];
+		// unwrap : the first event goes at 0
+		final int first = length - this.head;
+		System.arraycopy(this.ring, this.head, larger, 0, first);
+		System.arraycopy(this.ring, 0, larger, first, this.head);
+		this.ring = larger;
+		this.mask = larger.length - 1;
+		this.head = 0;
+	}
+
+}
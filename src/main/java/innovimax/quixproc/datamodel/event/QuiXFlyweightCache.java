@@ -0,0 +1,182 @@
+/*
+ * QuiXProc: efficient evaluation of XProc Pipelines.
+ * Copyright (C) 2011-2018 Innovimax
+ * All rights reserved.
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0*/
+package innovimax.quixproc.datamodel.event;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import innovimax.quixproc.datamodel.QuiXCharStream;
+
+/**
+ * Bounded, lock-free cache of immutable objects (names, events) keyed by the
+ * content of up to three {@link QuiXCharStream}.
+ *
+ * The cache is 4-way set associative : a key can only live in the 4 slots of
+ * its set, and on a miss the victim is chosen among them with the CLOCK
+ * (second chance) policy. Readers never lock nor write anything but the
+ * reference bit, and a writer losing a race simply does not cache its value,
+ * so that the cache never grows past its capacity whatever the cardinality of
+ * the input.
+ *
+ * @author innovimax
+ */
+public final class QuiXFlyweightCache<V> {
+
+	private static final int WAYS = 4;
+
+	/**
+	 * Creates the value on a miss
+	 */
+	public interface Factory<V> {
+		V create(QuiXCharStream a, QuiXCharStream b, QuiXCharStream c);
+	}
+
+	private static final class Entry<V> {
+		final int hash;
+		final QuiXCharStream a;
+		final QuiXCharStream b;
+		final QuiXCharStream c;
+		final V value;
+		volatile boolean referenced;
+
+		Entry(final int hash, final QuiXCharStream a, final QuiXCharStream b, final QuiXCharStream c,
+				final V value) {
+			this.hash = hash;
+			this.a = a;
+			this.b = b;
+			this.c = c;
+			this.value = value;
+		}
+
+		boolean matches(final int h, final QuiXCharStream ka, final QuiXCharStream kb, final QuiXCharStream kc) {
+			return this.hash == h && this.a.equals(ka) && this.b.equals(kb) && this.c.equals(kc);
+		}
+	}
+
+	private final AtomicReferenceArray<Entry<V>> slots;
+	private final int setMask;
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
+	/**
+	 * @param capacity
+	 *            maximum number of cached values, rounded up to a power of two
+	 *            (at least 4)
+	 */
+	public QuiXFlyweightCache(final int capacity) {
+		if (capacity <= 0)
+			throw new IllegalArgumentException("capacity must be positive : " + capacity);
+		int size = WAYS;
+		while (size < capacity) {
+			size <<= 1;
+		}
+		this.slots = new AtomicReferenceArray<Entry<V>>(size);
+		this.setMask = size / WAYS - 1;
+	}
+
+	private static int hash(final QuiXCharStream a, final QuiXCharStream b, final QuiXCharStream c) {
+		int h = (a.hashCode() * 31 + b.hashCode()) * 31 + c.hashCode();
+		// spread the high bits on the set index
+		return h ^ h >>> 16;
+	}
+
+	/**
+	 * Get the value for the given key, creating and caching it if needed
+	 *
+	 * @param a
+	 * @param b
+	 * @param c
+	 * @param factory
+	 *            called with {@code a}, {@code b} and {@code c} on a miss
+	 * @return
+	 */
+	public V get(final QuiXCharStream a, final QuiXCharStream b, final QuiXCharStream c, final Factory<V> factory) {
+		// content based equality, the hash codes are cached by the streams
+		final int h = hash(a, b, c);
+		final int base = (h & this.setMask) * WAYS;
+		for (int i = 0; i < WAYS; i++) {
+			final Entry<V> e = this.slots.get(base + i);
+			if (e != null && e.matches(h, a, b, c)) {
+				if (!e.referenced)
+					e.referenced = true;
+				this.hits.increment();
+				return e.value;
+			}
+		}
+		this.misses.increment();
+		final V value = factory.create(a, b, c);
+		insert(base, new Entry<V>(h, a, b, c, value));
+		return value;
+	}
+
+	private void insert(final int base, final Entry<V> entry) {
+		// free slot first
+		for (int i = 0; i < WAYS; i++) {
+			if (this.slots.get(base + i) == null && this.slots.compareAndSet(base + i, null, entry))
+				return;
+		}
+		// CLOCK : give a second chance to the recently used entries, at most
+		// two rounds
+		for (int i = 0; i < 2 * WAYS; i++) {
+			final int slot = base + (i & WAYS - 1);
+			final Entry<V> e = this.slots.get(slot);
+			if (e == null || !e.referenced) {
+				if (this.slots.compareAndSet(slot, e, entry) && e != null)
+					this.evictions.increment();
+				// on a lost race the value is just not cached
+				return;
+			}
+			e.referenced = false;
+		}
+	}
+
+	public long getHitCount() {
+		return this.hits.sum();
+	}
+
+	public long getMissCount() {
+		return this.misses.sum();
+	}
+
+	public long getEvictionCount() {
+		return this.evictions.sum();
+	}
+
+	/**
+	 * @return the ratio of lookups served from the cache
+	 */
+	public double getHitRatio() {
+		final long h = getHitCount();
+		final long total = h + getMissCount();
+		return total == 0 ? 0 : (double) h / total;
+	}
+
+	public int getCapacity() {
+		return this.slots.length();
+	}
+
+	/**
+	 * @return the number of values currently cached
+	 */
+	public int size() {
+		int count = 0;
+		for (int i = 0; i < this.slots.length(); i++) {
+			if (this.slots.get(i) != null)
+				count++;
+		}
+		return count;
+	}
+
+	@Override
+	public String toString() {
+		return "capacity=" + getCapacity() + ", hits=" + getHitCount() + ", misses=" + getMissCount() + ", evictions="
+				+ getEvictionCount();
+	}
+
+}
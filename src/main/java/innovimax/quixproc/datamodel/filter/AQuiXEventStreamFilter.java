@@ -25,7 +25,7 @@ public abstract class AQuiXEventStreamFilter implements IQuiXStream<IQuiXToken>
 	@Override
 	public IQuiXToken next() {
 		IQuiXToken item;
-		while ((item = process(this.stream.next().getType())) == null)
+		while ((item = process(this.stream.next())) == null)
 			/* NOP */;
 		return item;
 	}
@@ -13,6 +13,7 @@ import java.util.Stack;
 import innovimax.quixproc.datamodel.IQuiXStream;
 import innovimax.quixproc.datamodel.IQuiXToken;
 import innovimax.quixproc.datamodel.QuiXQName;
+import innovimax.quixproc.datamodel.event.AQuiXEvent;
 
 public class AncestorContextFilter extends AQuiXEventStreamFilter {
 
@@ -27,10 +28,12 @@ public class AncestorContextFilter extends AQuiXEventStreamFilter {
 	public IQuiXToken process(final IQuiXToken item) {
 		switch (item.getType()) {
 		case START_ELEMENT:
-			// this.ancestors.push(qevent.asNamedEvent().getQName());
+			if (item instanceof AQuiXEvent)
+				this.ancestors.push(((AQuiXEvent) item).asNamedEvent().getQName());
 			return item;
 		case END_ELEMENT:
-			// this.ancestors.pop();
+			if (item instanceof AQuiXEvent)
+				this.ancestors.pop();
 			return item;
 		default:
 			return item;
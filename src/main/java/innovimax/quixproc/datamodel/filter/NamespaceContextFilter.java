@@ -7,24 +7,46 @@
  *        http://www.apache.org/licenses/LICENSE-2.0*/
 package innovimax.quixproc.datamodel.filter;
 
-import java.util.Deque;
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.Map;
-import java.util.TreeMap;
+import java.util.Arrays;
 
 import innovimax.quixproc.datamodel.IQuiXStream;
 import innovimax.quixproc.datamodel.IQuiXToken;
 import innovimax.quixproc.datamodel.QuiXCharStream;
+import innovimax.quixproc.datamodel.QuiXNamePool;
+import innovimax.quixproc.datamodel.event.AQuiXEvent;
 
 public class NamespaceContextFilter extends AQuiXEventStreamFilter {
 
-	private final Deque<Map<QuiXCharStream, QuiXCharStream>> namespaces;
+	private final QuiXNamePool pool;
+	// in scope bindings as pairs of (prefix, uri)
+	private QuiXCharStream[] bindings;
+	// their codes in the pool, 0 if the pool did not know them
+	private int[] codes;
+	private int bindingCount;
+	// number of bindings at each START_ELEMENT
+	private int[] frames;
+	private int depth;
 
 	public NamespaceContextFilter(final IQuiXStream<IQuiXToken> stream) {
+		this(stream, QuiXNamePool.getDefault());
+	}
+
+	/**
+	 * @param stream
+	 * @param pool
+	 *            the pool of the codes of {@link #getURICode(int)}, usually
+	 *            the one of the reader
+	 *            ({@link innovimax.quixproc.datamodel.in.QuiXEventStreamReader#getNamePool()}),
+	 *            it is only looked up
+	 */
+	public NamespaceContextFilter(final IQuiXStream<IQuiXToken> stream, final QuiXNamePool pool) {
 		super(stream);
-		// TODO Auto-generated constructor stub
-		this.namespaces = new LinkedList<Map<QuiXCharStream, QuiXCharStream>>();
+		this.pool = pool;
+		this.bindings = new QuiXCharStream[32];
+		this.codes = new int[32];
+		this.bindingCount = 0;
+		this.frames = new int[16];
+		this.depth = 0;
 	}
 
 	private boolean needCleaning = false;
@@ -32,26 +54,91 @@ public class NamespaceContextFilter extends AQuiXEventStreamFilter {
 	@Override
 	public IQuiXToken process(final IQuiXToken item) {
 		if (this.needCleaning) {
-			this.namespaces.pollLast();
+			Arrays.fill(this.bindings, this.frames[this.depth - 1], this.bindingCount, null);
+			this.bindingCount = this.frames[--this.depth];
 			this.needCleaning = false;
 		}
 		switch (item.getType()) {
 		case START_ELEMENT:
-			this.namespaces.add(new TreeMap<QuiXCharStream, QuiXCharStream>());
+			if (this.depth == this.frames.length)
+				this.frames = Arrays.copyOf(this.frames, this.depth * 2);
+			this.frames[this.depth++] = this.bindingCount;
 			return item;
 		case END_ELEMENT:
 			// differ the cleaning to the next event
 			this.needCleaning = true;
 			return item;
 		case NAMESPACE:
-			// this.namespaces.getLast().put(qevent.asNamespace().getPrefix(),
-			// qevent.asNamespace().getURI());
+			if (item instanceof AQuiXEvent) {
+				final AQuiXEvent.Namespace ns = ((AQuiXEvent) item).asNamespace();
+				if (this.bindingCount + 2 > this.bindings.length) {
+					this.bindings = Arrays.copyOf(this.bindings, this.bindings.length * 2);
+					this.codes = Arrays.copyOf(this.codes, this.codes.length * 2);
+				}
+				this.codes[this.bindingCount] = this.pool.lookupPrefix(ns.getPrefix());
+				this.bindings[this.bindingCount++] = ns.getPrefix();
+				this.codes[this.bindingCount] = this.pool.lookupURI(ns.getURI());
+				this.bindings[this.bindingCount++] = ns.getURI();
+			}
 			return item;
 		default:
 		}
 		return item;
 	}
 
+	private static boolean same(final QuiXCharStream a, final CharSequence b) {
+		final int n = a.length();
+		if (n != b.length())
+			return false;
+		for (int i = 0; i < n; i++) {
+			if (a.charAt(i) != b.charAt(i))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @param prefixCode
+	 *            0 if the pool does not know the prefix
+	 * @param prefix
+	 *            null to take it from the pool when needed
+	 * @return the index of the innermost binding of the prefix, -1 if none
+	 */
+	private int find(final int prefixCode, final CharSequence prefix) {
+		CharSequence p = prefix;
+		for (int i = this.bindingCount - 2; i >= 0; i -= 2) {
+			final int code = this.codes[i];
+			if (code != 0) {
+				// a prefix unknown by the pool cannot be a known one
+				if (code == prefixCode)
+					return i;
+			} else {
+				// not known by the pool when it was bound
+				if (p == null)
+					p = this.pool.getPrefixForCode(prefixCode);
+				if (same(this.bindings[i], p))
+					return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Check at the current moment if the prefix is mapped It returns 0 if the
+	 * prefix is not mapped at this time or if its URI is not known by the pool
+	 *
+	 * @param prefixCode
+	 *            code of the prefix in the {@link QuiXNamePool} of this filter
+	 * @return the code of the uri in the {@link QuiXNamePool} of this filter
+	 */
+	public int getURICode(final int prefixCode) {
+		final int i = find(prefixCode, null);
+		if (i == -1)
+			return 0;
+		final int uriCode = this.codes[i + 1];
+		return uriCode != 0 ? uriCode : this.pool.lookupURI(this.bindings[i + 1]);
+	}
+
 	/**
 	 * Check at the current moment if the prefix is mapped It returns null if
 	 * the prefix is not mapped at this time
@@ -60,13 +147,7 @@ public class NamespaceContextFilter extends AQuiXEventStreamFilter {
 	 * @return
 	 */
 	public QuiXCharStream getURI(final CharSequence prefix) {
-		for (final Iterator<Map<QuiXCharStream, QuiXCharStream>> iter = this.namespaces.descendingIterator(); iter
-				.hasNext();) {
-			final Map<QuiXCharStream, QuiXCharStream> map = iter.next();
-			// TODO prefix is String and map of QuiXCharStream
-			if (map.containsKey(QuiXCharStream.fromSequence(prefix)))
-				return map.get(QuiXCharStream.fromSequence(prefix));
-		}
-		return null;
+		final int i = find(this.pool.lookupPrefix(prefix), prefix);
+		return i == -1 ? null : this.bindings[i + 1];
 	}
 }
@@ -13,7 +13,7 @@ import innovimax.quixproc.datamodel.IQuiXStream;
 import innovimax.quixproc.datamodel.IQuiXToken;
 
 public class NodeKindFilter extends AQuiXEventStreamFilter {
-	enum Kind {
+	public enum Kind {
 		ATTRIBUTE, TEXT, COMMENT, PI, NAMESPACE
 	}
 
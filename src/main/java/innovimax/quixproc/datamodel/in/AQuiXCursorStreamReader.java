@@ -0,0 +1,42 @@
+/*
+ * QuiXProc: efficient evaluation of XProc Pipelines.
+ * Copyright (C) 2011-2018 Innovimax
+ * All rights reserved.
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0*/
+package innovimax.quixproc.datamodel.in;
+
+import innovimax.quixproc.datamodel.event.QuiXEventBuffer;
+
+/**
+ * Format specific delegate of {@link QuiXCursorStreamReader} : instead of
+ * returning events, it writes them in the reusable {@link QuiXEventBuffer} of
+ * the reader
+ *
+ * @author innovimax
+ */
+public abstract class AQuiXCursorStreamReader {
+
+	protected AQuiXCursorStreamReader() {
+	}
+
+	/**
+	 * Open the source and write its first event(s)
+	 *
+	 * @param current
+	 * @param buffer
+	 */
+	protected abstract void load(AStreamSource current, QuiXEventBuffer buffer);
+
+	/**
+	 * Write at least one event of the current source
+	 *
+	 * @param buffer
+	 * @return false if the last event of the source has been written
+	 */
+	protected abstract boolean fill(QuiXEventBuffer buffer);
+
+	public abstract void close();
+
+}
@@ -7,13 +7,10 @@
  *        http://www.apache.org/licenses/LICENSE-2.0*/
 package innovimax.quixproc.datamodel.in;
 
-import java.util.LinkedList;
-import java.util.Queue;
-
-import innovimax.quixproc.datamodel.event.AQuiXEvent;
+import innovimax.quixproc.datamodel.event.QuiXEventDeque;
 
 public abstract class AQuiXEventBufferStreamReader extends AQuiXEventStreamReader {
-	protected final Queue<AQuiXEvent> buffer = new LinkedList<AQuiXEvent>();
+	protected final QuiXEventDeque buffer = new QuiXEventDeque();
 
 	@Override
 	public void reinitialize(final AStreamSource current) {
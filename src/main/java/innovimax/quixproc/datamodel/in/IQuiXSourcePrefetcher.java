@@ -0,0 +1,30 @@
+/*
+ * QuiXProc: efficient evaluation of XProc Pipelines.
+ * Copyright (C) 2011-2018 Innovimax
+ * All rights reserved.
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0*/
+package innovimax.quixproc.datamodel.in;
+
+import innovimax.quixproc.datamodel.event.AQuiXEvent;
+
+/**
+ * Parse the sources of a {@link QuiXEventStreamReader} on other threads
+ *
+ * @author innovimax
+ */
+interface IQuiXSourcePrefetcher {
+
+	/**
+	 * @return the next event of the sources, without the sequence,
+	 *         {@code null} once every source has been read
+	 */
+	AQuiXEvent next();
+
+	/**
+	 * Stop the parsing, the events not read yet are lost
+	 */
+	void close();
+
+}
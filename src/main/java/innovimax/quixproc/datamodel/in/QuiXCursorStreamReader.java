@@ -0,0 +1,215 @@
+/*
+ * QuiXProc: efficient evaluation of XProc Pipelines.
+ * Copyright (C) 2011-2018 Innovimax
+ * All rights reserved.
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0*/
+package innovimax.quixproc.datamodel.in;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Iterator;
+
+import innovimax.quixproc.datamodel.IQuiXStream;
+import innovimax.quixproc.datamodel.IQuiXToken;
+import innovimax.quixproc.datamodel.QuiXCharStream;
+import innovimax.quixproc.datamodel.QuiXException;
+import innovimax.quixproc.datamodel.QuiXToken;
+import innovimax.quixproc.datamodel.event.AQuiXEvent;
+import innovimax.quixproc.datamodel.event.QuiXEventBuffer;
+import innovimax.quixproc.datamodel.in.AStreamSource.Type;
+import innovimax.quixproc.datamodel.in.csv.CSVQuiXCursorStreamReader;
+import innovimax.quixproc.datamodel.in.json.JSONQuiXCursorStreamReader;
+import innovimax.quixproc.datamodel.in.rdf.RDFQuiXCursorStreamReader;
+import innovimax.quixproc.datamodel.in.xml.XMLQuiXCursorStreamReader;
+import innovimax.quixproc.datamodel.in.yaml.YAMLQuiXCursorStreamReader;
+
+/**
+ * Cursor flavour of {@link QuiXEventStreamReader} for all the formats :
+ * {@link #next()} returns the {@link QuiXToken} and the content of the current
+ * event is read through the accessors, so that consumers such as counting,
+ * routing or projection do not allocate one object per event.
+ *
+ * The delegates write the events in a {@link QuiXEventBuffer} which is reused
+ * from one refill to the other. The values returned by the accessors are only
+ * valid until the next call to {@link #next()}.
+ *
+ * @author innovimax
+ */
+public class QuiXCursorStreamReader implements IQuiXStream<IQuiXToken> {
+
+	private enum State {
+		INIT, START_SEQUENCE, START_SOURCE, END_SOURCE, FINISH
+	}
+
+	private final Iterator<AStreamSource> sources;
+	private final EnumMap<Type, AQuiXCursorStreamReader> delegates;
+	private AQuiXCursorStreamReader delegate;
+	private final QuiXEventBuffer buffer;
+	private final QuiXEventBuffer.Cursor cursor;
+	private State state;
+
+	public QuiXCursorStreamReader(final AStreamSource ass) {
+		this(Collections.singleton(ass));
+	}
+
+	public QuiXCursorStreamReader(final Iterable<AStreamSource> sources) {
+		this.sources = sources.iterator();
+		this.delegates = new EnumMap<Type, AQuiXCursorStreamReader>(Type.class);
+		this.delegate = null;
+		this.buffer = new QuiXEventBuffer();
+		this.cursor = this.buffer.cursor();
+		this.state = State.INIT;
+	}
+
+	private void loadSource() {
+		final AStreamSource current = this.sources.next();
+		this.delegate = this.delegates.get(current.type);
+		if (this.delegate == null) {
+			switch (current.type) {
+			case JSON:
+				this.delegate = new JSONQuiXCursorStreamReader();
+				break;
+			case YAML:
+				this.delegate = new YAMLQuiXCursorStreamReader();
+				break;
+			case XML:
+				this.delegate = new XMLQuiXCursorStreamReader();
+				break;
+			case CSV:
+				this.delegate = new CSVQuiXCursorStreamReader();
+				break;
+			case RDF:
+				this.delegate = new RDFQuiXCursorStreamReader();
+				break;
+			case HTML:
+			default:
+				throw new QuiXException("Unsupported source " + current.type);
+			}
+			this.delegates.put(current.type, this.delegate);
+		}
+		// the names of the previous source are not kept
+		this.buffer.reset();
+		this.delegate.load(current, this.buffer);
+		this.state = State.START_SOURCE;
+	}
+
+	@Override
+	public boolean hasNext() {
+		return this.state != State.FINISH || this.cursor.hasNext();
+	}
+
+	@Override
+	public QuiXToken next() {
+		if (this.cursor.hasNext())
+			return this.cursor.next();
+		this.buffer.clear();
+		this.cursor.rewind();
+		switch (this.state) {
+		case FINISH:
+			return null;
+		case INIT:
+			this.buffer.add(QuiXToken.START_SEQUENCE);
+			this.state = State.START_SEQUENCE;
+			break;
+		case START_SEQUENCE:
+		case END_SOURCE:
+			if (this.sources.hasNext()) {
+				loadSource();
+			} else {
+				this.buffer.add(QuiXToken.END_SEQUENCE);
+				this.state = State.FINISH;
+			}
+			break;
+		case START_SOURCE:
+			if (!this.delegate.fill(this.buffer))
+				this.state = State.END_SOURCE;
+			break;
+		default:
+		}
+		return this.cursor.next();
+	}
+
+	@Override
+	public void close() {
+		for (final AQuiXCursorStreamReader reader : this.delegates.values()) {
+			reader.close();
+		}
+	}
+
+	/* accessors of the current event */
+
+	public QuiXToken getType() {
+		return this.cursor.getType();
+	}
+
+	/**
+	 * @see QuiXEventBuffer.Cursor#getLocalName()
+	 */
+	public String getLocalName() {
+		return this.cursor.getLocalName();
+	}
+
+	/**
+	 * @see QuiXEventBuffer.Cursor#getURI()
+	 */
+	public String getURI() {
+		return this.cursor.getURI();
+	}
+
+	/**
+	 * @see QuiXEventBuffer.Cursor#getPrefix()
+	 */
+	public String getPrefix() {
+		return this.cursor.getPrefix();
+	}
+
+	/**
+	 * @see QuiXEventBuffer.Cursor#getName()
+	 */
+	public String getName() {
+		return this.cursor.getName();
+	}
+
+	/**
+	 * @return a code identifying the (local name, URI, prefix) of the current
+	 *         element or attribute within the current source : the names are
+	 *         forgotten when the next source is loaded, so the same code may
+	 *         then stand for another name
+	 */
+	public int getNameCode() {
+		return this.cursor.getNameCode();
+	}
+
+	public char[] getTextCharacters() {
+		return this.cursor.getTextCharacters();
+	}
+
+	public int getTextStart() {
+		return this.cursor.getTextStart();
+	}
+
+	public int getTextLength() {
+		return this.cursor.getTextLength();
+	}
+
+	/**
+	 * @return the textual content of the current event (allocates)
+	 */
+	public QuiXCharStream getText() {
+		return this.cursor.getText();
+	}
+
+	public double getNumber() {
+		return this.cursor.getNumber();
+	}
+
+	/**
+	 * @return the current event as an object (allocates)
+	 */
+	public AQuiXEvent toEvent() {
+		return this.cursor.toEvent();
+	}
+
+}
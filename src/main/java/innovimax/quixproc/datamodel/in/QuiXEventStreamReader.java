@@ -8,9 +8,13 @@
 package innovimax.quixproc.datamodel.in;
 
 import innovimax.quixproc.datamodel.IQuiXStream;
+import innovimax.quixproc.datamodel.QuiXNamePool;
+import innovimax.quixproc.datamodel.QuiXTokenValidator;
+import innovimax.quixproc.datamodel.ValidationPolicy;
 import java.util.Collections;
 import java.util.EnumMap;
 import java.util.Iterator;
+import java.util.concurrent.ForkJoinPool;
 
 import innovimax.quixproc.datamodel.event.AQuiXEvent;
 import innovimax.quixproc.datamodel.event.IQuiXEventStreamReader;
@@ -22,6 +26,9 @@ import innovimax.quixproc.datamodel.in.json.JSONQuiXEventStreamReader;
 import innovimax.quixproc.datamodel.in.rdf.RDFQuiXEventStreamReader;
 import innovimax.quixproc.datamodel.in.xml.XMLQuiXEventStreamReader;
 import innovimax.quixproc.datamodel.in.yaml.YAMLQuiXEventStreamReader;
+import innovimax.quixproc.datamodel.metrics.QuiXMetrics;
+import innovimax.quixproc.datamodel.shared.QuiXPipelineRunner;
+import innovimax.quixproc.datamodel.shared.RingBufferQuiXQueue;
 import javax.xml.transform.Source;
 import javax.xml.transform.stream.StreamSource;
 
@@ -30,6 +37,23 @@ public class QuiXEventStreamReader implements IQuiXEventStreamReader, CallBack {
 	private final Iterator<AStreamSource> sources;
 	private final EnumMap<Type, AQuiXEventStreamReader> delegates;
 	private AQuiXEventStreamReader delegate;
+	private int textStreamingThreshold = Integer.MAX_VALUE;
+	// codes the XML names of all the sources, prefetched or not
+	private QuiXNamePool namePool = new QuiXNamePool(XMLQuiXEventStreamReader.DEFAULT_MAX_NAMES);
+	// within drainTo : the text is not streamed
+	private boolean batching = false;
+	private ValidationPolicy validationPolicy = ValidationPolicy.OFF;
+	private int validationSampling = QuiXTokenValidator.DEFAULT_SAMPLING;
+	// null when the validation is OFF
+	private QuiXTokenValidator validator;
+	private int prefetch = 0;
+	private int prefetchBufferSize = RingBufferQuiXQueue.DEFAULT_CAPACITY;
+	private QuiXPipelineRunner prefetchRunner;
+	// false when the sources are parsed in parallel and read as they end
+	private boolean ordered = true;
+	private ForkJoinPool unorderedPool;
+	// null unless the sources are prefetched
+	private IQuiXSourcePrefetcher prefetcher;
 
 	private QuiXEventStreamReader(final Source... sources) {
 		this(AStreamSource.instances(sources));
@@ -39,45 +63,215 @@ public class QuiXEventStreamReader implements IQuiXEventStreamReader, CallBack {
 		this(Collections.singleton(ass));
 	}
 
-	private QuiXEventStreamReader(final Iterable<AStreamSource> sources) {
+	public QuiXEventStreamReader(final Iterable<AStreamSource> sources) {
 		this.sources = sources.iterator();
 		this.delegates = new EnumMap<Type, AQuiXEventStreamReader>(Type.class);
 		this.delegate = null;
 	}
 
+	/**
+	 * Deliver the XML text nodes longer than {@code threshold} characters as
+	 * streaming TEXT events, see
+	 * {@link XMLQuiXEventStreamReader#setTextStreamingThreshold(int)}
+	 *
+	 * This is only valid when the events are pulled one at a time, each
+	 * streaming TEXT being read before the next call to {@link #next()} :
+	 * {@link #drainTo(AQuiXEvent[], int)} (and so
+	 * {@link QuiXPipelineRunner#pump(IQuiXStream, innovimax.quixproc.datamodel.shared.ISimpleQuiXQueue)})
+	 * does not stream.
+	 *
+	 * @param threshold
+	 */
+	public void setTextStreamingThreshold(final int threshold) {
+		this.textStreamingThreshold = threshold;
+		applyTextStreamingThreshold(threshold);
+	}
+
+	/**
+	 * Code the XML names read with {@code pool} instead of the pool of this
+	 * reader, see {@link XMLQuiXEventStreamReader#setNamePool(QuiXNamePool)}
+	 * : it must be set before the first call to {@link #next()}
+	 *
+	 * @param pool
+	 */
+	public void setNamePool(final QuiXNamePool pool) {
+		if (pool == null)
+			throw new IllegalArgumentException("pool cannot be null");
+		if (this.state != State.INIT)
+			throw new IllegalStateException("The name pool must be set before reading");
+		this.namePool = pool;
+	}
+
+	/**
+	 * @return the pool coding the XML names read, by default one per reader
+	 *         shared by all its sources
+	 */
+	public QuiXNamePool getNamePool() {
+		return this.namePool;
+	}
+
+	/**
+	 * @return the most characters held at once by a streaming TEXT, see
+	 *         {@link XMLQuiXEventStreamReader#getMaxStreamingTextHeld()}
+	 */
+	public int getMaxStreamingTextHeld() {
+		final AQuiXEventStreamReader xml = this.delegates.get(Type.XML);
+		return xml == null ? 0 : ((XMLQuiXEventStreamReader) xml).getMaxStreamingTextHeld();
+	}
+
+	private void applyTextStreamingThreshold(final int threshold) {
+		final AQuiXEventStreamReader xml = this.delegates.get(Type.XML);
+		if (xml != null)
+			((XMLQuiXEventStreamReader) xml).setTextStreamingThreshold(threshold);
+	}
+
+	/**
+	 * Check the events read against the grammar of
+	 * {@link innovimax.quixproc.datamodel.ValidQuiXTokenStream}, by default
+	 * nothing is checked ({@link ValidationPolicy#OFF})
+	 *
+	 * @param policy
+	 */
+	public void setValidationPolicy(final ValidationPolicy policy) {
+		setValidationPolicy(policy, QuiXTokenValidator.DEFAULT_SAMPLING);
+	}
+
+	/**
+	 * @param policy
+	 * @param sampling
+	 *            with {@link ValidationPolicy#SAMPLED}, one document out of
+	 *            {@code sampling} is fully checked
+	 * @see #setValidationPolicy(ValidationPolicy)
+	 */
+	public void setValidationPolicy(final ValidationPolicy policy, final int sampling) {
+		if (this.state != State.INIT)
+			throw new IllegalStateException("The validation policy must be set before reading");
+		if (sampling < 1)
+			throw new IllegalArgumentException("sampling must be positive : " + sampling);
+		this.validationPolicy = policy;
+		this.validationSampling = sampling;
+	}
+
+	public ValidationPolicy getValidationPolicy() {
+		return this.validationPolicy;
+	}
+
+	/**
+	 * Parse the {@code ahead} next sources of the sequence in advance on
+	 * other threads, the events being delivered in the same order as
+	 * without prefetch. Worth it for sequences of many small documents.
+	 *
+	 * The prefetched XML text nodes are never streaming
+	 * ({@link #setTextStreamingThreshold(int)} is ignored) since they are
+	 * buffered
+	 *
+	 * @param ahead
+	 *            the number of sources parsed in advance, 0 to disable
+	 */
+	public void setPrefetch(final int ahead) {
+		setPrefetch(ahead, RingBufferQuiXQueue.DEFAULT_CAPACITY, null);
+	}
+
+	/**
+	 * @param ahead
+	 * @param bufferSize
+	 *            the maximum number of events buffered by source
+	 * @param runner
+	 *            the runner of the parsers, if {@code null} one is created
+	 *            and closed with this reader
+	 * @see #setPrefetch(int)
+	 */
+	public void setPrefetch(final int ahead, final int bufferSize, final QuiXPipelineRunner runner) {
+		if (this.state != State.INIT)
+			throw new IllegalStateException("The prefetch must be set before reading");
+		if (ahead < 0)
+			throw new IllegalArgumentException("ahead must not be negative : " + ahead);
+		if (bufferSize < 1)
+			throw new IllegalArgumentException("bufferSize must be positive : " + bufferSize);
+		this.prefetch = ahead;
+		this.prefetchBufferSize = bufferSize;
+		this.prefetchRunner = runner;
+		this.ordered = true;
+	}
+
+	public int getPrefetch() {
+		return this.prefetch;
+	}
+
+	/**
+	 * Parse up to {@code parallelism} sources of the sequence at once on the
+	 * common {@link ForkJoinPool} and deliver each of them, as a whole, as
+	 * soon as it is parsed : the order of the sources in the sequence is lost
+	 * but a source is never split. Each source is fully buffered.
+	 *
+	 * Replaces {@link #setPrefetch(int)}
+	 *
+	 * @param parallelism
+	 *            the maximum number of sources parsed and not read yet, 0 to
+	 *            read the sources in order
+	 */
+	public void setUnordered(final int parallelism) {
+		setUnordered(parallelism, null);
+	}
+
+	/**
+	 * @param parallelism
+	 * @param pool
+	 *            the pool of the parsers, if {@code null} the common pool
+	 * @see #setUnordered(int)
+	 */
+	public void setUnordered(final int parallelism, final ForkJoinPool pool) {
+		if (this.state != State.INIT)
+			throw new IllegalStateException("The order must be set before reading");
+		if (parallelism < 0)
+			throw new IllegalArgumentException("parallelism must not be negative : " + parallelism);
+		this.prefetch = parallelism;
+		this.unorderedPool = pool;
+		this.ordered = parallelism == 0;
+	}
+
+	/**
+	 * @return false if the sources are delivered in the order they are parsed
+	 */
+	public boolean isOrdered() {
+		return this.ordered;
+	}
+
 	private AQuiXEvent loadSource() {
 		final AStreamSource current = this.sources.next();
 		if (this.delegates.containsKey(current.type)) {
 			this.delegate = this.delegates.get(current.type);
 			this.delegate.reinitialize(current);
 		} else {
-			switch (current.type) {
-			case JSON:
-				this.delegate = new JSONQuiXEventStreamReader();
-				break;
-			case XML:
-				this.delegate = new XMLQuiXEventStreamReader();
-				break;
-			case YAML:
-				this.delegate = new YAMLQuiXEventStreamReader();
-				break;
-			case HTML:
-				this.delegate = new HTMLQuiXEventStreamReader();
-				break;
-			case CSV:
-				this.delegate = new CSVQuiXEventStreamReader();
-				break;
-			case RDF:
-				this.delegate = new RDFQuiXEventStreamReader();
-				break;
-			default:
-				this.delegate = null;
-			}
+			this.delegate = newDelegate(current.type);
+			if (current.type == Type.XML && this.textStreamingThreshold != Integer.MAX_VALUE && !this.batching)
+				((XMLQuiXEventStreamReader) this.delegate).setTextStreamingThreshold(this.textStreamingThreshold);
+			if (current.type == Type.XML)
+				((XMLQuiXEventStreamReader) this.delegate).setNamePool(this.namePool);
 			this.delegates.put(current.type, this.delegate);
 		}
 		return this.delegate.load(current);
 	}
 
+	static AQuiXEventStreamReader newDelegate(final Type type) {
+		switch (type) {
+		case JSON:
+			return new JSONQuiXEventStreamReader();
+		case XML:
+			return new XMLQuiXEventStreamReader();
+		case YAML:
+			return new YAMLQuiXEventStreamReader();
+		case HTML:
+			return new HTMLQuiXEventStreamReader();
+		case CSV:
+			return new CSVQuiXEventStreamReader();
+		case RDF:
+			return new RDFQuiXEventStreamReader();
+		default:
+			return null;
+		}
+	}
+
 	@Override
 	public boolean hasNext() {
 		return this.state != State.FINISH;
@@ -111,16 +305,53 @@ public class QuiXEventStreamReader implements IQuiXEventStreamReader, CallBack {
 
 	@Override
 	public AQuiXEvent next() {
+		final AQuiXEvent event = read();
+		// a single test per event when the validation is OFF
+		if (this.validator != null && event != null)
+			this.validator.check(event);
+		return event;
+	}
+
+	/**
+	 * The events of a batch are handed over before being read, so the XML
+	 * text nodes of a batch are never streaming
+	 */
+	@Override
+	public int drainTo(final AQuiXEvent[] dst, final int max) {
+		if (this.textStreamingThreshold == Integer.MAX_VALUE)
+			return IQuiXEventStreamReader.super.drainTo(dst, max);
+		this.batching = true;
+		applyTextStreamingThreshold(Integer.MAX_VALUE);
+		try {
+			return IQuiXEventStreamReader.super.drainTo(dst, max);
+		} finally {
+			this.batching = false;
+			applyTextStreamingThreshold(this.textStreamingThreshold);
+		}
+	}
+
+	private AQuiXEvent read() {
 		// System.out.println(state);
 		final AQuiXEvent event;
 		switch (this.state) {
 		case FINISH:
 			return null;
 		case INIT:
+			QuiXMetrics.validation(this.validationPolicy);
+			if (this.validationPolicy != ValidationPolicy.OFF)
+				this.validator = new QuiXTokenValidator(this.validationPolicy, this.validationSampling);
+			if (!this.ordered)
+				this.prefetcher = new UnorderedQuiXSourcePrefetcher(this.sources, this.prefetch, this.unorderedPool,
+						this.namePool);
+			else if (this.prefetch > 0)
+				this.prefetcher = new QuiXSourcePrefetcher(this.sources, this.prefetch, this.prefetchBufferSize,
+						this.prefetchRunner, this.namePool);
 			event = AQuiXEvent.getStartSequence();
 			this.state = State.START_SEQUENCE;
 			return event;
 		case START_SEQUENCE:
+			if (this.prefetcher != null)
+				return readPrefetched();
 			if (!this.sources.hasNext()) {
 				event = AQuiXEvent.getEndSequence();
 				this.state = State.FINISH;
@@ -131,6 +362,8 @@ public class QuiXEventStreamReader implements IQuiXEventStreamReader, CallBack {
 			return loadSource();
 		case END_SOURCE:
 		case START_SOURCE:
+			if (this.prefetcher != null)
+				return readPrefetched();
 			// dealt with inside process() via callback
 			break;
 		default:
@@ -138,10 +371,21 @@ public class QuiXEventStreamReader implements IQuiXEventStreamReader, CallBack {
 		return this.delegate.process(this);
 	}
 
+	private AQuiXEvent readPrefetched() {
+		final AQuiXEvent event = this.prefetcher.next();
+		if (event == null) {
+			this.state = State.FINISH;
+			return AQuiXEvent.getEndSequence();
+		}
+		this.state = State.START_SOURCE;
+		return event;
+	}
+
 	@Override
 	public AQuiXEvent processEndSource() {
 		if (this.sources.hasNext()) {
 			// there is still sources
+			this.state = State.START_SOURCE;
 			return loadSource();
 		}
 		final AQuiXEvent event = AQuiXEvent.getEndSequence();
@@ -151,6 +395,10 @@ public class QuiXEventStreamReader implements IQuiXEventStreamReader, CallBack {
 
 	@Override
 	public void close() {
+		if (this.prefetcher != null) {
+			this.prefetcher.close();
+			this.prefetcher = null;
+		}
 		for (final AQuiXEventStreamReader aqxsr : this.delegates.values()) {
 			aqxsr.close();
 		}
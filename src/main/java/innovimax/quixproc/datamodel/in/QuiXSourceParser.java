@@ -0,0 +1,94 @@
+/*
+ * QuiXProc: efficient evaluation of XProc Pipelines.
+ * Copyright (C) 2011-2018 Innovimax
+ * All rights reserved.
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0*/
+package innovimax.quixproc.datamodel.in;
+
+import java.util.EnumMap;
+
+import innovimax.quixproc.datamodel.QuiXNamePool;
+import innovimax.quixproc.datamodel.event.AQuiXEvent;
+import innovimax.quixproc.datamodel.in.AQuiXEventStreamReader.CallBack;
+import innovimax.quixproc.datamodel.in.AStreamSource.Type;
+import innovimax.quixproc.datamodel.in.QuiXEventStreamReader.State;
+import innovimax.quixproc.datamodel.in.xml.XMLQuiXEventStreamReader;
+import innovimax.quixproc.datamodel.shared.ISimpleQuiXQueue;
+
+/**
+ * Drive the delegates outside of a {@link QuiXEventStreamReader} : one source
+ * at a time, the delegates being kept for the next source given to this
+ * parser. Used by the {@link IQuiXSourcePrefetcher}s.
+ *
+ * !!! NOT THREAD SAFE : a parser is used by one thread at a time
+ *
+ * @author innovimax
+ */
+final class QuiXSourceParser implements CallBack {
+
+	private final EnumMap<Type, AQuiXEventStreamReader> delegates = new EnumMap<Type, AQuiXEventStreamReader>(
+			Type.class);
+	private final QuiXNamePool namePool;
+	private State state;
+
+	/**
+	 * @param namePool
+	 *            codes the XML names
+	 */
+	QuiXSourceParser(final QuiXNamePool namePool) {
+		this.namePool = namePool;
+	}
+
+	/**
+	 * Append the events of {@code source}, without the sequence, to
+	 * {@code queue}
+	 *
+	 * @param source
+	 * @param queue
+	 *            not closed
+	 */
+	void parse(final AStreamSource source, final ISimpleQuiXQueue<AQuiXEvent> queue) {
+		AQuiXEventStreamReader delegate = this.delegates.get(source.type);
+		if (delegate == null) {
+			delegate = QuiXEventStreamReader.newDelegate(source.type);
+			if (source.type == Type.XML)
+				((XMLQuiXEventStreamReader) delegate).setNamePool(this.namePool);
+			this.delegates.put(source.type, delegate);
+		} else {
+			delegate.reinitialize(source);
+		}
+		this.state = State.START_SOURCE;
+		queue.append(delegate.load(source));
+		while (this.state != State.FINISH) {
+			final AQuiXEvent event = delegate.process(this);
+			if (event != null)
+				queue.append(event);
+		}
+	}
+
+	@Override
+	public State getState() {
+		return this.state;
+	}
+
+	@Override
+	public void setState(final State state) {
+		this.state = state;
+	}
+
+	@Override
+	public AQuiXEvent processEndSource() {
+		// the sequence is handled by the QuiXEventStreamReader
+		this.state = State.FINISH;
+		return null;
+	}
+
+	void close() {
+		for (final AQuiXEventStreamReader aqxsr : this.delegates.values()) {
+			aqxsr.close();
+		}
+	}
+
+}
@@ -0,0 +1,166 @@
+/*
+ * QuiXProc: efficient evaluation of XProc Pipelines.
+ * Copyright (C) 2011-2018 Innovimax
+ * All rights reserved.
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0*/
+package innovimax.quixproc.datamodel.in;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import innovimax.quixproc.datamodel.IQuiXStream;
+import innovimax.quixproc.datamodel.QuiXNamePool;
+import innovimax.quixproc.datamodel.event.AQuiXEvent;
+import innovimax.quixproc.datamodel.shared.QuiXPipelineRunner;
+import innovimax.quixproc.datamodel.shared.RingBufferQuiXQueue;
+import innovimax.quixproc.datamodel.shared.RingBufferQuiXQueue.WaitStrategy;
+
+/**
+ * Parse the next sources of a {@link QuiXEventStreamReader} ahead, each on
+ * its own step of a {@link QuiXPipelineRunner}, into a bounded buffer per
+ * source. The events are handed back source after source, in the order of
+ * the sequence.
+ *
+ * At most {@code ahead} sources are opened at once and a parser waits when
+ * its buffer is full, so the memory footprint does not depend on the length
+ * of the sequence.
+ *
+ * @author innovimax
+ */
+final class QuiXSourcePrefetcher implements IQuiXSourcePrefetcher {
+
+	/**
+	 * A source being parsed ahead
+	 */
+	private static final class Slot {
+		final IQuiXStream<AQuiXEvent> events;
+		final Future<?> task;
+
+		Slot(final IQuiXStream<AQuiXEvent> events, final Future<?> task) {
+			this.events = events;
+			this.task = task;
+		}
+	}
+
+	private final Iterator<AStreamSource> sources;
+	private final int ahead;
+	private final int bufferSize;
+	private final QuiXPipelineRunner runner;
+	// the runner is closed with this prefetcher
+	private final boolean ownRunner;
+	private final ArrayDeque<Slot> window;
+	// parsers waiting for a source
+	private final Queue<QuiXSourceParser> idle;
+	// every parser created, to close their delegates
+	private final Queue<QuiXSourceParser> parsers;
+	private final QuiXNamePool namePool;
+
+	/**
+	 * @param sources
+	 * @param ahead
+	 *            the number of sources parsed ahead
+	 * @param bufferSize
+	 *            the number of events buffered by source
+	 * @param runner
+	 *            if {@code null} a runner is created and closed with this
+	 *            prefetcher
+	 * @param namePool
+	 *            codes the XML names of all the sources
+	 */
+	QuiXSourcePrefetcher(final Iterator<AStreamSource> sources, final int ahead, final int bufferSize,
+			final QuiXPipelineRunner runner, final QuiXNamePool namePool) {
+		this.sources = sources;
+		this.ahead = ahead;
+		this.bufferSize = bufferSize;
+		this.namePool = namePool;
+		this.ownRunner = runner == null;
+		this.runner = this.ownRunner ? new QuiXPipelineRunner() : runner;
+		this.window = new ArrayDeque<Slot>(ahead);
+		this.idle = new ConcurrentLinkedQueue<QuiXSourceParser>();
+		this.parsers = new ConcurrentLinkedQueue<QuiXSourceParser>();
+	}
+
+	private void fill() {
+		while (this.window.size() < this.ahead && this.sources.hasNext()) {
+			final AStreamSource source = this.sources.next();
+			final RingBufferQuiXQueue<AQuiXEvent> queue = new RingBufferQuiXQueue<AQuiXEvent>(this.bufferSize,
+					WaitStrategy.PARK);
+			queue.setReaderCount(1);
+			final IQuiXStream<AQuiXEvent> events = queue.registerReader();
+			final Future<?> task = this.runner.submit(() -> {
+				QuiXSourceParser parser = this.idle.poll();
+				if (parser == null) {
+					parser = new QuiXSourceParser(this.namePool);
+					this.parsers.add(parser);
+				}
+				try {
+					parser.parse(source, queue);
+				} finally {
+					queue.close();
+					this.idle.add(parser);
+				}
+			});
+			this.window.add(new Slot(events, task));
+		}
+	}
+
+	@Override
+	public AQuiXEvent next() {
+		fill();
+		Slot current;
+		while ((current = this.window.peek()) != null) {
+			if (current.events.hasNext())
+				return current.events.next();
+			// the source is over : report its failure if any
+			this.window.poll();
+			current.events.close();
+			await(current.task);
+			fill();
+		}
+		return null;
+	}
+
+	private static void await(final Future<?> task) {
+		try {
+			task.get();
+		} catch (final ExecutionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if (cause instanceof Error)
+				throw (Error) cause;
+			throw new RuntimeException(cause);
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Override
+	public void close() {
+		// release the parsers still running, their events are lost
+		Slot slot;
+		while ((slot = this.window.poll()) != null) {
+			slot.events.close();
+			try {
+				slot.task.get();
+			} catch (final ExecutionException e) {
+				// not read, not reported
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		for (final QuiXSourceParser parser : this.parsers) {
+			parser.close();
+		}
+		if (this.ownRunner)
+			this.runner.close();
+	}
+
+}
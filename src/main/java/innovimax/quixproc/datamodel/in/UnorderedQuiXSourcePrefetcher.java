@@ -0,0 +1,174 @@
+/*
+ * QuiXProc: efficient evaluation of XProc Pipelines.
+ * Copyright (C) 2011-2018 Innovimax
+ * All rights reserved.
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0*/
+package innovimax.quixproc.datamodel.in;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import innovimax.quixproc.datamodel.QuiXNamePool;
+import innovimax.quixproc.datamodel.event.AQuiXEvent;
+import innovimax.quixproc.datamodel.shared.ISimpleQuiXQueue;
+
+/**
+ * Parse up to {@code parallelism} sources of a {@link QuiXEventStreamReader}
+ * at once on a {@link ForkJoinPool}, each source being fully buffered. The
+ * sources are handed back as soon as they are parsed, whatever their order
+ * in the sequence, so that a document (or a JSON, a table, a graph) is never
+ * split.
+ *
+ * @author innovimax
+ */
+final class UnorderedQuiXSourcePrefetcher implements IQuiXSourcePrefetcher {
+
+	/**
+	 * The events of a parsed source or its failure
+	 */
+	private static final class Parsed {
+		final List<AQuiXEvent> events;
+		final Throwable failure;
+
+		Parsed(final List<AQuiXEvent> events, final Throwable failure) {
+			this.events = events;
+			this.failure = failure;
+		}
+	}
+
+	/**
+	 * Collect the events of a source
+	 */
+	private static final class ListQuiXQueue implements ISimpleQuiXQueue<AQuiXEvent> {
+		final List<AQuiXEvent> events = new ArrayList<AQuiXEvent>();
+
+		@Override
+		public void append(final AQuiXEvent event) {
+			this.events.add(event);
+		}
+
+		@Override
+		public void close() {
+			// nothing
+		}
+	}
+
+	private final Iterator<AStreamSource> sources;
+	private final int parallelism;
+	private final ForkJoinPool pool;
+	// the sources parsed, in the order they end
+	private final BlockingQueue<Parsed> parsed;
+	// parsers waiting for a source
+	private final Queue<QuiXSourceParser> idle;
+	// every parser created, to close their delegates
+	private final Queue<QuiXSourceParser> parsers;
+	private final QuiXNamePool namePool;
+	// sources submitted and not yet taken from parsed
+	private int pending;
+	private List<AQuiXEvent> current;
+	private int position;
+
+	/**
+	 * @param sources
+	 * @param parallelism
+	 *            the maximum number of sources parsed and not read yet
+	 * @param pool
+	 *            if {@code null} the common pool
+	 * @param namePool
+	 *            codes the XML names of all the sources
+	 */
+	UnorderedQuiXSourcePrefetcher(final Iterator<AStreamSource> sources, final int parallelism,
+			final ForkJoinPool pool, final QuiXNamePool namePool) {
+		this.sources = sources;
+		this.parallelism = parallelism;
+		this.pool = pool == null ? ForkJoinPool.commonPool() : pool;
+		this.namePool = namePool;
+		this.parsed = new LinkedBlockingQueue<Parsed>();
+		this.idle = new ConcurrentLinkedQueue<QuiXSourceParser>();
+		this.parsers = new ConcurrentLinkedQueue<QuiXSourceParser>();
+		this.pending = 0;
+		this.current = null;
+		this.position = 0;
+	}
+
+	private void fill() {
+		while (this.pending < this.parallelism && this.sources.hasNext()) {
+			final AStreamSource source = this.sources.next();
+			this.pending++;
+			this.pool.execute(() -> {
+				QuiXSourceParser parser = this.idle.poll();
+				if (parser == null) {
+					parser = new QuiXSourceParser(this.namePool);
+					this.parsers.add(parser);
+				}
+				final ListQuiXQueue queue = new ListQuiXQueue();
+				try {
+					parser.parse(source, queue);
+					this.parsed.add(new Parsed(queue.events, null));
+				} catch (final Throwable e) {
+					// the parser may be in any state
+					this.parsers.remove(parser);
+					parser.close();
+					parser = null;
+					this.parsed.add(new Parsed(null, e));
+				} finally {
+					if (parser != null)
+						this.idle.add(parser);
+				}
+			});
+		}
+	}
+
+	private Parsed take() {
+		try {
+			final Parsed result = this.parsed.take();
+			this.pending--;
+			return result;
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Override
+	public AQuiXEvent next() {
+		while (this.current == null || this.position == this.current.size()) {
+			this.current = null;
+			fill();
+			if (this.pending == 0)
+				return null;
+			final Parsed result = take();
+			if (result.failure != null) {
+				if (result.failure instanceof RuntimeException)
+					throw (RuntimeException) result.failure;
+				if (result.failure instanceof Error)
+					throw (Error) result.failure;
+				throw new RuntimeException(result.failure);
+			}
+			this.current = result.events;
+			this.position = 0;
+		}
+		return this.current.get(this.position++);
+	}
+
+	@Override
+	public void close() {
+		// wait for the sources being parsed, their events are lost
+		while (this.pending > 0) {
+			take();
+		}
+		this.current = null;
+		for (final QuiXSourceParser parser : this.parsers) {
+			parser.close();
+		}
+	}
+
+}
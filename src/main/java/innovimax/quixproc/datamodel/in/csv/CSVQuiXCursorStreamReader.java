@@ -0,0 +1,71 @@
+/*
+ * QuiXProc: efficient evaluation of XProc Pipelines.
+ * Copyright (C) 2011-2018 Innovimax
+ * All rights reserved.
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0*/
+package innovimax.quixproc.datamodel.in.csv;
+
+import java.io.IOException;
+import java.util.Iterator;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+
+import innovimax.quixproc.datamodel.QuiXException;
+import innovimax.quixproc.datamodel.QuiXToken;
+import innovimax.quixproc.datamodel.event.QuiXEventBuffer;
+import innovimax.quixproc.datamodel.in.AQuiXCursorStreamReader;
+import innovimax.quixproc.datamodel.in.AStreamSource;
+import innovimax.quixproc.datamodel.in.AStreamSource.CSVStreamSource;
+
+public class CSVQuiXCursorStreamReader extends AQuiXCursorStreamReader {
+
+	private CSVParser parser;
+	private Iterator<CSVRecord> iter;
+
+	@Override
+	protected void load(final AStreamSource current, final QuiXEventBuffer buffer) {
+		try {
+			this.parser = CSVFormat.EXCEL.parse(((CSVStreamSource) current).asReader());
+			this.iter = this.parser.iterator();
+		} catch (final IOException e) {
+			throw new QuiXException(e);
+		}
+		buffer.add(QuiXToken.START_TABLE);
+		buffer.add(QuiXToken.START_ARRAY);
+	}
+
+	/**
+	 * One record at a time
+	 */
+	@Override
+	protected boolean fill(final QuiXEventBuffer buffer) {
+		if (!this.iter.hasNext()) {
+			buffer.add(QuiXToken.END_ARRAY);
+			buffer.add(QuiXToken.END_TABLE);
+			return false;
+		}
+		final CSVRecord next = this.iter.next();
+		buffer.add(QuiXToken.START_ARRAY);
+		for (final String cell : next) {
+			buffer.valueString(cell);
+		}
+		buffer.add(QuiXToken.END_ARRAY);
+		return true;
+	}
+
+	@Override
+	public void close() {
+		if (this.parser != null) {
+			try {
+				this.parser.close();
+			} catch (final IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+}
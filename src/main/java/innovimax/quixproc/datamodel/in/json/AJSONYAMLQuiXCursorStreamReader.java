@@ -0,0 +1,107 @@
+/*
+ * QuiXProc: efficient evaluation of XProc Pipelines.
+ * Copyright (C) 2011-2018 Innovimax
+ * All rights reserved.
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0*/
+package innovimax.quixproc.datamodel.in.json;
+
+import java.io.IOException;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import innovimax.quixproc.datamodel.QuiXException;
+import innovimax.quixproc.datamodel.QuiXToken;
+import innovimax.quixproc.datamodel.event.QuiXEventBuffer;
+import innovimax.quixproc.datamodel.in.AQuiXCursorStreamReader;
+import innovimax.quixproc.datamodel.in.AStreamSource;
+import innovimax.quixproc.datamodel.in.AStreamSource.AJSONYAMLStreamSource;
+
+public abstract class AJSONYAMLQuiXCursorStreamReader extends AQuiXCursorStreamReader {
+	final JsonFactory ifactory;
+	private JsonParser iparser;
+
+	protected AJSONYAMLQuiXCursorStreamReader(final JsonFactory factory) {
+		this.ifactory = factory;
+	}
+
+	@Override
+	protected void load(final AStreamSource current, final QuiXEventBuffer buffer) {
+		try {
+			this.iparser = this.ifactory.createParser(((AJSONYAMLStreamSource) current).asInputStream());
+		} catch (final IOException e) {
+			throw new QuiXException(e);
+		}
+		buffer.add(QuiXToken.START_JSON);
+	}
+
+	@Override
+	protected boolean fill(final QuiXEventBuffer buffer) {
+		try {
+			while (true) {
+				final JsonToken token = this.iparser.nextToken();
+				if (token == null) {
+					buffer.add(QuiXToken.END_JSON);
+					return false;
+				}
+				switch (token) {
+				case END_ARRAY:
+					buffer.add(QuiXToken.END_ARRAY);
+					return true;
+				case END_OBJECT:
+					buffer.add(QuiXToken.END_OBJECT);
+					return true;
+				case FIELD_NAME:
+					// names are interned by the parser
+					buffer.keyName(this.iparser.getCurrentName());
+					return true;
+				case START_ARRAY:
+					buffer.add(QuiXToken.START_ARRAY);
+					return true;
+				case START_OBJECT:
+					buffer.add(QuiXToken.START_OBJECT);
+					return true;
+				case VALUE_FALSE:
+					buffer.add(QuiXToken.VALUE_FALSE);
+					return true;
+				case VALUE_NULL:
+					buffer.add(QuiXToken.VALUE_NULL);
+					return true;
+				case VALUE_NUMBER_FLOAT:
+				case VALUE_NUMBER_INT:
+					buffer.valueNumber(this.iparser.getDoubleValue());
+					return true;
+				case VALUE_STRING:
+					// read from the parser buffer
+					buffer.valueString(this.iparser.getTextCharacters(), this.iparser.getTextOffset(),
+							this.iparser.getTextLength());
+					return true;
+				case VALUE_TRUE:
+					buffer.add(QuiXToken.VALUE_TRUE);
+					return true;
+				case NOT_AVAILABLE:
+				case VALUE_EMBEDDED_OBJECT:
+				default:
+					throw new QuiXException("Unknown event " + token);
+				}
+			}
+		} catch (final IOException e) {
+			throw new QuiXException(e);
+		}
+	}
+
+	@Override
+	public void close() {
+		if (this.iparser != null) {
+			try {
+				this.iparser.close();
+			} catch (final IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+}
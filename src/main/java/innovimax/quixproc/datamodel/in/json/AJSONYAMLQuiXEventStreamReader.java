@@ -81,7 +81,9 @@ public abstract class AJSONYAMLQuiXEventStreamReader extends AQuiXEventStreamRea
 				case VALUE_NUMBER_INT:
 					return AQuiXEvent.getValueNumber(this.iparser.getDoubleValue());
 				case VALUE_STRING:
-					return AQuiXEvent.getValueString(QuiXCharStream.fromSequence(this.iparser.getText()));
+					// straight from the buffer of the parser, kept as UTF-8
+					return AQuiXEvent.getValueString(QuiXCharStream.fromChars(this.iparser.getTextCharacters(),
+							this.iparser.getTextOffset(), this.iparser.getTextLength()));
 				case VALUE_TRUE:
 					return AQuiXEvent.getValueTrue();
 				default:
@@ -0,0 +1,67 @@
+/*
+ * QuiXProc: efficient evaluation of XProc Pipelines.
+ * Copyright (C) 2011-2018 Innovimax
+ * All rights reserved.
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0*/
+package innovimax.quixproc.datamodel.in.rdf;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.jena.atlas.web.TypedInputStream;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFDataMgr;
+import org.apache.jena.riot.lang.PipedRDFIterator;
+import org.apache.jena.riot.lang.PipedTriplesStream;
+import org.apache.jena.riot.system.StreamRDF;
+
+import innovimax.quixproc.datamodel.QuiXToken;
+import innovimax.quixproc.datamodel.event.QuiXEventBuffer;
+import innovimax.quixproc.datamodel.in.AQuiXCursorStreamReader;
+import innovimax.quixproc.datamodel.in.AStreamSource;
+import innovimax.quixproc.datamodel.in.AStreamSource.RDFStreamSource;
+
+public class RDFQuiXCursorStreamReader extends AQuiXCursorStreamReader {
+	private PipedRDFIterator<Triple> iter;
+	private ExecutorService executor;
+
+	@Override
+	protected void load(final AStreamSource current, final QuiXEventBuffer buffer) {
+		this.iter = new PipedRDFIterator<Triple>();
+		final StreamRDF tripleStream = new PipedTriplesStream(this.iter);
+		final TypedInputStream tis = ((RDFStreamSource) current).asTypedInputStream();
+		// PipedRDFStream and PipedRDFIterator need to be on different threads
+		if (this.executor == null)
+			this.executor = Executors.newSingleThreadExecutor();
+		this.executor.execute(() -> RDFDataMgr.parse(tripleStream, tis, Lang.N3));
+		buffer.add(QuiXToken.START_RDF);
+	}
+
+	/**
+	 * One triple at a time
+	 */
+	@Override
+	protected boolean fill(final QuiXEventBuffer buffer) {
+		if (!this.iter.hasNext()) {
+			buffer.add(QuiXToken.END_RDF);
+			return false;
+		}
+		final Triple next = this.iter.next();
+		final String predicate = next.getPredicate().toString();
+		buffer.rdf(QuiXToken.START_PREDICATE, predicate);
+		buffer.rdf(QuiXToken.SUBJECT, next.getSubject().toString());
+		buffer.rdf(QuiXToken.OBJECT, next.getObject().toString());
+		buffer.rdf(QuiXToken.END_PREDICATE, predicate);
+		return true;
+	}
+
+	@Override
+	public void close() {
+		if (this.executor != null)
+			this.executor.shutdownNow();
+	}
+
+}
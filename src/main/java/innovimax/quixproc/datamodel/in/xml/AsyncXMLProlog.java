@@ -0,0 +1,365 @@
+/*
+ * QuiXProc: efficient evaluation of XProc Pipelines.
+ * Copyright (C) 2011-2018 Innovimax
+ * All rights reserved.
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0*/
+package innovimax.quixproc.datamodel.in.xml;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import innovimax.quixproc.datamodel.QuiXException;
+
+/**
+ * The bytes of the prolog of a document read by
+ * {@link AsyncXMLQuiXEventReader}, up to its root element : the non blocking
+ * parser of Aalto does not read the internal DTD subset, so the DOCTYPE is
+ * held until its end, taken out for its entities and given to the parser as
+ * blanks (the line breaks are kept for the error locations).
+ *
+ * The markup is ASCII in all the encodings of the parser, so the end of the
+ * DOCTYPE is found on the bytes : the quotes only count in the declarations,
+ * not in the comments and processing instructions of the internal subset.
+ *
+ * @author innovimax
+ */
+final class AsyncXMLProlog {
+
+	private enum State {
+		TOP, LT, BANG, PI, COMMENT, DOCTYPE, SUBSET, SUBSET_LT, SUBSET_BANG, SUBSET_PI, SUBSET_COMMENT, DECLARATION,
+		ROOT
+	}
+
+	// the entity is declared, but external
+	static final String EXTERNAL = new String("external");
+
+	private byte[] bytes = new byte[1024];
+	private int length = 0;
+	// bytes[0, fed[ have been given to the parser
+	private int fed = 0;
+	// bytes[0, scanned[ have been scanned
+	private int scanned = 0;
+	private State state = State.TOP;
+	// start of the markup being scanned
+	private int markup = 0;
+	private byte quote = 0;
+	private byte previous = 0;
+	private int dashes = 0;
+	private boolean doctypeSeen = false;
+
+	void append(final ByteBuffer src) {
+		final int len = src.remaining();
+		if (this.length + len > this.bytes.length)
+			this.bytes = Arrays.copyOf(this.bytes, Math.max(this.bytes.length * 2, this.length + len));
+		src.get(this.bytes, this.length, len);
+		this.length += len;
+	}
+
+	/**
+	 * @return true once the root element is reached : the rest of the
+	 *         document does not need to be held
+	 */
+	boolean isOver() {
+		return this.state == State.ROOT;
+	}
+
+	/**
+	 * Scan what has been appended, up to the end of the next DOCTYPE if any
+	 *
+	 * @return the DOCTYPE ending in what has been appended, {@code null} if
+	 *         none
+	 */
+	byte[] scan() {
+		while (this.scanned < this.length && this.state != State.ROOT) {
+			final byte b = this.bytes[this.scanned];
+			switch (this.state) {
+			case TOP:
+				if (b == '<') {
+					this.markup = this.scanned;
+					this.state = State.LT;
+				}
+				break;
+			case LT:
+				this.state = b == '?' ? State.PI : b == '!' ? State.BANG : State.ROOT;
+				break;
+			case BANG:
+				if (b == '-') {
+					this.dashes = -1;
+					this.state = State.COMMENT;
+				} else if (b == 'D') {
+					if (this.doctypeSeen)
+						throw new QuiXException("Only one DOCTYPE is allowed");
+					this.quote = 0;
+					this.state = State.DOCTYPE;
+				} else {
+					// not well-formed : the parser tells
+					this.state = State.ROOT;
+				}
+				break;
+			case PI:
+				if (this.previous == '?' && b == '>')
+					this.state = State.TOP;
+				break;
+			case COMMENT:
+				if (b == '-') {
+					this.dashes++;
+				} else {
+					if (b == '>' && this.dashes >= 2)
+						this.state = State.TOP;
+					this.dashes = 0;
+				}
+				break;
+			case DOCTYPE:
+				if (this.quote != 0) {
+					if (b == this.quote)
+						this.quote = 0;
+				} else if (b == '"' || b == '\'') {
+					this.quote = b;
+				} else if (b == '[') {
+					this.state = State.SUBSET;
+				} else if (b == '>') {
+					this.scanned++;
+					this.previous = b;
+					return takeDoctype();
+				}
+				break;
+			case SUBSET:
+				if (b == '<')
+					this.state = State.SUBSET_LT;
+				else if (b == ']')
+					this.state = State.DOCTYPE;
+				break;
+			case SUBSET_LT:
+				this.quote = 0;
+				this.state = b == '?' ? State.SUBSET_PI : b == '!' ? State.SUBSET_BANG : State.DECLARATION;
+				break;
+			case SUBSET_BANG:
+				if (b == '-') {
+					this.dashes = -1;
+					this.state = State.SUBSET_COMMENT;
+				} else {
+					this.state = b == '>' ? State.SUBSET : State.DECLARATION;
+				}
+				break;
+			case SUBSET_PI:
+				if (this.previous == '?' && b == '>')
+					this.state = State.SUBSET;
+				break;
+			case SUBSET_COMMENT:
+				if (b == '-') {
+					this.dashes++;
+				} else {
+					if (b == '>' && this.dashes >= 2)
+						this.state = State.SUBSET;
+					this.dashes = 0;
+				}
+				break;
+			case DECLARATION:
+				if (this.quote != 0) {
+					if (b == this.quote)
+						this.quote = 0;
+				} else if (b == '"' || b == '\'') {
+					this.quote = b;
+				} else if (b == '>') {
+					this.state = State.SUBSET;
+				}
+				break;
+			default:
+			}
+			this.previous = b;
+			this.scanned++;
+		}
+		return null;
+	}
+
+	private byte[] takeDoctype() {
+		final byte[] result = Arrays.copyOfRange(this.bytes, this.markup, this.scanned);
+		if (!startsWithDoctype(result))
+			throw new QuiXException("DOCTYPE declaration expected");
+		for (int i = this.markup; i < this.scanned; i++) {
+			if (this.bytes[i] != '\n' && this.bytes[i] != '\r')
+				this.bytes[i] = ' ';
+		}
+		this.doctypeSeen = true;
+		this.state = State.TOP;
+		return result;
+	}
+
+	private static boolean startsWithDoctype(final byte[] markup) {
+		final byte[] expected = { '<', '!', 'D', 'O', 'C', 'T', 'Y', 'P', 'E' };
+		if (markup.length <= expected.length)
+			return false;
+		for (int i = 0; i < expected.length; i++) {
+			if (markup[i] != expected[i])
+				return false;
+		}
+		final byte b = markup[expected.length];
+		return b == ' ' || b == '\t' || b == '\n' || b == '\r';
+	}
+
+	/**
+	 * @param all
+	 *            true at the end of input : the markup not finished is given
+	 *            too
+	 * @return the bytes that can be given to the parser, {@code null} if none
+	 */
+	ByteBuffer release(final boolean all) {
+		final int end;
+		if (all || this.state == State.ROOT)
+			end = this.length;
+		else if (this.state == State.TOP || this.state == State.PI || this.state == State.COMMENT)
+			end = this.scanned;
+		else
+			// undecided markup or DOCTYPE
+			end = this.markup;
+		if (end <= this.fed)
+			return null;
+		final ByteBuffer result = ByteBuffer.wrap(this.bytes, this.fed, end - this.fed);
+		this.fed = end;
+		return result;
+	}
+
+	/**
+	 * The general entities declared by the internal subset
+	 *
+	 * @param doctype
+	 *            the whole DOCTYPE declaration
+	 * @return the replacement text by name, {@link #EXTERNAL} for the
+	 *         external entities
+	 */
+	static Map<String, String> entities(final String doctype) {
+		final Map<String, String> entities = new HashMap<String, String>();
+		final int n = doctype.length();
+		// the structure has been checked by scan()
+		int i = 0;
+		char quote = 0;
+		while (i < n && (quote != 0 || doctype.charAt(i) != '[')) {
+			final char c = doctype.charAt(i);
+			if (c == quote)
+				quote = 0;
+			else if (quote == 0 && (c == '"' || c == '\''))
+				quote = c;
+			i++;
+		}
+		i++;
+		while (i < n && doctype.charAt(i) != ']') {
+			if (doctype.startsWith("<!--", i)) {
+				i = doctype.indexOf("-->", i + 4) + 3;
+			} else if (doctype.startsWith("<?", i)) {
+				i = doctype.indexOf("?>", i + 2) + 2;
+			} else if (doctype.startsWith("<!ENTITY", i)) {
+				i = entity(doctype, i + 8, entities);
+			} else if (doctype.charAt(i) == '<') {
+				i = skipDeclaration(doctype, i);
+			} else if (doctype.charAt(i) == '%') {
+				throw new QuiXException("Parameter entity references are not supported");
+			} else {
+				i++;
+			}
+		}
+		return entities;
+	}
+
+	private static int skipSpaces(final String s, final int from) {
+		int i = from;
+		while (i < s.length() && (s.charAt(i) == ' ' || s.charAt(i) == '\t' || s.charAt(i) == '\n'
+				|| s.charAt(i) == '\r'))
+			i++;
+		return i;
+	}
+
+	private static int skipDeclaration(final String s, final int from) {
+		char quote = 0;
+		for (int i = from; i < s.length(); i++) {
+			final char c = s.charAt(i);
+			if (quote != 0) {
+				if (c == quote)
+					quote = 0;
+			} else if (c == '"' || c == '\'') {
+				quote = c;
+			} else if (c == '>') {
+				return i + 1;
+			}
+		}
+		return s.length();
+	}
+
+	/**
+	 * Read an entity declaration
+	 *
+	 * @return the index after the declaration
+	 */
+	private static int entity(final String s, final int from, final Map<String, String> entities) {
+		int i = skipSpaces(s, from);
+		if (i < s.length() && s.charAt(i) == '%')
+			// parameter entity, only used in the DTD
+			return skipDeclaration(s, i);
+		final int start = i;
+		while (i < s.length() && " \t\n\r\"'>".indexOf(s.charAt(i)) == -1)
+			i++;
+		final String name = s.substring(start, i);
+		if (name.isEmpty())
+			throw new QuiXException("Entity name expected in the DOCTYPE");
+		i = skipSpaces(s, i);
+		if (i < s.length() && (s.charAt(i) == '"' || s.charAt(i) == '\'')) {
+			final int end = s.indexOf(s.charAt(i), i + 1);
+			if (!entities.containsKey(name))
+				entities.put(name, replacementText(s.substring(i + 1, end)));
+			return skipDeclaration(s, end + 1);
+		}
+		// SYSTEM or PUBLIC
+		if (!entities.containsKey(name))
+			entities.put(name, EXTERNAL);
+		return skipDeclaration(s, i);
+	}
+
+	/**
+	 * The character references are replaced when the entity is declared, the
+	 * general entity references when it is used
+	 */
+	private static String replacementText(final String literal) {
+		if (literal.indexOf('%') != -1)
+			throw new QuiXException("Parameter entity references are not allowed in the internal subset");
+		if (literal.indexOf("&#") == -1)
+			return literal;
+		final StringBuilder sb = new StringBuilder(literal.length());
+		int i = 0;
+		while (i < literal.length()) {
+			final char c = literal.charAt(i);
+			if (c == '&' && literal.startsWith("&#", i)) {
+				final int end = literal.indexOf(';', i);
+				if (end == -1)
+					throw new QuiXException("Unterminated character reference in the DOCTYPE");
+				sb.appendCodePoint(characterReference(literal.substring(i + 2, end)));
+				i = end + 1;
+			} else {
+				sb.append(c);
+				i++;
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @param reference
+	 *            what is between {@code &#} and {@code ;}
+	 * @return the code point
+	 */
+	static int characterReference(final String reference) {
+		try {
+			final int cp = reference.startsWith("x") ? Integer.parseInt(reference.substring(1), 16)
+					: Integer.parseInt(reference);
+			if (cp == 0x9 || cp == 0xA || cp == 0xD || cp >= 0x20 && cp <= 0xD7FF || cp >= 0xE000 && cp <= 0xFFFD
+					|| cp >= 0x10000 && cp <= 0x10FFFF)
+				return cp;
+		} catch (final NumberFormatException e) {
+			// reported below
+		}
+		throw new QuiXException("Invalid character reference &#" + reference + ";");
+	}
+
+}
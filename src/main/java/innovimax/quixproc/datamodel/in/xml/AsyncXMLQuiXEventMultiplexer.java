@@ -0,0 +1,235 @@
+/*
+ * QuiXProc: efficient evaluation of XProc Pipelines.
+ * Copyright (C) 2011-2018 Innovimax
+ * All rights reserved.
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0*/
+package innovimax.quixproc.datamodel.in.xml;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import innovimax.quixproc.datamodel.QuiXException;
+import innovimax.quixproc.datamodel.event.AQuiXEvent;
+import innovimax.quixproc.datamodel.shared.ISimpleQuiXQueue;
+
+/**
+ * Parse the XML documents read from many non blocking channels (sockets,
+ * pipes) on the thread running {@link #run()} : the bytes are fed to an
+ * {@link AsyncXMLQuiXEventReader} per channel as they arrive and its events
+ * are appended to the queue given for this channel.
+ *
+ * The queues should not block (as {@link ISimpleQuiXQueue} without bound)
+ * since a full queue stops every document of this multiplexer.
+ *
+ * !!! A queue is closed whether its document succeeded or not : when the
+ * document cannot be read or parsed, the events already appended stay and
+ * the queue is closed without END_DOCUMENT. The consumer must check the
+ * future returned by {@link #register} (it is completed before the queue is
+ * closed) to tell a truncated document from a complete one.
+ *
+ * @author innovimax
+ */
+public final class AsyncXMLQuiXEventMultiplexer implements Runnable, AutoCloseable {
+
+	private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * A document being read
+	 */
+	private static final class Document {
+		final ReadableByteChannel channel;
+		final AsyncXMLQuiXEventReader reader;
+		final ISimpleQuiXQueue<AQuiXEvent> queue;
+		final CompletableFuture<Void> done;
+
+		Document(final ReadableByteChannel channel, final String systemId, final ISimpleQuiXQueue<AQuiXEvent> queue) {
+			this.channel = channel;
+			this.reader = new AsyncXMLQuiXEventReader(systemId);
+			this.queue = queue;
+			this.done = new CompletableFuture<Void>();
+		}
+	}
+
+	private final Selector selector;
+	private final ByteBuffer buffer;
+	// registered by any thread, taken by the running thread
+	private final Queue<Document> registered;
+	private volatile boolean closed;
+
+	public AsyncXMLQuiXEventMultiplexer() {
+		try {
+			this.selector = Selector.open();
+		} catch (final IOException e) {
+			throw new QuiXException(e);
+		}
+		this.buffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+		this.registered = new ConcurrentLinkedQueue<Document>();
+		this.closed = false;
+	}
+
+	/**
+	 * Read the document of {@code channel} : it is put in non blocking mode and
+	 * closed at the end of the document, as {@code queue}
+	 *
+	 * @param channel
+	 *            a {@link SelectableChannel} that is a
+	 *            {@link ReadableByteChannel}
+	 * @param systemId
+	 *            the base URI of the document
+	 * @param queue
+	 *            receives the events of the document
+	 * @return completed once the whole document has been appended to
+	 *         {@code queue}, or with the parsing or reading failure : in both
+	 *         cases before {@code queue} is closed, so it must be checked
+	 *         once the queue is over
+	 */
+	public <C extends SelectableChannel & ReadableByteChannel> CompletableFuture<Void> register(final C channel,
+			final String systemId, final ISimpleQuiXQueue<AQuiXEvent> queue) {
+		if (this.closed)
+			throw new IllegalStateException("The multiplexer is closed");
+		try {
+			channel.configureBlocking(false);
+		} catch (final IOException e) {
+			throw new QuiXException(e);
+		}
+		final Document document = new Document(channel, systemId, queue);
+		this.registered.add(document);
+		this.selector.wakeup();
+		return document.done;
+	}
+
+	/**
+	 * Read the registered channels until {@link #close()}
+	 */
+	@Override
+	public void run() {
+		try {
+			while (!this.closed) {
+				this.selector.select();
+				Document document;
+				while ((document = this.registered.poll()) != null) {
+					try {
+						((SelectableChannel) document.channel).register(this.selector, SelectionKey.OP_READ,
+								document);
+					} catch (final IOException | RuntimeException e) {
+						// e.g. closed meanwhile : only this document fails
+						release(document, e);
+					}
+				}
+				final Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					final SelectionKey key = keys.next();
+					keys.remove();
+					read(key);
+				}
+			}
+		} catch (final IOException | ClosedSelectorException e) {
+			if (!this.closed)
+				throw new QuiXException(e);
+		} finally {
+			abort();
+		}
+	}
+
+	private void read(final SelectionKey key) {
+		final Document document = (Document) key.attachment();
+		try {
+			// one read at a time so that a fast channel does not starve the
+			// others
+			final int n = document.channel.read(this.buffer);
+			if (n > 0) {
+				this.buffer.flip();
+				document.reader.feed(this.buffer);
+				this.buffer.clear();
+				drain(document);
+			} else if (n < 0) {
+				document.reader.endOfInput();
+				drain(document);
+				if (!document.reader.isFinished())
+					throw new QuiXException("Unexpected end of document");
+			}
+			if (document.reader.isFinished())
+				end(key, document, null);
+		} catch (final IOException | RuntimeException e) {
+			this.buffer.clear();
+			end(key, document, e);
+		}
+	}
+
+	private static void drain(final Document document) {
+		AQuiXEvent event;
+		while ((event = document.reader.next()) != null) {
+			document.queue.append(event);
+		}
+	}
+
+	private static void end(final SelectionKey key, final Document document, final Throwable failure) {
+		key.cancel();
+		release(document, failure);
+	}
+
+	/**
+	 * Release the document : the future is completed before the queue is
+	 * closed
+	 *
+	 * @param document
+	 * @param failure
+	 *            {@code null} if the document is complete
+	 */
+	private static void release(final Document document, final Throwable failure) {
+		try {
+			document.channel.close();
+		} catch (final IOException e) {
+			// the document is over anyway
+		}
+		if (failure == null)
+			document.done.complete(null);
+		else
+			document.done.completeExceptionally(failure);
+		document.queue.close();
+	}
+
+	/**
+	 * Fail the documents not finished
+	 */
+	private void abort() {
+		final QuiXException failure = new QuiXException("The multiplexer has been closed");
+		if (this.selector.isOpen()) {
+			for (final SelectionKey key : this.selector.keys()) {
+				// the cancelled keys are the documents already over
+				if (key.isValid())
+					end(key, (Document) key.attachment(), failure);
+			}
+		}
+		Document document;
+		while ((document = this.registered.poll()) != null) {
+			release(document, failure);
+		}
+		try {
+			this.selector.close();
+		} catch (final IOException e) {
+			// nothing more to release
+		}
+	}
+
+	/**
+	 * Stop {@link #run()} : the documents not finished fail
+	 */
+	@Override
+	public void close() {
+		this.closed = true;
+		this.selector.wakeup();
+	}
+
+}
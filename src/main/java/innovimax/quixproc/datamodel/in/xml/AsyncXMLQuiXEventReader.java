@@ -0,0 +1,431 @@
+/*
+ * QuiXProc: efficient evaluation of XProc Pipelines.
+ * Copyright (C) 2011-2018 Innovimax
+ * All rights reserved.
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0*/
+package innovimax.quixproc.datamodel.in.xml;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+
+import com.fasterxml.aalto.AsyncByteBufferFeeder;
+import com.fasterxml.aalto.AsyncXMLInputFactory;
+import com.fasterxml.aalto.AsyncXMLStreamReader;
+import com.fasterxml.aalto.stax.InputFactoryImpl;
+
+import innovimax.quixproc.datamodel.QuiXCharStream;
+import innovimax.quixproc.datamodel.QuiXCharStreamInterner;
+import innovimax.quixproc.datamodel.QuiXException;
+import innovimax.quixproc.datamodel.QuiXNamePool;
+import innovimax.quixproc.datamodel.QuiXQName;
+import innovimax.quixproc.datamodel.QuiXQNameInterner;
+import innovimax.quixproc.datamodel.event.AQuiXEvent;
+import innovimax.quixproc.datamodel.event.QuiXEventDeque;
+
+/**
+ * Non blocking XML parser : the bytes of the document are pushed with
+ * {@link #feed(byte[], int, int)} as they arrive and {@link #next()} gives the
+ * events that can be built from what has been fed so far, {@code null} when
+ * it needs more bytes. No thread waits for the input, so that many documents
+ * can be parsed by a few threads (see {@link AsyncXMLQuiXEventMultiplexer}).
+ *
+ * The parsing is done by the non blocking parser of Aalto
+ * ({@code com.fasterxml:aalto-xml}, which must be on the class path) : the
+ * document is checked for namespace well-formedness and the encoding is
+ * UTF-8, US-ASCII or ISO-8859-1. That parser does not read the internal DTD
+ * subset : {@link AsyncXMLProlog} takes the DOCTYPE out for its general
+ * entities, which are expanded in the content but not in the attribute values
+ * (rejected) nor when they contain markup (rejected). The external entities
+ * are not read.
+ *
+ * The events are the same as the ones of {@link XMLQuiXEventStreamReader} :
+ * adjacent text and CDATA sections are merged in one TEXT, the namespaces
+ * then the attributes follow their START_ELEMENT, and the names are coded by
+ * a {@link QuiXNamePool}.
+ *
+ * !!! NOT THREAD SAFE : one thread at a time feeds and reads a parser
+ *
+ * @author innovimax
+ */
+public final class AsyncXMLQuiXEventReader {
+
+	private static final AsyncXMLInputFactory FACTORY = new InputFactoryImpl();
+	private static final int MAX_TEXT_CAPACITY = 64 * 1024;
+	// against the entities expanding to themselves or exponentially
+	private static final int MAX_ENTITY_DEPTH = 16;
+	private static final int MAX_ENTITY_EXPANSIONS = 64 * 1000;
+
+	static {
+		FACTORY.setProperty(XMLInputFactory.IS_COALESCING, Boolean.FALSE);
+		FACTORY.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+		FACTORY.setProperty(XMLInputFactory.IS_REPLACING_ENTITY_REFERENCES, Boolean.TRUE);
+		FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.TRUE);
+	}
+
+	private final AsyncXMLStreamReader<AsyncByteBufferFeeder> sreader;
+	private final QuiXCharStream baseURI;
+	// holds the DOCTYPE from the parser, null once the root element is reached
+	private AsyncXMLProlog prolog = new AsyncXMLProlog();
+	// the general entities of the internal subset
+	private Map<String, String> entities = Collections.emptyMap();
+	private int expansions = 0;
+	// names, prefixes and namespace URIs
+	private final QuiXCharStreamInterner names = new QuiXCharStreamInterner();
+	// qualified names, coded by the name pool
+	private final QuiXQNameInterner qnames;
+	// events ready to be read
+	private final QuiXEventDeque events = new QuiXEventDeque();
+	// text not delivered yet, copied from the buffer of the parser
+	private char[] text = new char[256];
+	private int textLength = 0;
+	// the text not delivered yet when it does not fit in text
+	private QuiXCharStream largeText = null;
+	private boolean eof = false;
+	private boolean done = false;
+	// thrown once the events before it have been read
+	private QuiXException failure = null;
+
+	/**
+	 * The names are coded by a pool of this reader
+	 *
+	 * @param systemId
+	 *            the base URI of the document, may be {@code null}
+	 */
+	public AsyncXMLQuiXEventReader(final String systemId) {
+		this(systemId, new QuiXNamePool(XMLQuiXEventStreamReader.DEFAULT_MAX_NAMES));
+	}
+
+	/**
+	 * @param systemId
+	 *            the base URI of the document, may be {@code null}
+	 * @param pool
+	 *            codes the names of the document, see
+	 *            {@link XMLQuiXEventStreamReader#setNamePool(QuiXNamePool)}
+	 */
+	public AsyncXMLQuiXEventReader(final String systemId, final QuiXNamePool pool) {
+		this.sreader = FACTORY.createAsyncForByteBuffer();
+		this.qnames = new QuiXQNameInterner(pool);
+		this.baseURI = QuiXCharStream.fromSequence(systemId);
+		this.events.add(AQuiXEvent.getStartDocument(this.baseURI));
+	}
+
+	/**
+	 * @return the pool coding the names of the events
+	 */
+	public QuiXNamePool getNamePool() {
+		return this.qnames.getNamePool();
+	}
+
+	/**
+	 * Push the next bytes of the document : they are parsed before returning,
+	 * so that the array can be reused
+	 *
+	 * @param b
+	 * @param off
+	 * @param len
+	 */
+	public void feed(final byte[] b, final int off, final int len) {
+		feed(ByteBuffer.wrap(b, off, len));
+	}
+
+	/**
+	 * Push the remaining bytes of {@code src} : they are parsed before
+	 * returning, so that the buffer can be reused
+	 *
+	 * @param src
+	 */
+	public void feed(final ByteBuffer src) {
+		if (this.eof)
+			throw new IllegalStateException("The end of input has already been signaled");
+		if (this.failure == null && !this.done) {
+			try {
+				if (this.prolog == null) {
+					this.sreader.getInputFeeder().feedInput(src);
+					parse();
+				} else {
+					this.prolog.append(src);
+					feedProlog(false);
+				}
+			} catch (final XMLStreamException e) {
+				this.failure = new QuiXException(e);
+			} catch (final QuiXException e) {
+				this.failure = e;
+			}
+		}
+		src.position(src.limit());
+	}
+
+	/**
+	 * Give the parser the bytes of the prolog that are not in a DOCTYPE, read
+	 * the entities of the DOCTYPE
+	 *
+	 * @param all
+	 *            true at the end of input
+	 */
+	private void feedProlog(final boolean all) throws XMLStreamException {
+		byte[] doctype;
+		while ((doctype = this.prolog.scan()) != null) {
+			// the XML declaration before it gives the encoding
+			feedParser(this.prolog.release(false));
+			final String encoding = this.sreader.getCharacterEncodingScheme();
+			final Charset charset = encoding == null || !Charset.isSupported(encoding) ? StandardCharsets.UTF_8
+					: Charset.forName(encoding);
+			this.entities = AsyncXMLProlog.entities(new String(doctype, charset));
+		}
+		final boolean over = this.prolog.isOver();
+		feedParser(this.prolog.release(all));
+		if (over)
+			this.prolog = null;
+	}
+
+	private void feedParser(final ByteBuffer bytes) throws XMLStreamException {
+		if (bytes == null)
+			return;
+		this.sreader.getInputFeeder().feedInput(bytes);
+		parse();
+	}
+
+	/**
+	 * No more bytes will be fed
+	 */
+	public void endOfInput() {
+		if (this.eof)
+			return;
+		this.eof = true;
+		if (this.failure != null || this.done)
+			return;
+		if (this.prolog != null) {
+			try {
+				feedProlog(true);
+			} catch (final XMLStreamException e) {
+				this.failure = new QuiXException(e);
+			} catch (final QuiXException e) {
+				this.failure = e;
+			}
+			this.prolog = null;
+			if (this.failure != null || this.done)
+				return;
+		}
+		this.sreader.getInputFeeder().endOfInput();
+		parse();
+		// the parser waits for the rest of a truncated document
+		if (!this.done && this.failure == null)
+			this.failure = new QuiXException("Unexpected end of document");
+	}
+
+	/**
+	 * @return the next event, {@code null} if more bytes are needed to build
+	 *         it (see {@link #needsInput()}) or if the document is over (see
+	 *         {@link #isFinished()})
+	 * @throws QuiXException
+	 *             when the document is not well-formed, once the events
+	 *             before the error have been read
+	 */
+	public AQuiXEvent next() {
+		if (this.events.isEmpty() && this.failure != null)
+			throw this.failure;
+		return this.events.poll();
+	}
+
+	/**
+	 * @return true if {@link #next()} cannot give an event before more bytes
+	 *         are fed
+	 */
+	public boolean needsInput() {
+		return this.events.isEmpty() && !this.done && this.failure == null;
+	}
+
+	/**
+	 * @return true once the END_DOCUMENT has been read
+	 */
+	public boolean isFinished() {
+		return this.done && this.events.isEmpty();
+	}
+
+	/**
+	 * Turn what the parser can read into events
+	 */
+	private void parse() {
+		try {
+			while (true) {
+				switch (this.sreader.next()) {
+				case AsyncXMLStreamReader.EVENT_INCOMPLETE:
+					return;
+				case XMLStreamConstants.START_ELEMENT:
+					flushText();
+					this.events.add(AQuiXEvent.getStartElement(elementName()));
+					final int namespaceCount = this.sreader.getNamespaceCount();
+					for (int i = 0; i < namespaceCount; i++) {
+						this.events.add(namespace(i));
+					}
+					final int attributeCount = this.sreader.getAttributeCount();
+					for (int i = 0; i < attributeCount; i++) {
+						this.events.add(AQuiXEvent.getAttribute(
+								this.qnames.intern(this.names.intern(this.sreader.getAttributeNamespace(i)),
+										this.names.intern(this.sreader.getAttributeLocalName(i)),
+										this.names.intern(this.sreader.getAttributePrefix(i))),
+								QuiXCharStream.fromSequence(this.sreader.getAttributeValue(i))));
+					}
+					break;
+				case XMLStreamConstants.END_ELEMENT:
+					flushText();
+					this.events.add(AQuiXEvent.getEndElement(elementName()));
+					break;
+				case XMLStreamConstants.CHARACTERS:
+				case XMLStreamConstants.CDATA:
+				case XMLStreamConstants.SPACE:
+					appendText(this.sreader.getTextCharacters(), this.sreader.getTextStart(),
+							this.sreader.getTextLength());
+					break;
+				case XMLStreamConstants.ENTITY_REFERENCE:
+					// not declared for the parser, which does not read the DOCTYPE
+					expand(this.sreader.getLocalName(), 0);
+					break;
+				case XMLStreamConstants.COMMENT:
+					flushText();
+					this.events.add(AQuiXEvent.getComment(QuiXCharStream.fromChars(this.sreader.getTextCharacters(),
+							this.sreader.getTextStart(), this.sreader.getTextLength())));
+					break;
+				case XMLStreamConstants.PROCESSING_INSTRUCTION:
+					flushText();
+					this.events.add(AQuiXEvent.getPI(QuiXCharStream.fromSequence(this.sreader.getPITarget()),
+							QuiXCharStream.fromSequence(this.sreader.getPIData())));
+					break;
+				case XMLStreamConstants.END_DOCUMENT:
+					flushText();
+					this.events.add(AQuiXEvent.getEndDocument(this.baseURI));
+					this.done = true;
+					this.sreader.close();
+					return;
+				case XMLStreamConstants.DTD:
+					// the one of the prolog has been taken out
+					throw new QuiXException("DOCTYPE is only allowed before the root element");
+				default:
+					// START_DOCUMENT already delivered
+					break;
+				}
+			}
+		} catch (final XMLStreamException e) {
+			this.failure = new QuiXException(e);
+		} catch (final QuiXException e) {
+			this.failure = e;
+		}
+	}
+
+	/**
+	 * Append the replacement text of an entity of the internal subset : it
+	 * can reference the predefined entities, characters and other entities of
+	 * the internal subset, but not contain markup
+	 */
+	private void expand(final String name, final int depth) {
+		final String value = this.entities.get(name);
+		if (value == null)
+			throw new QuiXException("Undeclared entity &" + name + ";");
+		if (value == AsyncXMLProlog.EXTERNAL)
+			throw new QuiXException("External entity &" + name + "; is not supported");
+		if (depth > MAX_ENTITY_DEPTH || ++this.expansions > MAX_ENTITY_EXPANSIONS)
+			throw new QuiXException("Too many entity expansions for &" + name + ";");
+		if (value.indexOf('<') != -1)
+			throw new QuiXException("Markup in entity &" + name + "; is not supported");
+		final char[] chars = value.toCharArray();
+		int start = 0;
+		int amp;
+		while ((amp = value.indexOf('&', start)) != -1) {
+			appendText(chars, start, amp - start);
+			final int semicolon = value.indexOf(';', amp);
+			if (semicolon == -1)
+				throw new QuiXException("Unterminated reference in entity &" + name + ";");
+			final String reference = value.substring(amp + 1, semicolon);
+			if (reference.startsWith("#")) {
+				final char[] c = Character.toChars(AsyncXMLProlog.characterReference(reference.substring(1)));
+				appendText(c, 0, c.length);
+			} else {
+				final char predefined = predefined(reference);
+				if (predefined != 0)
+					appendText(new char[] { predefined }, 0, 1);
+				else
+					expand(reference, depth + 1);
+			}
+			start = semicolon + 1;
+		}
+		appendText(chars, start, chars.length - start);
+	}
+
+	private static char predefined(final String name) {
+		switch (name) {
+		case "lt":
+			return '<';
+		case "gt":
+			return '>';
+		case "amp":
+			return '&';
+		case "apos":
+			return '\'';
+		case "quot":
+			return '"';
+		default:
+			return 0;
+		}
+	}
+
+	private QuiXQName elementName() {
+		return this.qnames.intern(this.names.intern(this.sreader.getNamespaceURI()),
+				this.names.intern(this.sreader.getLocalName()), this.names.intern(this.sreader.getPrefix()));
+	}
+
+	private AQuiXEvent namespace(final int i) {
+		final String prefix = this.sreader.getNamespacePrefix(i);
+		final String uri = this.sreader.getNamespaceURI(i);
+		if (prefix != null && !prefix.isEmpty() && (uri == null || uri.isEmpty()))
+			// only XML 1.1 can undeclare a prefix
+			throw new QuiXException("The namespace prefix " + prefix + " cannot be bound to the empty URI");
+		// so that the namespace context can be looked up by code
+		final QuiXNamePool pool = this.qnames.getNamePool();
+		pool.tryAllocatePrefix(prefix);
+		pool.tryAllocateURI(uri);
+		return AQuiXEvent.getNamespace(this.names.intern(prefix), this.names.intern(uri));
+	}
+
+	private void flushText() {
+		if (this.largeText != null) {
+			this.events.add(AQuiXEvent.getText(this.largeText));
+			this.largeText = null;
+		} else if (this.textLength > 0) {
+			this.events.add(AQuiXEvent.getText(QuiXCharStream.fromChars(this.text, 0, this.textLength)));
+		}
+		this.textLength = 0;
+	}
+
+	/**
+	 * Copy text : into text while it fits, then into a rope
+	 */
+	private void appendText(final char[] chars, final int start, final int length) {
+		if (length == 0)
+			return;
+		if (this.largeText != null || this.textLength + length > MAX_TEXT_CAPACITY) {
+			if (this.largeText == null)
+				this.largeText = QuiXCharStream.EMPTY.append(CharBuffer.wrap(this.text, 0, this.textLength));
+			this.largeText = this.largeText.append(CharBuffer.wrap(chars, start, length));
+			this.textLength = 0;
+			return;
+		}
+		if (this.textLength + length > this.text.length) {
+			final char[] larger = new char[Math.max(this.text.length * 2, this.textLength + length)];
+			System.arraycopy(this.text, 0, larger, 0, this.textLength);
+			this.text = larger;
+		}
+		System.arraycopy(chars, start, this.text, this.textLength, length);
+		this.textLength += length;
+	}
+
+}
@@ -9,8 +9,6 @@ package innovimax.quixproc.datamodel.in.xml;
 
 import java.util.Arrays;
 import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.Queue;
 
 import javax.xml.namespace.NamespaceContext;
 import javax.xml.namespace.QName;
@@ -24,6 +22,7 @@ import javax.xml.transform.Source;
 import innovimax.quixproc.datamodel.QuiXCharStream;
 import innovimax.quixproc.datamodel.QuiXToken;
 import innovimax.quixproc.datamodel.event.AQuiXEvent;
+import innovimax.quixproc.datamodel.event.QuiXEventDeque;
 import innovimax.quixproc.datamodel.stream.IQuiXStreamReader;
 import innovimax.quixproc.datamodel.stream.QuiXStreamException;
 import javax.xml.transform.stream.StreamSource;
@@ -35,7 +34,7 @@ public class QuiXStreamReader implements IQuiXStreamReader {
 	private final XMLInputFactory ifactory;
 	private XMLStreamReader sreader;
 	private QuiXCharStream baseURI;
-	private final Queue<AQuiXEvent> buffer = new LinkedList<AQuiXEvent>();
+	private final QuiXEventDeque buffer = new QuiXEventDeque();
 
 	private QuiXStreamReader(final Iterable<Source> sources) {
 		this.ifactory = XMLInputFactory.newFactory();
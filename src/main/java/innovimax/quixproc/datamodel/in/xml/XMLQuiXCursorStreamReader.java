@@ -0,0 +1,116 @@
+/*
+ * QuiXProc: efficient evaluation of XProc Pipelines.
+ * Copyright (C) 2011-2018 Innovimax
+ * All rights reserved.
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0*/
+package innovimax.quixproc.datamodel.in.xml;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.transform.Source;
+
+import innovimax.quixproc.datamodel.QuiXException;
+import innovimax.quixproc.datamodel.event.QuiXEventBuffer;
+import innovimax.quixproc.datamodel.in.AQuiXCursorStreamReader;
+import innovimax.quixproc.datamodel.in.AStreamSource;
+import innovimax.quixproc.datamodel.in.AStreamSource.XMLStreamSource;
+
+public class XMLQuiXCursorStreamReader extends AQuiXCursorStreamReader {
+
+	private final XMLInputFactory ifactory;
+	private XMLStreamReader sreader;
+	private String baseURI;
+
+	public XMLQuiXCursorStreamReader() {
+		this.ifactory = XMLInputFactory.newFactory();
+		this.ifactory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.FALSE);
+		this.ifactory.setProperty(XMLInputFactory.IS_VALIDATING, Boolean.FALSE);
+	}
+
+	@Override
+	protected void load(final AStreamSource current, final QuiXEventBuffer buffer) {
+		final Source source = ((XMLStreamSource) current).asSource();
+		try {
+			this.sreader = this.ifactory.createXMLStreamReader(source);
+		} catch (final XMLStreamException e) {
+			throw new QuiXException(e);
+		}
+		this.baseURI = source.getSystemId();
+		buffer.startDocument(this.baseURI);
+	}
+
+	/**
+	 * The characters are accumulated in the buffer as a single TEXT until the
+	 * next structural event
+	 */
+	@Override
+	protected boolean fill(final QuiXEventBuffer buffer) {
+		try {
+			while (true) {
+				if (!this.sreader.hasNext()) {
+					// the document has not been closed
+					buffer.endDocument(this.baseURI);
+					return false;
+				}
+				final int code = this.sreader.next();
+				switch (code) {
+				case XMLStreamConstants.START_ELEMENT:
+					buffer.startElement(buffer.name(this.sreader.getLocalName(), this.sreader.getNamespaceURI(),
+							this.sreader.getPrefix()));
+					for (int i = 0; i < this.sreader.getNamespaceCount(); i++) {
+						buffer.namespace(this.sreader.getNamespacePrefix(i), this.sreader.getNamespaceURI(i));
+					}
+					for (int i = 0; i < this.sreader.getAttributeCount(); i++) {
+						buffer.attribute(
+								buffer.name(this.sreader.getAttributeLocalName(i), this.sreader.getAttributeNamespace(i),
+										this.sreader.getAttributePrefix(i)),
+								this.sreader.getAttributeValue(i));
+					}
+					return true;
+				case XMLStreamConstants.END_ELEMENT:
+					buffer.endElement(buffer.name(this.sreader.getLocalName(), this.sreader.getNamespaceURI(),
+							this.sreader.getPrefix()));
+					return true;
+				case XMLStreamConstants.END_DOCUMENT:
+					buffer.endDocument(this.baseURI);
+					return false;
+				case XMLStreamConstants.CDATA:
+				case XMLStreamConstants.CHARACTERS:
+				case XMLStreamConstants.SPACE:
+					buffer.appendText(this.sreader.getTextCharacters(), this.sreader.getTextStart(),
+							this.sreader.getTextLength());
+					// do loop
+					break;
+				case XMLStreamConstants.COMMENT:
+					buffer.comment(this.sreader.getText());
+					return true;
+				case XMLStreamConstants.PROCESSING_INSTRUCTION:
+					buffer.processingInstruction(this.sreader.getPITarget(), this.sreader.getPIData());
+					return true;
+				case XMLStreamConstants.START_DOCUMENT:
+				default:
+					// do loop
+					break;
+				}
+			}
+		} catch (final XMLStreamException e) {
+			throw new QuiXException(e);
+		}
+	}
+
+	@Override
+	public void close() {
+		if (this.sreader != null) {
+			try {
+				this.sreader.close();
+			} catch (final XMLStreamException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+}
@@ -7,6 +7,10 @@
  *        http://www.apache.org/licenses/LICENSE-2.0*/
 package innovimax.quixproc.datamodel.in.xml;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.CharBuffer;
+
 import javax.xml.stream.XMLInputFactory;
 import javax.xml.stream.XMLStreamConstants;
 import javax.xml.stream.XMLStreamException;
@@ -14,7 +18,11 @@ import javax.xml.stream.XMLStreamReader;
 import javax.xml.transform.Source;
 
 import innovimax.quixproc.datamodel.QuiXCharStream;
+import innovimax.quixproc.datamodel.QuiXCharStreamInterner;
 import innovimax.quixproc.datamodel.QuiXException;
+import innovimax.quixproc.datamodel.QuiXNamePool;
+import innovimax.quixproc.datamodel.QuiXQName;
+import innovimax.quixproc.datamodel.QuiXQNameInterner;
 import innovimax.quixproc.datamodel.event.AQuiXEvent;
 import innovimax.quixproc.datamodel.in.AQuiXEventBufferStreamReader;
 import innovimax.quixproc.datamodel.in.AStreamSource;
@@ -23,18 +31,107 @@ import innovimax.quixproc.datamodel.in.QuiXEventStreamReader.State;
 
 public class XMLQuiXEventStreamReader extends AQuiXEventBufferStreamReader {
 
+	/**
+	 * The bound of the name pool of a reader, see
+	 * {@link #setNamePool(QuiXNamePool)}
+	 */
+	public static final int DEFAULT_MAX_NAMES = 1 << 16;
+
 	private final XMLInputFactory ifactory;
 	private XMLStreamReader sreader;
 	private QuiXCharStream baseURI;
+	// names, prefixes and namespace URIs
+	private final QuiXCharStreamInterner names = new QuiXCharStreamInterner();
+	// qualified names, coded by the name pool of this reader
+	private QuiXQNameInterner qnames = new QuiXQNameInterner(new QuiXNamePool(DEFAULT_MAX_NAMES));
+	// text longer than that is delivered as a streaming TEXT
+	private int textStreamingThreshold = Integer.MAX_VALUE;
+	private int maxStreamingTextHeld = 0;
+	// the streaming TEXT being read, if any
+	private TextReader streamingText = null;
+	// the event that ended the streaming TEXT, not processed yet
+	private int pendingCode = NO_CODE;
+	private static final int NO_CODE = -1;
+	// text not delivered yet, copied from the buffer of the parser
+	private char[] text = new char[256];
+	private int textLength = 0;
+	// the text not delivered yet when it does not fit in text
+	private QuiXCharStream largeText = null;
+	private static final int MAX_TEXT_CAPACITY = 64 * 1024;
 
 	public XMLQuiXEventStreamReader() {
-		this.ifactory = XMLInputFactory.newFactory();
+		// the built-in parser whatever is on the class path : it splits the
+		// long text nodes in chunks, which the streaming TEXT relies on
+		this.ifactory = XMLInputFactory.newDefaultFactory();
 		this.ifactory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.FALSE);
 		this.ifactory.setProperty(XMLInputFactory.IS_VALIDATING, Boolean.FALSE);
 	}
 
+	/**
+	 * Deliver the text nodes longer than {@code threshold} characters as a
+	 * streaming TEXT (see {@link QuiXCharStream#isStreaming()}) : its content
+	 * is pulled from the parser while it is read through
+	 * {@link QuiXCharStream#asReader()}, so that at most {@code threshold}
+	 * characters plus one chunk of the parser are held in memory whatever the
+	 * size of the text node.
+	 *
+	 * The streaming TEXT must be read before asking for the next event : what
+	 * is left is skipped then, and reading it afterwards throws an
+	 * {@link IllegalStateException}. Hence streaming is only valid when the
+	 * events are pulled and consumed one at a time, not when they are handed
+	 * over (to a queue, in a batch) before being read.
+	 *
+	 * @param threshold
+	 *            {@link Integer#MAX_VALUE} (the default) to never stream
+	 */
+	public void setTextStreamingThreshold(final int threshold) {
+		if (threshold <= 0)
+			throw new IllegalArgumentException("threshold must be positive : " + threshold);
+		this.textStreamingThreshold = threshold;
+	}
+
+	/**
+	 * Code the names read with {@code pool} instead of the pool of this
+	 * reader : share a pool between the readers of a pipeline so that their
+	 * names are compared by code.
+	 *
+	 * By default each reader has its own pool, bounded to
+	 * {@value #DEFAULT_MAX_NAMES} names so that an open vocabulary cannot
+	 * exhaust it : beyond, the names are compared by content.
+	 *
+	 * @param pool
+	 */
+	public void setNamePool(final QuiXNamePool pool) {
+		this.qnames = new QuiXQNameInterner(pool);
+	}
+
+	/**
+	 * @return the pool coding the names of the events read, see
+	 *         {@link innovimax.quixproc.datamodel.QuiXQName#getNamePool()}
+	 */
+	public QuiXNamePool getNamePool() {
+		return this.qnames.getNamePool();
+	}
+
+	/**
+	 * @return the most characters held at once by a streaming TEXT so far :
+	 *         the text read before streaming (at most the threshold) plus the
+	 *         current text chunk of the parser
+	 */
+	public int getMaxStreamingTextHeld() {
+		return this.maxStreamingTextHeld;
+	}
+
 	private AQuiXEvent load(final Source current) {
+		this.streamingText = null;
+		this.pendingCode = NO_CODE;
+		this.textLength = 0;
+		this.largeText = null;
 		try {
+			if (this.sreader != null) {
+				// release the parser of the previous source
+				this.sreader.close();
+			}
 			this.sreader = this.ifactory.createXMLStreamReader(current);
 		} catch (final XMLStreamException e) {
 			throw new QuiXException(e);
@@ -43,16 +140,19 @@ public class XMLQuiXEventStreamReader extends AQuiXEventBufferStreamReader {
 		return AQuiXEvent.getStartDocument(this.baseURI);
 	}
 
-	private QuiXCharStream charBuffer = QuiXCharStream.EMPTY;
-
 	@Override
 	public AQuiXEvent process(final CallBack callback) {
 		try {
+			if (this.streamingText != null) {
+				// skip what has not been read, it cannot be read anymore
+				this.streamingText.invalidate();
+				this.streamingText = null;
+			}
 			if (!this.buffer.isEmpty()) {
 				return this.buffer.poll();
 			}
 			AQuiXEvent event;
-			if (!this.sreader.hasNext() && callback.getState() == State.START_SOURCE) {
+			if (this.pendingCode == NO_CODE && !this.sreader.hasNext() && callback.getState() == State.START_SOURCE) {
 				// special case if the buffer is empty but the document has not
 				// been closed
 				event = AQuiXEvent.getEndDocument(this.baseURI);
@@ -63,7 +163,13 @@ public class XMLQuiXEventStreamReader extends AQuiXEventBufferStreamReader {
 				return callback.processEndSource();
 			}
 			while (true) {
-				final int code = this.sreader.next();
+				final int code;
+				if (this.pendingCode == NO_CODE) {
+					code = this.sreader.next();
+				} else {
+					code = this.pendingCode;
+					this.pendingCode = NO_CODE;
+				}
 				switch (code) {
 				case XMLStreamConstants.START_DOCUMENT:
 					// System.out.println("START_DOCUMENT");
@@ -71,22 +177,13 @@ public class XMLQuiXEventStreamReader extends AQuiXEventBufferStreamReader {
 					break;
 				case XMLStreamConstants.START_ELEMENT:
 					// System.out.println("START_ELEMENT");
-					event = AQuiXEvent.getStartElement(QuiXCharStream.fromSequence(this.sreader.getLocalName()),
-							QuiXCharStream.fromSequence(this.sreader.getNamespaceURI()),
-							QuiXCharStream.fromSequence(this.sreader.getPrefix()));
+					event = AQuiXEvent.getStartElement(elementName());
 					event = updateText(event);
-					for (int i = 0; i < this.sreader.getNamespaceCount(); i++) {
-						this.buffer.add(
-								AQuiXEvent.getNamespace(QuiXCharStream.fromSequence(this.sreader.getNamespacePrefix(i)),
-										QuiXCharStream.fromSequence(this.sreader.getNamespaceURI(i))));
-					}
-					for (int i = 0; i < this.sreader.getAttributeCount(); i++) {
-						this.buffer.add(AQuiXEvent.getAttribute(
-								QuiXCharStream.fromSequence(this.sreader.getAttributeLocalName(i)),
-								QuiXCharStream.fromSequence(this.sreader.getAttributeNamespace(i)),
-								QuiXCharStream.fromSequence(this.sreader.getAttributePrefix(i)),
-								QuiXCharStream.fromSequence(this.sreader.getAttributeValue(i))));
+					final int namespaceCount = this.sreader.getNamespaceCount();
+					for (int i = 0; i < namespaceCount; i++) {
+						this.buffer.add(namespace(i));
 					}
+					addAttributes();
 					return event;
 				case XMLStreamConstants.END_DOCUMENT:
 					// System.out.println("END_DOCUMENT");
@@ -96,39 +193,38 @@ public class XMLQuiXEventStreamReader extends AQuiXEventBufferStreamReader {
 					return event;
 				case XMLStreamConstants.END_ELEMENT:
 					// System.out.println("END_ELEMENT");
-					event = AQuiXEvent.getEndElement(QuiXCharStream.fromSequence(this.sreader.getLocalName()),
-							QuiXCharStream.fromSequence(this.sreader.getNamespaceURI()),
-							QuiXCharStream.fromSequence(this.sreader.getPrefix()));
+					event = AQuiXEvent.getEndElement(elementName());
 					event = updateText(event);
 					return event;
 				case XMLStreamConstants.ATTRIBUTE:
 					// System.out.println("ATTRIBUTE");
-					for (int i = 0; i < this.sreader.getAttributeCount(); i++) {
-						this.buffer.add(AQuiXEvent.getAttribute(
-								QuiXCharStream.fromSequence(this.sreader.getAttributeLocalName(i)),
-								QuiXCharStream.fromSequence(this.sreader.getAttributeNamespace(i)),
-								QuiXCharStream.fromSequence(this.sreader.getAttributePrefix(i)),
-								QuiXCharStream.fromSequence(this.sreader.getAttributeValue(i))));
-					}
+					addAttributes();
 					return this.buffer.poll();
 				case XMLStreamConstants.CDATA:
 					// System.out.println("CDATA");
-					this.charBuffer = this.charBuffer.append(this.sreader.getText());
+					appendText();
+					if (textSize() >= this.textStreamingThreshold)
+						return streamText();
 					// do loop
 					break;
 				case XMLStreamConstants.CHARACTERS:
 					// System.out.println("CHARACTERS");
-					this.charBuffer = this.charBuffer.append(this.sreader.getText());
+					appendText();
+					if (textSize() >= this.textStreamingThreshold)
+						return streamText();
 					// do loop
 					break;
 				case XMLStreamConstants.SPACE:
 					// System.out.println("SPACE");
-					this.charBuffer.append(this.sreader.getText());
+					appendText();
+					if (textSize() >= this.textStreamingThreshold)
+						return streamText();
 					// do loop
 					break;
 				case XMLStreamConstants.COMMENT:
 					// System.out.println("COMMENT");
-					event = AQuiXEvent.getComment(QuiXCharStream.fromSequence(this.sreader.getText()));
+					event = AQuiXEvent.getComment(QuiXCharStream.fromChars(this.sreader.getTextCharacters(),
+							this.sreader.getTextStart(), this.sreader.getTextLength()));
 					event = updateText(event);
 					return event;
 				case XMLStreamConstants.PROCESSING_INSTRUCTION:
@@ -144,7 +240,7 @@ public class XMLQuiXEventStreamReader extends AQuiXEventBufferStreamReader {
 					break;
 				}
 			}
-		} catch (final XMLStreamException e) {
+		} catch (final XMLStreamException | IOException e) {
 			throw new QuiXException(e);
 		}
 	}
@@ -158,15 +254,180 @@ public class XMLQuiXEventStreamReader extends AQuiXEventBufferStreamReader {
 	 * @return
 	 */
 	private AQuiXEvent updateText(final AQuiXEvent event) {
-		if (!this.charBuffer.isEmpty()) {
-			final AQuiXEvent text = AQuiXEvent.getText(this.charBuffer);
-			this.charBuffer = QuiXCharStream.EMPTY;
+		if (textSize() > 0) {
+			final AQuiXEvent text = AQuiXEvent.getText(takeText());
 			this.buffer.add(event);
 			return text;
 		}
 		return event;
 	}
 
+	private QuiXQName elementName() {
+		return this.qnames.intern(this.names.intern(this.sreader.getNamespaceURI()),
+				this.names.intern(this.sreader.getLocalName()), this.names.intern(this.sreader.getPrefix()));
+	}
+
+	private AQuiXEvent namespace(final int i) {
+		final String prefix = this.sreader.getNamespacePrefix(i);
+		final String uri = this.sreader.getNamespaceURI(i);
+		// so that the namespace context can be looked up by code
+		final QuiXNamePool pool = this.qnames.getNamePool();
+		pool.tryAllocatePrefix(prefix);
+		pool.tryAllocateURI(uri);
+		return AQuiXEvent.getNamespace(this.names.intern(prefix), this.names.intern(uri));
+	}
+
+	private void addAttributes() {
+		final int attributeCount = this.sreader.getAttributeCount();
+		for (int i = 0; i < attributeCount; i++) {
+			this.buffer.add(AQuiXEvent.getAttribute(
+					this.qnames.intern(this.names.intern(this.sreader.getAttributeNamespace(i)),
+							this.names.intern(this.sreader.getAttributeLocalName(i)),
+							this.names.intern(this.sreader.getAttributePrefix(i))),
+					QuiXCharStream.fromSequence(this.sreader.getAttributeValue(i))));
+		}
+	}
+
+	private int textSize() {
+		return this.largeText == null ? this.textLength : this.largeText.length();
+	}
+
+	private QuiXCharStream takeText() {
+		final QuiXCharStream result;
+		if (this.largeText == null) {
+			result = QuiXCharStream.fromChars(this.text, 0, this.textLength);
+		} else {
+			result = this.largeText;
+			this.largeText = null;
+		}
+		this.textLength = 0;
+		return result;
+	}
+
+	/**
+	 * Copy the current text event of the parser, without building a
+	 * {@link String} : into text while it fits, then into a rope
+	 */
+	private void appendText() {
+		final int length = this.sreader.getTextLength();
+		if (this.largeText != null || this.textLength + length > MAX_TEXT_CAPACITY) {
+			if (this.largeText == null)
+				this.largeText = QuiXCharStream.EMPTY.append(CharBuffer.wrap(this.text, 0, this.textLength));
+			this.largeText = this.largeText
+					.append(CharBuffer.wrap(this.sreader.getTextCharacters(), this.sreader.getTextStart(), length));
+			this.textLength = 0;
+			return;
+		}
+		if (this.textLength + length > this.text.length) {
+			final char[] larger = new char[Math.max(this.text.length * 2, this.textLength + length)];
+			System.arraycopy(this.text, 0, larger, 0, this.textLength);
+			this.text = larger;
+		}
+		System.arraycopy(this.sreader.getTextCharacters(), this.sreader.getTextStart(), this.text, this.textLength,
+				length);
+		this.textLength += length;
+	}
+
+	private AQuiXEvent streamText() {
+		this.streamingText = new TextReader(takeText());
+		return AQuiXEvent.getText(QuiXCharStream.fromReader(this.streamingText));
+	}
+
+	/**
+	 * Content of a streaming TEXT : the text read so far then the following
+	 * text events of the parser, up to the first other event which is kept
+	 * as pending
+	 */
+	private final class TextReader extends Reader {
+		private final QuiXCharStream head;
+		private int headPos = 0;
+		// position in the current text event of the parser
+		private int textPos;
+		private boolean finished = false;
+		// the rest has been skipped by the next event
+		private boolean stale = false;
+
+		TextReader(final QuiXCharStream head) {
+			this.head = head;
+			// the current text event is already in head
+			this.textPos = Integer.MAX_VALUE;
+			held(0);
+		}
+
+		private void held(final int chunk) {
+			final XMLQuiXEventStreamReader reader = XMLQuiXEventStreamReader.this;
+			reader.maxStreamingTextHeld = Math.max(reader.maxStreamingTextHeld, this.head.length() + chunk);
+		}
+
+		@Override
+		public int read(final char[] cbuf, final int off, final int len) throws IOException {
+			if (this.stale)
+				throw new IllegalStateException("The streaming TEXT must be read before the next event");
+			if (len == 0)
+				return 0;
+			if (this.headPos < this.head.length()) {
+				final int n = Math.min(len, this.head.length() - this.headPos);
+				this.head.getChars(this.headPos, this.headPos + n, cbuf, off);
+				this.headPos += n;
+				return n;
+			}
+			final XMLStreamReader sr = XMLQuiXEventStreamReader.this.sreader;
+			try {
+				while (!this.finished) {
+					if (this.textPos < sr.getTextLength()) {
+						final int n = sr.getTextCharacters(this.textPos, cbuf, off,
+								Math.min(len, sr.getTextLength() - this.textPos));
+						this.textPos += n;
+						return n;
+					}
+					final int code = sr.next();
+					switch (code) {
+					case XMLStreamConstants.CDATA:
+					case XMLStreamConstants.CHARACTERS:
+					case XMLStreamConstants.SPACE:
+						this.textPos = 0;
+						held(sr.getTextLength());
+						break;
+					default:
+						XMLQuiXEventStreamReader.this.pendingCode = code;
+						this.finished = true;
+					}
+				}
+			} catch (final XMLStreamException e) {
+				throw new IOException(e);
+			}
+			return -1;
+		}
+
+		/**
+		 * Skip the rest of the text
+		 *
+		 * @return true if some text has been skipped
+		 */
+		private boolean skip() throws IOException {
+			final char[] skip = new char[4096];
+			boolean skipped = false;
+			while (read(skip, 0, skip.length) != -1) {
+				skipped = true;
+			}
+			return skipped;
+		}
+
+		@Override
+		public void close() throws IOException {
+			skip();
+		}
+
+		/**
+		 * Skip the rest of the text for the next event : it cannot be read
+		 * anymore
+		 */
+		void invalidate() throws IOException {
+			if (skip())
+				this.stale = true;
+		}
+	}
+
 	@Override
 	public void close() {
 		try {
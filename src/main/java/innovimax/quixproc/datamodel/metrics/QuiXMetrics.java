@@ -0,0 +1,315 @@
+/*
+ * QuiXProc: efficient evaluation of XProc Pipelines.
+ * Copyright (C) 2011-2018 Innovimax
+ * All rights reserved.
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0*/
+package innovimax.quixproc.datamodel.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import innovimax.quixproc.datamodel.QuiXException;
+import innovimax.quixproc.datamodel.QuiXToken;
+import innovimax.quixproc.datamodel.ValidationPolicy;
+
+/**
+ * Instrumentation of the creation of events, per {@link QuiXToken}, and of the
+ * validation of the streams, per {@link ValidationPolicy}.
+ *
+ * The counters are striped ({@link LongAdder}) so that concurrent parsers do
+ * not fight for the same cache line. They can be switched off with the system
+ * property {@code -Dquixdm.metrics=false} : {@link #ENABLED} being a constant,
+ * the JIT then removes the instrumentation entirely.
+ *
+ * @author innovimax
+ */
+public final class QuiXMetrics {
+
+	/**
+	 * Name of the system property switching the metrics on or off
+	 */
+	public static final String PROPERTY = "quixdm.metrics";
+	public static final boolean ENABLED = Boolean.parseBoolean(System.getProperty(PROPERTY, "true"));
+	/**
+	 * Name of the MXBean registered by {@link #registerMXBean()}
+	 */
+	public static final String OBJECT_NAME = "innovimax.quixproc:type=QuiXMetrics";
+
+	private static final QuiXToken[] TOKENS = QuiXToken.values();
+	private static final LongAdder[] CREATED = newAdders();
+	private static final LongAdder[] FACTORY_CALLS = newAdders();
+	private static final ValidationPolicy[] POLICIES = ValidationPolicy.values();
+	private static final LongAdder[] VALIDATIONS = newAdders(POLICIES.length);
+	private static final LongAdder FULLY_VALIDATED_DOCUMENTS = new LongAdder();
+	private static final LongAdder STRUCTURE_VALIDATED_DOCUMENTS = new LongAdder();
+
+	private QuiXMetrics() {
+	}
+
+	private static LongAdder[] newAdders() {
+		return newAdders(TOKENS.length);
+	}
+
+	private static LongAdder[] newAdders(final int length) {
+		final LongAdder[] adders = new LongAdder[length];
+		for (int i = 0; i < adders.length; i++) {
+			adders[i] = new LongAdder();
+		}
+		return adders;
+	}
+
+	/**
+	 * An event of this type has been instantiated
+	 */
+	public static void created(final QuiXToken token) {
+		if (ENABLED)
+			CREATED[token.ordinal()].increment();
+	}
+
+	/**
+	 * An event of this type has been asked to a factory (it may have been
+	 * served from a cache)
+	 */
+	public static void factoryCall(final QuiXToken token) {
+		if (ENABLED)
+			FACTORY_CALLS[token.ordinal()].increment();
+	}
+
+	/**
+	 * A stream is read with this validation policy
+	 */
+	public static void validation(final ValidationPolicy policy) {
+		if (ENABLED)
+			VALIDATIONS[policy.ordinal()].increment();
+	}
+
+	/**
+	 * A document of a sequence has been validated, either against the whole
+	 * grammar or only for its balance
+	 */
+	public static void validatedDocument(final boolean full) {
+		if (ENABLED)
+			(full ? FULLY_VALIDATED_DOCUMENTS : STRUCTURE_VALIDATED_DOCUMENTS).increment();
+	}
+
+	public static long getCreated(final QuiXToken token) {
+		return CREATED[token.ordinal()].sum();
+	}
+
+	public static long getFactoryCalls(final QuiXToken token) {
+		return FACTORY_CALLS[token.ordinal()].sum();
+	}
+
+	private static long sum(final LongAdder[] adders) {
+		long sum = 0;
+		for (final LongAdder adder : adders) {
+			sum += adder.sum();
+		}
+		return sum;
+	}
+
+	/**
+	 * @return the number of events instantiated, all types together
+	 */
+	public static long getCreatedTotal() {
+		return sum(CREATED);
+	}
+
+	/**
+	 * @return the number of calls to the factories, all types together
+	 */
+	public static long getFactoryCallTotal() {
+		return sum(FACTORY_CALLS);
+	}
+
+	/**
+	 * @return the number of streams read with this validation policy
+	 */
+	public static long getValidations(final ValidationPolicy policy) {
+		return VALIDATIONS[policy.ordinal()].sum();
+	}
+
+	public static long getFullyValidatedDocuments() {
+		return FULLY_VALIDATED_DOCUMENTS.sum();
+	}
+
+	public static long getStructureValidatedDocuments() {
+		return STRUCTURE_VALIDATED_DOCUMENTS.sum();
+	}
+
+	public static void reset() {
+		for (final LongAdder adder : CREATED) {
+			adder.reset();
+		}
+		for (final LongAdder adder : FACTORY_CALLS) {
+			adder.reset();
+		}
+		for (final LongAdder adder : VALIDATIONS) {
+			adder.reset();
+		}
+		FULLY_VALIDATED_DOCUMENTS.reset();
+		STRUCTURE_VALIDATED_DOCUMENTS.reset();
+	}
+
+	/**
+	 * Immutable view of the counters at a given time (the counters are read
+	 * one after the other, so it is not atomic with respect to concurrent
+	 * updates)
+	 */
+	public static final class Snapshot {
+		private final Map<QuiXToken, Long> created;
+		private final Map<QuiXToken, Long> factoryCalls;
+		private final Map<ValidationPolicy, Long> validations;
+
+		Snapshot() {
+			final EnumMap<QuiXToken, Long> c = new EnumMap<QuiXToken, Long>(QuiXToken.class);
+			final EnumMap<QuiXToken, Long> f = new EnumMap<QuiXToken, Long>(QuiXToken.class);
+			for (final QuiXToken token : TOKENS) {
+				c.put(token, QuiXMetrics.getCreated(token));
+				f.put(token, QuiXMetrics.getFactoryCalls(token));
+			}
+			final EnumMap<ValidationPolicy, Long> v = new EnumMap<ValidationPolicy, Long>(ValidationPolicy.class);
+			for (final ValidationPolicy policy : POLICIES) {
+				v.put(policy, QuiXMetrics.getValidations(policy));
+			}
+			this.created = Collections.unmodifiableMap(c);
+			this.factoryCalls = Collections.unmodifiableMap(f);
+			this.validations = Collections.unmodifiableMap(v);
+		}
+
+		public Map<QuiXToken, Long> getCreated() {
+			return this.created;
+		}
+
+		public Map<QuiXToken, Long> getFactoryCalls() {
+			return this.factoryCalls;
+		}
+
+		public Map<ValidationPolicy, Long> getValidations() {
+			return this.validations;
+		}
+
+		public long getCreatedTotal() {
+			long sum = 0;
+			for (final long value : this.created.values()) {
+				sum += value;
+			}
+			return sum;
+		}
+
+		@Override
+		public String toString() {
+			return "created=" + this.created + ", factoryCalls=" + this.factoryCalls + ", validations="
+					+ this.validations;
+		}
+	}
+
+	public static Snapshot snapshot() {
+		return new Snapshot();
+	}
+
+	/**
+	 * JMX view of {@link QuiXMetrics}
+	 */
+	public interface QuiXMetricsMXBean {
+		boolean isEnabled();
+
+		long getCreatedTotal();
+
+		long getFactoryCallTotal();
+
+		Map<String, Long> getCreatedByToken();
+
+		Map<String, Long> getFactoryCallsByToken();
+
+		Map<String, Long> getValidationsByPolicy();
+
+		long getFullyValidatedDocuments();
+
+		long getStructureValidatedDocuments();
+
+		void reset();
+	}
+
+	private static final class MXBean implements QuiXMetricsMXBean {
+		@Override
+		public boolean isEnabled() {
+			return ENABLED;
+		}
+
+		@Override
+		public long getCreatedTotal() {
+			return QuiXMetrics.getCreatedTotal();
+		}
+
+		@Override
+		public long getFactoryCallTotal() {
+			return QuiXMetrics.getFactoryCallTotal();
+		}
+
+		private static Map<String, Long> byName(final Map<? extends Enum<?>, Long> values) {
+			final Map<String, Long> result = new LinkedHashMap<String, Long>();
+			for (final Map.Entry<? extends Enum<?>, Long> entry : values.entrySet()) {
+				result.put(entry.getKey().name(), entry.getValue());
+			}
+			return result;
+		}
+
+		@Override
+		public Map<String, Long> getCreatedByToken() {
+			return byName(snapshot().getCreated());
+		}
+
+		@Override
+		public Map<String, Long> getFactoryCallsByToken() {
+			return byName(snapshot().getFactoryCalls());
+		}
+
+		@Override
+		public Map<String, Long> getValidationsByPolicy() {
+			return byName(snapshot().getValidations());
+		}
+
+		@Override
+		public long getFullyValidatedDocuments() {
+			return QuiXMetrics.getFullyValidatedDocuments();
+		}
+
+		@Override
+		public long getStructureValidatedDocuments() {
+			return QuiXMetrics.getStructureValidatedDocuments();
+		}
+
+		@Override
+		public void reset() {
+			QuiXMetrics.reset();
+		}
+	}
+
+	/**
+	 * Register the metrics in the platform MBean server under
+	 * {@link #OBJECT_NAME}, does nothing if already registered
+	 */
+	public static void registerMXBean() {
+		final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			server.registerMBean(new MXBean(), new ObjectName(OBJECT_NAME));
+		} catch (final InstanceAlreadyExistsException e) {
+			// already done
+		} catch (final JMException e) {
+			throw new QuiXException(e);
+		}
+	}
+
+}
@@ -16,6 +16,22 @@ public interface ISimpleQuiXQueue<T> {
 	 */
 	void append(T event);
 
+	/**
+	 * append a batch of events on this queue, the readers being woken up once
+	 * for the whole batch when the implementation supports it
+	 * 
+	 * @param events
+	 * @param off
+	 *            the index of the first event to append
+	 * @param len
+	 *            the number of events to append
+	 */
+	default void appendAll(final T[] events, final int off, final int len) {
+		for (int i = off; i < off + len; i++) {
+			append(events[i]);
+		}
+	}
+
 	/**
 	 * close the queue
 	 */
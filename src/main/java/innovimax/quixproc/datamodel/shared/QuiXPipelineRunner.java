@@ -0,0 +1,157 @@
+/*
+ * QuiXProc: efficient evaluation of XProc Pipelines.
+ * Copyright (C) 2011-2018 Innovimax
+ * All rights reserved.
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0*/
+package innovimax.quixproc.datamodel.shared;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import innovimax.quixproc.datamodel.IQuiXStream;
+
+/**
+ * Runs the steps of a pipeline (producers such as
+ * {@link innovimax.quixproc.datamodel.convert.saxon.AXdmNode2QuiXEventStreamConverter}
+ * or {@link #pump(IQuiXStream, ISimpleQuiXQueue)} of a
+ * {@link innovimax.quixproc.datamodel.in.QuiXEventStreamReader}, and the
+ * consumers of the {@link IQuiXQueue} readers) each on its own thread.
+ *
+ * When the JVM provides them, virtual threads are used so that thousands of
+ * small pipelines can run concurrently : the queues only wait with
+ * {@link java.util.concurrent.locks} so they do not pin the carrier threads.
+ * Otherwise it falls back to a cached pool of platform threads.
+ *
+ * @author innovimax
+ */
+public final class QuiXPipelineRunner implements AutoCloseable {
+
+	// number of events moved at once by a pump
+	private static final int PUMP_BATCH_SIZE = 256;
+
+	private final ExecutorService executor;
+	private final boolean virtual;
+
+	/**
+	 * Use virtual threads if available
+	 */
+	public QuiXPipelineRunner() {
+		this(true);
+	}
+
+	/**
+	 * @param preferVirtual
+	 *            if {@code false} platform threads are used even if virtual
+	 *            threads are available
+	 */
+	public QuiXPipelineRunner(final boolean preferVirtual) {
+		final ExecutorService virtualExecutor = preferVirtual ? newVirtualThreadPerTaskExecutor() : null;
+		if (virtualExecutor != null) {
+			this.executor = virtualExecutor;
+			this.virtual = true;
+		} else {
+			this.executor = Executors.newCachedThreadPool(r -> {
+				final Thread t = new Thread(r, "quix-pipeline");
+				t.setDaemon(true);
+				return t;
+			});
+			this.virtual = false;
+		}
+	}
+
+	/**
+	 * Looked up by reflection to stay compatible with older JVMs
+	 */
+	private static ExecutorService newVirtualThreadPerTaskExecutor() {
+		try {
+			final Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) method.invoke(null);
+		} catch (final ReflectiveOperationException | UnsupportedOperationException e) {
+			// not available (or preview not enabled)
+			return null;
+		}
+	}
+
+	/**
+	 * @return true if the steps run on virtual threads
+	 */
+	public boolean isVirtual() {
+		return this.virtual;
+	}
+
+	/**
+	 * Start a step of the pipeline
+	 *
+	 * @param step
+	 * @return
+	 */
+	public Future<?> submit(final Runnable step) {
+		return this.executor.submit(step);
+	}
+
+	/**
+	 * Start a producer copying {@code stream} into {@code queue} : both are
+	 * closed at the end
+	 *
+	 * @param stream
+	 * @param queue
+	 * @return
+	 */
+	public <T> Future<?> pump(final IQuiXStream<T> stream, final ISimpleQuiXQueue<T> queue) {
+		return submit(() -> {
+			try {
+				@SuppressWarnings("unchecked")
+				final T[] batch = (T[]) new Object[PUMP_BATCH_SIZE];
+				int count;
+				while ((count = stream.drainTo(batch, PUMP_BATCH_SIZE)) > 0) {
+					queue.appendAll(batch, 0, count);
+				}
+			} finally {
+				queue.close();
+				stream.close();
+			}
+		});
+	}
+
+	/**
+	 * Start a consumer of {@code stream} : the stream is closed at the end
+	 *
+	 * @param stream
+	 * @param consumer
+	 * @return
+	 */
+	public <T> Future<?> consume(final IQuiXStream<T> stream, final Consumer<? super T> consumer) {
+		return submit(() -> {
+			try {
+				while (stream.hasNext()) {
+					consumer.accept(stream.next());
+				}
+			} finally {
+				stream.close();
+			}
+		});
+	}
+
+	/**
+	 * Wait for the steps already submitted and release the threads
+	 */
+	@Override
+	public void close() {
+		this.executor.shutdown();
+		try {
+			while (!this.executor.awaitTermination(1, TimeUnit.MINUTES)) {
+				// keep waiting
+			}
+		} catch (final InterruptedException e) {
+			this.executor.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+	}
+
+}
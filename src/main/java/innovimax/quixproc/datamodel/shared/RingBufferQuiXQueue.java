@@ -0,0 +1,366 @@
+/*
+ * QuiXProc: efficient evaluation of XProc Pipelines.
+ * Copyright (C) 2011-2018 Innovimax
+ * All rights reserved.
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0*/
+package innovimax.quixproc.datamodel.shared;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.LockSupport;
+
+import innovimax.quixproc.datamodel.IQuiXStream;
+
+/**
+ * Single producer, multi consumer implementation of {@link IQuiXQueue} backed
+ * by a pre-sized ring of power-of-two length (Disruptor style).
+ *
+ * The producer publishes a sequence number with release semantic, each reader
+ * owns its own sequence that it advances once the slot has been read. A slot is
+ * reused only when every registered reader (and every reader that may still be
+ * registered) has passed it, so the memory footprint is bounded by the
+ * capacity whatever the size of the stream.
+ *
+ * As long as the reader registration is open (see
+ * {@link #setReaderCount(int)}, {@link #closeReaderRegistration()}) or a
+ * {@link IQuiXQueue.ProxyReader} is open, the first slot is retained so that
+ * late readers can start from the beginning: the producer will then wait once
+ * the ring is full.
+ *
+ * !!! NOT THREAD SAFE on the writing side : Only one thread should do the
+ * appending and closing here
+ *
+ * @author innovimax
+ */
+public final class RingBufferQuiXQueue<T> implements IQuiXQueue<T> {
+
+	/**
+	 * How a thread waits when the producer is ahead of the slowest reader or
+	 * when a reader has caught up with the producer
+	 */
+	public enum WaitStrategy {
+		/**
+		 * Busy spin : lowest latency, burns a core per waiting thread
+		 */
+		SPIN,
+		/**
+		 * Spin a little then yield the processor
+		 */
+		YIELD,
+		/**
+		 * Spin, yield then park for short period of time : cheapest when idle
+		 */
+		PARK;
+
+		private static final int SPIN_TRIES = 100;
+		private static final int YIELD_TRIES = 200;
+		private static final long PARK_NANOS = 50_000L;
+
+		void idle(final int tries) {
+			if (this == SPIN || tries < SPIN_TRIES) {
+				Thread.onSpinWait();
+			} else if (this == YIELD || tries < YIELD_TRIES) {
+				Thread.yield();
+			} else {
+				LockSupport.parkNanos(PARK_NANOS);
+			}
+		}
+	}
+
+	/**
+	 * A cursor in the ring, padded to avoid false sharing between the producer
+	 * and the readers
+	 */
+	static final class Sequence {
+		private static final VarHandle VALUE;
+		static {
+			try {
+				VALUE = MethodHandles.lookup().findVarHandle(Sequence.class, "value", long.class);
+			} catch (final ReflectiveOperationException e) {
+				throw new ExceptionInInitializerError(e);
+			}
+		}
+		// padding
+		long p1, p2, p3, p4, p5, p6, p7;
+		private volatile long value;
+		// padding
+		long p9, p10, p11, p12, p13, p14, p15;
+
+		Sequence(final long initial) {
+			VALUE.setRelease(this, initial);
+		}
+
+		long get() {
+			return (long) VALUE.getAcquire(this);
+		}
+
+		void set(final long value) {
+			VALUE.setRelease(this, value);
+		}
+	}
+
+	public static final int DEFAULT_CAPACITY = 1024;
+	private static final long INITIAL = -1L;
+
+	private final Object[] ring;
+	private final int mask;
+	private final WaitStrategy strategy;
+	// published by the producer
+	private final Sequence cursor;
+	// producer side only
+	private long next;
+	private long cachedGate;
+	private volatile boolean closed;
+	// every sequence that prevents the producer to wrap
+	private final CopyOnWriteArrayList<Sequence> gating;
+	// hold the first slot while the registration is opened
+	private final Sequence head;
+	private int readerCount;
+	private int currentReader;
+	private boolean registrationClosed;
+
+	public RingBufferQuiXQueue() {
+		this(DEFAULT_CAPACITY, WaitStrategy.PARK);
+	}
+
+	/**
+	 * @param capacity
+	 *            the number of slot in the ring, rounded up to the next power
+	 *            of two
+	 * @param strategy
+	 *            the way the producer and the readers wait for each other
+	 */
+	public RingBufferQuiXQueue(final int capacity, final WaitStrategy strategy) {
+		if (capacity < 1)
+			throw new IllegalArgumentException("capacity must be positive : " + capacity);
+		if (capacity > 1 << 30)
+			throw new IllegalArgumentException("capacity is too big : " + capacity);
+		final int size = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+		this.ring = new Object[size];
+		this.mask = size - 1;
+		this.strategy = strategy;
+		this.cursor = new Sequence(INITIAL);
+		this.next = INITIAL;
+		this.cachedGate = INITIAL;
+		this.gating = new CopyOnWriteArrayList<Sequence>();
+		this.head = new Sequence(INITIAL);
+		this.gating.add(this.head);
+		this.readerCount = 0;
+		this.currentReader = 0;
+		this.registrationClosed = false;
+	}
+
+	public int getCapacity() {
+		return this.ring.length;
+	}
+
+	/**
+	 * !!! NOT THREAD SAFE : Only one thread should do the appending here
+	 */
+	@Override
+	public void append(final T event) {
+		if (this.closed)
+			throw new RuntimeException("Cannot append to a closed stream");
+		final long sequence = this.next + 1;
+		waitForSlots(sequence);
+		this.ring[(int) sequence & this.mask] = event;
+		this.cursor.set(sequence);
+		this.next = sequence;
+	}
+
+	/**
+	 * The batch is published with a single release of the cursor, in chunks of
+	 * at most the capacity of the ring
+	 * 
+	 * !!! NOT THREAD SAFE : Only one thread should do the appending here
+	 */
+	@Override
+	public void appendAll(final T[] events, final int off, final int len) {
+		if (this.closed)
+			throw new RuntimeException("Cannot append to a closed stream");
+		int i = off;
+		final int end = off + len;
+		while (i < end) {
+			final int chunk = Math.min(end - i, this.ring.length);
+			final long last = this.next + chunk;
+			waitForSlots(last);
+			for (long sequence = this.next + 1; sequence <= last; sequence++) {
+				this.ring[(int) sequence & this.mask] = events[i++];
+			}
+			this.cursor.set(last);
+			this.next = last;
+		}
+	}
+
+	/**
+	 * Wait until the slot for {@code sequence} has been released by all the
+	 * gating sequences
+	 */
+	private void waitForSlots(final long sequence) {
+		final long wrapPoint = sequence - this.ring.length;
+		if (wrapPoint > this.cachedGate) {
+			int tries = 0;
+			long min;
+			while (wrapPoint > (min = minimumGate(this.next))) {
+				this.strategy.idle(tries++);
+			}
+			this.cachedGate = min;
+		}
+	}
+
+	private long minimumGate(final long defaultValue) {
+		long min = defaultValue;
+		for (final Sequence sequence : this.gating) {
+			final long value = sequence.get();
+			if (value < min)
+				min = value;
+		}
+		return min;
+	}
+
+	/**
+	 * !!! NOT THREAD SAFE : Only one thread should do the closing here
+	 */
+	@Override
+	public void close() {
+		if (this.closed)
+			throw new RuntimeException("Already closed");
+		this.closed = true;
+	}
+
+	private final class LocalReader implements IQuiXStream<T> {
+		private final Sequence sequence;
+		// last known published sequence
+		private long available;
+		private boolean readerClosed;
+
+		LocalReader(final Sequence start) {
+			this.sequence = new Sequence(start.get());
+			this.available = INITIAL;
+			this.readerClosed = false;
+			RingBufferQuiXQueue.this.gating.add(this.sequence);
+		}
+
+		@Override
+		public boolean hasNext() {
+			if (this.readerClosed)
+				return false;
+			final long wanted = this.sequence.get() + 1;
+			if (wanted <= this.available)
+				return true;
+			int tries = 0;
+			while (true) {
+				this.available = RingBufferQuiXQueue.this.cursor.get();
+				if (wanted <= this.available)
+					return true;
+				if (RingBufferQuiXQueue.this.closed) {
+					// the last event may have been published just before close
+					this.available = RingBufferQuiXQueue.this.cursor.get();
+					return wanted <= this.available;
+				}
+				RingBufferQuiXQueue.this.strategy.idle(tries++);
+			}
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		public T next() {
+			if (!hasNext())
+				return null;
+			final long current = this.sequence.get() + 1;
+			final T event = (T) RingBufferQuiXQueue.this.ring[(int) current & RingBufferQuiXQueue.this.mask];
+			// release the slot only once it has been read
+			this.sequence.set(current);
+			return event;
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		public int drainTo(final T[] dst, final int max) {
+			if (!hasNext())
+				return 0;
+			final long first = this.sequence.get() + 1;
+			final int count = (int) Math.min(Math.min(max, dst.length), this.available - first + 1);
+			for (int i = 0; i < count; i++) {
+				dst[i] = (T) RingBufferQuiXQueue.this.ring[(int) (first + i) & RingBufferQuiXQueue.this.mask];
+			}
+			// release the slots once they have been read
+			this.sequence.set(first + count - 1);
+			return count;
+		}
+
+		@Override
+		public void close() {
+			if (!this.readerClosed) {
+				this.readerClosed = true;
+				RingBufferQuiXQueue.this.gating.remove(this.sequence);
+			}
+		}
+	}
+
+	@Override
+	public IQuiXStream<T> registerReader() {
+		if (this.registrationClosed)
+			throw new RuntimeException("Reader registration already closed");
+		final LocalReader reader = new LocalReader(this.head);
+		this.currentReader++;
+		if (this.readerCount == this.currentReader) {
+			// we reach the maximum so release head
+			closeReaderRegistration();
+		} else if (this.readerCount < this.currentReader) {
+			closeReaderRegistration();
+			throw new RuntimeException("readerCount < currentReader : " + this.readerCount + "," + this.currentReader);
+		}
+		return reader;
+	}
+
+	private final class LocalProxyReader implements ProxyReader<T> {
+		private final Sequence hold;
+		private boolean proxyClosed;
+
+		LocalProxyReader() {
+			this.hold = new Sequence(RingBufferQuiXQueue.this.head.get());
+			this.proxyClosed = false;
+			RingBufferQuiXQueue.this.gating.add(this.hold);
+		}
+
+		@Override
+		public IQuiXStream<T> registerReader() {
+			if (this.proxyClosed)
+				throw new RuntimeException("Proxy reader registration already closed");
+			return new LocalReader(this.hold);
+		}
+
+		@Override
+		public void closeReaderRegistration() {
+			if (!this.proxyClosed) {
+				this.proxyClosed = true;
+				RingBufferQuiXQueue.this.gating.remove(this.hold);
+			}
+		}
+	}
+
+	@Override
+	public ProxyReader<T> registerProxyReader() {
+		if (this.registrationClosed)
+			throw new RuntimeException("Reader registration already closed");
+		return new LocalProxyReader();
+	}
+
+	@Override
+	public void setReaderCount(final int count) {
+		this.readerCount = count < 1 ? 1 : count;
+	}
+
+	@Override
+	public void closeReaderRegistration() {
+		if (!this.registrationClosed) {
+			this.registrationClosed = true;
+			this.gating.remove(this.head);
+		}
+	}
+
+}
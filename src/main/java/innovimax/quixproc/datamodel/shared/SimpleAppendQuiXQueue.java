@@ -7,10 +7,10 @@
  *        http://www.apache.org/licenses/LICENSE-2.0*/
 package innovimax.quixproc.datamodel.shared;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
 import java.util.Queue;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import innovimax.quixproc.datamodel.IQuiXStream;
 import innovimax.quixproc.datamodel.QuiXCharStream;
@@ -18,20 +18,34 @@ import innovimax.quixproc.datamodel.QuiXException;
 import innovimax.quixproc.datamodel.event.AQuiXEvent;
 
 /**
- * Simple implementation of {@link Queue} interface It uses a simple
- * {@link ArrayList} and {@link ReentrantReadWriteLock} to do the job It's far
- * from efficient
+ * Simple implementation of {@link Queue} interface It uses a copy-on-grow
+ * array published with a volatile size : the readers never lock while there
+ * is something to read, and block on a {@link Condition} (instead of
+ * spinning) once they have caught up with the writer
+ * 
+ * !!! NOT THREAD SAFE on the writing side : Only one thread should do the
+ * appending and closing here
  * 
  * @author innovimax
  */
 public class SimpleAppendQuiXQueue<T> implements IQuiXQueue<T> {
 
 	private static final boolean DEBUG = false;
-	private final List<T> events;
-	private final ReentrantReadWriteLock rwl;
+	private static final int INITIAL_CAPACITY = 64;
+	private static final Object[] EMPTY = new Object[0];
+	// replaced (never modified below size) when it grows
+	private volatile Object[] events;
+	// published after the events
+	private volatile int size;
+	// waiting readers
+	private final ReentrantLock lock;
+	private final Condition notEmpty;
+	private volatile int waiters;
 	//
 	private int readerCount = 0;
-	private boolean closed = false;
+	// set by the last reader closed, the events are dropped by the writer
+	private volatile boolean released = false;
+	private volatile boolean closed = false;
 	private boolean startWorking = false;
 	//
 	private static int counter = 0;
@@ -39,8 +53,11 @@ public class SimpleAppendQuiXQueue<T> implements IQuiXQueue<T> {
 	private int maxReader;
 
 	public SimpleAppendQuiXQueue() {
-		this.events = new ArrayList<T>();
-		this.rwl = new ReentrantReadWriteLock(true);
+		this.events = new Object[INITIAL_CAPACITY];
+		this.size = 0;
+		this.lock = new ReentrantLock();
+		this.notEmpty = this.lock.newCondition();
+		this.waiters = 0;
 		counter++;
 		this.rank = counter;
 		if (DEBUG)
@@ -48,112 +65,162 @@ public class SimpleAppendQuiXQueue<T> implements IQuiXQueue<T> {
 		// Thread.dumpStack();
 	}
 
-	/*
-	 * (non-Javadoc)
-	 * 
-	 * @see
-	 * com.xmlcalabash.stream.util.shared.IQuixEventQueue#add(com.xmlcalabash.
-	 * stream.util.QuixEvent)
+	/**
+	 * Make room for {@code count} more events : the readers keep on reading
+	 * the previous array which content is not modified
+	 */
+	private Object[] ensureCapacity(final int count) {
+		final Object[] current = this.events;
+		final int needed = this.size + count;
+		if (needed <= current.length)
+			return current;
+		final Object[] grown = Arrays.copyOf(current, Math.max(needed, Math.max(INITIAL_CAPACITY, current.length * 2)));
+		// published before the size
+		this.events = grown;
+		return grown;
+	}
+
+	/**
+	 * Drop the events once nobody reads them : done by the writer (or once it
+	 * is over) so that the array is never replaced under an append
+	 *
+	 * @return true if the events are dropped
+	 */
+	private boolean release() {
+		if (!this.released)
+			return false;
+		this.events = EMPTY;
+		this.size = 0;
+		if (DEBUG)
+			System.out.println("CreateSimpleQEQ (CLEAR) : " + this.rank);
+		return true;
+	}
+
+	private void signal() {
+		if (this.waiters > 0) {
+			this.lock.lock();
+			try {
+				this.notEmpty.signalAll();
+			} finally {
+				this.lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * !!! NOT THREAD SAFE : Only one thread should do the appending here
 	 */
 	@Override
 	public void append(final T event) {
 		this.startWorking = true;
-		this.rwl.writeLock().lock();
-		try {
-			if (this.closed)
-				throw new RuntimeException("Cannot append to a closed stream");
-			this.events.add(event);
-		} finally {
-			this.rwl.writeLock().unlock();
-		}
+		if (this.closed)
+			throw new RuntimeException("Cannot append to a closed stream");
+		if (release())
+			return;
+		final int localSize = this.size;
+		ensureCapacity(1)[localSize] = event;
+		// publish
+		this.size = localSize + 1;
+		signal();
 	}
 
-	/*
-	 * (non-Javadoc)
+	/**
+	 * Append the whole batch with a single publication
 	 * 
-	 * @see com.xmlcalabash.stream.util.shared.IQuixEventQueue#close()
+	 * !!! NOT THREAD SAFE : Only one thread should do the appending here
+	 */
+	@Override
+	public void appendAll(final T[] events, final int off, final int len) {
+		this.startWorking = true;
+		if (this.closed)
+			throw new RuntimeException("Cannot append to a closed stream");
+		if (release())
+			return;
+		final int localSize = this.size;
+		System.arraycopy(events, off, ensureCapacity(len), localSize, len);
+		// publish
+		this.size = localSize + len;
+		signal();
+	}
+
+	/**
+	 * !!! NOT THREAD SAFE : Only one thread should do the closing here
 	 */
 	@Override
 	public void close() {
-		this.rwl.writeLock().lock();
+		if (this.closed)
+			throw new RuntimeException("Already closed");
+		this.lock.lock();
 		try {
-			if (this.closed)
-				throw new RuntimeException("Already closed");
 			this.closed = true;
+			this.notEmpty.signalAll();
 		} finally {
-			this.rwl.writeLock().unlock();
+			this.lock.unlock();
 		}
+		release();
 		if (DEBUG)
 			System.out.println("CreateSimpleQEQ (closed) : " + this.rank);
 	}
 
 	private final class LocalReader implements IQuiXStream<T> {
-		// private final Iterator<QuixEvent> iterator;
 		private int i = 0;
 		private boolean readerClosed = false;
 
 		LocalReader() {
-			// this.iterator = events.iterator();
+			//
 		}
 
 		@Override
 		public boolean hasNext() {
 			if (this.readerClosed)
 				throw new RuntimeException("Reader already closed");
-			SimpleAppendQuiXQueue.this.rwl.readLock().lock();
+			final SimpleAppendQuiXQueue<T> queue = SimpleAppendQuiXQueue.this;
+			if (this.i < queue.size)
+				return true;
+			queue.lock.lock();
 			try {
-				if (this.i < SimpleAppendQuiXQueue.this.events.size())
-					return true;
-				// if (iterator.hasNext()) return true;
-				// si c'est faux ca depends de close
-				while (this.i >= SimpleAppendQuiXQueue.this.events
-						.size()/* !iterator.hasNext() */) {
-					if (SimpleAppendQuiXQueue.this.closed)
-						return false;
-					SimpleAppendQuiXQueue.this.rwl.readLock().unlock();
-					// System.out.println("hasNextBeforeYield");
-					Thread.yield();
-					// System.out.println("hasNextAfterYield");
-					SimpleAppendQuiXQueue.this.rwl.readLock().lock();
+				queue.waiters++;
+				// there is no concurrency on reading, each reader has its own
+				// pace so if there is an element it stays there
+				while (this.i >= queue.size) {
+					if (queue.closed)
+						return this.i < queue.size;
+					queue.notEmpty.await();
 				}
-				// il n'y a pas de concurrence sur la lecture, chacun lit a son
-				// rythme
-				// donc si il y a un element il l'est toujours
 				return true;
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("Interrupted while waiting for the writer", e);
 			} finally {
-				SimpleAppendQuiXQueue.this.rwl.readLock().unlock();
+				queue.waiters--;
+				queue.lock.unlock();
 			}
 		}
 
+		@SuppressWarnings("unchecked")
 		@Override
 		public T next() {
-			if (this.readerClosed)
-				throw new RuntimeException("Reader already closed");
-			SimpleAppendQuiXQueue.this.rwl.readLock().lock();
-			try {
-				if (this.i < SimpleAppendQuiXQueue.this.events.size()) {
-					return SimpleAppendQuiXQueue.this.events.get(this.i++);
-				}
-				// if (iterator.hasNext()) return iterator.next();
-				// si c'est faux ca d�pends de close
-				while (this.i >= SimpleAppendQuiXQueue.this.events
-						.size()/* !iterator.hasNext() */) {
-					if (SimpleAppendQuiXQueue.this.closed)
-						return null;
-					SimpleAppendQuiXQueue.this.rwl.readLock().unlock();
-					// System.out.println("nextBeforeYield");
-					Thread.yield();
-					// System.out.println("nextAfterYield");
-					SimpleAppendQuiXQueue.this.rwl.readLock().lock();
-				}
-				// il n'y a pas de concurrence sur la lecture, chacun lit � son
-				// rythme
-				// donc si il y a un element il l'est toujours
-				return SimpleAppendQuiXQueue.this.events.get(this.i++);
-				// return iterator.next();
-			} finally {
-				SimpleAppendQuiXQueue.this.rwl.readLock().unlock();
+			if (!hasNext())
+				return null;
+			// the size has been read before so the array is big enough
+			return (T) SimpleAppendQuiXQueue.this.events[this.i++];
+		}
+
+		/**
+		 * Copy everything available without locking
+		 */
+		@SuppressWarnings("unchecked")
+		@Override
+		public int drainTo(final T[] dst, final int max) {
+			if (!hasNext())
+				return 0;
+			final int available = SimpleAppendQuiXQueue.this.size;
+			final Object[] localEvents = SimpleAppendQuiXQueue.this.events;
+			final int count = Math.min(Math.min(max, dst.length), available - this.i);
+			for (int j = 0; j < count; j++) {
+				dst[j] = (T) localEvents[this.i++];
 			}
+			return count;
 		}
 
 		@Override
@@ -163,14 +230,23 @@ public class SimpleAppendQuiXQueue<T> implements IQuiXQueue<T> {
 						+ SimpleAppendQuiXQueue.this.rank);
 			if (!this.readerClosed) {
 				this.readerClosed = true;
-				SimpleAppendQuiXQueue.this.readerCount--;
+				final SimpleAppendQuiXQueue<T> queue = SimpleAppendQuiXQueue.this;
+				final boolean last;
+				// the readers may close concurrently
+				queue.lock.lock();
+				try {
+					last = --queue.readerCount == 0;
+				} finally {
+					queue.lock.unlock();
+				}
 				if (DEBUG)
-					System.out.println("CreateSimpleQEQ (really close reader " + SimpleAppendQuiXQueue.this.readerCount
-							+ ") : " + SimpleAppendQuiXQueue.this.rank);
-				if (SimpleAppendQuiXQueue.this.readerCount == 0) {
-					SimpleAppendQuiXQueue.this.events.clear();
-					if (DEBUG)
-						System.out.println("CreateSimpleQEQ (CLEAR) : " + SimpleAppendQuiXQueue.this.rank);
+					System.out.println("CreateSimpleQEQ (really close reader " + queue.readerCount + ") : "
+							+ queue.rank);
+				if (last) {
+					// the writer drops the events, unless it is already over
+					queue.released = true;
+					if (queue.closed)
+						queue.release();
 				}
 			}
 		}
@@ -7,115 +7,157 @@
  *        http://www.apache.org/licenses/LICENSE-2.0*/
 package innovimax.quixproc.datamodel.shared;
 
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Set;
 import java.util.TreeSet;
-
-//import java.util.concurrent.locks.AbstractQueuedSynchronizer;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.ToLongFunction;
 
 import innovimax.quixproc.datamodel.IQuiXStream;
 
+/**
+ * Append only queue implemented as a linked list shared by all the readers :
+ * the data that has been read by every reader is garbage collected.
+ * 
+ * By default the queue is unbounded : if a reader lags, the list between it
+ * and the writer grows without limit. In bounded mode (see
+ * {@link #SmartAppendQuiXQueue(long)} and
+ * {@link #SmartAppendQuiXQueue(long, ToLongFunction)}) the appending thread
+ * waits as long as the distance between the writer and the slowest reader
+ * (or the head while readers can still be registered) reaches the limit, so
+ * that producer/consumer pipelines run in constant memory. In this mode, the
+ * readers have to be registered (or the registration closed) from another
+ * thread than the writer once the limit is reached.
+ * 
+ * @author innovimax
+ */
 public final class SmartAppendQuiXQueue<T> implements IQuiXQueue<T> {
 	private static final int DEBUG_LEVEL = 0; // 0 none, 1 simple, 2 detailled
 	private static int counter = 0;
 	private static final Set<Integer> open = Collections.synchronizedSet(new TreeSet<Integer>());
-	private LinkedItem<T> head;
+	private static final long UNBOUNDED = Long.MAX_VALUE;
+	private volatile LinkedItem<T> head;
 	private LinkedItem<T> current;
 	private int readerCount;
 	private int currentReader;
 	private final int rank;
+	// bounded mode
+	private final long maxLag;
+	private final ToLongFunction<? super T> weigher;
+	private volatile long appended;
+	private final CopyOnWriteArrayList<Anchor<T>> anchors;
+	private final Bound bound;
+	// readers waiting for the writer
+	private final ReentrantLock lock;
+	private final Condition notEmpty;
+	private volatile int waiters;
 
 	/**
 	 * Item of manul LinkedList
 	 * 
+	 * The next item is published through a volatile flag, the readers that
+	 * reach the end of the list wait on the queue condition (see
+	 * {@link SmartAppendQuiXQueue#awaitNext(LinkedItem)}) : no monitor is
+	 * involved so that virtual threads are never pinned
+	 * 
 	 * @author innovimax
 	 */
 	private static class LinkedItem<T> {
-		// private static class BooleanLatch {
-		//
-		// private static class Sync extends AbstractQueuedSynchronizer {
-		// boolean isSignalled() {
-		// return getState() != 0;
-		// }
-		//
-		// protected int tryAcquireShared(int ignore) {
-		// return isSignalled() ? 1 : -1;
-		// }
-		//
-		// protected boolean tryReleaseShared(int ignore) {
-		// setState(1);
-		// return true;
-		// }
-		// }
-		//
-		// private final Sync sync = new Sync();
-		//
-		// // public boolean isSignalled() { return sync.isSignalled(); }
-		// public void signal() {
-		// sync.releaseShared(1);
-		// }
-		//
-		// public void await() throws InterruptedException {
-		// sync.acquireSharedInterruptibly(1);
-		// }
-		// }
-
 		static final LinkedItem END = null;
 		private final T event;
-		// private final BooleanLatch latch;
-		private Object lock;
-		//
+		// cumulated weight (number of events when there is no weigher)
+		private final long mark;
 		private LinkedItem<T> next;
+		// written after next
+		private volatile boolean linked;
 
-		LinkedItem(final T event) {
+		LinkedItem(final T event, final long mark) {
 			this.event = event;
-			// this.latch = new BooleanLatch();
-			this.lock = new Object();
+			this.mark = mark;
+			this.linked = false;
 		}
 
 		T get() {
 			return this.event;
 		}
-		// see to get around locking http://www.cs.umd.edu/~pugh/java/memoryModel/DoubleCheckedLocking.html
-		LinkedItem<T> getNext() {
-			try {
-				// this.latch.await();
-				if (this.lock != null) {
-					if (this.lock != null) {
-						if (this.lock != null) {
-							if (this.lock != null) {
-								synchronized (this.lock) {
-									if (this.lock != null)
-										this.lock.wait();
-								}
-							}
-						}
-					}
-				}
-				return this.next;
-			} catch (final InterruptedException e) {
-				e.printStackTrace();
-				return null;
-			}
+
+		/**
+		 * @return the next item, only meaningful if {@link #isLinked()}
+		 */
+		LinkedItem<T> next() {
+			return this.next;
+		}
+
+		/**
+		 * @return true if {@link SmartAppendQuiXQueue#awaitNext(LinkedItem)}
+		 *         will not wait
+		 */
+		boolean isLinked() {
+			return this.linked;
 		}
 
-		void setNext(final LinkedItem<T> li) {
+		void link(final LinkedItem<T> li) {
 			this.next = li;
-			// this.latch.signal();
-			synchronized (this.lock) {
-				this.lock.notifyAll();
-				this.lock = null;
+			// publish
+			this.linked = true;
+		}
+	}
+
+	/**
+	 * Anything that retains a position in the list
+	 */
+	private interface Anchor<T> {
+		/**
+		 * @return the retained item or {@code LinkedItem.END} if nothing is
+		 *         retained anymore
+		 */
+		LinkedItem<T> anchor();
+	}
+
+	/**
+	 * Makes the writer wait for the slowest reader in bounded mode
+	 */
+	private static final class Bound {
+		private final ReentrantLock lock = new ReentrantLock();
+		private final Condition notFull = this.lock.newCondition();
+		private volatile boolean writerWaiting = false;
+
+		/**
+		 * Called by the readers each time they move forward
+		 */
+		void release() {
+			if (this.writerWaiting) {
+				this.lock.lock();
+				try {
+					this.notFull.signal();
+				} finally {
+					this.lock.unlock();
+				}
 			}
 		}
 	}
 
-	private static final class LocalReader<T> implements IQuiXStream<T> {
-		private LinkedItem<T> current;
+	private static final class LocalReader<T> implements IQuiXStream<T>, Anchor<T> {
+		private volatile LinkedItem<T> current;
+		private final SmartAppendQuiXQueue<T> queue;
 		// debug
 		private String name;
 
-		LocalReader(final LinkedItem<T> li) {
+		LocalReader(final SmartAppendQuiXQueue<T> queue, final LinkedItem<T> li) {
+			this.queue = queue;
 			this.current = li;
+			// only tracked when bounded : otherwise a reader dropped without
+			// close() would retain the list for the life of the queue
+			if (queue.bound != null)
+				queue.anchors.add(this);
+		}
+
+		@Override
+		public LinkedItem<T> anchor() {
+			return this.current;
 		}
 
 		private void setName(final String name) {
@@ -128,7 +170,7 @@ public final class SmartAppendQuiXQueue<T> implements IQuiXQueue<T> {
 				System.out.println("hasNext => current == null in LocalReader");
 				return false;
 			}
-			final boolean result = this.current.getNext() != LinkedItem.END;
+			final boolean result = this.queue.awaitNext(this.current) != LinkedItem.END;
 			if (DEBUG_LEVEL > 1)
 				if (!result)
 					System.out.println("Reader(" + this.name + ") hasnext=false");
@@ -137,23 +179,84 @@ public final class SmartAppendQuiXQueue<T> implements IQuiXQueue<T> {
 
 		@Override
 		public T next() {
-			this.current = this.current.getNext();
-			final T event = this.current.get();
+			final LinkedItem<T> li = this.queue.awaitNext(this.current);
+			this.current = li;
+			final T event = li.get();
 			if (DEBUG_LEVEL > 1)
 				System.out.println(counter + "/" + this.name + "<-" + event);
+			if (this.queue.bound != null)
+				this.queue.bound.release();
 			return event;
 		}
 
+		@Override
+		public int drainTo(final T[] dst, final int max) {
+			final int limit = Math.min(max, dst.length);
+			if (limit == 0 || !hasNext())
+				return 0;
+			// only the first item is awaited
+			LinkedItem<T> li = this.queue.awaitNext(this.current);
+			int count = 0;
+			while (true) {
+				dst[count++] = li.get();
+				if (count == limit || !li.isLinked() || li.next() == LinkedItem.END)
+					break;
+				li = li.next();
+			}
+			this.current = li;
+			if (this.queue.bound != null)
+				this.queue.bound.release();
+			return count;
+		}
+
 		@Override
 		public void close() {
 			this.current = LinkedItem.END;
+			this.queue.anchors.remove(this);
+			if (this.queue.bound != null)
+				this.queue.bound.release();
 			if (DEBUG_LEVEL > 0)
 				System.out.println("Reader(" + this.name + ") closed");
 		}
 	}
 
 	public SmartAppendQuiXQueue() {
-		this.head = new LinkedItem<T>(null);
+		this(UNBOUNDED, null);
+	}
+
+	/**
+	 * Create a bounded queue
+	 * 
+	 * @param maxLag
+	 *            the maximum number of events between the writer and the
+	 *            slowest reader
+	 */
+	public SmartAppendQuiXQueue(final long maxLag) {
+		this(maxLag, null);
+	}
+
+	/**
+	 * Create a bounded queue
+	 * 
+	 * @param maxLag
+	 *            the maximum weight (for instance an estimation in bytes) of
+	 *            the events between the writer and the slowest reader
+	 * @param weigher
+	 *            the estimation of the weight of one event, if {@code null}
+	 *            each event weighs 1
+	 */
+	public SmartAppendQuiXQueue(final long maxLag, final ToLongFunction<? super T> weigher) {
+		if (maxLag < 1)
+			throw new IllegalArgumentException("maxLag must be positive : " + maxLag);
+		this.maxLag = maxLag;
+		this.weigher = weigher;
+		this.bound = maxLag == UNBOUNDED ? null : new Bound();
+		this.anchors = new CopyOnWriteArrayList<Anchor<T>>();
+		this.lock = new ReentrantLock();
+		this.notEmpty = this.lock.newCondition();
+		this.waiters = 0;
+		this.appended = 0;
+		this.head = new LinkedItem<T>(null, 0);
 		this.current = this.head;
 		this.currentReader = 0;
 		this.readerCount = 0;
@@ -171,9 +274,156 @@ public final class SmartAppendQuiXQueue<T> implements IQuiXQueue<T> {
 	public void append(final T event) {
 		if (DEBUG_LEVEL > 1)
 			System.out.println(counter + "->" + event);
-		final LinkedItem<T> li = new LinkedItem<T>(event);
-		this.current.setNext(li);
+		if (this.bound != null)
+			waitForSlowestReader();
+		final long mark = this.current.mark + weigh(event);
+		final LinkedItem<T> li = new LinkedItem<T>(event, mark);
+		setNext(this.current, li);
 		this.current = li;
+		this.appended = mark;
+	}
+
+	/**
+	 * The events are linked together before being published at once to the
+	 * readers. In bounded mode the batch is published in chunks that fit in
+	 * the room left by the slowest reader.
+	 * 
+	 * !!! NOT THREAD SAFE : Only one thread should do the appending here
+	 */
+	@Override
+	public void appendAll(final T[] events, final int off, final int len) {
+		final int end = off + len;
+		int i = off;
+		while (i < end) {
+			long limit = UNBOUNDED;
+			if (this.bound != null) {
+				waitForSlowestReader();
+				limit = minimumMark() + this.maxLag;
+			}
+			final LinkedItem<T> first = new LinkedItem<T>(events[i], this.current.mark + weigh(events[i]));
+			i++;
+			LinkedItem<T> last = first;
+			while (i < end && last.mark < limit) {
+				final LinkedItem<T> li = new LinkedItem<T>(events[i], last.mark + weigh(events[i]));
+				i++;
+				last.link(li);
+				last = li;
+			}
+			setNext(this.current, first);
+			this.current = last;
+			this.appended = last.mark;
+		}
+	}
+
+	private long weigh(final T event) {
+		return this.weigher == null ? 1 : this.weigher.applyAsLong(event);
+	}
+
+	/**
+	 * Publish the item following {@code li} and wake up the readers waiting
+	 * for it
+	 */
+	private void setNext(final LinkedItem<T> li, final LinkedItem<T> next) {
+		li.link(next);
+		if (this.waiters > 0) {
+			this.lock.lock();
+			try {
+				this.notEmpty.signalAll();
+			} finally {
+				this.lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Wait until the item following {@code li} has been published
+	 * 
+	 * @return the next item or {@code LinkedItem.END} if the queue is closed
+	 */
+	LinkedItem<T> awaitNext(final LinkedItem<T> li) {
+		if (li.isLinked())
+			return li.next();
+		this.lock.lock();
+		try {
+			// the writer checks the waiters after linking, so either it sees
+			// this reader or this reader sees the link
+			this.waiters++;
+			while (!li.isLinked()) {
+				this.notEmpty.await();
+			}
+			return li.next();
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while waiting for the writer", e);
+		} finally {
+			this.waiters--;
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * The smallest mark still retained by a reader, a proxy or the head
+	 */
+	private long minimumMark() {
+		long min = this.appended;
+		final LinkedItem<T> localHead = this.head;
+		if (localHead != LinkedItem.END)
+			min = Math.min(min, localHead.mark);
+		for (final Anchor<T> anchor : this.anchors) {
+			final LinkedItem<T> li = anchor.anchor();
+			if (li != LinkedItem.END)
+				min = Math.min(min, li.mark);
+		}
+		return min;
+	}
+
+	private void waitForSlowestReader() {
+		if (this.appended - minimumMark() < this.maxLag)
+			return;
+		this.bound.lock.lock();
+		try {
+			this.bound.writerWaiting = true;
+			while (this.appended - minimumMark() >= this.maxLag) {
+				this.bound.notFull.await();
+			}
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while waiting for the readers", e);
+		} finally {
+			this.bound.writerWaiting = false;
+			this.bound.lock.unlock();
+		}
+	}
+
+	/**
+	 * The distance between the writer and each of the readers still opened,
+	 * in number of events (or in weight if this queue has been created with a
+	 * weigher). The readers are only tracked in bounded mode.
+	 * 
+	 * @return the current lag of each reader, empty if this queue is
+	 *         unbounded
+	 */
+	public long[] getReaderLags() {
+		final long written = this.appended;
+		final long[] lags = new long[this.anchors.size()];
+		int i = 0;
+		for (final Anchor<T> anchor : this.anchors) {
+			if (i == lags.length)
+				break;
+			final LinkedItem<T> li = anchor.anchor();
+			if (anchor instanceof LocalReader && li != LinkedItem.END) {
+				lags[i++] = written - li.mark;
+			}
+		}
+		return i == lags.length ? lags : Arrays.copyOf(lags, i);
+	}
+
+	/**
+	 * @return the maximum lag allowed before the writer waits or
+	 *         {@link Long#MAX_VALUE} if this queue is unbounded
+	 */
+	public long getMaxLag() {
+		return this.maxLag;
 	}
 
 	/**
@@ -181,7 +431,7 @@ public final class SmartAppendQuiXQueue<T> implements IQuiXQueue<T> {
 	 */
 	@Override
 	public void close() {
-		this.current.setNext(LinkedItem.END);
+		setNext(this.current, LinkedItem.END);
 		this.current = LinkedItem.END;
 		if (DEBUG_LEVEL > 0)
 			open.remove(this.rank);
@@ -195,7 +445,7 @@ public final class SmartAppendQuiXQueue<T> implements IQuiXQueue<T> {
 		final LinkedItem<T> local_head = this.head;
 		if (DEBUG_LEVEL > 0)
 			System.out.println("head " + this.head);
-		final LocalReader<T> l = new LocalReader<T>(local_head);
+		final LocalReader<T> l = new LocalReader<T>(this, local_head);
 		if (DEBUG_LEVEL > 0)
 			l.setName(this.rank + "/" + this.currentReader + "/" + this.readerCount);
 		this.currentReader++;
@@ -215,28 +465,39 @@ public final class SmartAppendQuiXQueue<T> implements IQuiXQueue<T> {
 		return l;
 	}
 
-	private static final class LocalProxyReader<T> implements ProxyReader<T> {
-		private LinkedItem<T> head;
+	private static final class LocalProxyReader<T> implements ProxyReader<T>, Anchor<T> {
+		private volatile LinkedItem<T> head;
+		private final SmartAppendQuiXQueue<T> queue;
 
-		LocalProxyReader(final LinkedItem<T> head) {
+		LocalProxyReader(final SmartAppendQuiXQueue<T> queue, final LinkedItem<T> head) {
+			this.queue = queue;
 			this.head = head;
+			if (queue.bound != null)
+				queue.anchors.add(this);
+		}
+
+		@Override
+		public LinkedItem<T> anchor() {
+			return this.head;
 		}
 
 		@Override
 		public IQuiXStream<T> registerReader() {
-			return new LocalReader<T>(this.head);
+			return new LocalReader<T>(this.queue, this.head);
 		}
 
 		@Override
 		public void closeReaderRegistration() {
 			this.head = LinkedItem.END;
+			this.queue.anchors.remove(this);
+			if (this.queue.bound != null)
+				this.queue.bound.release();
 		}
 	}
 
 	@Override
 	public ProxyReader<T> registerProxyReader() {
-		// TODO Auto-generated method stub
-		return new LocalProxyReader<T>(this.head);
+		return new LocalProxyReader<T>(this, this.head);
 	}
 
 	@Override
@@ -255,6 +516,8 @@ public final class SmartAppendQuiXQueue<T> implements IQuiXQueue<T> {
 	@Override
 	public void closeReaderRegistration() {
 		this.head = LinkedItem.END;
+		if (this.bound != null)
+			this.bound.release();
 		if (DEBUG_LEVEL > 0)
 			System.out.println("closeReaderRegistration()");
 	}
@@ -0,0 +1,497 @@
+/*
+ * QuiXProc: efficient evaluation of XProc Pipelines.
+ * Copyright (C) 2011-2018 Innovimax
+ * All rights reserved.
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0*/
+package innovimax.quixproc.datamodel.shared;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import innovimax.quixproc.datamodel.IQuiXCodec;
+import innovimax.quixproc.datamodel.IQuiXStream;
+import innovimax.quixproc.datamodel.QuiXException;
+import innovimax.quixproc.datamodel.event.AQuiXEvent;
+import innovimax.quixproc.datamodel.event.QuiXEventCodec;
+
+/**
+ * Append only queue that keeps a hot window of segments in memory and pages
+ * the older segments to a temporary file.
+ *
+ * As long as readers can still be registered (see
+ * {@link #closeReaderRegistration()} and {@link #registerProxyReader()}) the
+ * whole stream has to be kept to be replayed from the beginning. Instead of
+ * pinning it on the heap, the segments that leave the hot window are written
+ * with a {@link IQuiXCodec} to a temporary file and read back through a memory
+ * mapping by the readers that need them, so the heap holds at most the hot
+ * window plus one decoded segment per lagging reader.
+ *
+ * !!! NOT THREAD SAFE on the writing side : Only one thread should do the
+ * appending and closing here
+ *
+ * @author innovimax
+ */
+public final class SpillingQuiXQueue<T> implements IQuiXQueue<T> {
+
+	public static final int DEFAULT_SEGMENT_SIZE = 4096;
+	public static final int DEFAULT_HOT_SEGMENTS = 16;
+
+	private static final class Segment {
+		final long index;
+		// null once spilled
+		volatile Object[] events;
+		// published number of events
+		volatile int count;
+		volatile Segment next;
+		// location in the spill file, written before events is cleared
+		long offset;
+		int length;
+
+		Segment(final long index, final int size) {
+			this.index = index;
+			this.events = new Object[size];
+			this.count = 0;
+		}
+	}
+
+	private final IQuiXCodec<T> codec;
+	private final int segmentSize;
+	private final int hotSegments;
+	// retained while readers can still be registered
+	private volatile Segment head;
+	// writer side only
+	private Segment tail;
+	private final ArrayDeque<Segment> resident;
+	private volatile boolean closed;
+	// waiting readers
+	private final ReentrantLock lock;
+	private final Condition notEmpty;
+	private volatile int waiters;
+	// readers and proxies
+	private final CopyOnWriteArrayList<LocalReader> readers;
+	private final AtomicInteger openProxies;
+	private int readerCount;
+	private int currentReader;
+	// spill file, written by the writer and released by the last reader
+	private final ReentrantLock spillLock;
+	private Path file;
+	private FileChannel channel;
+	private volatile long fileSize;
+
+	/**
+	 * Create a spilling queue of {@link AQuiXEvent} with the default segment
+	 * size and hot window
+	 */
+	public static SpillingQuiXQueue<AQuiXEvent> newEventQueue() {
+		return new SpillingQuiXQueue<AQuiXEvent>(QuiXEventCodec.INSTANCE, DEFAULT_SEGMENT_SIZE, DEFAULT_HOT_SEGMENTS);
+	}
+
+	/**
+	 * @param codec
+	 *            the codec used to page segments to disk
+	 * @param segmentSize
+	 *            the number of events per segment
+	 * @param hotSegments
+	 *            the number of full segments kept in memory
+	 */
+	public SpillingQuiXQueue(final IQuiXCodec<T> codec, final int segmentSize, final int hotSegments) {
+		if (segmentSize < 1)
+			throw new IllegalArgumentException("segmentSize must be positive : " + segmentSize);
+		if (hotSegments < 0)
+			throw new IllegalArgumentException("hotSegments must be positive : " + hotSegments);
+		this.codec = codec;
+		this.segmentSize = segmentSize;
+		this.hotSegments = hotSegments;
+		this.tail = new Segment(0, segmentSize);
+		this.head = this.tail;
+		this.resident = new ArrayDeque<Segment>();
+		this.closed = false;
+		this.lock = new ReentrantLock();
+		this.notEmpty = this.lock.newCondition();
+		this.waiters = 0;
+		this.readers = new CopyOnWriteArrayList<LocalReader>();
+		this.openProxies = new AtomicInteger();
+		this.readerCount = 0;
+		this.currentReader = 0;
+		this.spillLock = new ReentrantLock();
+	}
+
+	/**
+	 * !!! NOT THREAD SAFE : Only one thread should do the appending here
+	 */
+	@Override
+	public void append(final T event) {
+		if (this.closed)
+			throw new RuntimeException("Cannot append to a closed stream");
+		Segment segment = this.tail;
+		int count = segment.count;
+		if (count == this.segmentSize) {
+			segment = seal(segment);
+			count = 0;
+		}
+		segment.events[count] = event;
+		// publish
+		segment.count = count + 1;
+		signal();
+	}
+
+	/**
+	 * The events are published segment by segment and the waiting readers are
+	 * woken up once for the whole batch
+	 * 
+	 * !!! NOT THREAD SAFE : Only one thread should do the appending here
+	 */
+	@Override
+	public void appendAll(final T[] events, final int off, final int len) {
+		if (this.closed)
+			throw new RuntimeException("Cannot append to a closed stream");
+		int i = off;
+		final int end = off + len;
+		while (i < end) {
+			Segment segment = this.tail;
+			int count = segment.count;
+			if (count == this.segmentSize) {
+				segment = seal(segment);
+				count = 0;
+			}
+			final int chunk = Math.min(end - i, this.segmentSize - count);
+			System.arraycopy(events, i, segment.events, count, chunk);
+			i += chunk;
+			// publish
+			segment.count = count + chunk;
+		}
+		signal();
+	}
+
+	private Segment seal(final Segment full) {
+		final Segment segment = new Segment(full.index + 1, this.segmentSize);
+		full.next = segment;
+		this.tail = segment;
+		this.resident.add(full);
+		while (this.resident.size() > this.hotSegments) {
+			// if not retained, only the readers that are still on it keep it
+			// alive
+			spill(this.resident.poll());
+		}
+		return segment;
+	}
+
+	/**
+	 * Check if a segment may still be read : either readers can still be
+	 * registered or one of the opened reader did not reach the end of it
+	 */
+	private boolean isRetained(final Segment segment) {
+		if (this.head != null || this.openProxies.get() > 0)
+			return true;
+		for (final LocalReader reader : this.readers) {
+			if (reader.segmentIndex <= segment.index)
+				return true;
+		}
+		return false;
+	}
+
+	private void spill(final Segment segment) {
+		this.spillLock.lock();
+		try {
+			// the last reader may have released the file meanwhile
+			if (!isRetained(segment))
+				return;
+			if (this.channel == null) {
+				this.file = Files.createTempFile("quixdm-", ".spill");
+				this.file.toFile().deleteOnExit();
+				this.channel = FileChannel.open(this.file, StandardOpenOption.READ, StandardOpenOption.WRITE,
+						StandardOpenOption.DELETE_ON_CLOSE);
+				this.fileSize = 0;
+			}
+			final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			final DataOutputStream dos = new DataOutputStream(baos);
+			final Object[] events = segment.events;
+			for (int i = 0; i < this.segmentSize; i++) {
+				@SuppressWarnings("unchecked")
+				final T event = (T) events[i];
+				this.codec.write(event, dos);
+			}
+			dos.flush();
+			final ByteBuffer bb = ByteBuffer.wrap(baos.toByteArray());
+			segment.offset = this.fileSize;
+			segment.length = bb.remaining();
+			while (bb.hasRemaining()) {
+				this.fileSize += this.channel.write(bb, this.fileSize);
+			}
+			// publish the location before dropping the events
+			segment.events = null;
+		} catch (final IOException e) {
+			throw new QuiXException(e);
+		} finally {
+			this.spillLock.unlock();
+		}
+	}
+
+	private Object[] load(final Segment segment) {
+		try {
+			final ByteBuffer mapped = this.channel.map(FileChannel.MapMode.READ_ONLY, segment.offset, segment.length);
+			final DataInputStream dis = new DataInputStream(new ByteBufferInputStream(mapped));
+			final Object[] events = new Object[this.segmentSize];
+			for (int i = 0; i < this.segmentSize; i++) {
+				events[i] = this.codec.read(dis);
+			}
+			return events;
+		} catch (final IOException e) {
+			throw new QuiXException(e);
+		}
+	}
+
+	private static final class ByteBufferInputStream extends InputStream {
+		private final ByteBuffer buffer;
+
+		ByteBufferInputStream(final ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read() {
+			return this.buffer.hasRemaining() ? this.buffer.get() & 0xFF : -1;
+		}
+
+		@Override
+		public int read(final byte[] b, final int off, final int len) {
+			if (!this.buffer.hasRemaining())
+				return -1;
+			final int length = Math.min(len, this.buffer.remaining());
+			this.buffer.get(b, off, length);
+			return length;
+		}
+	}
+
+	private void signal() {
+		if (this.waiters > 0) {
+			this.lock.lock();
+			try {
+				this.notEmpty.signalAll();
+			} finally {
+				this.lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * !!! NOT THREAD SAFE : Only one thread should do the closing here
+	 */
+	@Override
+	public void close() {
+		if (this.closed)
+			throw new RuntimeException("Already closed");
+		this.closed = true;
+		this.lock.lock();
+		try {
+			this.notEmpty.signalAll();
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	private final class LocalReader implements IQuiXStream<T> {
+		private Segment segment;
+		private Object[] events;
+		private int position;
+		volatile long segmentIndex;
+		private boolean readerClosed;
+
+		LocalReader(final Segment start) {
+			this.segment = start;
+			this.events = null;
+			this.position = 0;
+			this.segmentIndex = start.index;
+			this.readerClosed = false;
+			SpillingQuiXQueue.this.readers.add(this);
+		}
+
+		private boolean available() {
+			if (this.position < this.segment.count)
+				return true;
+			if (this.position == SpillingQuiXQueue.this.segmentSize) {
+				final Segment next = this.segment.next;
+				if (next != null) {
+					this.segment = next;
+					this.segmentIndex = next.index;
+					this.events = null;
+					this.position = 0;
+					return this.position < next.count;
+				}
+			}
+			return false;
+		}
+
+		@Override
+		public boolean hasNext() {
+			if (this.readerClosed)
+				return false;
+			if (available())
+				return true;
+			final SpillingQuiXQueue<T> queue = SpillingQuiXQueue.this;
+			queue.lock.lock();
+			try {
+				queue.waiters++;
+				while (!available()) {
+					if (queue.closed) {
+						// the last events may have been published just before
+						// close
+						return available();
+					}
+					queue.notEmpty.await();
+				}
+				return true;
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("Interrupted while waiting for the writer", e);
+			} finally {
+				queue.waiters--;
+				queue.lock.unlock();
+			}
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		public T next() {
+			if (!hasNext())
+				return null;
+			if (this.events == null) {
+				final Object[] inMemory = this.segment.events;
+				this.events = inMemory == null ? load(this.segment) : inMemory;
+			}
+			return (T) this.events[this.position++];
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		public int drainTo(final T[] dst, final int max) {
+			if (!hasNext())
+				return 0;
+			if (this.events == null) {
+				final Object[] inMemory = this.segment.events;
+				this.events = inMemory == null ? load(this.segment) : inMemory;
+			}
+			// stay within the current segment
+			final int count = Math.min(Math.min(max, dst.length), this.segment.count - this.position);
+			for (int i = 0; i < count; i++) {
+				dst[i] = (T) this.events[this.position++];
+			}
+			return count;
+		}
+
+		@Override
+		public void close() {
+			if (!this.readerClosed) {
+				this.readerClosed = true;
+				this.segment = null;
+				this.events = null;
+				SpillingQuiXQueue.this.readers.remove(this);
+				releaseIfUnused();
+			}
+		}
+	}
+
+	private void releaseIfUnused() {
+		if (this.head != null || this.openProxies.get() > 0 || !this.readers.isEmpty())
+			return;
+		// not while the writer spills : once unused, nothing is spilled anymore
+		this.spillLock.lock();
+		try {
+			if (this.channel != null) {
+				// the file is deleted on close
+				this.channel.close();
+				this.channel = null;
+			}
+		} catch (final IOException e) {
+			throw new QuiXException(e);
+		} finally {
+			this.spillLock.unlock();
+		}
+	}
+
+	@Override
+	public IQuiXStream<T> registerReader() {
+		final Segment localHead = this.head;
+		if (localHead == null)
+			throw new RuntimeException("Reader registration already closed");
+		final LocalReader reader = new LocalReader(localHead);
+		this.currentReader++;
+		if (this.readerCount == this.currentReader) {
+			// we reach the maximum so release head
+			closeReaderRegistration();
+		} else if (this.readerCount < this.currentReader) {
+			closeReaderRegistration();
+			throw new RuntimeException("readerCount < currentReader : " + this.readerCount + "," + this.currentReader);
+		}
+		return reader;
+	}
+
+	private final class LocalProxyReader implements ProxyReader<T> {
+		private Segment head;
+
+		LocalProxyReader(final Segment head) {
+			this.head = head;
+			SpillingQuiXQueue.this.openProxies.incrementAndGet();
+		}
+
+		@Override
+		public IQuiXStream<T> registerReader() {
+			if (this.head == null)
+				throw new RuntimeException("Proxy reader registration already closed");
+			return new LocalReader(this.head);
+		}
+
+		@Override
+		public void closeReaderRegistration() {
+			if (this.head != null) {
+				this.head = null;
+				SpillingQuiXQueue.this.openProxies.decrementAndGet();
+				releaseIfUnused();
+			}
+		}
+	}
+
+	@Override
+	public ProxyReader<T> registerProxyReader() {
+		final Segment localHead = this.head;
+		if (localHead == null)
+			throw new RuntimeException("Reader registration already closed");
+		return new LocalProxyReader(localHead);
+	}
+
+	@Override
+	public void setReaderCount(final int count) {
+		this.readerCount = count < 1 ? 1 : count;
+	}
+
+	@Override
+	public void closeReaderRegistration() {
+		if (this.head != null) {
+			this.head = null;
+			releaseIfUnused();
+		}
+	}
+
+	/**
+	 * @return the number of bytes written to the spill file so far
+	 */
+	public long getSpilledBytes() {
+		return this.fileSize;
+	}
+
+}
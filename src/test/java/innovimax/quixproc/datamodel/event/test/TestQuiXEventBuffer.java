@@ -0,0 +1,137 @@
+/*
+ * QuiXProc: efficient evaluation of XProc Pipelines.
+ * Copyright (C) 2011-2018 Innovimax
+ * All rights reserved.
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0*/
+package innovimax.quixproc.datamodel.event.test;
+
+import static org.hamcrest.CoreMatchers.is;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import innovimax.quixproc.datamodel.QuiXCharStream;
+import innovimax.quixproc.datamodel.QuiXToken;
+import innovimax.quixproc.datamodel.event.AQuiXEvent;
+import innovimax.quixproc.datamodel.event.QuiXEventBuffer;
+import innovimax.quixproc.datamodel.event.QuiXEventCodec;
+
+public class TestQuiXEventBuffer {
+
+	private static QuiXCharStream qcs(final String s) {
+		return QuiXCharStream.fromSequence(s);
+	}
+
+	private static List<AQuiXEvent> sample() {
+		final List<AQuiXEvent> events = new ArrayList<AQuiXEvent>();
+		events.add(AQuiXEvent.getStartSequence());
+		events.add(AQuiXEvent.getStartDocument(qcs("file:/a.xml")));
+		events.add(AQuiXEvent.getStartElement(qcs("a"), qcs("urn:a"), qcs("p")));
+		events.add(AQuiXEvent.getNamespace(qcs("p"), qcs("urn:a")));
+		events.add(AQuiXEvent.getAttribute(qcs("id"), QuiXCharStream.NULL_NS_URI, QuiXCharStream.DEFAULT_NS_PREFIX,
+				qcs("1")));
+		events.add(AQuiXEvent.getText(qcs("hello")));
+		events.add(AQuiXEvent.getComment(qcs("comment")));
+		events.add(AQuiXEvent.getPI(qcs("target"), qcs("data")));
+		events.add(AQuiXEvent.getStartElement(qcs("a"), qcs("urn:a"), qcs("p")));
+		events.add(AQuiXEvent.getEndElement(qcs("a"), qcs("urn:a"), qcs("p")));
+		events.add(AQuiXEvent.getEndElement(qcs("a"), qcs("urn:a"), qcs("p")));
+		events.add(AQuiXEvent.getEndDocument(qcs("file:/a.xml")));
+		events.add(AQuiXEvent.getStartJSON());
+		events.add(AQuiXEvent.getStartObject());
+		events.add(AQuiXEvent.getKeyName(qcs("k")));
+		events.add(AQuiXEvent.getValueNumber(3.5));
+		events.add(AQuiXEvent.getKeyName(qcs("s")));
+		events.add(AQuiXEvent.getValueString(qcs("")));
+		events.add(AQuiXEvent.getKeyName(qcs("t")));
+		events.add(AQuiXEvent.getValueTrue());
+		events.add(AQuiXEvent.getEndObject());
+		events.add(AQuiXEvent.getEndJSON());
+		events.add(AQuiXEvent.getStartRDF());
+		events.add(AQuiXEvent.getStartPredicate(qcs("p")));
+		events.add(AQuiXEvent.getSubject(qcs("s")));
+		events.add(AQuiXEvent.getObject(qcs("o")));
+		events.add(AQuiXEvent.getEndPredicate(qcs("p")));
+		events.add(AQuiXEvent.getEndRDF());
+		events.add(AQuiXEvent.getEndSequence());
+		return events;
+	}
+
+	private static byte[] encode(final AQuiXEvent event) throws IOException {
+		final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		QuiXEventCodec.INSTANCE.write(event, new DataOutputStream(baos));
+		return baos.toByteArray();
+	}
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		final List<AQuiXEvent> events = sample();
+		final QuiXEventBuffer buffer = new QuiXEventBuffer();
+		for (final AQuiXEvent event : events) {
+			buffer.add(event);
+		}
+		Assert.assertThat(buffer.size(), is(events.size()));
+		final QuiXEventBuffer.Cursor cursor = buffer.cursor();
+		for (final AQuiXEvent event : events) {
+			Assert.assertThat(cursor.hasNext(), is(true));
+			Assert.assertThat(cursor.next(), is(event.getType()));
+			Assert.assertThat(encode(cursor.toEvent()), is(encode(event)));
+		}
+		Assert.assertThat(cursor.hasNext(), is(false));
+	}
+
+	@Test
+	public void testNamesAreShared() {
+		final QuiXEventBuffer buffer = new QuiXEventBuffer();
+		final int code = buffer.name("a", "urn:a", "p");
+		Assert.assertThat(buffer.name("a", "urn:a", "p"), is(code));
+		buffer.startElement(code);
+		final char[] text = "xxhelloxx".toCharArray();
+		buffer.text(text, 2, 5);
+		buffer.endElement(code);
+		final QuiXEventBuffer.Cursor cursor = buffer.cursor();
+		Assert.assertThat(cursor.next(), is(QuiXToken.START_ELEMENT));
+		Assert.assertThat(cursor.getLocalName(), is("a"));
+		Assert.assertThat(cursor.getURI(), is("urn:a"));
+		Assert.assertThat(cursor.getPrefix(), is("p"));
+		Assert.assertThat(cursor.next(), is(QuiXToken.TEXT));
+		Assert.assertThat(new String(cursor.getTextCharacters(), cursor.getTextStart(), cursor.getTextLength()),
+				is("hello"));
+		Assert.assertThat(cursor.next(), is(QuiXToken.END_ELEMENT));
+		Assert.assertThat(cursor.getNameCode(), is(code));
+		buffer.clear();
+		Assert.assertThat(buffer.size(), is(0));
+		// names survive a clear
+		Assert.assertThat(buffer.name("a", "urn:a", "p"), is(code));
+	}
+
+	@Test
+	public void testKeysAreNotSymbols() throws IOException {
+		final QuiXEventBuffer buffer = new QuiXEventBuffer();
+		final int code = buffer.symbol("a");
+		for (int i = 0; i < 1000; i++) {
+			buffer.keyName("id" + i);
+		}
+		// no symbol allocated for the keys
+		Assert.assertThat(buffer.symbol("b"), is(code + 1));
+		final QuiXEventBuffer.Cursor cursor = buffer.cursor();
+		Assert.assertThat(cursor.next(), is(QuiXToken.KEY_NAME));
+		Assert.assertThat(cursor.getName(), is("id0"));
+		Assert.assertThat(encode(cursor.toEvent()), is(encode(AQuiXEvent.getKeyName(qcs("id0")))));
+		buffer.reset();
+		Assert.assertThat(buffer.size(), is(0));
+		// the vocabulary is dropped by a reset
+		Assert.assertThat(buffer.symbol("b"), is(0));
+		Assert.assertThat(buffer.name("a", "urn:a", "p"), is(0));
+		Assert.assertThat(buffer.name("a", "urn:a", "q"), is(1));
+	}
+
+}
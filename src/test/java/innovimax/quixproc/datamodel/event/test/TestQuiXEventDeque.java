@@ -0,0 +1,78 @@
+/*
+ * QuiXProc: efficient evaluation of XProc Pipelines.
+ * Copyright (C) 2011-2018 Innovimax
+ * All rights reserved.
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0*/
+package innovimax.quixproc.datamodel.event.test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import innovimax.quixproc.datamodel.QuiXCharStream;
+import innovimax.quixproc.datamodel.event.AQuiXEvent;
+import innovimax.quixproc.datamodel.event.QuiXEventDeque;
+
+public class TestQuiXEventDeque {
+
+	private static AQuiXEvent[] events(final int count) {
+		final AQuiXEvent[] events = new AQuiXEvent[count];
+		for (int i = 0; i < count; i++) {
+			events[i] = AQuiXEvent.getText(QuiXCharStream.fromSequence("t" + i));
+		}
+		return events;
+	}
+
+	@Test
+	public void testWrapAndGrow() {
+		final AQuiXEvent[] events = events(100);
+		final QuiXEventDeque deque = new QuiXEventDeque(4);
+		Assert.assertThat(deque.capacity(), is(4));
+		int in = 0;
+		int out = 0;
+		// move the head so that the ring wraps before growing
+		deque.add(events[in++]);
+		deque.add(events[in++]);
+		deque.add(events[in++]);
+		Assert.assertThat(deque.poll(), sameInstance(events[out++]));
+		Assert.assertThat(deque.poll(), sameInstance(events[out++]));
+		while (in < events.length) {
+			deque.add(events[in++]);
+		}
+		Assert.assertThat(deque.size(), is(events.length - out));
+		Assert.assertThat(deque.capacity(), is(128));
+		while (!deque.isEmpty()) {
+			Assert.assertThat(deque.peek(), sameInstance(events[out]));
+			Assert.assertThat(deque.poll(), sameInstance(events[out++]));
+		}
+		Assert.assertThat(out, is(events.length));
+		Assert.assertThat(deque.poll(), nullValue());
+		Assert.assertThat(deque.peek(), nullValue());
+	}
+
+	@Test
+	public void testClear() {
+		final AQuiXEvent[] events = events(20);
+		final QuiXEventDeque deque = new QuiXEventDeque(5);
+		Assert.assertThat(deque.capacity(), is(8));
+		for (final AQuiXEvent event : events) {
+			deque.add(event);
+		}
+		deque.clear();
+		Assert.assertThat(deque.isEmpty(), is(true));
+		Assert.assertThat(deque.capacity(), is(32));
+		deque.add(events[3]);
+		Assert.assertThat(deque.poll(), sameInstance(events[3]));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testCapacity() {
+		new QuiXEventDeque(0);
+	}
+
+}
@@ -0,0 +1,97 @@
+/*
+ * QuiXProc: efficient evaluation of XProc Pipelines.
+ * Copyright (C) 2011-2018 Innovimax
+ * All rights reserved.
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0*/
+package innovimax.quixproc.datamodel.event.test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import innovimax.quixproc.datamodel.QuiXCharStream;
+import innovimax.quixproc.datamodel.QuiXQName;
+import innovimax.quixproc.datamodel.QuiXToken;
+import innovimax.quixproc.datamodel.event.AQuiXEvent;
+import innovimax.quixproc.datamodel.event.AQuiXEvent.CacheKind;
+import innovimax.quixproc.datamodel.event.QuiXFlyweightCache;
+import innovimax.quixproc.datamodel.generator.AGenerator.FileExtension;
+import innovimax.quixproc.datamodel.in.AStreamSource;
+import innovimax.quixproc.datamodel.in.QuiXEventStreamReader;
+
+public class TestQuiXFlyweightCache {
+
+	private static QuiXCharStream qcs(final String s) {
+		return QuiXCharStream.fromSequence(s);
+	}
+
+	@Test
+	public void testBounded() {
+		final QuiXFlyweightCache<QuiXQName> cache = new QuiXFlyweightCache<QuiXQName>(64);
+		final QuiXFlyweightCache.Factory<QuiXQName> factory = (a, b, c) -> new QuiXQName(a, b, c);
+		for (int i = 0; i < 10000; i++) {
+			cache.get(qcs("urn:x"), qcs("name" + i), QuiXCharStream.EMPTY, factory);
+		}
+		Assert.assertThat(cache.getCapacity(), is(64));
+		Assert.assertThat(cache.size() <= 64, is(true));
+		Assert.assertThat(cache.getMissCount(), is(10000L));
+		Assert.assertThat(cache.getEvictionCount() > 0, is(true));
+		// a small vocabulary is served from the cache
+		final QuiXQName first = cache.get(qcs("urn:x"), qcs("a"), QuiXCharStream.EMPTY, factory);
+		for (int i = 0; i < 100; i++) {
+			Assert.assertThat(cache.get(qcs("urn:x"), qcs("a"), QuiXCharStream.EMPTY, factory), sameInstance(first));
+		}
+		Assert.assertThat(cache.getHitCount(), is(100L));
+	}
+
+	@Test
+	public void testEventCaching() {
+		try {
+			AQuiXEvent.setCacheCapacity(CacheKind.NAME, 256);
+			AQuiXEvent.setCacheCapacity(CacheKind.START_ELEMENT, 256);
+			final AQuiXEvent a = AQuiXEvent.getStartElement(qcs("a"), qcs("urn:x"), qcs("p"));
+			Assert.assertThat(AQuiXEvent.getStartElement(qcs("a"), qcs("urn:x"), qcs("p")), sameInstance(a));
+			// the prefix is kept by the flyweight
+			Assert.assertThat(AQuiXEvent.getStartElement(qcs("a"), qcs("urn:x"), qcs("q")), not(sameInstance(a)));
+			Assert.assertThat(AQuiXEvent.getCache(CacheKind.START_ELEMENT).getHitCount(), is(1L));
+			Assert.assertThat(AQuiXEvent.getCache(CacheKind.END_ELEMENT) == null, is(true));
+		} finally {
+			AQuiXEvent.setCacheCapacity(CacheKind.NAME, 0);
+			AQuiXEvent.setCacheCapacity(CacheKind.START_ELEMENT, 0);
+		}
+	}
+
+	@Test
+	public void testDocumentCachingUnknownSystemId() {
+		try {
+			AQuiXEvent.setCacheCapacity(CacheKind.START_DOCUMENT, 16);
+			AQuiXEvent.setCacheCapacity(CacheKind.END_DOCUMENT, 16);
+			final List<QuiXToken> tokens = new ArrayList<QuiXToken>();
+			final QuiXEventStreamReader reader = new QuiXEventStreamReader(AStreamSource.instance(FileExtension.XML,
+					new ByteArrayInputStream("<r/>".getBytes(StandardCharsets.UTF_8))));
+			while (reader.hasNext()) {
+				tokens.add(reader.next().getType());
+			}
+			reader.close();
+			Assert.assertThat(tokens.size(), is(6));
+			Assert.assertThat(AQuiXEvent.getStartDocument(null).getType(), is(QuiXToken.START_DOCUMENT));
+			// the known ones are still cached
+			final AQuiXEvent doc = AQuiXEvent.getEndDocument(qcs("file:/a.xml"));
+			Assert.assertThat(AQuiXEvent.getEndDocument(qcs("file:/a.xml")), sameInstance(doc));
+		} finally {
+			AQuiXEvent.setCacheCapacity(CacheKind.START_DOCUMENT, 0);
+			AQuiXEvent.setCacheCapacity(CacheKind.END_DOCUMENT, 0);
+		}
+	}
+
+}
@@ -0,0 +1,378 @@
+/*
+ * QuiXProc: efficient evaluation of XProc Pipelines.
+ * Copyright (C) 2011-2018 Innovimax
+ * All rights reserved.
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0*/
+package innovimax.quixproc.datamodel.generator;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import org.apache.jena.atlas.web.TypedInputStream;
+import org.apache.jena.riot.WebContent;
+
+import innovimax.quixproc.datamodel.generator.AGenerator.FileExtension;
+import innovimax.quixproc.datamodel.generator.AGenerator.Unit;
+import innovimax.quixproc.datamodel.generator.AGenerator.Variation;
+import innovimax.quixproc.datamodel.generator.ATreeGenerator.SpecialType;
+import innovimax.quixproc.datamodel.generator.ATreeGenerator.TreeType;
+import innovimax.quixproc.datamodel.generator.csv.ACSVGenerator.SimpleCSVGenerator;
+import innovimax.quixproc.datamodel.generator.rdf.ARDFGenerator.SimpleRDFGenerator;
+import innovimax.quixproc.datamodel.in.AStreamSource;
+import innovimax.quixproc.datamodel.in.AStreamSource.CSVStreamSource;
+import innovimax.quixproc.datamodel.in.AStreamSource.RDFStreamSource;
+import innovimax.quixproc.datamodel.in.QuiXEventStreamReader;
+
+/**
+ * The output of the generators written once in a directory and replayed from
+ * memory-mapped files, so that measuring a parser does not measure the
+ * generation of its input.
+ *
+ * Each combination of format, {@link TreeType}, {@link SpecialType} and
+ * {@link Variation} is generated on first use. The directory holds a manifest
+ * ({@value #MANIFEST}) with the size in bytes and the number of events of each
+ * file : the files are reused as long as the manifest matches them, which
+ * keeps the results of successive runs comparable (even with
+ * {@link Variation#RANDOM}).
+ *
+ * @author innovimax
+ */
+public final class GeneratedCorpus {
+
+	public static final String MANIFEST = "manifest.properties";
+
+	private final Path directory;
+	private final long size;
+	private final Unit unit;
+	private final Map<String, Entry> entries;
+
+	/**
+	 * @param directory
+	 *            created if needed
+	 * @param size
+	 *            the size of each document
+	 * @param unit
+	 */
+	public GeneratedCorpus(final Path directory, final long size, final Unit unit) throws IOException {
+		this.directory = Files.createDirectories(directory);
+		this.size = size;
+		this.unit = unit;
+		this.entries = new LinkedHashMap<String, Entry>();
+		loadManifest();
+	}
+
+	/**
+	 * One generated document
+	 */
+	public final class Entry {
+		private final String key;
+		private final FileExtension format;
+		private final long bytes;
+		private final long events;
+		private MappedByteBuffer buffer;
+
+		Entry(final String key, final FileExtension format, final long bytes, final long events) {
+			this.key = key;
+			this.format = format;
+			this.bytes = bytes;
+			this.events = events;
+		}
+
+		public String getKey() {
+			return this.key;
+		}
+
+		public FileExtension getFormat() {
+			return this.format;
+		}
+
+		public long getBytes() {
+			return this.bytes;
+		}
+
+		/**
+		 * @return the number of events read by {@link QuiXEventStreamReader},
+		 *         START_SEQUENCE and END_SEQUENCE included, -1 if it cannot
+		 *         read this document
+		 */
+		public long getEvents() {
+			return this.events;
+		}
+
+		public Path getPath() {
+			return GeneratedCorpus.this.directory.resolve(this.key + "." + this.format.name().toLowerCase());
+		}
+
+		/**
+		 * @return a new read only view of the whole document
+		 */
+		public synchronized ByteBuffer buffer() {
+			if (this.buffer == null) {
+				if (this.bytes > Integer.MAX_VALUE)
+					throw new IllegalStateException("Too big to be mapped : " + this.key);
+				try (final FileChannel channel = FileChannel.open(getPath(), StandardOpenOption.READ)) {
+					this.buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, this.bytes);
+				} catch (final IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+			return this.buffer.asReadOnlyBuffer();
+		}
+
+		/**
+		 * @return a new stream on the document
+		 */
+		public InputStream inputStream() {
+			return new ByteBufferInputStream(buffer());
+		}
+
+		/**
+		 * @return a new source of {@link QuiXEventStreamReader} on the document
+		 */
+		public AStreamSource source() {
+			return GeneratedCorpus.source(this.format, inputStream());
+		}
+	}
+
+	/**
+	 * @return a source of {@link QuiXEventStreamReader} for what a generator
+	 *         of this format produced
+	 */
+	public static AStreamSource source(final FileExtension format, final InputStream is) {
+		switch (format) {
+		case CSV:
+			final Reader reader = new InputStreamReader(is, StandardCharsets.US_ASCII);
+			return CSVStreamSource.instance(reader);
+		case RDF:
+			return RDFStreamSource.instance(new TypedInputStream(is, WebContent.ctTurtle));
+		default:
+			return AStreamSource.instance(format, is);
+		}
+	}
+
+	private static String key(final FileExtension format, final TreeType tree, final SpecialType stype,
+			final Variation variation) {
+		if (tree == null)
+			return format + "-" + variation;
+		return format + "-" + tree + "-" + stype + "-" + variation;
+	}
+
+	/**
+	 * A tree document (XML, JSON or YAML)
+	 */
+	public Entry get(final FileExtension format, final TreeType tree, final SpecialType stype,
+			final Variation variation) throws IOException {
+		return get(key(format, tree, stype, variation), format, tree, stype, variation);
+	}
+
+	/**
+	 * A CSV or RDF document
+	 */
+	public Entry get(final FileExtension format, final Variation variation) throws IOException {
+		return get(key(format, null, null, variation), format, null, null, variation);
+	}
+
+	private synchronized Entry get(final String key, final FileExtension format, final TreeType tree,
+			final SpecialType stype, final Variation variation) throws IOException {
+		final Entry known = this.entries.get(key);
+		if (known != null && Files.isRegularFile(known.getPath()) && Files.size(known.getPath()) == known.bytes)
+			return known;
+		final Path tmp = Files.createTempFile(this.directory, key, ".tmp");
+		try {
+			try (final InputStream is = generator(format, tree, stype).getInputStream(this.size, this.unit,
+					variation); final OutputStream os = Files.newOutputStream(tmp)) {
+				is.transferTo(os);
+			}
+			final Entry entry = new Entry(key, format, Files.size(tmp), countEvents(format, tmp));
+			Files.move(tmp, entry.getPath(), StandardCopyOption.REPLACE_EXISTING);
+			this.entries.put(key, entry);
+			writeManifest();
+			return entry;
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+	}
+
+	// -1 if the reader does not accept the document (for instance a name
+	// longer than the limits of the JDK parser)
+	private static long countEvents(final FileExtension format, final Path path) throws IOException {
+		long events = 0;
+		final QuiXEventStreamReader reader = new QuiXEventStreamReader(source(format, Files.newInputStream(path)));
+		try {
+			while (reader.hasNext()) {
+				if (reader.next() != null)
+					events++;
+			}
+		} catch (final RuntimeException e) {
+			events = -1;
+		} finally {
+			reader.close();
+		}
+		return events;
+	}
+
+	private static AGenerator generator(final FileExtension format, final TreeType tree, final SpecialType stype) {
+		switch (format) {
+		case CSV:
+			return new SimpleCSVGenerator();
+		case RDF:
+			return new SimpleRDFGenerator();
+		default:
+			for (final SpecialType allowed : SpecialType.allowedModifiers(format, tree)) {
+				if (allowed != stype)
+					continue;
+				try {
+					return ATreeGenerator.instance(format, tree, stype);
+				} catch (final ReflectiveOperationException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+			throw new IllegalArgumentException("No generator for " + format + " " + tree + " " + stype);
+		}
+	}
+
+	/**
+	 * Generate every combination the generators support
+	 *
+	 * @return the entries
+	 */
+	public List<Entry> generateAll() throws IOException {
+		final List<Entry> all = new ArrayList<Entry>();
+		for (final FileExtension format : FileExtension.values()) {
+			for (final Variation variation : Variation.values()) {
+				switch (format) {
+				case CSV:
+				case RDF:
+					all.add(get(format, variation));
+					break;
+				default:
+					for (final TreeType tree : TreeType.values()) {
+						for (final SpecialType stype : SpecialType.allowedModifiers(format, tree)) {
+							all.add(get(format, tree, stype, variation));
+						}
+					}
+				}
+			}
+		}
+		return all;
+	}
+
+	public synchronized Map<String, Entry> getEntries() {
+		return Collections.unmodifiableMap(new LinkedHashMap<String, Entry>(this.entries));
+	}
+
+	private String sizeKey() {
+		return this.size + this.unit.name();
+	}
+
+	private void loadManifest() throws IOException {
+		final Path manifest = this.directory.resolve(MANIFEST);
+		if (!Files.isRegularFile(manifest))
+			return;
+		final Properties properties = new Properties();
+		try (final InputStream is = Files.newInputStream(manifest)) {
+			properties.load(is);
+		}
+		// generated for another size
+		if (!sizeKey().equals(properties.getProperty("size")))
+			return;
+		for (final String name : properties.stringPropertyNames()) {
+			if (!name.endsWith(".bytes"))
+				continue;
+			final String key = name.substring(0, name.length() - ".bytes".length());
+			final FileExtension format = FileExtension.valueOf(key.substring(0, key.indexOf('-')));
+			this.entries.put(key, new Entry(key, format, Long.parseLong(properties.getProperty(name)),
+					Long.parseLong(properties.getProperty(key + ".events", "-1"))));
+		}
+	}
+
+	private void writeManifest() throws IOException {
+		// sorted to be diffable from one run to the other
+		final Map<String, String> sorted = new TreeMap<String, String>();
+		for (final Entry entry : this.entries.values()) {
+			sorted.put(entry.key + ".bytes", String.valueOf(entry.bytes));
+			sorted.put(entry.key + ".events", String.valueOf(entry.events));
+		}
+		final StringBuilder sb = new StringBuilder();
+		sb.append("size=").append(sizeKey()).append('\n');
+		for (final Map.Entry<String, String> line : sorted.entrySet()) {
+			sb.append(line.getKey()).append('=').append(line.getValue()).append('\n');
+		}
+		final Path tmp = Files.createTempFile(this.directory, MANIFEST, ".tmp");
+		Files.write(tmp, sb.toString().getBytes(StandardCharsets.ISO_8859_1));
+		Files.move(tmp, this.directory.resolve(MANIFEST), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * Generate the whole corpus : {@code GeneratedCorpus directory size unit}
+	 */
+	public static void main(final String[] args) throws IOException {
+		final GeneratedCorpus corpus = new GeneratedCorpus(Paths.get(args[0]), Long.parseLong(args[1]),
+				Unit.valueOf(args[2]));
+		for (final Entry entry : corpus.generateAll()) {
+			System.out.format("%s %,dB %,dev%n", entry.getKey(), entry.getBytes(), entry.getEvents());
+		}
+	}
+
+	/**
+	 * Replay of a {@link ByteBuffer}
+	 */
+	private static final class ByteBufferInputStream extends InputStream {
+		private final ByteBuffer buffer;
+
+		ByteBufferInputStream(final ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read() {
+			return this.buffer.hasRemaining() ? this.buffer.get() & 0xFF : -1;
+		}
+
+		@Override
+		public int read(final byte[] b, final int off, final int len) {
+			if (len == 0)
+				return 0;
+			if (!this.buffer.hasRemaining())
+				return -1;
+			final int n = Math.min(len, this.buffer.remaining());
+			this.buffer.get(b, off, n);
+			return n;
+		}
+
+		@Override
+		public int available() {
+			return this.buffer.remaining();
+		}
+
+		@Override
+		public long skip(final long n) {
+			final int skipped = (int) Math.max(0, Math.min(n, this.buffer.remaining()));
+			this.buffer.position(this.buffer.position() + skipped);
+			return skipped;
+		}
+	}
+
+}
@@ -0,0 +1,96 @@
+/*
+ * QuiXProc: efficient evaluation of XProc Pipelines.
+ * Copyright (C) 2011-2018 Innovimax
+ * All rights reserved.
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0*/
+package innovimax.quixproc.datamodel.generator.test;
+
+import static org.hamcrest.CoreMatchers.is;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import innovimax.quixproc.datamodel.generator.AGenerator.FileExtension;
+import innovimax.quixproc.datamodel.generator.AGenerator.Unit;
+import innovimax.quixproc.datamodel.generator.AGenerator.Variation;
+import innovimax.quixproc.datamodel.generator.ATreeGenerator;
+import innovimax.quixproc.datamodel.generator.ATreeGenerator.SpecialType;
+import innovimax.quixproc.datamodel.generator.ATreeGenerator.TreeType;
+import innovimax.quixproc.datamodel.generator.GeneratedCorpus;
+import innovimax.quixproc.datamodel.in.QuiXEventStreamReader;
+
+public class TestGeneratedCorpus {
+
+	private Path directory;
+
+	@Before
+	public void setUp() throws IOException {
+		this.directory = Files.createTempDirectory("quixdm-corpus");
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		try (final Stream<Path> paths = Files.walk(this.directory)) {
+			paths.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+		}
+	}
+
+	private static byte[] readAll(final InputStream is) throws IOException {
+		try {
+			return is.readAllBytes();
+		} finally {
+			is.close();
+		}
+	}
+
+	@Test
+	public void testReplay() throws Exception {
+		final GeneratedCorpus corpus = new GeneratedCorpus(this.directory, 10, Unit.KBYTE);
+		final GeneratedCorpus.Entry entry = corpus.get(FileExtension.XML, TreeType.HIGH_NODE_DENSITY,
+				SpecialType.STANDARD, Variation.NO_VARIATION);
+		final byte[] expected = readAll(ATreeGenerator
+				.instance(FileExtension.XML, TreeType.HIGH_NODE_DENSITY, SpecialType.STANDARD)
+				.getInputStream(10, Unit.KBYTE, Variation.NO_VARIATION));
+		Assert.assertThat(entry.getBytes(), is((long) expected.length));
+		// replayable
+		Assert.assertThat(readAll(entry.inputStream()), is(expected));
+		Assert.assertThat(readAll(entry.inputStream()), is(expected));
+		Assert.assertThat(entry.buffer().remaining(), is(expected.length));
+		long events = 0;
+		final QuiXEventStreamReader reader = new QuiXEventStreamReader(entry.source());
+		while (reader.hasNext()) {
+			if (reader.next() != null)
+				events++;
+		}
+		reader.close();
+		Assert.assertThat(entry.getEvents(), is(events));
+	}
+
+	@Test
+	public void testManifest() throws Exception {
+		final GeneratedCorpus corpus = new GeneratedCorpus(this.directory, 10, Unit.KBYTE);
+		final GeneratedCorpus.Entry csv = corpus.get(FileExtension.CSV, Variation.NO_VARIATION);
+		final long modified = Files.getLastModifiedTime(csv.getPath()).toMillis();
+		// reloaded from the manifest, not generated again
+		final GeneratedCorpus again = new GeneratedCorpus(this.directory, 10, Unit.KBYTE);
+		Assert.assertThat(again.getEntries().size(), is(1));
+		final GeneratedCorpus.Entry reloaded = again.get(FileExtension.CSV, Variation.NO_VARIATION);
+		Assert.assertThat(reloaded.getBytes(), is(csv.getBytes()));
+		Assert.assertThat(reloaded.getEvents(), is(csv.getEvents()));
+		Assert.assertThat(Files.getLastModifiedTime(reloaded.getPath()).toMillis(), is(modified));
+		// another size does not use it
+		Assert.assertThat(new GeneratedCorpus(this.directory, 20, Unit.KBYTE).getEntries().size(), is(0));
+	}
+
+}
@@ -0,0 +1,124 @@
+/*
+ * QuiXProc: efficient evaluation of XProc Pipelines.
+ * Copyright (C) 2011-2018 Innovimax
+ * All rights reserved.
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0*/
+package innovimax.quixproc.datamodel.in.test;
+
+import static org.hamcrest.CoreMatchers.is;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import innovimax.quixproc.datamodel.ValidationPolicy;
+import innovimax.quixproc.datamodel.event.AQuiXEvent;
+import innovimax.quixproc.datamodel.generator.AGenerator.FileExtension;
+import innovimax.quixproc.datamodel.in.AStreamSource;
+import innovimax.quixproc.datamodel.in.QuiXEventStreamReader;
+
+public class TestPrefetch {
+
+	private static List<AStreamSource> sources(final int count, final String broken) {
+		final List<AStreamSource> sources = new ArrayList<AStreamSource>();
+		for (int i = 0; i < count; i++) {
+			final FileExtension format = i % 3 == 0 ? FileExtension.JSON : FileExtension.XML;
+			String content = format == FileExtension.JSON ? "{\"a\":[" + i + ",true,{\"b\":null}]}"
+					: "<r n='" + i + "'><!-- c --><a>" + i + "</a><?pi x?><b/></r>";
+			if (i == count / 2 && broken != null)
+				content = broken;
+			sources.add(AStreamSource.instance(format,
+					new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8))));
+		}
+		return sources;
+	}
+
+	// the JSON events have no toString()
+	private static String describe(final AQuiXEvent event) {
+		return event instanceof AQuiXEvent.AXMLQuiXEvent ? event.toString() : event.getType().toString();
+	}
+
+	private static List<String> read(final QuiXEventStreamReader reader) {
+		final List<String> events = new ArrayList<String>();
+		while (reader.hasNext()) {
+			final AQuiXEvent event = reader.next();
+			if (event != null)
+				events.add(describe(event));
+		}
+		reader.close();
+		return events;
+	}
+
+	@Test
+	public void testSameOrder() {
+		final List<String> expected = read(new QuiXEventStreamReader(sources(200, null)));
+		final QuiXEventStreamReader reader = new QuiXEventStreamReader(sources(200, null));
+		// a small buffer so that the parsers wait for the reader
+		reader.setPrefetch(8, 4, null);
+		reader.setValidationPolicy(ValidationPolicy.FULL);
+		Assert.assertThat(read(reader), is(expected));
+	}
+
+	// the sources of the sequence, each as one string, sorted
+	private static List<String> documents(final List<String> events) {
+		final List<String> documents = new ArrayList<String>();
+		StringBuilder document = null;
+		for (final String event : events.subList(1, events.size() - 1)) {
+			if (event.startsWith("START_DOCUMENT") || event.equals("START_JSON"))
+				document = new StringBuilder();
+			document.append(event).append('\n');
+			if (event.startsWith("END_DOCUMENT") || event.equals("END_JSON"))
+				documents.add(document.toString());
+		}
+		Collections.sort(documents);
+		return documents;
+	}
+
+	@Test
+	public void testUnordered() {
+		final List<String> expected = read(new QuiXEventStreamReader(sources(200, null)));
+		final QuiXEventStreamReader reader = new QuiXEventStreamReader(sources(200, null));
+		reader.setUnordered(16);
+		reader.setValidationPolicy(ValidationPolicy.FULL);
+		Assert.assertThat(reader.isOrdered(), is(false));
+		final List<String> events = read(reader);
+		Assert.assertThat(events.get(0), is(expected.get(0)));
+		Assert.assertThat(events.get(events.size() - 1), is(expected.get(expected.size() - 1)));
+		Assert.assertThat(documents(events), is(documents(expected)));
+	}
+
+	@Test
+	public void testNoSource() {
+		final QuiXEventStreamReader reader = new QuiXEventStreamReader(new ArrayList<AStreamSource>());
+		reader.setPrefetch(4);
+		Assert.assertThat(read(reader).size(), is(2));
+	}
+
+	@Test
+	public void testFailureInOrder() {
+		final int count = 10;
+		final List<String> expected = read(new QuiXEventStreamReader(sources(count / 2, null)));
+		final QuiXEventStreamReader reader = new QuiXEventStreamReader(sources(count, "<r><a></r>"));
+		reader.setPrefetch(4);
+		final List<String> events = new ArrayList<String>();
+		try {
+			while (reader.hasNext()) {
+				events.add(describe(reader.next()));
+			}
+			Assert.fail("The broken source should fail");
+		} catch (final RuntimeException e) {
+			// every source before the broken one has been read
+			Assert.assertThat(events.subList(0, expected.size() - 1), is(expected.subList(0, expected.size() - 1)));
+		} finally {
+			reader.close();
+		}
+	}
+
+}
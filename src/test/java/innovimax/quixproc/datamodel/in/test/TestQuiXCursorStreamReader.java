@@ -0,0 +1,143 @@
+/*
+ * QuiXProc: efficient evaluation of XProc Pipelines.
+ * Copyright (C) 2011-2018 Innovimax
+ * All rights reserved.
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0*/
+package innovimax.quixproc.datamodel.in.test;
+
+import static org.hamcrest.CoreMatchers.is;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+
+import javax.xml.transform.stream.StreamSource;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import innovimax.quixproc.datamodel.QuiXToken;
+import innovimax.quixproc.datamodel.ValidQuiXTokenStream;
+import innovimax.quixproc.datamodel.event.AQuiXEvent;
+import innovimax.quixproc.datamodel.event.QuiXEventCodec;
+import innovimax.quixproc.datamodel.generator.AGenerator.FileExtension;
+import innovimax.quixproc.datamodel.in.AStreamSource;
+import innovimax.quixproc.datamodel.in.AStreamSource.CSVStreamSource;
+import innovimax.quixproc.datamodel.in.QuiXCursorStreamReader;
+import innovimax.quixproc.datamodel.in.QuiXEventStreamReader;
+
+public class TestQuiXCursorStreamReader {
+
+	private static final String XML = "<?xml version='1.0'?><!--c--><p:a xmlns:p='urn:p' id='1'>text<![CDATA[ and cdata]]>"
+			+ "<b p:x='y'/><?pi data?>tail</p:a>";
+	private static final String JSON = "{\"a\":[1,2.5,\"s\",true,false,null],\"b\":{}}";
+	private static final String YAML = "a:\n  - 1\n  - s\nb: true\n";
+	private static final String CSV = "a,b\n1,2\n";
+
+	private interface SourceFactory {
+		AStreamSource create();
+	}
+
+	private static byte[] encode(final AQuiXEvent event) throws IOException {
+		final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		QuiXEventCodec.INSTANCE.write(event, new DataOutputStream(baos));
+		return baos.toByteArray();
+	}
+
+	private static AStreamSource source(final FileExtension ext, final String content) {
+		return AStreamSource.instance(ext, new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	/**
+	 * The cursor reader must produce the same events as the event reader
+	 */
+	private static int check(final SourceFactory factory) throws IOException {
+		final QuiXEventStreamReader events = new QuiXEventStreamReader(factory.create());
+		final QuiXCursorStreamReader cursor = new QuiXCursorStreamReader(factory.create());
+		int count = 0;
+		while (events.hasNext()) {
+			final AQuiXEvent expected = events.next();
+			Assert.assertThat(cursor.hasNext(), is(true));
+			final QuiXToken token = cursor.next();
+			Assert.assertThat(token, is(expected.getType()));
+			if (expected instanceof AQuiXEvent.AXMLQuiXEvent) {
+				// a null URI is wrapped in a QuiXCharStream by the event reader
+				Assert.assertThat(cursor.toEvent().toString(), is(expected.toString()));
+			} else {
+				Assert.assertThat(encode(cursor.toEvent()), is(encode(expected)));
+			}
+			count++;
+		}
+		Assert.assertThat(cursor.hasNext(), is(false));
+		events.close();
+		cursor.close();
+		return count;
+	}
+
+	@Test
+	public void testXML() throws IOException {
+		check(() -> AStreamSource.instances(new StreamSource[] { new StreamSource(new StringReader(XML), "urn:doc") })
+				.iterator().next());
+	}
+
+	@Test
+	public void testJSON() throws IOException {
+		check(() -> source(FileExtension.JSON, JSON));
+	}
+
+	@Test
+	public void testYAML() throws IOException {
+		check(() -> source(FileExtension.YAML, YAML));
+	}
+
+	@Test
+	public void testCSV() throws IOException {
+		check(() -> CSVStreamSource.instance(new StringReader(CSV)));
+	}
+
+	@Test
+	public void testAccessors() {
+		final QuiXCursorStreamReader cursor = new QuiXCursorStreamReader(
+				AStreamSource.instances(new StreamSource[] { new StreamSource(new StringReader(XML), "urn:doc") }));
+		int text = 0;
+		int elements = 0;
+		while (cursor.hasNext()) {
+			switch (cursor.next()) {
+			case START_ELEMENT:
+				elements++;
+				if (elements == 1) {
+					Assert.assertThat(cursor.getLocalName(), is("a"));
+					Assert.assertThat(cursor.getURI(), is("urn:p"));
+					Assert.assertThat(cursor.getPrefix(), is("p"));
+				}
+				break;
+			case TEXT:
+				text++;
+				if (text == 1)
+					Assert.assertThat(new String(cursor.getTextCharacters(), cursor.getTextStart(),
+							cursor.getTextLength()), is("text and cdata"));
+				break;
+			default:
+			}
+		}
+		cursor.close();
+		Assert.assertThat(elements, is(2));
+		Assert.assertThat(text, is(2));
+	}
+
+	@Test
+	public void testValid() {
+		final ValidQuiXTokenStream valid = new ValidQuiXTokenStream(
+				new QuiXCursorStreamReader(source(FileExtension.JSON, JSON)));
+		while (valid.hasNext()) {
+			valid.next();
+		}
+		valid.close();
+	}
+
+}
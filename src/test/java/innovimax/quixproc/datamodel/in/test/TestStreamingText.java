@@ -0,0 +1,170 @@
+/*
+ * QuiXProc: efficient evaluation of XProc Pipelines.
+ * Copyright (C) 2011-2018 Innovimax
+ * All rights reserved.
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0*/
+package innovimax.quixproc.datamodel.in.test;
+
+import static org.hamcrest.CoreMatchers.is;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import innovimax.quixproc.datamodel.QuiXCharStream;
+import innovimax.quixproc.datamodel.QuiXToken;
+import innovimax.quixproc.datamodel.event.AQuiXEvent;
+import innovimax.quixproc.datamodel.generator.AGenerator;
+import innovimax.quixproc.datamodel.generator.AGenerator.FileExtension;
+import innovimax.quixproc.datamodel.generator.AGenerator.Unit;
+import innovimax.quixproc.datamodel.generator.AGenerator.Variation;
+import innovimax.quixproc.datamodel.generator.ATreeGenerator;
+import innovimax.quixproc.datamodel.generator.ATreeGenerator.SpecialType;
+import innovimax.quixproc.datamodel.generator.ATreeGenerator.TreeType;
+import innovimax.quixproc.datamodel.in.AStreamSource;
+import innovimax.quixproc.datamodel.in.QuiXEventStreamReader;
+
+public class TestStreamingText {
+
+	private static final int THRESHOLD = 1 << 16;
+	// upper bound of the text chunks of the JDK parser
+	private static final int PARSER_CHUNK = 1 << 15;
+
+	/**
+	 * A text node of 64 MB (more than 128 MB as chars) read with a bounded
+	 * buffer : no more than the threshold and the parser chunks are held
+	 */
+	@Test
+	public void testHighTextSize() throws Exception {
+		final int size = 64;
+		final AGenerator generator = ATreeGenerator.instance(FileExtension.XML, TreeType.HIGH_TEXT_SIZE,
+				SpecialType.STANDARD);
+		final QuiXEventStreamReader reader = new QuiXEventStreamReader(AStreamSource.instance(FileExtension.XML,
+				generator.getInputStream(size, Unit.MBYTE, Variation.NO_VARIATION)));
+		reader.setTextStreamingThreshold(THRESHOLD);
+		long chars = 0;
+		int texts = 0;
+		final char[] chunk = new char[8192];
+		while (reader.hasNext()) {
+			final AQuiXEvent event = reader.next();
+			if (event.getType() == QuiXToken.TEXT) {
+				texts++;
+				final QuiXCharStream data = event.asText().getData();
+				Assert.assertThat(data.isStreaming(), is(true));
+				try (Reader r = data.asReader()) {
+					int n;
+					while ((n = r.read(chunk, 0, chunk.length)) != -1) {
+						chars += n;
+					}
+				}
+			}
+		}
+		reader.close();
+		Assert.assertThat(texts, is(1));
+		// minus <r></r>
+		Assert.assertThat(chars, is(size * 1000000L - 7));
+		// the threshold crossed by one parser chunk, plus the current chunk :
+		// far from the whole text
+		Assert.assertThat("held " + reader.getMaxStreamingTextHeld(), reader.getMaxStreamingTextHeld() >= THRESHOLD,
+				is(true));
+		Assert.assertThat("held " + reader.getMaxStreamingTextHeld(),
+				reader.getMaxStreamingTextHeld() <= THRESHOLD + 2 * PARSER_CHUNK, is(true));
+	}
+
+	@Test
+	public void testUnreadTextIsSkipped() {
+		final StringBuilder sb = new StringBuilder("<r>");
+		for (int i = 0; i < 10000; i++) {
+			sb.append("0123456789");
+		}
+		sb.append("<a/>small<!--c--></r>");
+		final QuiXEventStreamReader reader = new QuiXEventStreamReader(AStreamSource.instance(FileExtension.XML,
+				new ByteArrayInputStream(sb.toString().getBytes(StandardCharsets.UTF_8))));
+		reader.setTextStreamingThreshold(1000);
+		final StringBuilder trace = new StringBuilder();
+		while (reader.hasNext()) {
+			final AQuiXEvent event = reader.next();
+			trace.append(event.getType()).append(' ');
+			if (event.getType() == QuiXToken.TEXT) {
+				final QuiXCharStream data = event.asText().getData();
+				if (!data.isStreaming())
+					trace.append(data).append(' ');
+			}
+		}
+		reader.close();
+		Assert.assertThat(trace.toString(),
+				is("START_SEQUENCE START_DOCUMENT START_ELEMENT TEXT START_ELEMENT END_ELEMENT TEXT small COMMENT END_ELEMENT END_DOCUMENT END_SEQUENCE "));
+	}
+
+	private static QuiXEventStreamReader largeText(final int chars) {
+		final StringBuilder sb = new StringBuilder("<r>");
+		for (int i = 0; i < chars / 10; i++) {
+			sb.append("0123456789");
+		}
+		sb.append("<a/></r>");
+		final QuiXEventStreamReader reader = new QuiXEventStreamReader(AStreamSource.instance(FileExtension.XML,
+				new ByteArrayInputStream(sb.toString().getBytes(StandardCharsets.UTF_8))));
+		reader.setTextStreamingThreshold(1000);
+		return reader;
+	}
+
+	@Test
+	public void testReadAfterNext() throws IOException {
+		final QuiXEventStreamReader reader = largeText(100000);
+		QuiXCharStream data = null;
+		while (reader.hasNext() && data == null) {
+			final AQuiXEvent event = reader.next();
+			if (event.getType() == QuiXToken.TEXT)
+				data = event.asText().getData();
+		}
+		Assert.assertThat(data.isStreaming(), is(true));
+		final Reader r = data.asReader();
+		final char[] chunk = new char[10];
+		Assert.assertThat(r.read(chunk, 0, chunk.length), is(10));
+		Assert.assertThat(reader.next().getType(), is(QuiXToken.START_ELEMENT));
+		try {
+			r.read(chunk, 0, chunk.length);
+			Assert.fail();
+		} catch (final IllegalStateException e) {
+			// expected
+		}
+		reader.close();
+	}
+
+	@Test
+	public void testDrainToDoesNotStream() {
+		final QuiXEventStreamReader reader = largeText(100000);
+		final AQuiXEvent[] batch = new AQuiXEvent[16];
+		final int count = reader.drainTo(batch, batch.length);
+		// all the events, read after the batch
+		Assert.assertThat(count, is(9));
+		Assert.assertThat(batch[3].getType(), is(QuiXToken.TEXT));
+		final QuiXCharStream data = batch[3].asText().getData();
+		Assert.assertThat(data.isStreaming(), is(false));
+		Assert.assertThat(data.length(), is(100000));
+		reader.close();
+	}
+
+	@Test
+	public void testMaterialize() throws IOException {
+		final QuiXCharStream cs = QuiXCharStream.fromReader(new java.io.StringReader("abc:def"));
+		Assert.assertThat(cs.isStreaming(), is(true));
+		Assert.assertThat(cs.substringAfter(":").toString(), is("def"));
+		Assert.assertThat(cs.isStreaming(), is(false));
+		final QuiXCharStream once = QuiXCharStream.fromReader(new java.io.StringReader("x"));
+		once.asReader().close();
+		try {
+			once.asReader();
+			Assert.fail();
+		} catch (final IllegalStateException e) {
+			// expected
+		}
+	}
+
+}
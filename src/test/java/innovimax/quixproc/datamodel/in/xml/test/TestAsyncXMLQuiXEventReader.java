@@ -0,0 +1,358 @@
+/*
+ * QuiXProc: efficient evaluation of XProc Pipelines.
+ * Copyright (C) 2011-2018 Innovimax
+ * All rights reserved.
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0*/
+package innovimax.quixproc.datamodel.in.xml.test;
+
+import static org.hamcrest.CoreMatchers.is;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import innovimax.quixproc.datamodel.QuiXException;
+import innovimax.quixproc.datamodel.event.AQuiXEvent;
+import innovimax.quixproc.datamodel.generator.AGenerator.FileExtension;
+import innovimax.quixproc.datamodel.in.AStreamSource;
+import innovimax.quixproc.datamodel.in.QuiXEventStreamReader;
+import innovimax.quixproc.datamodel.in.xml.AsyncXMLQuiXEventMultiplexer;
+import innovimax.quixproc.datamodel.in.xml.AsyncXMLQuiXEventReader;
+import innovimax.quixproc.datamodel.shared.ISimpleQuiXQueue;
+
+public class TestAsyncXMLQuiXEventReader {
+
+	private static final String[] DOCUMENTS = {
+			"<r/>",
+			"<?xml version='1.0'?>\n<!-- before --><r a=\"1\" b='x &amp; &#x41;&#66;'>t&lt;e&gt;x<![CDATA[<c>]]>t<e/>\r\n</r>\n<?after data?>",
+			"<!DOCTYPE r [<!ELEMENT r ANY>]><r xmlns='u1' xmlns:p='u2'><p:e p:a='v' xml:lang='fr'><e xmlns=''/></p:e></r>",
+			"<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?><r>café</r>",
+			"<r>é€😀 &#x1F600; <a\n b = \"x\ty\"  /></r>",
+			"<r xmlns:p='u' xmlns:q='v' p:x='1' q:x='2' x='3'>a]]b]>c]&#93;>d]]<!-- a - b --><?t-\u00e9 d?></r>",
+			"<!DOCTYPE r [<!-- don't -->]><r/>",
+			"<!DOCTYPE r [<!ENTITY e \"x\">]><r>&e;</r>",
+			"<?xml version='1.0'?><!DOCTYPE r SYSTEM 'r[.dtd' [\n<?pi '?><!ATTLIST r a CDATA '>]'>\n<!ENTITY % p 'x'>"
+					+ "<!ENTITY e \"[&f;&#38;lt;&#x41;&apos;]\"><!ENTITY f '&amp;'><!ENTITY e 'ignored'>]>"
+					+ "<!--c--><r a='1'>a&e;b<e>&f;</e></r>",
+	};
+
+	private static String describe(final AQuiXEvent event) {
+		switch (event.getType()) {
+		case START_ELEMENT:
+		case END_ELEMENT:
+			return event.getType() + " {" + event.asNamedEvent().getURI() + "}" + event.asNamedEvent().getPrefix()
+					+ ":" + event.asNamedEvent().getLocalName();
+		case ATTRIBUTE:
+			return event.getType() + " {" + event.asNamedEvent().getURI() + "}" + event.asNamedEvent().getPrefix()
+					+ ":" + event.asNamedEvent().getLocalName() + "=" + event.asAttribute().getValue();
+		case PROCESSING_INSTRUCTION:
+			return event.getType() + " " + event.asPI().getTarget() + " " + event.asPI().getData();
+		default:
+			return event.toString();
+		}
+	}
+
+	private static byte[] bytes(final String document) {
+		return document.getBytes(document.contains("ISO-8859-1") ? StandardCharsets.ISO_8859_1 : StandardCharsets.UTF_8);
+	}
+
+	private static List<String> blocking(final byte[] document) {
+		final List<String> events = new ArrayList<String>();
+		final QuiXEventStreamReader reader = new QuiXEventStreamReader(
+				AStreamSource.instance(FileExtension.XML, new ByteArrayInputStream(document)));
+		while (reader.hasNext()) {
+			final AQuiXEvent event = reader.next();
+			switch (event.getType()) {
+			case START_SEQUENCE:
+			case END_SEQUENCE:
+				break;
+			default:
+				events.add(describe(event));
+			}
+		}
+		reader.close();
+		return events;
+	}
+
+	private static List<String> async(final byte[] document, final int chunk) {
+		final List<String> events = new ArrayList<String>();
+		final AsyncXMLQuiXEventReader reader = new AsyncXMLQuiXEventReader(null);
+		int off = 0;
+		while (!reader.isFinished()) {
+			final AQuiXEvent event = reader.next();
+			if (event != null) {
+				events.add(describe(event));
+			} else if (off < document.length) {
+				final int len = Math.min(chunk, document.length - off);
+				reader.feed(document, off, len);
+				off += len;
+			} else {
+				reader.endOfInput();
+			}
+		}
+		return events;
+	}
+
+	@Test
+	public void testSameEventsAsBlocking() {
+		for (final String document : DOCUMENTS) {
+			final byte[] bytes = bytes(document);
+			final List<String> expected = blocking(bytes);
+			for (final int chunk : new int[] { 1, 3, 7, bytes.length }) {
+				Assert.assertThat(document + " by " + chunk, async(bytes, chunk), is(expected));
+			}
+		}
+	}
+
+	/**
+	 * A text larger than the text buffer of the blocking reader, split by the
+	 * parser around the references
+	 */
+	@Test
+	public void testLargeText() {
+		final StringBuilder document = new StringBuilder("<r>");
+		final StringBuilder expected = new StringBuilder("TEXT ");
+		for (int i = 0; i < 20000; i++) {
+			document.append("text&amp;");
+			expected.append("text&");
+		}
+		document.append("<e/></r>");
+		final byte[] bytes = bytes(document.toString());
+		final List<String> events = blocking(bytes);
+		Assert.assertThat(events.get(2), is(expected.toString()));
+		Assert.assertThat(async(bytes, 4096), is(events));
+	}
+
+	@Test
+	public void testNeedsInput() {
+		final AsyncXMLQuiXEventReader reader = new AsyncXMLQuiXEventReader(null);
+		Assert.assertThat(reader.next().getType().toString(), is("START_DOCUMENT"));
+		Assert.assertThat(reader.needsInput(), is(true));
+		final byte[] open = bytes("<root><a");
+		reader.feed(open, 0, open.length);
+		Assert.assertThat(describe(reader.next()), is("START_ELEMENT {}:root"));
+		Assert.assertThat(reader.next() == null, is(true));
+		final byte[] close = bytes("/></root>");
+		reader.feed(close, 0, close.length);
+		reader.endOfInput();
+		int count = 0;
+		while (reader.next() != null) {
+			count++;
+		}
+		Assert.assertThat(count, is(4));
+		Assert.assertThat(reader.isFinished(), is(true));
+	}
+
+	@Test(expected = QuiXException.class)
+	public void testMismatchedEndTag() {
+		async(bytes("<r><a></r>"), 4);
+	}
+
+	/**
+	 * Whatever the way the document is split
+	 */
+	private static void assertNotWellFormed(final String document) {
+		final byte[] bytes = bytes(document);
+		for (final int chunk : new int[] { 1, bytes.length }) {
+			try {
+				async(bytes, chunk);
+				Assert.fail(document + " by " + chunk);
+			} catch (final QuiXException e) {
+				// expected
+			}
+		}
+	}
+
+	@Test
+	public void testInvalidNames() {
+		assertNotWellFormed("<1a/>");
+		assertNotWellFormed("<r><a:b:c/></r>");
+		assertNotWellFormed("<r :a='1'/>");
+		assertNotWellFormed("<r a\"='1'/>");
+		assertNotWellFormed("<?1pi data?><r/>");
+	}
+
+	@Test
+	public void testDuplicateAttributes() {
+		assertNotWellFormed("<a x=\"1\" x=\"2\"/>");
+		assertNotWellFormed("<a xmlns:p='u' xmlns:p='v'/>");
+		assertNotWellFormed("<a xmlns:p='u' xmlns:q='u' p:x='1' q:x='2'/>");
+	}
+
+	@Test
+	public void testMissingSpaceBetweenAttributes() {
+		assertNotWellFormed("<a x=\"1\"y=\"2\"/>");
+	}
+
+	@Test
+	public void testDoubleHyphenInComment() {
+		assertNotWellFormed("<r><!-- a -- b --></r>");
+		assertNotWellFormed("<r><!-- a ---></r>");
+	}
+
+	@Test
+	public void testUnboundPrefix() {
+		assertNotWellFormed("<r xmlns:p=''/>");
+		assertNotWellFormed("<r><p:a/></r>");
+	}
+
+	@Test
+	public void testTruncatedDocument() {
+		assertNotWellFormed("<r><a>");
+		assertNotWellFormed("<r>text");
+		assertNotWellFormed("<!DOCTYPE r [");
+		assertNotWellFormed("");
+	}
+
+	@Test
+	public void testMisplacedDoctype() {
+		assertNotWellFormed("<r/><!DOCTYPE r>");
+		assertNotWellFormed("<!DOCTYPE r><!DOCTYPE r><r/>");
+		assertNotWellFormed("<!DOCTYPEr><r/>");
+	}
+
+	@Test
+	public void testEntities() {
+		assertNotWellFormed("<r>&e;</r>");
+		assertNotWellFormed("<!DOCTYPE r [<!ENTITY e SYSTEM 'e.xml'>]><r>&e;</r>");
+		assertNotWellFormed("<!DOCTYPE r [<!ENTITY e '&e;'>]><r>&e;</r>");
+		assertNotWellFormed("<!DOCTYPE r [<!ENTITY e '&#0;'>]><r>&e;</r>");
+		// not supported
+		assertNotWellFormed("<!DOCTYPE r [<!ENTITY e '<a/>'>]><r>&e;</r>");
+		assertNotWellFormed("<!DOCTYPE r [<!ENTITY e 'x'>]><r a='&e;'/>");
+	}
+
+	@Test
+	public void testIllegalCharacters() {
+		assertNotWellFormed("<r>\u0001</r>");
+		assertNotWellFormed("<r a='\uFFFF'/>");
+		assertNotWellFormed("<!-- \u0008 --><r/>");
+	}
+
+	@Test
+	public void testIllegalCharacterReferences() {
+		assertNotWellFormed("<r>&#0;</r>");
+		assertNotWellFormed("<r a='&#x1;'/>");
+		assertNotWellFormed("<r>&#xD800;</r>");
+		assertNotWellFormed("<r>&#+65;</r>");
+	}
+
+	@Test
+	public void testMultiplexer() throws Exception {
+		final int count = 50;
+		final AsyncXMLQuiXEventMultiplexer multiplexer = new AsyncXMLQuiXEventMultiplexer();
+		final Thread thread = new Thread(multiplexer);
+		thread.start();
+		final Pipe[] pipes = new Pipe[count];
+		final List<List<String>> results = new ArrayList<List<String>>();
+		final List<CompletableFuture<Void>> done = new ArrayList<CompletableFuture<Void>>();
+		for (int i = 0; i < count; i++) {
+			pipes[i] = Pipe.open();
+			final List<String> events = new ArrayList<String>();
+			results.add(events);
+			done.add(multiplexer.register(pipes[i].source(), null, new ISimpleQuiXQueue<AQuiXEvent>() {
+				@Override
+				public void append(final AQuiXEvent event) {
+					events.add(describe(event));
+				}
+
+				@Override
+				public void close() {
+					// nothing
+				}
+			}));
+		}
+		// the documents arrive interleaved, a few bytes at a time
+		final byte[] document = bytes(DOCUMENTS[1]);
+		for (int off = 0; off < document.length; off += 5) {
+			for (final Pipe pipe : pipes) {
+				pipe.sink().write(ByteBuffer.wrap(document, off, Math.min(5, document.length - off)));
+			}
+		}
+		for (final Pipe pipe : pipes) {
+			pipe.sink().close();
+		}
+		for (final CompletableFuture<Void> future : done) {
+			future.get();
+		}
+		multiplexer.close();
+		thread.join();
+		final List<String> expected = blocking(document);
+		for (final List<String> events : results) {
+			Assert.assertThat(events, is(expected));
+		}
+	}
+
+	/**
+	 * Collect the events, and whether the future was already failed when the
+	 * queue got closed
+	 */
+	private static final class CheckingQueue implements ISimpleQuiXQueue<AQuiXEvent> {
+		final List<String> events = new ArrayList<String>();
+		final AtomicReference<CompletableFuture<Void>> done = new AtomicReference<CompletableFuture<Void>>();
+		volatile Boolean failedWhenClosed = null;
+
+		@Override
+		public void append(final AQuiXEvent event) {
+			this.events.add(describe(event));
+		}
+
+		@Override
+		public void close() {
+			this.failedWhenClosed = Boolean.valueOf(this.done.get().isCompletedExceptionally());
+		}
+	}
+
+	@Test
+	public void testMultiplexerFailures() throws Exception {
+		final AsyncXMLQuiXEventMultiplexer multiplexer = new AsyncXMLQuiXEventMultiplexer();
+		// closed before the multiplexer registers it
+		final Pipe closed = Pipe.open();
+		final CheckingQueue closedQueue = new CheckingQueue();
+		closedQueue.done.set(multiplexer.register(closed.source(), null, closedQueue));
+		closed.source().close();
+		// truncated by a parsing error
+		final Pipe broken = Pipe.open();
+		final CheckingQueue brokenQueue = new CheckingQueue();
+		brokenQueue.done.set(multiplexer.register(broken.source(), null, brokenQueue));
+		final Pipe good = Pipe.open();
+		final CheckingQueue goodQueue = new CheckingQueue();
+		goodQueue.done.set(multiplexer.register(good.source(), null, goodQueue));
+		final Thread thread = new Thread(multiplexer);
+		thread.start();
+		broken.sink().write(ByteBuffer.wrap(bytes("<r><a></r>")));
+		broken.sink().close();
+		good.sink().write(ByteBuffer.wrap(bytes(DOCUMENTS[1])));
+		good.sink().close();
+		goodQueue.done.get().get();
+		for (final CheckingQueue queue : new CheckingQueue[] { closedQueue, brokenQueue }) {
+			try {
+				queue.done.get().get();
+				Assert.fail();
+			} catch (final ExecutionException e) {
+				// expected
+			}
+		}
+		// the queues are closed once their future is completed
+		multiplexer.close();
+		thread.join();
+		Assert.assertThat(closedQueue.failedWhenClosed, is(Boolean.TRUE));
+		Assert.assertThat(brokenQueue.failedWhenClosed, is(Boolean.TRUE));
+		Assert.assertThat(brokenQueue.events.contains("END_DOCUMENT null"), is(false));
+		Assert.assertThat(brokenQueue.events.get(1), is("START_ELEMENT {}:r"));
+		Assert.assertThat(goodQueue.failedWhenClosed, is(Boolean.FALSE));
+		Assert.assertThat(goodQueue.events, is(blocking(bytes(DOCUMENTS[1]))));
+	}
+
+}
@@ -0,0 +1,63 @@
+/*
+ * QuiXProc: efficient evaluation of XProc Pipelines.
+ * Copyright (C) 2011-2018 Innovimax
+ * All rights reserved.
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0*/
+package innovimax.quixproc.datamodel.metrics.test;
+
+import static org.hamcrest.CoreMatchers.is;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.ObjectName;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+import innovimax.quixproc.datamodel.QuiXCharStream;
+import innovimax.quixproc.datamodel.QuiXToken;
+import innovimax.quixproc.datamodel.event.AQuiXEvent;
+import innovimax.quixproc.datamodel.metrics.QuiXMetrics;
+
+public class TestQuiXMetrics {
+
+	@Test
+	public void testConcurrentCounts() throws InterruptedException {
+		Assume.assumeTrue(QuiXMetrics.ENABLED);
+		final int threads = 4;
+		final int loops = 10000;
+		final QuiXMetrics.Snapshot before = QuiXMetrics.snapshot();
+		final Thread[] workers = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			workers[i] = new Thread(() -> {
+				for (int j = 0; j < loops; j++) {
+					AQuiXEvent.getText(QuiXCharStream.fromSequence("t"));
+				}
+			});
+			workers[i].start();
+		}
+		for (final Thread worker : workers) {
+			worker.join();
+		}
+		final QuiXMetrics.Snapshot after = QuiXMetrics.snapshot();
+		Assert.assertThat(after.getCreated().get(QuiXToken.TEXT) - before.getCreated().get(QuiXToken.TEXT),
+				is((long) threads * loops));
+		Assert.assertThat(
+				after.getFactoryCalls().get(QuiXToken.TEXT) - before.getFactoryCalls().get(QuiXToken.TEXT),
+				is((long) threads * loops));
+	}
+
+	@Test
+	public void testMXBean() throws Exception {
+		QuiXMetrics.registerMXBean();
+		// idempotent
+		QuiXMetrics.registerMXBean();
+		final Object enabled = ManagementFactory.getPlatformMBeanServer()
+				.getAttribute(new ObjectName(QuiXMetrics.OBJECT_NAME), "Enabled");
+		Assert.assertThat(enabled, is((Object) QuiXMetrics.ENABLED));
+	}
+
+}
@@ -0,0 +1,456 @@
+/*
+ * QuiXProc: efficient evaluation of XProc Pipelines.
+ * Copyright (C) 2011-2018 Innovimax
+ * All rights reserved.
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0*/
+package innovimax.quixproc.datamodel.shared.test;
+
+import static org.hamcrest.CoreMatchers.is;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+import innovimax.quixproc.datamodel.IQuiXCodec;
+import innovimax.quixproc.datamodel.IQuiXStream;
+import innovimax.quixproc.datamodel.QuiXCharStream;
+import innovimax.quixproc.datamodel.event.AQuiXEvent;
+import innovimax.quixproc.datamodel.event.QuiXEventCodec;
+import innovimax.quixproc.datamodel.shared.IQuiXQueue;
+import innovimax.quixproc.datamodel.shared.IQuiXQueue.ProxyReader;
+import innovimax.quixproc.datamodel.shared.QuiXPipelineRunner;
+import innovimax.quixproc.datamodel.shared.RingBufferQuiXQueue;
+import innovimax.quixproc.datamodel.shared.RingBufferQuiXQueue.WaitStrategy;
+import innovimax.quixproc.datamodel.shared.SimpleAppendQuiXQueue;
+import innovimax.quixproc.datamodel.shared.SmartAppendQuiXQueue;
+import innovimax.quixproc.datamodel.shared.SpillingQuiXQueue;
+
+public class TestQuiXQueue {
+
+	private static final int EVENT_COUNT = 10000;
+
+	private static class Consumer extends Thread {
+		final IQuiXStream<Integer> stream;
+		long sum = 0;
+		int count = 0;
+		boolean ordered = true;
+
+		Consumer(final IQuiXStream<Integer> stream) {
+			this.stream = stream;
+		}
+
+		@Override
+		public void run() {
+			int previous = -1;
+			while (this.stream.hasNext()) {
+				final int value = this.stream.next();
+				if (value != previous + 1)
+					this.ordered = false;
+				previous = value;
+				this.sum += value;
+				this.count++;
+			}
+			this.stream.close();
+		}
+	}
+
+	private static class BatchConsumer extends Consumer {
+		private final int batchSize;
+
+		BatchConsumer(final IQuiXStream<Integer> stream, final int batchSize) {
+			super(stream);
+			this.batchSize = batchSize;
+		}
+
+		@Override
+		public void run() {
+			final Integer[] batch = new Integer[this.batchSize];
+			int previous = -1;
+			int n;
+			while ((n = this.stream.drainTo(batch, this.batchSize)) > 0) {
+				for (int i = 0; i < n; i++) {
+					final int value = batch[i];
+					if (value != previous + 1)
+						this.ordered = false;
+					previous = value;
+					this.sum += value;
+					this.count++;
+				}
+			}
+			this.stream.close();
+		}
+	}
+
+	private static void produce(final IQuiXQueue<Integer> queue, final int count) {
+		for (int i = 0; i < count; i++) {
+			queue.append(i);
+		}
+		queue.close();
+	}
+
+	private static void checkFanOut(final IQuiXQueue<Integer> queue, final int readers) throws InterruptedException {
+		queue.setReaderCount(readers);
+		final List<Consumer> consumers = new ArrayList<Consumer>();
+		for (int i = 0; i < readers; i++) {
+			final Consumer consumer = new Consumer(queue.registerReader());
+			consumers.add(consumer);
+			consumer.start();
+		}
+		produce(queue, EVENT_COUNT);
+		final long expected = (long) EVENT_COUNT * (EVENT_COUNT - 1) / 2;
+		for (final Consumer consumer : consumers) {
+			consumer.join();
+			Assert.assertThat(consumer.count, is(EVENT_COUNT));
+			Assert.assertThat(consumer.sum, is(expected));
+			Assert.assertThat(consumer.ordered, is(true));
+		}
+	}
+
+	@Test
+	public void testRingBufferFanOut() throws InterruptedException {
+		for (final WaitStrategy strategy : WaitStrategy.values()) {
+			checkFanOut(new RingBufferQuiXQueue<Integer>(256, strategy), 4);
+		}
+	}
+
+	@Test
+	public void testRingBufferCapacityIsPowerOfTwo() {
+		Assert.assertThat(new RingBufferQuiXQueue<Integer>(100, WaitStrategy.SPIN).getCapacity(), is(128));
+		Assert.assertThat(new RingBufferQuiXQueue<Integer>(1, WaitStrategy.SPIN).getCapacity(), is(1));
+	}
+
+	@Test
+	public void testRingBufferProxyReaderReplay() throws InterruptedException {
+		final RingBufferQuiXQueue<Integer> queue = new RingBufferQuiXQueue<Integer>(16, WaitStrategy.YIELD);
+		final ProxyReader<Integer> proxy = queue.registerProxyReader();
+		queue.closeReaderRegistration();
+		// the proxy holds the head so everything fits in the ring
+		produce(queue, 16);
+		final Consumer first = new Consumer(proxy.registerReader());
+		final Consumer second = new Consumer(proxy.registerReader());
+		proxy.closeReaderRegistration();
+		first.start();
+		second.start();
+		first.join();
+		second.join();
+		Assert.assertThat(first.count, is(16));
+		Assert.assertThat(second.count, is(16));
+	}
+
+	@Test
+	public void testSmartAppendFanOut() throws InterruptedException {
+		checkFanOut(new SmartAppendQuiXQueue<Integer>(), 4);
+		checkFanOut(new SmartAppendQuiXQueue<Integer>(32), 4);
+	}
+
+	@Test
+	public void testSmartAppendBoundedLag() throws InterruptedException {
+		final int maxLag = 50;
+		final SmartAppendQuiXQueue<Integer> queue = new SmartAppendQuiXQueue<Integer>(maxLag);
+		queue.setReaderCount(2);
+		final Consumer fast = new Consumer(queue.registerReader());
+		final IQuiXStream<Integer> slowStream = queue.registerReader();
+		final Consumer slow = new Consumer(new IQuiXStream<Integer>() {
+			@Override
+			public boolean hasNext() {
+				return slowStream.hasNext();
+			}
+
+			@Override
+			public Integer next() {
+				Thread.yield();
+				return slowStream.next();
+			}
+
+			@Override
+			public void close() {
+				slowStream.close();
+			}
+		});
+		fast.start();
+		slow.start();
+		long maxObserved = 0;
+		for (int i = 0; i < EVENT_COUNT; i++) {
+			queue.append(i);
+			for (final long lag : queue.getReaderLags()) {
+				maxObserved = Math.max(maxObserved, lag);
+			}
+		}
+		queue.close();
+		fast.join();
+		slow.join();
+		Assert.assertThat(slow.count, is(EVENT_COUNT));
+		Assert.assertThat(maxObserved <= maxLag, is(true));
+	}
+
+	@Test
+	public void testSmartAppendWeightedBound() {
+		// with a weigher the lags are expressed in weight, not in events
+		final SmartAppendQuiXQueue<String> queue = new SmartAppendQuiXQueue<String>(10, String::length);
+		queue.setReaderCount(1);
+		final IQuiXStream<String> reader = queue.registerReader();
+		queue.append("abcd");
+		queue.append("efgh");
+		Assert.assertThat(queue.getReaderLags()[0], is(8L));
+		reader.next();
+		Assert.assertThat(queue.getReaderLags()[0], is(4L));
+		reader.close();
+		Assert.assertThat(queue.getReaderLags().length, is(0));
+	}
+
+	@Test
+	public void testSmartAppendDroppedReader() {
+		// unbounded : a reader dropped without close() does not retain the
+		// events it has not read
+		final SmartAppendQuiXQueue<Object> queue = new SmartAppendQuiXQueue<Object>();
+		queue.setReaderCount(1);
+		queue.registerReader();
+		Object first = new byte[1024];
+		final WeakReference<Object> ref = new WeakReference<Object>(first);
+		queue.append(first);
+		first = null;
+		queue.append("last");
+		for (int i = 0; i < 10 && ref.get() != null; i++) {
+			System.gc();
+		}
+		Assert.assertThat(ref.get() == null, is(true));
+		Assert.assertThat(queue.getReaderLags().length, is(0));
+		queue.close();
+	}
+
+	private static void checkBatch(final IQuiXQueue<Integer> queue) throws InterruptedException {
+		queue.setReaderCount(2);
+		final Consumer single = new Consumer(queue.registerReader());
+		final Consumer batch = new BatchConsumer(queue.registerReader(), 100);
+		single.start();
+		batch.start();
+		final Integer[] events = new Integer[EVENT_COUNT];
+		for (int i = 0; i < EVENT_COUNT; i++) {
+			events[i] = i;
+		}
+		// uneven batches
+		int off = 0;
+		for (int len = 1; off < EVENT_COUNT; len = len * 2 + 1) {
+			final int n = Math.min(len, EVENT_COUNT - off);
+			queue.appendAll(events, off, n);
+			off += n;
+		}
+		queue.close();
+		final long expected = (long) EVENT_COUNT * (EVENT_COUNT - 1) / 2;
+		for (final Consumer consumer : new Consumer[] { single, batch }) {
+			consumer.join();
+			Assert.assertThat(consumer.count, is(EVENT_COUNT));
+			Assert.assertThat(consumer.sum, is(expected));
+			Assert.assertThat(consumer.ordered, is(true));
+		}
+	}
+
+	@Test
+	public void testBatchAppendAndDrain() throws InterruptedException {
+		checkBatch(new SimpleAppendQuiXQueue<Integer>());
+		checkBatch(new SmartAppendQuiXQueue<Integer>());
+		checkBatch(new SmartAppendQuiXQueue<Integer>(64));
+		checkBatch(new RingBufferQuiXQueue<Integer>(256, WaitStrategy.PARK));
+		checkBatch(new SpillingQuiXQueue<Integer>(INT_CODEC, 64, 2));
+	}
+
+	@Test
+	public void testSimpleAppendIdleReadersDoNotSpin() throws InterruptedException {
+		final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		Assume.assumeTrue(threads.isThreadCpuTimeSupported());
+		threads.setThreadCpuTimeEnabled(true);
+		final int readers = 16;
+		final SimpleAppendQuiXQueue<Integer> queue = new SimpleAppendQuiXQueue<Integer>();
+		queue.setReaderCount(readers);
+		final List<Consumer> consumers = new ArrayList<Consumer>();
+		for (int i = 0; i < readers; i++) {
+			final Consumer consumer = new Consumer(queue.registerReader());
+			consumers.add(consumer);
+			consumer.start();
+		}
+		// let the readers catch up with the (idle) writer
+		Thread.sleep(500);
+		long idleCpu = 0;
+		for (final Consumer consumer : consumers) {
+			idleCpu += threads.getThreadCpuTime(consumer.getId());
+		}
+		produce(queue, EVENT_COUNT);
+		for (final Consumer consumer : consumers) {
+			consumer.join();
+			Assert.assertThat(consumer.count, is(EVENT_COUNT));
+		}
+		// spinning readers would burn the whole 500ms
+		Assert.assertThat("idle readers used " + idleCpu / 1000000 + "ms of CPU", idleCpu < 100000000L, is(true));
+	}
+
+	@Test
+	public void testSimpleAppendReleaseWhileWriting() throws InterruptedException {
+		// the last reader is closed while the writer appends
+		for (int i = 0; i < 2000; i++) {
+			final SimpleAppendQuiXQueue<Integer> queue = new SimpleAppendQuiXQueue<Integer>();
+			final IQuiXStream<Integer> reader = queue.registerReader();
+			final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+			final Thread writer = new Thread(() -> {
+				try {
+					produce(queue, 10000);
+				} catch (final Throwable e) {
+					failure.set(e);
+				}
+			});
+			writer.start();
+			for (int j = 0; j < i % 64; j++) {
+				reader.next();
+			}
+			reader.close();
+			writer.join();
+			Assert.assertThat(String.valueOf(failure.get()), failure.get() == null, is(true));
+		}
+	}
+
+	@Test
+	public void testPipelineRunner() throws Exception {
+		final int pipelines = 200;
+		final int size = 500;
+		final AtomicLong total = new AtomicLong();
+		final List<Future<?>> steps = new ArrayList<Future<?>>();
+		try (QuiXPipelineRunner runner = new QuiXPipelineRunner()) {
+			for (int p = 0; p < pipelines; p++) {
+				final SimpleAppendQuiXQueue<Integer> source = new SimpleAppendQuiXQueue<Integer>();
+				source.setReaderCount(1);
+				final IQuiXStream<Integer> input = source.registerReader();
+				final SmartAppendQuiXQueue<Integer> queue = new SmartAppendQuiXQueue<Integer>(64);
+				queue.setReaderCount(2);
+				steps.add(runner.consume(queue.registerReader(), i -> total.addAndGet(i)));
+				steps.add(runner.consume(queue.registerReader(), i -> total.addAndGet(i)));
+				steps.add(runner.pump(input, queue));
+				steps.add(runner.submit(() -> produce(source, size)));
+			}
+			for (final Future<?> step : steps) {
+				step.get();
+			}
+		}
+		Assert.assertThat(total.get(), is(2L * pipelines * size * (size - 1) / 2));
+	}
+
+	private static final IQuiXCodec<Integer> INT_CODEC = new IQuiXCodec<Integer>() {
+		@Override
+		public void write(final Integer item, final DataOutput out) throws IOException {
+			out.writeInt(item);
+		}
+
+		@Override
+		public Integer read(final DataInput in) throws IOException {
+			return in.readInt();
+		}
+	};
+
+	@Test
+	public void testSpillingFanOut() throws InterruptedException {
+		checkFanOut(new SpillingQuiXQueue<Integer>(INT_CODEC, 64, 2), 4);
+	}
+
+	@Test
+	public void testSpillingLateReaderReplay() throws InterruptedException {
+		final SpillingQuiXQueue<Integer> queue = new SpillingQuiXQueue<Integer>(INT_CODEC, 64, 2);
+		final ProxyReader<Integer> proxy = queue.registerProxyReader();
+		queue.closeReaderRegistration();
+		produce(queue, EVENT_COUNT);
+		// everything but the hot window went to disk
+		Assert.assertThat(queue.getSpilledBytes() > 0, is(true));
+		final Consumer late = new Consumer(proxy.registerReader());
+		proxy.closeReaderRegistration();
+		late.start();
+		late.join();
+		Assert.assertThat(late.count, is(EVENT_COUNT));
+		Assert.assertThat(late.ordered, is(true));
+	}
+
+	@Test
+	public void testSpillingReleaseWhileWriting() throws InterruptedException {
+		// the last proxy is closed while the writer spills
+		for (int i = 0; i < 20; i++) {
+			final SpillingQuiXQueue<Integer> queue = new SpillingQuiXQueue<Integer>(INT_CODEC, 1, 0);
+			final ProxyReader<Integer> proxy = queue.registerProxyReader();
+			queue.closeReaderRegistration();
+			final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+			final Thread writer = new Thread(() -> {
+				try {
+					produce(queue, 100000);
+				} catch (final Throwable e) {
+					failure.set(e);
+				}
+			});
+			writer.start();
+			while (queue.getSpilledBytes() == 0 && writer.isAlive()) {
+				Thread.yield();
+			}
+			proxy.closeReaderRegistration();
+			writer.join();
+			Assert.assertThat(String.valueOf(failure.get()), failure.get() == null, is(true));
+		}
+	}
+
+	@Test
+	public void testSpillingEvents() {
+		final SpillingQuiXQueue<AQuiXEvent> queue = new SpillingQuiXQueue<AQuiXEvent>(QuiXEventCodec.INSTANCE, 2, 0);
+		queue.setReaderCount(1);
+		final IQuiXStream<AQuiXEvent> reader = queue.registerReader();
+		final List<AQuiXEvent> events = new ArrayList<AQuiXEvent>();
+		events.add(AQuiXEvent.getStartSequence());
+		events.add(AQuiXEvent.getStartDocument(QuiXCharStream.fromSequence("file:/a.xml")));
+		events.add(AQuiXEvent.getStartElement(QuiXCharStream.fromSequence("a"), QuiXCharStream.NULL_NS_URI,
+				QuiXCharStream.DEFAULT_NS_PREFIX));
+		events.add(AQuiXEvent.getAttribute(QuiXCharStream.fromSequence("id"), QuiXCharStream.NULL_NS_URI,
+				QuiXCharStream.DEFAULT_NS_PREFIX, QuiXCharStream.fromSequence("\u00e9t\u00e9")));
+		events.add(AQuiXEvent.getText(QuiXCharStream.fromSequence("text")));
+		events.add(AQuiXEvent.getEndElement(QuiXCharStream.fromSequence("a"), QuiXCharStream.NULL_NS_URI,
+				QuiXCharStream.DEFAULT_NS_PREFIX));
+		events.add(AQuiXEvent.getEndDocument(QuiXCharStream.fromSequence("file:/a.xml")));
+		events.add(AQuiXEvent.getEndSequence());
+		for (final AQuiXEvent event : events) {
+			queue.append(event);
+		}
+		queue.close();
+		for (final AQuiXEvent event : events) {
+			Assert.assertThat(reader.next().toString(), is(event.toString()));
+		}
+		Assert.assertThat(reader.hasNext(), is(false));
+		reader.close();
+	}
+
+	@Test
+	public void testSpillingUnknownSystemId() {
+		final SpillingQuiXQueue<AQuiXEvent> queue = new SpillingQuiXQueue<AQuiXEvent>(QuiXEventCodec.INSTANCE, 2, 0);
+		queue.setReaderCount(1);
+		final IQuiXStream<AQuiXEvent> reader = queue.registerReader();
+		queue.append(AQuiXEvent.getStartSequence());
+		queue.append(AQuiXEvent.getStartDocument(QuiXCharStream.fromSequence(null)));
+		queue.append(AQuiXEvent.getText(QuiXCharStream.fromSequence("null")));
+		queue.append(AQuiXEvent.getEndDocument(QuiXCharStream.fromSequence(null)));
+		queue.append(AQuiXEvent.getEndSequence());
+		queue.close();
+		reader.next();
+		// the unknown URI is not read back as the string "null"
+		Assert.assertThat(reader.next().asStartDocument().getURI() == null, is(true));
+		Assert.assertThat(reader.next().asText().getData().toString(), is("null"));
+		Assert.assertThat(reader.next().asEndDocument().getURI() == null, is(true));
+		reader.next();
+		Assert.assertThat(reader.hasNext(), is(false));
+		reader.close();
+	}
+
+}
@@ -0,0 +1,214 @@
+/*
+ * QuiXProc: efficient evaluation of XProc Pipelines.
+ * Copyright (C) 2011-2018 Innovimax
+ * All rights reserved.
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0*/
+package innovimax.quixproc.datamodel.test;
+
+import static org.hamcrest.CoreMatchers.is;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+import innovimax.quixproc.datamodel.QuiXCharStream;
+import innovimax.quixproc.datamodel.QuiXCharStreamInterner;
+
+public class TestQuiXCharStream {
+
+	@Test
+	public void testRope() {
+		QuiXCharStream rope = QuiXCharStream.EMPTY;
+		final StringBuilder expected = new StringBuilder();
+		for (int i = 0; i < 2000; i++) {
+			final String chunk = "chunk" + i + ";";
+			rope = rope.append(chunk);
+			expected.append(chunk);
+		}
+		final String s = expected.toString();
+		Assert.assertThat(rope.length(), is(s.length()));
+		Assert.assertThat(rope.toString(), is(s));
+		Assert.assertThat(rope.charAt(12345), is(s.charAt(12345)));
+		for (final String needle : new String[] { "chunk1999;", "k1000;chunk1001", ";chu", "absent" }) {
+			Assert.assertThat(rope.indexOf(needle), is(s.indexOf(needle)));
+		}
+		Assert.assertThat(rope.indexOf("chunk", 5000), is(s.indexOf("chunk", 5000)));
+		Assert.assertThat(rope.substringBefore("chunk3;").toString(), is("chunk0;chunk1;chunk2;"));
+		Assert.assertThat(rope.substringAfter("chunk1998;").toString(), is("chunk1999;"));
+		Assert.assertThat(rope.contains("k77;c"), is(true));
+		Assert.assertThat(rope.substringBefore("absent").isEmpty(), is(true));
+	}
+
+	@Test
+	public void testSharedTail() {
+		final QuiXCharStream base = QuiXCharStream.fromSequence("ab").append("cd");
+		final QuiXCharStream left = base.append("ef");
+		// base is not at the tail any more : must not overwrite left
+		final QuiXCharStream right = base.append("XY");
+		Assert.assertThat(base.toString(), is("abcd"));
+		Assert.assertThat(left.toString(), is("abcdef"));
+		Assert.assertThat(right.toString(), is("abcdXY"));
+		Assert.assertThat(left.subSequence(1, 5).append("!").toString(), is("bcde!"));
+		Assert.assertThat(left.toString(), is("abcdef"));
+		Assert.assertThat(QuiXCharStream.fromSequence("p:local").substringAfter(":").toString(), is("local"));
+	}
+
+	@Test
+	public void testUtf8() throws IOException {
+		for (final String s : new String[] { "", "plain ascii", "caf\u00e9 \u20ac \ud83d\ude00", "lone \ud800 x" }) {
+			final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+			final QuiXCharStream utf8 = QuiXCharStream.fromUtf8(bytes, 0, bytes.length);
+			final QuiXCharStream chars = QuiXCharStream.fromChars(s.toCharArray(), 0, s.length());
+			final QuiXCharStream plain = QuiXCharStream.fromSequence(s);
+			for (final QuiXCharStream cs : new QuiXCharStream[] { utf8, chars, plain }) {
+				Assert.assertThat(cs.utf8Length(), is(bytes.length));
+				final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+				cs.writeUtf8(new DataOutputStream(baos));
+				Assert.assertThat(baos.toByteArray(), is(bytes));
+			}
+			if (s.indexOf('\ud800') == -1) {
+				Assert.assertThat(utf8.toString(), is(s));
+				Assert.assertThat(chars.length(), is(s.length()));
+				Assert.assertThat(chars.append("!").toString(), is(s + "!"));
+			}
+		}
+		final QuiXCharStream ascii = QuiXCharStream.fromChars("key:value".toCharArray(), 0, 9);
+		Assert.assertThat(ascii.substringAfter(":").toString(), is("value"));
+		Assert.assertThat(ascii.charAt(3), is(':'));
+		final char[] buffer = "<cl\u00e9:valeur \u20ac>".toCharArray();
+		final QuiXCharStream copy = QuiXCharStream.fromChars(buffer, 1, buffer.length - 2);
+		// the buffer of a parser is reused
+		buffer[1] = 'x';
+		Assert.assertThat(copy.toString(), is("cl\u00e9:valeur \u20ac"));
+		Assert.assertThat(copy.substringAfter(":").toString(), is("valeur \u20ac"));
+		Assert.assertThat(copy.charAt(2), is('\u00e9'));
+	}
+
+	@Test
+	public void testEquality() {
+		final String s = "caf\u00e9-name";
+		final byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+		final QuiXCharStream[] variants = { QuiXCharStream.fromSequence(s),
+				QuiXCharStream.fromSequence(new StringBuilder(s)), QuiXCharStream.fromSequence("caf").append("\u00e9-name"),
+				QuiXCharStream.fromUtf8(utf8, 0, utf8.length), QuiXCharStream.fromChars(s.toCharArray(), 0, s.length()),
+				QuiXCharStream.fromSequence("xx" + s).subSequence(2, s.length() + 2) };
+		final java.util.Map<QuiXCharStream, Integer> map = new java.util.HashMap<QuiXCharStream, Integer>();
+		map.put(variants[0], Integer.valueOf(1));
+		for (final QuiXCharStream v : variants) {
+			Assert.assertThat(v.hashCode(), is(s.hashCode()));
+			Assert.assertThat(v.equals(variants[0]), is(true));
+			Assert.assertThat(variants[0].equals(v), is(true));
+			Assert.assertThat(v.compareTo(variants[2]), is(0));
+			Assert.assertThat(map.get(v), is(Integer.valueOf(1)));
+		}
+		final QuiXCharStream a = QuiXCharStream.fromSequence("ab").append("c");
+		final QuiXCharStream b = QuiXCharStream.fromSequence("abd");
+		Assert.assertThat(a.equals(b), is(false));
+		Assert.assertThat(Integer.signum(a.compareTo(b)), is(-1));
+		Assert.assertThat(Integer.signum(b.compareTo(QuiXCharStream.fromSequence("ab"))), is(1));
+	}
+
+	/**
+	 * Ropes with their blocks cut in different places
+	 */
+	@Test
+	public void testRopeEquality() {
+		QuiXCharStream r1 = QuiXCharStream.EMPTY;
+		QuiXCharStream r2 = QuiXCharStream.EMPTY;
+		final StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 500; i++) {
+			r1 = r1.append("x" + i);
+			sb.append("x" + i);
+		}
+		final String s = sb.toString();
+		for (int i = 0; i < s.length(); i += 7) {
+			r2 = r2.append(s.substring(i, Math.min(i + 7, s.length())));
+		}
+		final char[] chars = s.toCharArray();
+		final QuiXCharStream[] variants = { r1, r2, r1.subSequence(0, s.length()), QuiXCharStream.fromSequence(s),
+				QuiXCharStream.fromChars(chars, 0, chars.length) };
+		for (final QuiXCharStream v1 : variants) {
+			Assert.assertThat(v1.hashCode(), is(s.hashCode()));
+			for (final QuiXCharStream v2 : variants) {
+				Assert.assertThat(v1.equals(v2), is(true));
+			}
+		}
+		final QuiXCharStream other = QuiXCharStream.fromSequence(s.substring(0, 1000) + "!" + s.substring(1001));
+		Assert.assertThat(r1.equals(other), is(false));
+		Assert.assertThat(other.equals(r2), is(false));
+		Assert.assertThat(Integer.signum(r2.compareTo(other)), is(Integer.signum(s.compareTo(other.toString()))));
+		Assert.assertThat(Integer.signum(other.compareTo(r1)), is(Integer.signum(other.toString().compareTo(s))));
+		Assert.assertThat(r1.subSequence(3, 900).equals(r2.subSequence(3, 900)), is(true));
+	}
+
+	@Test
+	public void testEqualsDoesNotAllocate() {
+		final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		Assume.assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+		final com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) threads;
+		final String s = "urn:some:namespace:uri:long:enough:to:need:chunks";
+		final byte[] ascii = s.getBytes(StandardCharsets.US_ASCII);
+		final char[] chars = s.toCharArray();
+		final QuiXCharStream[] variants = { QuiXCharStream.fromUtf8(ascii, 0, ascii.length),
+				QuiXCharStream.fromChars(chars, 0, chars.length), QuiXCharStream.fromSequence("urn:").append(s.substring(4)),
+				QuiXCharStream.fromSequence(new StringBuilder(s)) };
+		boolean all = true;
+		// warm up
+		for (int i = 0; i < 20000; i++) {
+			all &= variants[i % 4].equals(variants[(i + 1) % 4]);
+		}
+		final long before = mx.getThreadAllocatedBytes(Thread.currentThread().getId());
+		for (int i = 0; i < 20000; i++) {
+			all &= variants[i % 4].equals(variants[(i + 1) % 4]);
+		}
+		final long allocated = mx.getThreadAllocatedBytes(Thread.currentThread().getId()) - before;
+		Assert.assertThat(all, is(true));
+		// two char buffers per probe would be more than 2 MB
+		Assert.assertThat("allocated " + allocated, allocated < 100000, is(true));
+	}
+
+	@Test
+	public void testNull() {
+		final QuiXCharStream n1 = QuiXCharStream.fromSequence(null);
+		final QuiXCharStream n2 = QuiXCharStream.fromSequence(null);
+		Assert.assertThat(n1.isNull(), is(true));
+		Assert.assertThat(n1.equals(n2), is(true));
+		Assert.assertThat(n1.hashCode(), is(0));
+		Assert.assertThat(n1.compareTo(n2), is(0));
+		Assert.assertThat(n1.equals(QuiXCharStream.EMPTY), is(false));
+		Assert.assertThat(QuiXCharStream.EMPTY.equals(n1), is(false));
+		Assert.assertThat(Integer.signum(n1.compareTo(QuiXCharStream.EMPTY)), is(-1));
+		Assert.assertThat(Integer.signum(QuiXCharStream.EMPTY.compareTo(n1)), is(1));
+		Assert.assertThat(n1.length(), is(0));
+		Assert.assertThat(n1.toString(), is(""));
+		Assert.assertThat(n1.indexOf("a"), is(-1));
+	}
+
+	@Test
+	public void testInterner() {
+		final QuiXCharStreamInterner interner = new QuiXCharStreamInterner(4, true);
+		Assert.assertThat(interner.intern(null) == QuiXCharStream.EMPTY, is(true));
+		Assert.assertThat(interner.intern("") == QuiXCharStream.EMPTY, is(true));
+		final QuiXCharStream uri = interner.intern("urn:some:uri");
+		Assert.assertThat(interner.intern(new String("urn:some:uri")) == uri, is(true));
+		// evicted from the small table but still in the global one
+		for (int i = 0; i < 100; i++) {
+			interner.intern("n" + i);
+		}
+		Assert.assertThat(interner.intern("urn:some:uri") == uri, is(true));
+		Assert.assertThat(QuiXCharStreamInterner.global("urn:some:uri") == uri, is(true));
+		final QuiXCharStreamInterner local = new QuiXCharStreamInterner(4, false);
+		Assert.assertThat(local.intern("urn:some:uri").equals(uri), is(true));
+		Assert.assertThat(local.intern("urn:some:uri") == uri, is(false));
+	}
+
+}
@@ -0,0 +1,239 @@
+/*
+ * QuiXProc: efficient evaluation of XProc Pipelines.
+ * Copyright (C) 2011-2018 Innovimax
+ * All rights reserved.
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0*/
+package innovimax.quixproc.datamodel.test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import innovimax.quixproc.datamodel.IQuiXStream;
+import innovimax.quixproc.datamodel.IQuiXToken;
+import innovimax.quixproc.datamodel.QuiXCharStream;
+import innovimax.quixproc.datamodel.QuiXException;
+import innovimax.quixproc.datamodel.QuiXNamePool;
+import innovimax.quixproc.datamodel.QuiXQName;
+import innovimax.quixproc.datamodel.QuiXToken;
+import innovimax.quixproc.datamodel.event.AQuiXEvent;
+import innovimax.quixproc.datamodel.filter.NamespaceContextFilter;
+import innovimax.quixproc.datamodel.generator.AGenerator.FileExtension;
+import innovimax.quixproc.datamodel.in.AStreamSource;
+import innovimax.quixproc.datamodel.in.QuiXEventStreamReader;
+
+public class TestQuiXNamePool {
+
+	private static QuiXCharStream qcs(final String s) {
+		return QuiXCharStream.fromSequence(s);
+	}
+
+	private static QuiXEventStreamReader reader(final String... documents) {
+		final List<AStreamSource> sources = new ArrayList<AStreamSource>();
+		for (final String document : documents) {
+			sources.add(AStreamSource.instance(FileExtension.XML,
+					new ByteArrayInputStream(document.getBytes(StandardCharsets.UTF_8))));
+		}
+		return new QuiXEventStreamReader(sources);
+	}
+
+	private static List<QuiXQName> names(final QuiXEventStreamReader reader) {
+		final List<QuiXQName> names = new ArrayList<QuiXQName>();
+		while (reader.hasNext()) {
+			final AQuiXEvent event = reader.next();
+			if (event == null)
+				continue;
+			switch (event.getType()) {
+			case START_ELEMENT:
+			case END_ELEMENT:
+			case ATTRIBUTE:
+				names.add(event.asNamedEvent().getQName());
+				break;
+			default:
+			}
+		}
+		reader.close();
+		return names;
+	}
+
+	private static IQuiXStream<IQuiXToken> tokens(final Iterator<? extends IQuiXToken> iter) {
+		return new IQuiXStream<IQuiXToken>() {
+			@Override
+			public boolean hasNext() {
+				return iter.hasNext();
+			}
+
+			@Override
+			public IQuiXToken next() {
+				return iter.next();
+			}
+
+			@Override
+			public void close() {
+				// nothing
+			}
+		};
+	}
+
+	@Test
+	public void testReaderNameCodes() {
+		final String document = "<p:r xmlns:p='urn:x' p:a='1' b='2'><p:r/><s/></p:r>";
+		final QuiXNamePool pool = new QuiXNamePool();
+		final QuiXEventStreamReader first = reader(document, document);
+		first.setNamePool(pool);
+		final QuiXEventStreamReader second = reader(document, document);
+		second.setNamePool(pool);
+		second.setPrefetch(2);
+		final List<QuiXQName> a = names(first);
+		final List<QuiXQName> b = names(second);
+		Assert.assertThat(a.size(), is(16));
+		Assert.assertThat(b.size(), is(16));
+		for (int i = 0; i < a.size(); i++) {
+			// coded by the pipeline pool, not by the default one
+			Assert.assertThat(a.get(i).getNamePool() == pool, is(true));
+			Assert.assertThat(b.get(i).getNamePool() == pool, is(true));
+			Assert.assertThat(a.get(i).getNameCode(pool), not(0));
+			Assert.assertThat(b.get(i).getNameCode(pool), is(a.get(i).getNameCode(pool)));
+			Assert.assertThat(a.get(i).equals(b.get(i)), is(true));
+			Assert.assertThat(pool.getLocalName(a.get(i).getNameCode(pool)), is(a.get(i).getLocalPart().toString()));
+		}
+		// p:r, p:a, b and s
+		Assert.assertThat(a.get(0).equals(a.get(1)), is(false));
+		Assert.assertThat(a.get(0).equals(a.get(3)), is(true));
+		Assert.assertThat(a.get(0).equals(a.get(5)), is(false));
+	}
+
+	@Test
+	public void testReaderNamespaceCodes() {
+		final QuiXEventStreamReader reader = reader("<r xmlns:p='urn:x'><e xmlns:p='urn:y'/><e/></r>");
+		final QuiXNamePool pool = reader.getNamePool();
+		final List<IQuiXToken> events = new ArrayList<IQuiXToken>();
+		while (reader.hasNext()) {
+			final AQuiXEvent event = reader.next();
+			if (event != null)
+				events.add(event);
+		}
+		reader.close();
+		final NamespaceContextFilter filter = new NamespaceContextFilter(tokens(events.iterator()), pool);
+		final int prefixCode = pool.lookupPrefix("p");
+		Assert.assertThat(prefixCode, not(0));
+		final List<String> uris = new ArrayList<String>();
+		while (filter.hasNext()) {
+			if (filter.next().getType() == QuiXToken.START_ELEMENT) {
+				// the bindings come after the START_ELEMENT
+				filter.next();
+				final int uriCode = filter.getURICode(prefixCode);
+				Assert.assertThat(uriCode, not(0));
+				Assert.assertThat(filter.getURI("p").toString(), is(pool.getURIForCode(uriCode)));
+				uris.add(pool.getURIForCode(uriCode));
+			}
+		}
+		Assert.assertThat(uris, is(Arrays.asList("urn:x", "urn:y", "urn:x")));
+	}
+
+	@Test
+	public void testReaderPoolIsBounded() {
+		final QuiXEventStreamReader reader = reader("<r><a/><b/><c/><a/></r>");
+		final QuiXNamePool pool = new QuiXNamePool(2);
+		reader.setNamePool(pool);
+		final List<QuiXQName> names = names(reader);
+		Assert.assertThat(names.get(0).getNameCode(pool), not(0));
+		// the pool is full : no code, compared by content
+		final QuiXQName c = names.get(5);
+		Assert.assertThat(c.getLocalPart().toString(), is("c"));
+		Assert.assertThat(c.getNamePool() == null, is(true));
+		Assert.assertThat(c.equals(names.get(6)), is(true));
+		Assert.assertThat(c.equals(names.get(1)), is(false));
+		Assert.assertThat(names.get(1).equals(names.get(7)), is(true));
+	}
+
+	@Test
+	public void testQName() {
+		final QuiXQName a = new QuiXQName(qcs("urn:x"), qcs("a"), qcs("p"));
+		final QuiXQName b = new QuiXQName(qcs("urn:x"), qcs("a"), qcs("q"));
+		final QuiXQName c = new QuiXQName(qcs("urn:y"), qcs("a"), qcs("p"));
+		// the prefix plays no role in the equality
+		Assert.assertThat(a.equals(b), is(true));
+		Assert.assertThat(a.hashCode(), is(b.hashCode()));
+		Assert.assertThat(a.getNameCode(), not(b.getNameCode()));
+		Assert.assertThat(a.equals(c), is(false));
+		final QuiXNamePool pool = QuiXNamePool.getDefault();
+		Assert.assertThat(pool.getURI(a.getNameCode()), is("urn:x"));
+		Assert.assertThat(pool.getLocalName(a.getNameCode()), is("a"));
+		Assert.assertThat(pool.getPrefix(b.getNameCode()), is("q"));
+		// equal by content when only one side has a code
+		Assert.assertThat(new QuiXQName(qcs("urn:x"), qcs("a"), qcs("r")).equals(a), is(true));
+	}
+
+	@Test
+	public void testBoundedPool() {
+		final QuiXNamePool pool = new QuiXNamePool(2);
+		final QuiXQName a = new QuiXQName(qcs("urn:x"), qcs("a"), qcs("p"));
+		final int code = a.getNameCode(pool);
+		Assert.assertThat(pool.getLocalName(code), is("a"));
+		Assert.assertThat(a.getNameCode(pool), is(code));
+		pool.allocateFingerprint(qcs("urn:x"), qcs("b"));
+		try {
+			pool.allocateFingerprint(qcs("urn:x"), qcs("c"));
+			Assert.fail("The pool should be full");
+		} catch (final QuiXException e) {
+			// expected
+		}
+		// the equality does not need the pool
+		Assert.assertThat(new QuiXQName(qcs("urn:x"), qcs("c"), qcs("p"))
+				.equals(new QuiXQName(qcs("urn:x"), qcs("c"), qcs("q"))), is(true));
+	}
+
+	@Test
+	public void testNamespaceContextFilter() {
+		final List<IQuiXToken> events = Arrays.asList(AQuiXEvent.getStartElement(qcs("a"), qcs(""), qcs("")),
+				AQuiXEvent.getNamespace(qcs("p"), qcs("urn:outer")),
+				AQuiXEvent.getStartElement(qcs("b"), qcs(""), qcs("")),
+				AQuiXEvent.getNamespace(qcs("p"), qcs("urn:inner")), AQuiXEvent.getEndElement(qcs("b"), qcs(""), qcs("")),
+				AQuiXEvent.getText(qcs("t")), AQuiXEvent.getEndElement(qcs("a"), qcs(""), qcs("")));
+		final Iterator<IQuiXToken> iter = events.iterator();
+		final QuiXNamePool pool = new QuiXNamePool();
+		final int prefixCode = pool.allocatePrefix("p");
+		final int outerCode = pool.allocateURI("urn:outer");
+		final NamespaceContextFilter filter = new NamespaceContextFilter(new IQuiXStream<IQuiXToken>() {
+			@Override
+			public boolean hasNext() {
+				return iter.hasNext();
+			}
+
+			@Override
+			public IQuiXToken next() {
+				return iter.next();
+			}
+
+			@Override
+			public void close() {
+				// nothing
+			}
+		}, pool);
+		final String[] expected = { null, "urn:outer", "urn:outer", "urn:inner", "urn:inner", "urn:outer",
+				"urn:outer" };
+		for (final String uri : expected) {
+			filter.next();
+			final QuiXCharStream found = filter.getURI("p");
+			Assert.assertThat(found == null ? null : found.toString(), is(uri));
+			// only the codes the pool already knows
+			Assert.assertThat(filter.getURICode(prefixCode), is("urn:outer".equals(uri) ? outerCode : 0));
+		}
+		Assert.assertThat(filter.getURI("unknown-prefix") == null, is(true));
+		// the filter does not allocate
+		Assert.assertThat(pool.lookupURI("urn:inner"), is(0));
+	}
+
+}
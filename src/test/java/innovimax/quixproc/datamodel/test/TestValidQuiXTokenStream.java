@@ -0,0 +1,150 @@
+/*
+ * QuiXProc: efficient evaluation of XProc Pipelines.
+ * Copyright (C) 2011-2018 Innovimax
+ * All rights reserved.
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0*/
+package innovimax.quixproc.datamodel.test;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import innovimax.quixproc.datamodel.IQuiXStream;
+import innovimax.quixproc.datamodel.IQuiXToken;
+import innovimax.quixproc.datamodel.QuiXToken;
+import innovimax.quixproc.datamodel.QuiXTokenValidator;
+import innovimax.quixproc.datamodel.ValidQuiXTokenStream;
+import innovimax.quixproc.datamodel.ValidationPolicy;
+import innovimax.quixproc.datamodel.event.AQuiXEvent;
+import innovimax.quixproc.datamodel.generator.AGenerator.FileExtension;
+import innovimax.quixproc.datamodel.in.AStreamSource;
+import innovimax.quixproc.datamodel.in.QuiXEventStreamReader;
+import innovimax.quixproc.datamodel.metrics.QuiXMetrics;
+
+public class TestValidQuiXTokenStream {
+
+	private static IQuiXStream<IQuiXToken> stream(final IQuiXToken... tokens) {
+		final Iterator<IQuiXToken> iter = Arrays.asList(tokens).iterator();
+		return new IQuiXStream<IQuiXToken>() {
+			@Override
+			public boolean hasNext() {
+				return iter.hasNext();
+			}
+
+			@Override
+			public IQuiXToken next() {
+				return iter.next();
+			}
+
+			@Override
+			public void close() {
+				// nothing
+			}
+		};
+	}
+
+	private static int validate(final IQuiXToken... tokens) {
+		final ValidQuiXTokenStream valid = new ValidQuiXTokenStream(stream(tokens));
+		int count = 0;
+		while (valid.hasNext()) {
+			Assert.assertThat(valid.next(), sameInstance(tokens[count++]));
+		}
+		valid.close();
+		return count;
+	}
+
+	@Test
+	public void testMixedContent() {
+		// <a>t<b>u</b><!--c--><b/></a>
+		Assert.assertThat(validate(QuiXToken.START_SEQUENCE, QuiXToken.START_DOCUMENT, QuiXToken.START_ELEMENT,
+				QuiXToken.TEXT, QuiXToken.START_ELEMENT, QuiXToken.TEXT, QuiXToken.END_ELEMENT, QuiXToken.COMMENT,
+				QuiXToken.START_ELEMENT, QuiXToken.END_ELEMENT, QuiXToken.END_ELEMENT, QuiXToken.END_DOCUMENT,
+				QuiXToken.END_SEQUENCE), is(13));
+	}
+
+	@Test
+	public void testAllFormats() {
+		Assert.assertThat(validate(QuiXToken.START_SEQUENCE, QuiXToken.START_JSON, QuiXToken.START_OBJECT,
+				QuiXToken.KEY_NAME, QuiXToken.START_ARRAY, QuiXToken.START_ARRAY, QuiXToken.VALUE_NULL,
+				QuiXToken.END_ARRAY, QuiXToken.START_OBJECT, QuiXToken.END_OBJECT, QuiXToken.END_ARRAY,
+				QuiXToken.END_OBJECT, QuiXToken.END_JSON, QuiXToken.START_TABLE, QuiXToken.COLNAME,
+				QuiXToken.START_ARRAY, QuiXToken.START_ARRAY, QuiXToken.VALUE_STRING, QuiXToken.END_ARRAY,
+				QuiXToken.START_ARRAY, QuiXToken.END_ARRAY, QuiXToken.END_ARRAY, QuiXToken.END_TABLE,
+				QuiXToken.START_RDF, QuiXToken.START_PREDICATE, QuiXToken.SUBJECT, QuiXToken.OBJECT, QuiXToken.GRAPH,
+				QuiXToken.END_PREDICATE, QuiXToken.END_RDF, QuiXToken.END_SEQUENCE), is(31));
+	}
+
+	@Test
+	public void testInvalid() {
+		try {
+			validate(QuiXToken.START_SEQUENCE, QuiXToken.START_DOCUMENT, QuiXToken.TEXT);
+			Assert.fail();
+		} catch (final IllegalStateException e) {
+			Assert.assertThat(e.getMessage(), containsString("[START_ELEMENT, PROCESSING_INSTRUCTION, COMMENT]"));
+		}
+	}
+
+	// a document breaking the grammar but well balanced
+	private static final QuiXToken[] BALANCED = { QuiXToken.START_DOCUMENT, QuiXToken.TEXT, QuiXToken.START_ELEMENT,
+			QuiXToken.END_ELEMENT, QuiXToken.END_DOCUMENT };
+
+	private static boolean accepts(final QuiXTokenValidator validator, final QuiXToken... tokens) {
+		try {
+			for (final QuiXToken token : tokens) {
+				validator.check(token);
+			}
+			return true;
+		} catch (final IllegalStateException e) {
+			return false;
+		}
+	}
+
+	@Test
+	public void testStructureOnly() {
+		final QuiXTokenValidator validator = new QuiXTokenValidator(ValidationPolicy.STRUCTURE_ONLY);
+		Assert.assertThat(accepts(validator, QuiXToken.START_SEQUENCE), is(true));
+		Assert.assertThat(accepts(validator, BALANCED), is(true));
+		Assert.assertThat(accepts(validator, QuiXToken.START_JSON, QuiXToken.START_ARRAY, QuiXToken.END_OBJECT),
+				is(false));
+	}
+
+	@Test
+	public void testSampled() {
+		final QuiXTokenValidator validator = new QuiXTokenValidator(ValidationPolicy.SAMPLED, 2);
+		Assert.assertThat(accepts(validator, QuiXToken.START_SEQUENCE, QuiXToken.START_JSON,
+				QuiXToken.START_OBJECT, QuiXToken.END_OBJECT, QuiXToken.END_JSON), is(true));
+		// the second document is only checked for balance
+		Assert.assertThat(accepts(validator, BALANCED), is(true));
+		// the third is fully checked
+		Assert.assertThat(accepts(validator, BALANCED), is(false));
+	}
+
+	@Test
+	public void testReaderPolicy() {
+		final long full = QuiXMetrics.getValidations(ValidationPolicy.FULL);
+		final QuiXEventStreamReader reader = new QuiXEventStreamReader(AStreamSource.instance(FileExtension.JSON,
+				new ByteArrayInputStream("{\"a\":[1,true,{}]}".getBytes(StandardCharsets.UTF_8))));
+		reader.setValidationPolicy(ValidationPolicy.FULL);
+		int count = 0;
+		while (reader.hasNext()) {
+			final AQuiXEvent event = reader.next();
+			if (event != null)
+				count++;
+		}
+		reader.close();
+		Assert.assertThat(count, is(13));
+		if (QuiXMetrics.ENABLED)
+			Assert.assertThat(QuiXMetrics.getValidations(ValidationPolicy.FULL), is(full + 1));
+	}
+
+}